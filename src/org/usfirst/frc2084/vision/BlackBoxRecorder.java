@@ -0,0 +1,405 @@
+package org.usfirst.frc2084.vision;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.highgui.Highgui;
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+
+/**
+ * A "black box" that remembers the last few frames the processor saw, so that
+ * we can see exactly which frames made it decide the goal was hot or not
+ * without recording whole matches.
+ * <p>
+ * Frames are compressed to JPEG and stored in a fixed number of fixed size
+ * slots in a direct (off-heap) buffer. When a state is reported to the robot
+ * (or the hot frame ratio first lands between the hot and not hot limits) the
+ * used slots are copied into a second buffer of the same size, which a
+ * background thread writes to disk. If a dump is still being written when the
+ * next one is requested, the new one is skipped. This means the recorder never
+ * uses more than {@code 2 * frames * maxFrameSize} bytes no matter what, and
+ * that is limited to {@link #MAX_BUFFER_SIZE} each.
+ * <p>
+ * The processing thread only copies each frame into one of a few spare
+ * images. The JPEG encoding, the ring and the copying into the snapshot are
+ * all done in order on an encoder thread, so recording doesn't slow the
+ * processing down. If the encoder falls behind and there are no spare images
+ * left, the frame is recorded without an image.
+ *
+ * @author Ben Wolsieffer
+ */
+public class BlackBoxRecorder implements ProcessingListener {
+
+    /**
+     * The JPEG quality frames are stored at. This is low to keep the frames
+     * small and the encoding fast; they only need to be good enough to see what
+     * the algorithm saw.
+     */
+    private static final int JPEG_QUALITY = 50;
+    /**
+     * The most memory each of the frame buffers can use, in bytes.
+     */
+    public static final long MAX_BUFFER_SIZE = 128 * 1024 * 1024;
+    /**
+     * The number of frames that can be waiting to be encoded.
+     */
+    private static final int SPARE_IMAGES = 3;
+
+    private final int frames;
+    private final int maxFrameSize;
+    private final File directory;
+
+    /**
+     * Ring buffer of compressed frames. Slot {@code i} starts at
+     * {@code i * maxFrameSize}.
+     */
+    private final ByteBuffer ring;
+    /**
+     * Copy of the used slots of the ring, in order from oldest to newest, that
+     * is being written to disk.
+     */
+    private final ByteBuffer snapshot;
+
+    // The ring and everything about the frames in it is only used on the
+    // encoder thread.
+
+    // Per slot information about each frame, indexed the same way as the ring
+    private final int[] lengths;
+    private final long[] sequences;
+    private final long[] timestamps;
+    private final Detection[] detections;
+    private final double[] ratios;
+
+    // The same information for the snapshot
+    private final int[] snapshotLengths;
+    private final long[] snapshotSequences;
+    private final long[] snapshotTimestamps;
+    private final Detection[] snapshotDetections;
+    private final double[] snapshotRatios;
+    private int snapshotSize;
+    private String snapshotReason;
+
+    /**
+     * The next slot to write to.
+     */
+    private int next = 0;
+    /**
+     * The number of slots that have been filled.
+     */
+    private int size = 0;
+
+    /**
+     * The last state that was reported, used to only dump once when the ratio
+     * enters the unknown band.
+     */
+    private State lastState = null;
+
+    /**
+     * Set while the snapshot is being written to disk.
+     */
+    private final AtomicBoolean dumping = new AtomicBoolean(false);
+
+    private final MatOfByte encoded = new MatOfByte();
+    private final MatOfInt encodeParams = new MatOfInt(Highgui.IMWRITE_JPEG_QUALITY, JPEG_QUALITY);
+    private final byte[] encodeBuffer;
+
+    /**
+     * Images that the processing thread can copy frames into.
+     */
+    private final BlockingQueue<Mat> spareImages = new ArrayBlockingQueue<>(SPARE_IMAGES);
+
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Target Tracker Black Box Encoder");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Target Tracker Black Box Writer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Runnable writeTask = new Runnable() {
+
+        @Override
+        public void run() {
+            try {
+                writeSnapshot();
+            } catch (IOException ex) {
+                System.err.println("Could not write black box: " + ex);
+            } finally {
+                dumping.set(false);
+            }
+        }
+    };
+
+    /**
+     * Creates a new black box recorder.
+     *
+     * @param frames the number of frames to remember
+     * @param maxFrameSize the maximum size of a compressed frame in bytes.
+     * Frames that are bigger than this are recorded without an image.
+     * @param directory the directory to write the dumps to
+     * @throws IllegalArgumentException if either size isn't positive, or the
+     * buffers would be bigger than {@link #MAX_BUFFER_SIZE}
+     */
+    public BlackBoxRecorder(int frames, int maxFrameSize, File directory) {
+        if (frames <= 0 || maxFrameSize <= 0) {
+            throw new IllegalArgumentException("frames and frame size must be positive");
+        }
+        long bufferSize = (long) frames * maxFrameSize;
+        if (bufferSize > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException(frames + " frames of " + maxFrameSize
+                    + " bytes is more than the " + MAX_BUFFER_SIZE + " byte limit");
+        }
+        this.frames = frames;
+        this.maxFrameSize = maxFrameSize;
+        this.directory = directory;
+
+        ring = ByteBuffer.allocateDirect((int) bufferSize);
+        snapshot = ByteBuffer.allocateDirect((int) bufferSize);
+        encodeBuffer = new byte[maxFrameSize];
+        for (int i = 0; i < SPARE_IMAGES; i++) {
+            spareImages.add(new Mat());
+        }
+
+        lengths = new int[frames];
+        sequences = new long[frames];
+        timestamps = new long[frames];
+        detections = new Detection[frames];
+        ratios = new double[frames];
+
+        snapshotLengths = new int[frames];
+        snapshotSequences = new long[frames];
+        snapshotTimestamps = new long[frames];
+        snapshotDetections = new Detection[frames];
+        snapshotRatios = new double[frames];
+    }
+
+    /**
+     * Gets the amount of memory used by the frame buffers.
+     *
+     * @return the number of bytes allocated for frames
+     */
+    public long getBufferSize() {
+        return 2L * frames * maxFrameSize;
+    }
+
+    @Override
+    public void frameProcessed(Mat image, Detection detection, double hotFrameRatio) {
+        Mat copy = spareImages.poll();
+        if (copy != null) {
+            image.copyTo(copy);
+        }
+        submit(new FrameTask(copy, detection, hotFrameRatio));
+    }
+
+    /**
+     * Queues a task on the encoder thread.
+     *
+     * @return false if the recorder has been shut down
+     */
+    private boolean submit(Runnable task) {
+        try {
+            encoder.execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            // The recorder was shut down while this frame was being processed
+            return false;
+        }
+    }
+
+    /**
+     * Encodes a frame into the ring on the encoder thread.
+     */
+    private class FrameTask implements Runnable {
+
+        private final Mat image;
+        private final Detection detection;
+        private final double hotFrameRatio;
+
+        FrameTask(Mat image, Detection detection, double hotFrameRatio) {
+            this.image = image;
+            this.detection = detection;
+            this.hotFrameRatio = hotFrameRatio;
+        }
+
+        @Override
+        public void run() {
+            try {
+                record(image, detection, hotFrameRatio);
+            } finally {
+                if (image != null) {
+                    spareImages.add(image);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a frame to the ring. This runs on the encoder thread.
+     *
+     * @param image the frame, or null to record it without an image
+     */
+    private void record(Mat image, Detection detection, double hotFrameRatio) {
+        int slot = next;
+        int length = 0;
+        if (image != null && Highgui.imencode(".jpg", image, encoded, encodeParams)) {
+            long encodedLength = encoded.total();
+            if (encodedLength <= maxFrameSize) {
+                length = (int) encodedLength;
+                encoded.get(0, 0, encodeBuffer);
+                ring.clear();
+                ring.position(slot * maxFrameSize);
+                ring.put(encodeBuffer, 0, length);
+            }
+        }
+
+        lengths[slot] = length;
+        sequences[slot] = detection.getSequence();
+        timestamps[slot] = detection.getTimestamp();
+        detections[slot] = detection;
+        ratios[slot] = hotFrameRatio;
+
+        next = (next + 1) % frames;
+        if (size < frames) {
+            size++;
+        }
+    }
+
+    @Override
+    public void stateReported(State state, double hotFrameRatio) {
+        // Only dump when entering the unknown band, not on every frame in it
+        if (!state.equals(State.UNKNOWN) || !state.equals(lastState)) {
+            dump(state.toString());
+        }
+        lastState = state;
+    }
+
+    /**
+     * Copies the frames in the ring into the snapshot and writes them to disk
+     * in the background. This must be called from the processing thread, and
+     * includes every frame that was processed before it.
+     *
+     * @param reason a short description of why the dump happened, which is
+     * used in the name of the dump's directory
+     */
+    public void dump(final String reason) {
+        submit(new Runnable() {
+
+            @Override
+            public void run() {
+                takeSnapshot(reason);
+            }
+        });
+    }
+
+    /**
+     * Copies the frames in the ring into the snapshot, on the encoder thread.
+     */
+    private void takeSnapshot(String reason) {
+        if (!dumping.compareAndSet(false, true)) {
+            System.out.println("Black box dump skipped, the previous one is still being written");
+            return;
+        }
+
+        int oldest = (next - size + frames) % frames;
+        ring.clear();
+        snapshot.clear();
+        for (int i = 0; i < size; i++) {
+            int slot = (oldest + i) % frames;
+            ring.limit(slot * maxFrameSize + lengths[slot]);
+            ring.position(slot * maxFrameSize);
+            snapshot.position(i * maxFrameSize);
+            snapshot.put(ring);
+            ring.clear();
+
+            snapshotLengths[i] = lengths[slot];
+            snapshotSequences[i] = sequences[slot];
+            snapshotTimestamps[i] = timestamps[slot];
+            snapshotDetections[i] = detections[slot];
+            snapshotRatios[i] = ratios[slot];
+        }
+        snapshotSize = size;
+        snapshotReason = reason;
+
+        try {
+            writer.execute(writeTask);
+        } catch (RejectedExecutionException ex) {
+            // The recorder was shut down while this frame was being processed
+            dumping.set(false);
+        }
+    }
+
+    /**
+     * Writes the snapshot to a new directory. Each frame is written as a JPEG
+     * and the verdicts for all the frames are written to
+     * {@code verdicts.txt}.
+     */
+    private void writeSnapshot() throws IOException {
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ROOT).format(new Date());
+        File dumpDir = new File(directory, time + "-" + snapshotReason.replace(' ', '_'));
+        if (!dumpDir.mkdirs()) {
+            throw new IOException("Could not create " + dumpDir);
+        }
+
+        try (PrintWriter verdicts = new PrintWriter(new File(dumpDir, "verdicts.txt"))) {
+            verdicts.println("# file\tsequence\ttimestamp\tstatic\thot\thot frame ratio");
+            for (int i = 0; i < snapshotSize; i++) {
+                String name = "-";
+                if (snapshotLengths[i] > 0) {
+                    name = String.format(Locale.ROOT, "%06d.jpg", i);
+                    snapshot.limit(i * maxFrameSize + snapshotLengths[i]);
+                    snapshot.position(i * maxFrameSize);
+                    try (FileChannel out = new FileOutputStream(new File(dumpDir, name)).getChannel()) {
+                        while (snapshot.hasRemaining()) {
+                            out.write(snapshot);
+                        }
+                    }
+                    snapshot.clear();
+                }
+                Detection d = snapshotDetections[i];
+                verdicts.println(name + "\t" + snapshotSequences[i] + "\t" + snapshotTimestamps[i] + "\t"
+                        + (d.hasStaticTarget() ? d.getStaticTarget() : "-") + "\t"
+                        + (d.isHot() ? d.getHotTarget() : "-") + "\t"
+                        + snapshotRatios[i]);
+                snapshotDetections[i] = null;
+            }
+        }
+        System.out.println("Wrote black box to " + dumpDir);
+    }
+
+    /**
+     * Stops the background threads. Frames that are waiting to be encoded and
+     * a dump that is being written are allowed to finish.
+     */
+    public void shutdown() {
+        encoder.shutdown();
+        writer.shutdown();
+    }
+}
@@ -0,0 +1,116 @@
+package org.usfirst.frc2084.vision;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * The blobs found in a {@link PackedMask} by a {@link RunLengthBlobExtractor}:
+ * the bounds, area and centroid of each one. Everything is kept in parallel
+ * arrays that are reused for every frame, so finding the blobs doesn't create
+ * any objects until they are turned into {@link Target}s.
+ *
+ * @author Ben Wolsieffer
+ */
+public class BlobTable {
+
+    private int size;
+    private int[] minX = new int[16];
+    private int[] minY = new int[16];
+    private int[] maxX = new int[16];
+    private int[] maxY = new int[16];
+    private int[] area = new int[16];
+    private long[] sumX = new long[16];
+    private long[] sumY = new long[16];
+
+    /**
+     * Removes all of the blobs.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds an empty blob.
+     *
+     * @return the index of the new blob
+     */
+    int add() {
+        if (size == area.length) {
+            int length = size * 2;
+            minX = Arrays.copyOf(minX, length);
+            minY = Arrays.copyOf(minY, length);
+            maxX = Arrays.copyOf(maxX, length);
+            maxY = Arrays.copyOf(maxY, length);
+            area = Arrays.copyOf(area, length);
+            sumX = Arrays.copyOf(sumX, length);
+            sumY = Arrays.copyOf(sumY, length);
+        }
+        minX[size] = Integer.MAX_VALUE;
+        minY[size] = Integer.MAX_VALUE;
+        maxX[size] = -1;
+        maxY[size] = -1;
+        area[size] = 0;
+        sumX[size] = 0;
+        sumY[size] = 0;
+        return size++;
+    }
+
+    /**
+     * Adds a run of pixels to a blob.
+     *
+     * @param blob the index of the blob
+     * @param y the row of the run
+     * @param start the first pixel of the run
+     * @param end the pixel after the last one in the run
+     */
+    void addRun(int blob, int y, int start, int end) {
+        int length = end - start;
+        minX[blob] = Math.min(minX[blob], start);
+        maxX[blob] = Math.max(maxX[blob], end - 1);
+        minY[blob] = Math.min(minY[blob], y);
+        maxY[blob] = Math.max(maxY[blob], y);
+        area[blob] += length;
+        // The sum of start..end-1
+        sumX[blob] += (long) (start + end - 1) * length / 2;
+        sumY[blob] += (long) y * length;
+    }
+
+    /**
+     * Gets the number of blobs.
+     *
+     * @return the number of blobs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the bounding box of a blob. This covers all of its pixels, so a
+     * blob that is a single pixel is 1 by 1. {@link Target} converts this to
+     * the size an outline of the blob would have.
+     *
+     * @param blob the index of the blob
+     * @return a new rectangle around the blob
+     */
+    public Rectangle getRect(int blob) {
+        return new Rectangle(minX[blob], minY[blob], maxX[blob] - minX[blob] + 1, maxY[blob] - minY[blob] + 1);
+    }
+
+    /**
+     * Gets the number of pixels in a blob.
+     *
+     * @param blob the index of the blob
+     * @return the area
+     */
+    public int getArea(int blob) {
+        return area[blob];
+    }
+
+    public double getCentroidX(int blob) {
+        return (double) sumX[blob] / area[blob];
+    }
+
+    public double getCentroidY(int blob) {
+        return (double) sumY[blob] / area[blob];
+    }
+}
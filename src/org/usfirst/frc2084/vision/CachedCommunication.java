@@ -0,0 +1,153 @@
+package org.usfirst.frc2084.vision;
+
+/**
+ * Base class for communication implementations that keep local copies of the
+ * values. The getters only read these copies, so they are cheap enough to call
+ * on every frame, and every change wakes up threads waiting in
+ * {@link #awaitChange(long, long)}. Subclasses call the {@code update}
+ * methods whenever the robot changes a value and implement the {@code write}
+ * methods to send values to the robot.
+ *
+ * @author Ben Wolsieffer
+ */
+public abstract class CachedCommunication implements TargetTrackingCommunication {
+
+    // Local copies of the values. These have the same defaults as the robot.
+    private volatile boolean autonomousVisionRunning = false;
+    private volatile boolean cameraEnabled = true;
+    private volatile int stateValue = State.UNKNOWN_VALUE;
+    private volatile String profileName = null;
+
+    // The System.nanoTime() at which each value last changed
+    private volatile long autonomousVisionRunningChangeTime = System.nanoTime();
+    private volatile long cameraEnabledChangeTime = System.nanoTime();
+    private volatile long stateChangeTime = System.nanoTime();
+
+    /**
+     * Incremented every time one of the values changes. Threads waiting in
+     * {@link #awaitChange(long, long)} wait on {@link #changeLock} for this to
+     * move.
+     */
+    private long changeCount = 0;
+    private final Object changeLock = new Object();
+
+    protected abstract void writeState(int value);
+
+    protected abstract void writeAutonomousVisionRunning(boolean running);
+
+    protected abstract void writeCameraEnabled(boolean enabled);
+
+    @Override
+    public void setState(State state) {
+        updateState(state.value);
+        writeState(state.value);
+    }
+
+    @Override
+    public State getState() {
+        return new State(stateValue);
+    }
+
+    @Override
+    public boolean isAutonomousVisionRunning() {
+        return autonomousVisionRunning;
+    }
+
+    @Override
+    public void setAutonomousVisionRunning(boolean started) {
+        updateAutonomousVisionRunning(started);
+        writeAutonomousVisionRunning(started);
+    }
+
+    @Override
+    public void setCameraEnabled(boolean enabled) {
+        updateCameraEnabled(enabled);
+        writeCameraEnabled(enabled);
+    }
+
+    @Override
+    public boolean isCameraEnabled() {
+        return cameraEnabled;
+    }
+
+    @Override
+    public long getAutonomousVisionRunningChangeTime() {
+        return autonomousVisionRunningChangeTime;
+    }
+
+    @Override
+    public long getCameraEnabledChangeTime() {
+        return cameraEnabledChangeTime;
+    }
+
+    @Override
+    public long getStateChangeTime() {
+        return stateChangeTime;
+    }
+
+    @Override
+    public long getChangeCount() {
+        synchronized (changeLock) {
+            return changeCount;
+        }
+    }
+
+    @Override
+    public long awaitChange(long lastChangeCount, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (changeLock) {
+            long remaining = timeout;
+            while (changeCount == lastChangeCount && remaining > 0) {
+                changeLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return changeCount;
+        }
+    }
+
+    @Override
+    public String getProfileName() {
+        return profileName;
+    }
+
+    protected void updateAutonomousVisionRunning(boolean running) {
+        if (autonomousVisionRunning != running) {
+            autonomousVisionRunning = running;
+            autonomousVisionRunningChangeTime = System.nanoTime();
+            notifyChange();
+        }
+    }
+
+    protected void updateCameraEnabled(boolean enabled) {
+        if (cameraEnabled != enabled) {
+            cameraEnabled = enabled;
+            cameraEnabledChangeTime = System.nanoTime();
+            notifyChange();
+        }
+    }
+
+    protected void updateState(int value) {
+        if (stateValue != value) {
+            stateValue = value;
+            stateChangeTime = System.nanoTime();
+            notifyChange();
+        }
+    }
+
+    protected void updateProfileName(String name) {
+        if (name != null && name.isEmpty()) {
+            name = null;
+        }
+        if (name == null ? profileName != null : !name.equals(profileName)) {
+            profileName = name;
+            notifyChange();
+        }
+    }
+
+    private void notifyChange() {
+        synchronized (changeLock) {
+            changeCount++;
+            changeLock.notifyAll();
+        }
+    }
+}
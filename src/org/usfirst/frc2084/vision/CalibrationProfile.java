@@ -0,0 +1,616 @@
+package org.usfirst.frc2084.vision;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Properties;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.usfirst.frc2084.vision.properties.Range;
+
+/**
+ * Everything that has to be tuned for each venue: how the frame is
+ * thresholded and the thresholds, how the mask is cleaned up and searched,
+ * the limits used by {@link Target} and {@link TargetPair}, and the
+ * resolution to ask the camera for. A profile never changes after it is
+ * created, so the processor can switch to a new one in a single step, even in
+ * the middle of a match, and threads can share them freely. The threshold
+ * {@link Scalar}s are built once when the profile is created instead of on
+ * every frame.
+ * <p>
+ * Profiles are saved as small properties files, either on their own (like the
+ * ones written by the {@link org.usfirst.frc2084.vision.tools.ThresholdOptimizer})
+ * or several to a file in a {@link ProfileLibrary}. Values that are missing
+ * from a file are taken from the default profile.
+ *
+ * @author Ben Wolsieffer
+ */
+public class CalibrationProfile {
+
+    /**
+     * The ways the frame can be thresholded.
+     */
+    public enum ThresholdMode {
+
+        /**
+         * Convert the frame to HSV and threshold all three channels. This
+         * works with any light, but the conversion is the slowest part of the
+         * processing.
+         */
+        HSV,
+        /**
+         * Threshold only the green channel of the frame. With a green LED
+         * ring the tape is much brighter than anything else in green, so this
+         * is usually enough, and it skips the conversion completely.
+         */
+        GREEN,
+        /**
+         * Threshold how much greener each pixel is than it is red or blue
+         * (G - max(R, B)). This is almost as fast as {@link #GREEN} but isn't
+         * fooled by white lights, which are bright in every channel.
+         */
+        GREEN_DIFFERENCE
+    }
+
+    /**
+     * The ways the threshold mask can be cleaned up before looking for blobs.
+     * Each one uses the blur size as the size of its filter.
+     */
+    public enum DenoiseMode {
+
+        /**
+         * A median blur, which is what we always used to do. It is by far the
+         * slowest, especially with a big size.
+         */
+        MEDIAN,
+        /**
+         * A box blur followed by thresholding at half, so each pixel is kept
+         * if most of the pixels around it passed. On a mask this is the same
+         * as the median blur, but the box blur takes the same time for any
+         * size.
+         */
+        BOX,
+        /**
+         * A morphological open (to remove specks) followed by a close (to fill
+         * holes), with a square kernel. This works well with small sizes.
+         */
+        OPEN_CLOSE,
+        /**
+         * No cleaning at all.
+         */
+        NONE
+    }
+
+    /**
+     * The ways the blobs can be found in the threshold mask.
+     */
+    public enum LocatorMode {
+
+        /**
+         * Trace the outline of every blob with OpenCV.
+         */
+        CONTOURS,
+        /**
+         * Find boxes around the blobs from the row and column sums of the
+         * mask with a {@link ProjectionLocator}, without tracing anything.
+         */
+        PROJECTION,
+        /**
+         * Find boxes with a {@link ProjectionLocator} and then only trace the
+         * outlines inside them. This gives the same blobs as
+         * {@link #CONTOURS}, but skips the empty parts of the mask.
+         */
+        PROJECTION_FIRST,
+        /**
+         * Pack the mask into bits and find the blobs in Java with a
+         * {@link RunLengthBlobExtractor}. If the mask doesn't need a median
+         * or box blur, the threshold is done in Java too, straight into the
+         * packed mask, so nothing after the color conversion uses OpenCV.
+         */
+        RUN_LENGTH
+    }
+
+    public static final Range DEFAULT_GREEN_THRESHOLD = new Range(40, 255);
+
+    public static final int DEFAULT_BLUR_SIZE = 13;
+
+    // Indices of the limits. See the fields with the same names in Target and
+    // TargetPair.
+    public static final int MIN_AREA = 0;
+    public static final int MIN_RECTANGULARITY_SCORE = 1;
+    public static final int MIN_ASPECT_RATIO_SCORE = 2;
+    public static final int MIN_HORIZONTAL_DISTANCE_SCORE = 3;
+    public static final int MIN_TAPE_WIDTH_SCORE = 4;
+    public static final int MIN_VERTICAL_DISTANCE_SCORE = 5;
+    public static final int LIMIT_COUNT = 6;
+
+    private static final String[] CHANNEL_KEYS = {"h", "s", "v"};
+    private static final String[] LIMIT_KEYS = {
+        "min_area", "min_rectangularity", "min_aspect_ratio",
+        "min_horizontal_distance", "min_tape_width", "min_vertical_distance"
+    };
+
+    public static final CalibrationProfile DEFAULT = new CalibrationProfile(
+            TargetTrackingProcessor.DEFAULT_H_THRESHOLD,
+            TargetTrackingProcessor.DEFAULT_S_THRESHOLD,
+            TargetTrackingProcessor.DEFAULT_V_THRESHOLD,
+            DEFAULT_BLUR_SIZE);
+
+    private final String name;
+    private final int[] min;
+    private final int[] max;
+    private final int blurSize;
+    private final DenoiseMode denoiseMode;
+    private final boolean skipCleanFrames;
+    private final LocatorMode locatorMode;
+    private final ThresholdMode thresholdMode;
+    private final int greenMin;
+    private final int greenMax;
+    private final double[] limits;
+    private final int streamWidth;
+    private final int streamHeight;
+
+    private final Scalar minScalar;
+    private final Scalar maxScalar;
+    private final Scalar greenMinScalar;
+    private final Scalar greenMaxScalar;
+    private final Size denoiseSize;
+
+    /**
+     * Holds the values of a profile while it is being put together. The
+     * with...() methods and the loader change one of these and then build a
+     * new profile from it, so a profile itself is never changed.
+     */
+    private static class Builder {
+
+        String name = "default";
+        int[] min;
+        int[] max;
+        int blurSize;
+        DenoiseMode denoiseMode = DenoiseMode.MEDIAN;
+        boolean skipCleanFrames = false;
+        LocatorMode locatorMode = LocatorMode.CONTOURS;
+        ThresholdMode thresholdMode = ThresholdMode.HSV;
+        int greenMin = DEFAULT_GREEN_THRESHOLD.getMin();
+        int greenMax = DEFAULT_GREEN_THRESHOLD.getMax();
+        double[] limits = {
+            Target.MIN_AREA, Target.MIN_RECTANGULARITY_SCORE, Target.MIN_ASPECT_RATIO_SCORE,
+            TargetPair.MIN_HORIZONTAL_DISTANCE_SCORE, TargetPair.MIN_TAPE_WIDTH_SCORE,
+            TargetPair.MIN_VERTICAL_DISTANCE_SCORE
+        };
+        int streamWidth = 0;
+        int streamHeight = 0;
+
+        Builder(Range h, Range s, Range v, int blurSize) {
+            min = new int[]{h.getMin(), s.getMin(), v.getMin()};
+            max = new int[]{h.getMax(), s.getMax(), v.getMax()};
+            this.blurSize = blurSize;
+        }
+
+        /**
+         * Starts with the values of an existing profile.
+         */
+        Builder(CalibrationProfile other) {
+            name = other.name;
+            min = other.min.clone();
+            max = other.max.clone();
+            blurSize = other.blurSize;
+            denoiseMode = other.denoiseMode;
+            skipCleanFrames = other.skipCleanFrames;
+            locatorMode = other.locatorMode;
+            thresholdMode = other.thresholdMode;
+            greenMin = other.greenMin;
+            greenMax = other.greenMax;
+            limits = other.limits.clone();
+            streamWidth = other.streamWidth;
+            streamHeight = other.streamHeight;
+        }
+
+        CalibrationProfile build() {
+            return new CalibrationProfile(this);
+        }
+    }
+
+    /**
+     * Creates a profile with the default limits and resolution.
+     *
+     * @param h the hue threshold
+     * @param s the saturation threshold
+     * @param v the value threshold
+     * @param blurSize the size of the filter used to clean up the threshold
+     * mask (a median blur unless the denoise mode is changed), which must be
+     * odd for the median blur. A size of 1 or less turns the filter off.
+     */
+    public CalibrationProfile(Range h, Range s, Range v, int blurSize) {
+        this(new Builder(h, s, v, blurSize));
+    }
+
+    /**
+     * Checks the values and builds everything the processor needs, so nothing
+     * has to be done when the profile is switched to.
+     */
+    private CalibrationProfile(Builder b) {
+        if (b.denoiseMode == DenoiseMode.MEDIAN && b.blurSize > 1 && b.blurSize % 2 == 0) {
+            throw new IllegalArgumentException("Median blur size must be odd: " + b.blurSize);
+        }
+        if (b.name.isEmpty() || b.name.contains(".")) {
+            throw new IllegalArgumentException("Invalid profile name: " + b.name);
+        }
+        name = b.name;
+        min = b.min.clone();
+        max = b.max.clone();
+        blurSize = b.blurSize;
+        denoiseMode = b.denoiseMode;
+        skipCleanFrames = b.skipCleanFrames;
+        locatorMode = b.locatorMode;
+        thresholdMode = b.thresholdMode;
+        greenMin = b.greenMin;
+        greenMax = b.greenMax;
+        limits = b.limits.clone();
+        streamWidth = b.streamWidth;
+        streamHeight = b.streamHeight;
+
+        minScalar = new Scalar(min[0], min[1], min[2]);
+        maxScalar = new Scalar(max[0], max[1], max[2]);
+        greenMinScalar = new Scalar(greenMin);
+        greenMaxScalar = new Scalar(greenMax);
+        denoiseSize = new Size(blurSize, blurSize);
+    }
+
+    public CalibrationProfile withName(String name) {
+        Builder p = new Builder(this);
+        p.name = name;
+        return p.build();
+    }
+
+    /**
+     * Creates a copy of this profile with a different threshold for one
+     * channel.
+     *
+     * @param channel the channel to change (0 for H, 1 for S, 2 for V)
+     * @param threshold the new threshold
+     * @return the new profile
+     */
+    public CalibrationProfile withThreshold(int channel, Range threshold) {
+        Builder p = new Builder(this);
+        p.min[channel] = threshold.getMin();
+        p.max[channel] = threshold.getMax();
+        return p.build();
+    }
+
+    /**
+     * Creates a copy of this profile with different thresholds for all three
+     * channels.
+     *
+     * @param h the hue threshold
+     * @param s the saturation threshold
+     * @param v the value threshold
+     * @return the new profile
+     */
+    public CalibrationProfile withThresholds(Range h, Range s, Range v) {
+        Builder p = new Builder(this);
+        p.min = new int[]{h.getMin(), s.getMin(), v.getMin()};
+        p.max = new int[]{h.getMax(), s.getMax(), v.getMax()};
+        return p.build();
+    }
+
+    public CalibrationProfile withBlurSize(int blurSize) {
+        Builder p = new Builder(this);
+        p.blurSize = blurSize;
+        return p.build();
+    }
+
+    public CalibrationProfile withDenoiseMode(DenoiseMode denoiseMode) {
+        Builder p = new Builder(this);
+        p.denoiseMode = denoiseMode;
+        return p.build();
+    }
+
+    /**
+     * Creates a copy of this profile that skips cleaning up the threshold
+     * mask when it is already clean.
+     *
+     * @param skipCleanFrames whether to skip cleaning clean masks
+     * @return the new profile
+     */
+    public CalibrationProfile withSkipCleanFrames(boolean skipCleanFrames) {
+        Builder p = new Builder(this);
+        p.skipCleanFrames = skipCleanFrames;
+        return p.build();
+    }
+
+    public CalibrationProfile withLocatorMode(LocatorMode locatorMode) {
+        Builder p = new Builder(this);
+        p.locatorMode = locatorMode;
+        return p.build();
+    }
+
+    public CalibrationProfile withThresholdMode(ThresholdMode thresholdMode) {
+        Builder p = new Builder(this);
+        p.thresholdMode = thresholdMode;
+        return p.build();
+    }
+
+    /**
+     * Creates a copy of this profile with a different threshold for the green
+     * channel or the green difference, depending on the mode.
+     *
+     * @param threshold the new threshold
+     * @return the new profile
+     */
+    public CalibrationProfile withGreenThreshold(Range threshold) {
+        Builder p = new Builder(this);
+        p.greenMin = threshold.getMin();
+        p.greenMax = threshold.getMax();
+        return p.build();
+    }
+
+    /**
+     * Creates a copy of this profile with a different limit.
+     *
+     * @param limit the index of the limit, such as {@link #MIN_AREA}
+     * @param value the new value
+     * @return the new profile
+     */
+    public CalibrationProfile withLimit(int limit, double value) {
+        Builder p = new Builder(this);
+        p.limits[limit] = value;
+        return p.build();
+    }
+
+    /**
+     * Creates a copy of this profile that asks the camera for a different
+     * resolution.
+     *
+     * @param width the width, or 0 to pick one based on the processing size
+     * @param height the height, or 0 to pick one based on the processing size
+     * @return the new profile
+     */
+    public CalibrationProfile withStreamResolution(int width, int height) {
+        Builder p = new Builder(this);
+        p.streamWidth = width;
+        p.streamHeight = height;
+        return p.build();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the threshold for a channel.
+     *
+     * @param channel the channel (0 for H, 1 for S, 2 for V)
+     * @return a copy of the threshold
+     */
+    public Range getThreshold(int channel) {
+        return new Range(min[channel], max[channel]);
+    }
+
+    public Range getHThreshold() {
+        return getThreshold(0);
+    }
+
+    public Range getSThreshold() {
+        return getThreshold(1);
+    }
+
+    public Range getVThreshold() {
+        return getThreshold(2);
+    }
+
+    public int getBlurSize() {
+        return blurSize;
+    }
+
+    public DenoiseMode getDenoiseMode() {
+        return denoiseMode;
+    }
+
+    public boolean isSkipCleanFrames() {
+        return skipCleanFrames;
+    }
+
+    public LocatorMode getLocatorMode() {
+        return locatorMode;
+    }
+
+    public ThresholdMode getThresholdMode() {
+        return thresholdMode;
+    }
+
+    public Range getGreenThreshold() {
+        return new Range(greenMin, greenMax);
+    }
+
+    /**
+     * Gets a limit.
+     *
+     * @param limit the index of the limit, such as {@link #MIN_AREA}
+     * @return the value of the limit
+     */
+    public double getLimit(int limit) {
+        return limits[limit];
+    }
+
+    /**
+     * Gets the width to ask the camera for.
+     *
+     * @return the width, or 0 if it should be picked based on the processing
+     * size
+     */
+    public int getStreamWidth() {
+        return streamWidth;
+    }
+
+    public int getStreamHeight() {
+        return streamHeight;
+    }
+
+    /**
+     * Gets the lower thresholds. This must not be modified.
+     *
+     * @return the lower thresholds
+     */
+    Scalar getMinScalar() {
+        return minScalar;
+    }
+
+    /**
+     * Gets the upper thresholds. This must not be modified.
+     *
+     * @return the upper thresholds
+     */
+    Scalar getMaxScalar() {
+        return maxScalar;
+    }
+
+    Scalar getGreenMinScalar() {
+        return greenMinScalar;
+    }
+
+    Scalar getGreenMaxScalar() {
+        return greenMaxScalar;
+    }
+
+    /**
+     * Gets the size of the denoise filter as a {@link Size}. This must not be
+     * modified.
+     *
+     * @return the size
+     */
+    Size getDenoiseSize() {
+        return denoiseSize;
+    }
+
+    /**
+     * Loads a single profile from a file.
+     *
+     * @param file the file to load
+     * @return the profile, named after the file
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if the file has an invalid value
+     */
+    public static CalibrationProfile load(File file) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        }
+        String name = file.getName();
+        if (name.contains(".")) {
+            name = name.substring(0, name.indexOf('.'));
+        }
+        return fromProperties(p, "", name);
+    }
+
+    /**
+     * Saves this profile on its own to a file.
+     *
+     * @param file the file to save to
+     * @param comment a comment to put at the top of the file, or null
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file, String comment) throws IOException {
+        Properties p = new Properties();
+        toProperties(p, "");
+        try (OutputStream out = new FileOutputStream(file)) {
+            p.store(out, comment);
+        }
+    }
+
+    /**
+     * Reads a profile from a set of properties.
+     *
+     * @param p the properties to read from
+     * @param prefix the prefix of the keys of this profile
+     * @param name the name to give the profile
+     * @return the profile
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    static CalibrationProfile fromProperties(Properties p, String prefix, String name) {
+        Builder profile = new Builder(DEFAULT);
+        profile.name = name;
+        for (int i = 0; i < 3; i++) {
+            profile.min[i] = (int) read(p, prefix + CHANNEL_KEYS[i] + ".min", profile.min[i]);
+            profile.max[i] = (int) read(p, prefix + CHANNEL_KEYS[i] + ".max", profile.max[i]);
+        }
+        profile.blurSize = (int) read(p, prefix + "blur", profile.blurSize);
+        profile.denoiseMode = readEnum(p, prefix + "denoise", DenoiseMode.class, profile.denoiseMode);
+        profile.skipCleanFrames = Boolean.parseBoolean(p.getProperty(prefix + "denoise.skip_clean",
+                Boolean.toString(profile.skipCleanFrames)).trim());
+        profile.thresholdMode = readEnum(p, prefix + "mode", ThresholdMode.class, profile.thresholdMode);
+        profile.locatorMode = readEnum(p, prefix + "locator", LocatorMode.class, profile.locatorMode);
+        profile.greenMin = (int) read(p, prefix + "green.min", profile.greenMin);
+        profile.greenMax = (int) read(p, prefix + "green.max", profile.greenMax);
+        for (int i = 0; i < LIMIT_COUNT; i++) {
+            profile.limits[i] = read(p, prefix + LIMIT_KEYS[i], profile.limits[i]);
+        }
+        profile.streamWidth = (int) read(p, prefix + "stream.width", profile.streamWidth);
+        profile.streamHeight = (int) read(p, prefix + "stream.height", profile.streamHeight);
+        return profile.build();
+    }
+
+    /**
+     * Writes this profile to a set of properties.
+     *
+     * @param p the properties to write to
+     * @param prefix the prefix to put before each key
+     */
+    void toProperties(Properties p, String prefix) {
+        for (int i = 0; i < 3; i++) {
+            p.setProperty(prefix + CHANNEL_KEYS[i] + ".min", Integer.toString(min[i]));
+            p.setProperty(prefix + CHANNEL_KEYS[i] + ".max", Integer.toString(max[i]));
+        }
+        p.setProperty(prefix + "blur", Integer.toString(blurSize));
+        p.setProperty(prefix + "denoise", denoiseMode.name());
+        p.setProperty(prefix + "denoise.skip_clean", Boolean.toString(skipCleanFrames));
+        p.setProperty(prefix + "mode", thresholdMode.name());
+        p.setProperty(prefix + "locator", locatorMode.name());
+        p.setProperty(prefix + "green.min", Integer.toString(greenMin));
+        p.setProperty(prefix + "green.max", Integer.toString(greenMax));
+        for (int i = 0; i < LIMIT_COUNT; i++) {
+            p.setProperty(prefix + LIMIT_KEYS[i], Double.toString(limits[i]));
+        }
+        p.setProperty(prefix + "stream.width", Integer.toString(streamWidth));
+        p.setProperty(prefix + "stream.height", Integer.toString(streamHeight));
+    }
+
+    private static double read(Properties p, String key, double defaultValue) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value in profile: " + key + "=" + value, ex);
+        }
+    }
+
+    private static <E extends Enum<E>> E readEnum(Properties p, String key, Class<E> type, E defaultValue) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid value in profile: " + key + "=" + value, ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        String denoise = denoiseMode + " " + blurSize + (skipCleanFrames ? " (skip clean)" : "")
+                + (locatorMode != LocatorMode.CONTOURS ? ", " + locatorMode : "");
+        if (thresholdMode != ThresholdMode.HSV) {
+            return String.format(Locale.ROOT, "%s: %s %d-%d, %s", name, thresholdMode, greenMin, greenMax, denoise);
+        }
+        return String.format(Locale.ROOT, "%s: H %d-%d, S %d-%d, V %d-%d, %s", name,
+                min[0], max[0], min[1], max[1], min[2], max[2], denoise);
+    }
+}
@@ -0,0 +1,120 @@
+package org.usfirst.frc2084.vision;
+
+/**
+ * The configuration of one camera when more than one is being used.
+ *
+ * @author Ben Wolsieffer
+ */
+public class CameraConfig {
+
+    /**
+     * The path of the MJPEG stream on an Axis camera.
+     */
+    public static final String DEFAULT_STREAM_PATH = "/mjpg/video.mjpg";
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final String streamPath;
+    private final int priority;
+    private final String profileName;
+
+    /**
+     * Creates a camera configuration that uses whatever profile the robot
+     * asks for.
+     *
+     * @param name a short name for the camera, used in logs
+     * @param host the host name or IP address of the camera
+     * @param port the HTTP port of the camera
+     * @param streamPath the path of the MJPEG stream
+     * @param priority the priority of the camera's frames. When the workers
+     * can't keep up, frames from cameras with a higher priority are processed
+     * first.
+     */
+    public CameraConfig(String name, String host, int port, String streamPath, int priority) {
+        this(name, host, port, streamPath, priority, null);
+    }
+
+    /**
+     * Creates a camera configuration.
+     *
+     * @param name a short name for the camera, used in logs
+     * @param host the host name or IP address of the camera
+     * @param port the HTTP port of the camera
+     * @param streamPath the path of the MJPEG stream
+     * @param priority the priority of the camera's frames. When the workers
+     * can't keep up, frames from cameras with a higher priority are processed
+     * first.
+     * @param profileName the calibration profile this camera always uses, or
+     * null to use whatever profile the robot asks for. Cameras usually see the
+     * tape differently, so each one can have its own thresholds.
+     */
+    public CameraConfig(String name, String host, int port, String streamPath, int priority, String profileName) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.streamPath = streamPath;
+        this.priority = priority;
+        this.profileName = profileName;
+    }
+
+    /**
+     * Parses a camera configuration of the form
+     * {@code name,host[:port][,priority[,profile]]}.
+     *
+     * @param s the string to parse
+     * @return the camera configuration
+     * @throws IllegalArgumentException if the string is not valid
+     */
+    public static CameraConfig parse(String s) {
+        String[] parts = s.split(",");
+        if (parts.length < 2 || parts.length > 4) {
+            throw new IllegalArgumentException("Invalid camera: \"" + s + "\", expected name,host[:port][,priority[,profile]]");
+        }
+        String host = parts[1].trim();
+        int port = 80;
+        int colon = host.indexOf(':');
+        if (colon >= 0) {
+            port = Integer.parseInt(host.substring(colon + 1));
+            host = host.substring(0, colon);
+        }
+        int priority = parts.length > 2 ? Integer.parseInt(parts[2].trim()) : 0;
+        String profileName = parts.length > 3 && !parts[3].trim().isEmpty() ? parts[3].trim() : null;
+        return new CameraConfig(parts[0].trim(), host, port, DEFAULT_STREAM_PATH, priority, profileName);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getStreamPath() {
+        return streamPath;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Gets the calibration profile this camera always uses.
+     *
+     * @return the name of the profile, or null if the camera uses whatever
+     * profile the robot asks for
+     */
+    public String getProfileName() {
+        return profileName;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + host + ":" + port + ")";
+    }
+}
@@ -0,0 +1,140 @@
+package org.usfirst.frc2084.vision;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The immutable result of running the detection part of the vision algorithm
+ * on a single frame. It holds every blob that passed the {@link Target} tests
+ * as well as the static and hot targets that were picked out of them. Nothing
+ * in here depends on whether the robot's autonomous is running, so it can be
+ * computed for any frame on any thread.
+ *
+ * @author Ben Wolsieffer
+ */
+public class Detection {
+
+    /**
+     * A single valid target found in the frame. This is a snapshot of the
+     * interesting parts of a {@link Target} so that it can be passed between
+     * threads and compared without holding on to the blob's polygon.
+     */
+    public static class Candidate {
+
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        public final double score;
+
+        public Candidate(Target target) {
+            Rectangle rect = target.getRect();
+            this.x = rect.x;
+            this.y = rect.y;
+            this.width = rect.width;
+            this.height = rect.height;
+            this.score = target.getScore();
+        }
+
+        public Candidate(int x, int y, int width, int height, double score) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.score = score;
+        }
+
+        /**
+         * Gets a copy of the bounding rectangle of this candidate.
+         *
+         * @return the bounding rectangle
+         */
+        public Rectangle getRect() {
+            return new Rectangle(x, y, width, height);
+        }
+
+        public double getCenterX() {
+            return x + width / 2.0;
+        }
+
+        public double getCenterY() {
+            return y + height / 2.0;
+        }
+
+        public boolean isVertical() {
+            return width < height;
+        }
+
+        @Override
+        public String toString() {
+            return x + "," + y + "," + width + "," + height + "@" + String.format(Locale.ROOT, "%.3f", score);
+        }
+    }
+
+    private final long sequence;
+    private final long timestamp;
+    private final List<Candidate> candidates;
+    private final Candidate staticTarget;
+    private final Candidate hotTarget;
+
+    /**
+     * Creates a new detection result.
+     *
+     * @param sequence the sequence number of the frame
+     * @param timestamp the time the frame was captured, in
+     * {@link System#nanoTime()} units
+     * @param candidates all of the valid targets in the frame
+     * @param staticTarget the best static target, or null if there wasn't one
+     * @param hotTarget the hot target that formed a valid {@link TargetPair}
+     * with the static target, or null if the goal is not hot
+     */
+    public Detection(long sequence, long timestamp, List<Candidate> candidates, Candidate staticTarget, Candidate hotTarget) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.candidates = Collections.unmodifiableList(new ArrayList<>(candidates));
+        this.staticTarget = staticTarget;
+        this.hotTarget = hotTarget;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public List<Candidate> getCandidates() {
+        return candidates;
+    }
+
+    public Candidate getStaticTarget() {
+        return staticTarget;
+    }
+
+    public Candidate getHotTarget() {
+        return hotTarget;
+    }
+
+    /**
+     * Gets whether a static target was found. Frames without one are ignored
+     * when deciding whether the goal is hot.
+     *
+     * @return whether a static target was found
+     */
+    public boolean hasStaticTarget() {
+        return staticTarget != null;
+    }
+
+    /**
+     * Gets whether this frame shows a hot goal.
+     *
+     * @return whether the goal is hot in this frame
+     */
+    public boolean isHot() {
+        return hotTarget != null;
+    }
+}
@@ -0,0 +1,226 @@
+package org.usfirst.frc2084.vision;
+
+import java.util.Locale;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.properties.Range;
+
+/**
+ * Moves the V threshold to follow the brightness of the tape, so that
+ * thresholds tuned in the morning still work when the arena lights are
+ * different in the evening.
+ * <p>
+ * Every frame, a sparse grid of pixels is checked, and the V of the ones that
+ * pass the whole threshold is added to a running histogram that slowly
+ * forgets old frames. The V part of the threshold is widened by
+ * {@link #MAX_SHIFT} on both sides, so the tape is still counted after it has
+ * gotten as much brighter or darker as can be compensated for. Only checking
+ * the H and S thresholds isn't enough, since they are often wide open, and
+ * then the histogram would just follow the lights and walls instead of the
+ * tape. A high percentile of that histogram is about how bright the lit tape
+ * is. When the V threshold is set (or compensation is turned on), that
+ * brightness is remembered as the reference, and after that the whole V
+ * range is shifted by however much the tape got brighter or darker. The shift
+ * is limited so a bright light in the background can't drag the threshold
+ * somewhere useless, and it only changes once it has moved far enough, so the
+ * threshold doesn't jitter from frame to frame.
+ * <p>
+ * This is only used on the processing thread, except for the getters, which
+ * can be called from anywhere.
+ *
+ * @author Ben Wolsieffer
+ */
+public class ExposureCompensator {
+
+    /**
+     * Only every this many pixels are looked at, in each direction.
+     */
+    public static final int GRID_STEP = 8;
+    /**
+     * The fraction of the matching pixels that are darker than the brightness
+     * that is tracked.
+     */
+    public static final double PERCENTILE = 0.95;
+    /**
+     * How much of the histogram is kept each frame. This is about 1 second of
+     * memory at 30 fps.
+     */
+    public static final double DECAY = 0.97;
+    /**
+     * The number of frames to build the histogram for before the reference
+     * brightness is picked.
+     */
+    public static final int WARMUP_FRAMES = 15;
+    /**
+     * The most the V threshold can be shifted in either direction.
+     */
+    public static final int MAX_SHIFT = 60;
+    /**
+     * How far the wanted shift has to move before the threshold is changed.
+     */
+    public static final int HYSTERESIS = 6;
+
+    private final double[] histogram = new double[256];
+    private double total = 0;
+    private byte[] row = new byte[0];
+
+    // The V threshold the reference was picked for
+    private int baseMin = -1;
+    private int baseMax = -1;
+    private int warmup = 0;
+    private volatile int reference = -1;
+
+    private volatile int brightness = -1;
+    private volatile int shift = 0;
+
+    // The last compensated profile, so a new one is only made when something
+    // changes
+    private CalibrationProfile lastBase;
+    private int lastShift;
+    private CalibrationProfile lastCompensated;
+
+    /**
+     * Adds a frame to the histogram and updates the shift.
+     *
+     * @param hsv the frame, in HSV
+     * @param profile the profile being used, which has the thresholds the
+     * shift is relative to
+     */
+    public void update(Mat hsv, CalibrationProfile profile) {
+        Range v = profile.getVThreshold();
+        if (v.getMin() != baseMin || v.getMax() != baseMax) {
+            // The thresholds were changed, so they are right for the current
+            // lighting. Start over from here.
+            baseMin = v.getMin();
+            baseMax = v.getMax();
+            reset();
+        }
+
+        Range h = profile.getHThreshold();
+        Range s = profile.getSThreshold();
+        int hMin = h.getMin();
+        int hMax = h.getMax();
+        int sMin = s.getMin();
+        int sMax = s.getMax();
+        int vMin = Math.max(0, baseMin - MAX_SHIFT);
+        int vMax = Math.min(255, baseMax + MAX_SHIFT);
+
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] *= DECAY;
+        }
+        total *= DECAY;
+
+        int rowLength = hsv.cols() * 3;
+        if (row.length < rowLength) {
+            row = new byte[rowLength];
+        }
+        for (int r = GRID_STEP / 2; r < hsv.rows(); r += GRID_STEP) {
+            hsv.get(r, 0, row);
+            for (int i = GRID_STEP / 2 * 3; i < rowLength; i += GRID_STEP * 3) {
+                int ph = row[i] & 0xFF;
+                int ps = row[i + 1] & 0xFF;
+                int pv = row[i + 2] & 0xFF;
+                if (ph >= hMin && ph <= hMax && ps >= sMin && ps <= sMax && pv >= vMin && pv <= vMax) {
+                    histogram[pv]++;
+                    total++;
+                }
+            }
+        }
+
+        if (total < 1) {
+            // Nothing that looks like tape, so there is nothing to go on
+            return;
+        }
+        int b = percentile();
+        brightness = b;
+        if (reference < 0) {
+            if (++warmup >= WARMUP_FRAMES) {
+                reference = b;
+                System.out.println("Exposure compensation reference: V " + reference);
+            }
+            return;
+        }
+        int wanted = Math.max(-MAX_SHIFT, Math.min(MAX_SHIFT, b - reference));
+        if (Math.abs(wanted - shift) >= HYSTERESIS) {
+            shift = wanted;
+            System.out.println(String.format(Locale.ROOT, "Exposure compensation: V threshold shifted by %+d (tape V %d, reference %d)",
+                    wanted, b, reference));
+        }
+    }
+
+    /**
+     * Gets the profile with the V threshold shifted.
+     *
+     * @param profile the profile to shift
+     * @return the shifted profile, which is the same object if there is no
+     * shift
+     */
+    public CalibrationProfile apply(CalibrationProfile profile) {
+        int s = shift;
+        if (s == 0) {
+            return profile;
+        }
+        if (profile != lastBase || s != lastShift) {
+            Range v = profile.getVThreshold();
+            lastCompensated = profile.withThreshold(2, new Range(
+                    Math.max(0, Math.min(255, v.getMin() + s)),
+                    Math.max(0, Math.min(255, v.getMax() + s))));
+            lastBase = profile;
+            lastShift = s;
+        }
+        return lastCompensated;
+    }
+
+    /**
+     * Forgets the histogram and the reference, so a new reference is picked
+     * after the next few frames.
+     */
+    public void reset() {
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = 0;
+        }
+        total = 0;
+        warmup = 0;
+        reference = -1;
+        brightness = -1;
+        shift = 0;
+    }
+
+    private int percentile() {
+        double target = total * PERCENTILE;
+        double sum = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            sum += histogram[i];
+            if (sum >= target) {
+                return i;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    /**
+     * Gets the amount the V threshold is shifted by.
+     *
+     * @return the shift
+     */
+    public int getShift() {
+        return shift;
+    }
+
+    /**
+     * Gets the brightness of the tape in the last frame.
+     *
+     * @return the brightness, or -1 if it isn't known yet
+     */
+    public int getBrightness() {
+        return brightness;
+    }
+
+    /**
+     * Checks whether the reference brightness has been picked yet.
+     *
+     * @return true if the threshold is being compensated
+     */
+    public boolean isTracking() {
+        return reference >= 0;
+    }
+}
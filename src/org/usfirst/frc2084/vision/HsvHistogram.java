@@ -0,0 +1,118 @@
+package org.usfirst.frc2084.vision;
+
+import java.util.Arrays;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.properties.Range;
+
+/**
+ * Counts how often each value of each HSV channel shows up, so that
+ * thresholds can be picked from the actual pixels of the tape instead of by
+ * guessing. Pixels can be added a few at a time over many frames, and the
+ * same arrays are used the whole time.
+ *
+ * @author Ben Wolsieffer
+ */
+public class HsvHistogram {
+
+    /**
+     * The default fraction of pixels that is left out at each end of each
+     * channel when suggesting thresholds. This keeps a few stray pixels at the
+     * edge of the box from making the thresholds huge.
+     */
+    public static final double DEFAULT_TAIL = 0.02;
+    /**
+     * The default amount the suggested thresholds are widened by on each side,
+     * to allow for the lighting changing a little.
+     */
+    public static final int DEFAULT_MARGIN = 5;
+
+    private final int[] h = new int[256];
+    private final int[] s = new int[256];
+    private final int[] v = new int[256];
+    private long count = 0;
+
+    private byte[] buffer = new byte[0];
+
+    /**
+     * Adds all of the pixels in an image to the histogram.
+     *
+     * @param hsv an 8-bit, 3 channel HSV image
+     */
+    public void add(Mat hsv) {
+        int length = (int) hsv.total() * 3;
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        if (hsv.isContinuous()) {
+            hsv.get(0, 0, buffer);
+        } else {
+            // Submatrices need to be read a row at a time
+            int rowLength = hsv.cols() * 3;
+            byte[] row = new byte[rowLength];
+            for (int r = 0; r < hsv.rows(); r++) {
+                hsv.get(r, 0, row);
+                System.arraycopy(row, 0, buffer, r * rowLength, rowLength);
+            }
+        }
+        for (int i = 0; i < length; i += 3) {
+            h[buffer[i] & 0xFF]++;
+            s[buffer[i + 1] & 0xFF]++;
+            v[buffer[i + 2] & 0xFF]++;
+        }
+        count += length / 3;
+    }
+
+    /**
+     * Gets the number of pixels that have been added.
+     *
+     * @return the number of pixels
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void reset() {
+        Arrays.fill(h, 0);
+        Arrays.fill(s, 0);
+        Arrays.fill(v, 0);
+        count = 0;
+    }
+
+    public Range suggestH() {
+        // OpenCV stores hue as 0-179 (half of the degrees) so it fits in a
+        // byte, so the suggestion can't go above that
+        return suggest(h, TargetTrackingProcessor.MAX_HUE, DEFAULT_TAIL, DEFAULT_MARGIN);
+    }
+
+    public Range suggestS() {
+        return suggest(s, 255, DEFAULT_TAIL, DEFAULT_MARGIN);
+    }
+
+    public Range suggestV() {
+        return suggest(v, 255, DEFAULT_TAIL, DEFAULT_MARGIN);
+    }
+
+    /**
+     * Picks a threshold that covers most of the values in a channel.
+     *
+     * @param histogram the histogram of the channel
+     * @param maxValue the highest value the channel can have
+     * @param tail the fraction of pixels to leave out at each end
+     * @param margin the amount to widen the range by on each side
+     * @return the suggested threshold
+     */
+    private Range suggest(int[] histogram, int maxValue, double tail, int margin) {
+        long cutoff = (long) (count * tail);
+        int min = 0;
+        long sum = 0;
+        while (min < maxValue && sum + histogram[min] <= cutoff) {
+            sum += histogram[min++];
+        }
+        int max = maxValue;
+        sum = 0;
+        while (max > min && sum + histogram[max] <= cutoff) {
+            sum += histogram[max--];
+        }
+        return new Range(Math.max(0, min - margin), Math.min(maxValue, max + margin));
+    }
+}
@@ -0,0 +1,236 @@
+package org.usfirst.frc2084.vision;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.usfirst.frc2084.vision.capture.MjpegParser;
+
+/**
+ * Reads the MJPEG streams from any number of cameras on a single thread using
+ * a NIO {@link Selector}. It does not decode the frames, it just splits the
+ * stream into JPEGs and hands each one to a {@link FrameHandler}, which keeps
+ * the thread free to service all the connections.
+ * <p>
+ * The streams are split up by an {@link MjpegParser}, the same as the
+ * single camera {@link org.usfirst.frc2084.vision.capture.MjpegHttpFrameSource}.
+ * <p>
+ * A connection is reconnected if it fails, and also if nothing arrives on it
+ * for {@link #STALL_TIMEOUT}. A camera that is power cycled can leave a half
+ * open connection behind that never errors, and without the timeout that
+ * camera would never come back.
+ *
+ * @author Ben Wolsieffer
+ */
+public class MjpegStreamReader {
+
+    /**
+     * Receives the frames read from the cameras.
+     */
+    public interface FrameHandler {
+
+        /**
+         * Called on the reader thread when a complete frame has been read. The
+         * data array is reused for the next frame, so it must be copied if it
+         * is needed after this returns.
+         *
+         * @param camera the index of the camera
+         * @param data the JPEG data
+         * @param length the length of the JPEG data
+         * @param timestamp the time the last byte of the frame arrived, in
+         * {@link System#nanoTime()} units
+         */
+        void frameReceived(int camera, byte[] data, int length, long timestamp);
+    }
+
+    /**
+     * The time in milliseconds to wait before reconnecting to a camera.
+     */
+    private static final long RECONNECT_DELAY = 1000;
+    /**
+     * The time in milliseconds a connection can go without anything
+     * happening on it before it is dropped and reconnected. This includes
+     * connecting, so a camera that doesn't answer at all is retried too.
+     */
+    public static final long STALL_TIMEOUT = 3000;
+
+    /**
+     * The state of the connection to one camera.
+     */
+    private class Connection {
+
+        final int index;
+        final CameraConfig config;
+        SocketChannel channel;
+        ByteBuffer request;
+        final MjpegParser parser = new MjpegParser();
+        long reconnectTime = 0;
+        /**
+         * When the connection was opened or last had any activity.
+         */
+        long lastActivityTime;
+
+        Connection(int index, CameraConfig config) {
+            this.index = index;
+            this.config = config;
+        }
+    }
+
+    private final List<Connection> connections = new ArrayList<>();
+    private final FrameHandler handler;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    public MjpegStreamReader(List<CameraConfig> cameras, FrameHandler handler) {
+        for (int i = 0; i < cameras.size(); i++) {
+            connections.add(new Connection(i, cameras.get(i)));
+        }
+        this.handler = handler;
+    }
+
+    /**
+     * Starts the reader thread.
+     *
+     * @throws IOException if the selector could not be opened
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        running = true;
+        thread = new Thread("Target Tracker MJPEG Reader") {
+
+            @Override
+            public void run() {
+                readLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the reader thread and closes all the connections.
+     */
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                // The next time a connection needs to be opened or checked
+                // for a stall
+                long nextDeadline = Long.MAX_VALUE;
+                for (Connection c : connections) {
+                    if (c.channel != null && now - c.lastActivityTime >= STALL_TIMEOUT) {
+                        System.out.println("Camera " + c.config + " stopped sending, reconnecting.");
+                        disconnect(c);
+                    }
+                    if (c.channel == null) {
+                        if (now >= c.reconnectTime) {
+                            connect(c);
+                        } else {
+                            nextDeadline = Math.min(nextDeadline, c.reconnectTime);
+                        }
+                    }
+                    if (c.channel != null) {
+                        nextDeadline = Math.min(nextDeadline, c.lastActivityTime + STALL_TIMEOUT);
+                    }
+                }
+
+                long timeout = nextDeadline == Long.MAX_VALUE ? 0 : Math.max(1, nextDeadline - now);
+                selector.select(timeout);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection c = (Connection) key.attachment();
+                    c.lastActivityTime = System.currentTimeMillis();
+                    try {
+                        if (key.isConnectable()) {
+                            c.channel.finishConnect();
+                            System.out.println("Connected to camera " + c.config + ".");
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        } else if (key.isWritable()) {
+                            c.channel.write(c.request);
+                            if (!c.request.hasRemaining()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        } else if (key.isReadable()) {
+                            read(c);
+                        }
+                    } catch (IOException ex) {
+                        System.out.println("Disconnected from camera " + c.config + ": " + ex);
+                        disconnect(c);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("MJPEG reader failed: " + ex);
+        } finally {
+            for (Connection c : connections) {
+                disconnect(c);
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    private void connect(Connection c) {
+        System.out.println("Connecting to camera " + c.config + "...");
+        try {
+            c.channel = SocketChannel.open();
+            c.channel.configureBlocking(false);
+            c.channel.socket().setTcpNoDelay(true);
+            c.request = ByteBuffer.wrap(("GET " + c.config.getStreamPath() + " HTTP/1.0\r\n"
+                    + "Host: " + c.config.getHost() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            c.parser.reset();
+            c.lastActivityTime = System.currentTimeMillis();
+            if (c.channel.connect(new InetSocketAddress(c.config.getHost(), c.config.getPort()))) {
+                c.channel.register(selector, SelectionKey.OP_WRITE, c);
+            } else {
+                c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+            }
+        } catch (IOException ex) {
+            System.out.println("Could not connect to camera " + c.config + ": " + ex);
+            disconnect(c);
+        }
+    }
+
+    private void disconnect(Connection c) {
+        if (c.channel != null) {
+            try {
+                c.channel.close();
+            } catch (IOException ex) {
+            }
+            c.channel = null;
+        }
+        c.reconnectTime = System.currentTimeMillis() + RECONNECT_DELAY;
+    }
+
+    /**
+     * Reads whatever is available from a connection and parses it.
+     */
+    private void read(Connection c) throws IOException {
+        if (c.channel.read(c.parser.getBuffer()) < 0) {
+            throw new IOException("end of stream");
+        }
+        int length;
+        while ((length = c.parser.next()) >= 0) {
+            handler.frameReceived(c.index, c.parser.getFrame(), length, System.nanoTime());
+        }
+    }
+}
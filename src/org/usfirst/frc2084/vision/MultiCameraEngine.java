@@ -0,0 +1,563 @@
+package org.usfirst.frc2084.vision;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+import org.usfirst.frc2084.vision.capture.ScaledJpegDecoder;
+import static org.usfirst.frc2084.vision.TargetTrackingExtension.IMAGE_SIZE;
+
+/**
+ * Runs the target tracking on several cameras at once. All the streams are
+ * read by one {@link MjpegStreamReader} thread, and the frames are decoded and
+ * processed by a small fixed pool of workers that is shared by all the
+ * cameras, so adding a camera doesn't add any threads.
+ * <p>
+ * Each camera only ever has its newest frame waiting, and at most one task
+ * queued or running, so a slow camera (or slow workers) just means older
+ * frames get skipped instead of piling up. When the workers are busy, frames
+ * from cameras with a higher {@link CameraConfig#getPriority() priority} are
+ * processed first.
+ * <p>
+ * Every camera has its own {@link TargetTrackingProcessor} and therefore its
+ * own filter and thresholds. A camera can be given its own calibration
+ * profile (see {@link CameraConfig#getProfileName()}), otherwise it uses the
+ * one the robot asks for. Their decisions are combined before being sent to
+ * the robot: if any camera sees a hot goal the goal is hot, and it is only not
+ * hot once all the cameras agree. A camera that stops sending frames is left
+ * out after {@link #STALE_TIMEOUT}, so it can't hold up the decision.
+ * <p>
+ * Processors that aren't part of the engine can be added to the decision
+ * with {@link #join(String)}. The widget uses this to combine its own camera
+ * with the extra ones.
+ *
+ * @author Ben Wolsieffer
+ */
+public class MultiCameraEngine {
+
+    /**
+     * How long {@link #stop()} waits for the workers to finish, in
+     * milliseconds.
+     */
+    private static final long STOP_TIMEOUT = 1000;
+    /**
+     * How long a camera can go without processing a frame before it is left
+     * out of the decision, in milliseconds.
+     */
+    public static final long STALE_TIMEOUT = 1000;
+
+    private final TargetTrackingCommunication communication;
+    private final List<Camera> cameras = new ArrayList<>();
+    /**
+     * Everything whose decisions are combined: the cameras and anything that
+     * has joined.
+     */
+    private final List<CameraCommunication> participants = new CopyOnWriteArrayList<>();
+    private final MjpegStreamReader reader;
+    private final ThreadPoolExecutor workers;
+    /**
+     * Used to process tasks of the same priority in the order they were
+     * queued.
+     */
+    private final AtomicLong taskCounter = new AtomicLong();
+    /**
+     * Whether the combined decision for the current autonomous period has been
+     * sent to the robot.
+     */
+    private boolean decided = false;
+    /**
+     * Whether the robot has been told the goal is unknown in this autonomous
+     * period, so it isn't told again for every frame.
+     */
+    private boolean unknownReported = false;
+
+    /**
+     * Creates an engine for the specified cameras.
+     *
+     * @param configs the cameras to use
+     * @param communication the connection to the robot
+     * @param threads the number of worker threads
+     */
+    public MultiCameraEngine(List<CameraConfig> configs, TargetTrackingCommunication communication, int threads) {
+        this.communication = communication;
+        for (int i = 0; i < configs.size(); i++) {
+            Camera c = new Camera(configs.get(i));
+            cameras.add(c);
+            participants.add(c.communication);
+        }
+        reader = new MjpegStreamReader(configs, new MjpegStreamReader.FrameHandler() {
+
+            @Override
+            public void frameReceived(int camera, byte[] data, int length, long timestamp) {
+                cameras.get(camera).frameReceived(data, length, timestamp);
+            }
+        });
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    private int count = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Target Tracker Worker " + count++);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    public void start() throws IOException {
+        reader.start();
+    }
+
+    /**
+     * Stops reading and processing, and frees the cameras' decoders once the
+     * workers are done with them.
+     */
+    public void stop() {
+        reader.stop();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Camera c : cameras) {
+            c.close();
+        }
+    }
+
+    /**
+     * Adds a processor that isn't part of this engine to the decision. Its
+     * processor has to report to the returned communication, see
+     * {@link TargetTrackingProcessor#setCommunication(TargetTrackingCommunication)}.
+     *
+     * @param name a short name for the processor's camera, used in logs
+     * @return the communication for the processor to report to
+     */
+    public TargetTrackingCommunication join(String name) {
+        CameraCommunication c = new CameraCommunication(name, null);
+        participants.add(c);
+        return c;
+    }
+
+    /**
+     * Removes a processor that was added with {@link #join(String)} from the
+     * decision.
+     *
+     * @param communication the communication that {@link #join(String)}
+     * returned
+     */
+    public void leave(TargetTrackingCommunication communication) {
+        participants.remove(communication);
+        combineStates();
+    }
+
+    /**
+     * Sets the calibration profiles the cameras can use.
+     *
+     * @param library the profiles, or null if there aren't any
+     */
+    public void setProfileLibrary(ProfileLibrary library) {
+        for (Camera c : cameras) {
+            c.processor.setProfileLibrary(library);
+        }
+    }
+
+    public int getCameraCount() {
+        return cameras.size();
+    }
+
+    public CameraConfig getCameraConfig(int camera) {
+        return cameras.get(camera).config;
+    }
+
+    /**
+     * Gets the processor of a camera, which can be used to change its
+     * thresholds or add listeners.
+     *
+     * @param camera the index of the camera
+     * @return the camera's processor
+     */
+    public TargetTrackingProcessor getProcessor(int camera) {
+        return cameras.get(camera).processor;
+    }
+
+    /**
+     * Gets the last state a camera decided on in this autonomous period.
+     *
+     * @param camera the index of the camera
+     * @return the camera's state, or null if it hasn't reported one
+     */
+    public State getCameraState(int camera) {
+        return cameras.get(camera).communication.state;
+    }
+
+    /**
+     * Gets whether a camera has stopped sending frames, which means it is
+     * left out of the decision.
+     *
+     * @param camera the index of the camera
+     * @return whether the camera is stale
+     */
+    public boolean isCameraStale(int camera) {
+        return cameras.get(camera).communication.isStale(System.nanoTime());
+    }
+
+    public long getProcessedFrames(int camera) {
+        return cameras.get(camera).processedFrames.get();
+    }
+
+    public long getSkippedFrames(int camera) {
+        return cameras.get(camera).skippedFrames.get();
+    }
+
+    /**
+     * Combines the states of all the cameras and tells the robot about it.
+     * This is called whenever any of the cameras reports a state, and after
+     * every frame so a camera going stale is noticed.
+     */
+    private synchronized void combineStates() {
+        if (decided) {
+            return;
+        }
+        long now = System.nanoTime();
+        boolean anyFresh = false;
+        boolean allNotHot = true;
+        boolean anyUnknown = false;
+        for (CameraCommunication c : participants) {
+            State s = c.state;
+            if (State.HOT.equals(s)) {
+                report(State.HOT);
+                return;
+            }
+            if (c.isStale(now)) {
+                // It might never come back, so don't wait for it
+                continue;
+            }
+            anyFresh = true;
+            if (!State.NOT_HOT.equals(s)) {
+                allNotHot = false;
+            }
+            if (State.UNKNOWN.equals(s)) {
+                anyUnknown = true;
+            }
+        }
+        if (anyFresh && allNotHot) {
+            report(State.NOT_HOT);
+        } else if (anyUnknown && !unknownReported) {
+            communication.setState(State.UNKNOWN);
+            unknownReported = true;
+        }
+    }
+
+    private void report(State state) {
+        communication.setState(state);
+        communication.setAutonomousVisionRunning(false);
+        communication.setCameraEnabled(false);
+        System.out.println("Told robot (combined): " + state);
+        decided = true;
+    }
+
+    /**
+     * Forgets the states of the cameras once autonomous is over so the next
+     * period starts fresh.
+     */
+    private synchronized void resetStates() {
+        if (decided || hasStates()) {
+            for (CameraCommunication c : participants) {
+                c.state = null;
+            }
+            decided = false;
+            unknownReported = false;
+        }
+    }
+
+    private boolean hasStates() {
+        for (CameraCommunication c : participants) {
+            if (c.state != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Everything belonging to one camera.
+     */
+    private class Camera {
+
+        final CameraConfig config;
+        final CameraCommunication communication;
+        final TargetTrackingProcessor processor;
+
+        // The newest frame that hasn't been processed yet. The reader copies
+        // into this and the worker swaps it with the working buffer.
+        byte[] pending = new byte[0];
+        int pendingLength;
+        long pendingTimestamp;
+        boolean hasPending = false;
+        /**
+         * Set while a task for this camera is queued or running.
+         */
+        boolean scheduled = false;
+
+        // Only used by the worker that is processing this camera
+        byte[] working = new byte[0];
+        /**
+         * Only used while synchronized on itself, so it can't be freed in the
+         * middle of a frame.
+         */
+        final ScaledJpegDecoder decoder = new ScaledJpegDecoder((int) IMAGE_SIZE.width, (int) IMAGE_SIZE.height);
+        boolean closed = false;
+        final Mat image = new Mat();
+        long sequence = 0;
+
+        final AtomicLong processedFrames = new AtomicLong();
+        final AtomicLong skippedFrames = new AtomicLong();
+
+        Camera(CameraConfig config) {
+            this.config = config;
+            communication = new CameraCommunication(config.getName(), config.getProfileName());
+            processor = new TargetTrackingProcessor(communication);
+        }
+
+        /**
+         * Called on the reader thread with a new frame.
+         */
+        synchronized void frameReceived(byte[] data, int length, long timestamp) {
+            if (pending.length < length) {
+                pending = new byte[length];
+            }
+            System.arraycopy(data, 0, pending, 0, length);
+            pendingLength = length;
+            pendingTimestamp = timestamp;
+            if (hasPending) {
+                skippedFrames.incrementAndGet();
+            }
+            hasPending = true;
+            if (!scheduled) {
+                scheduled = true;
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(new CameraTask(this, taskCounter.getAndIncrement()));
+            } catch (RuntimeException ex) {
+                // The engine is stopping
+                scheduled = false;
+            }
+        }
+
+        /**
+         * Called on a worker thread to process the newest frame.
+         */
+        void process() {
+            int length;
+            long timestamp;
+            synchronized (this) {
+                byte[] tmp = working;
+                working = pending;
+                pending = tmp;
+                length = pendingLength;
+                timestamp = pendingTimestamp;
+                hasPending = false;
+            }
+
+            // Decoded straight to the processing resolution, whatever the
+            // camera sends
+            boolean decoded;
+            synchronized (decoder) {
+                decoded = !closed && decoder.decode(working, length, image);
+            }
+            if (decoded) {
+                processor.process(image, sequence++, timestamp);
+                processedFrames.incrementAndGet();
+                // Another camera might have gone stale since the last state
+                // was reported
+                combineStates();
+            }
+
+            synchronized (this) {
+                // If another frame came in while this one was being processed,
+                // go to the back of the queue instead of hogging the worker.
+                if (hasPending) {
+                    schedule();
+                } else {
+                    scheduled = false;
+                }
+            }
+        }
+
+        /**
+         * Frees the decoder. Any frame still being processed is dropped.
+         */
+        void close() {
+            synchronized (decoder) {
+                if (!closed) {
+                    closed = true;
+                    decoder.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A task to process the newest frame of a camera. Tasks are ordered by the
+     * camera's priority, then by the order they were queued.
+     */
+    private static class CameraTask implements Runnable, Comparable<CameraTask> {
+
+        private final Camera camera;
+        private final long order;
+
+        CameraTask(Camera camera, long order) {
+            this.camera = camera;
+            this.order = order;
+        }
+
+        @Override
+        public void run() {
+            try {
+                camera.process();
+            } catch (RuntimeException ex) {
+                System.err.println("Error processing frame from " + camera.config + ": " + ex);
+                synchronized (camera) {
+                    camera.scheduled = false;
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(CameraTask o) {
+            int p = Integer.compare(o.camera.config.getPriority(), camera.config.getPriority());
+            return p != 0 ? p : Long.compare(order, o.order);
+        }
+    }
+
+    /**
+     * What each camera's processor talks to instead of the robot. Reads go to
+     * the real connection, but the states the processor reports are kept here
+     * and combined with the other cameras' before the robot sees them.
+     */
+    private class CameraCommunication implements TargetTrackingCommunication {
+
+        final String name;
+        /**
+         * The profile this camera always uses, or null to use the robot's.
+         */
+        final String profileName;
+        volatile State state = null;
+        /**
+         * Set when this camera has made its decision, so it stops counting
+         * frames until the robot ends autonomous.
+         */
+        volatile boolean done = false;
+        /**
+         * When the processor last checked whether autonomous is running,
+         * which it does for every frame, or 0 if it never has.
+         */
+        volatile long lastFrameTime = 0;
+
+        CameraCommunication(String name, String profileName) {
+            this.name = name;
+            this.profileName = profileName;
+        }
+
+        /**
+         * Gets whether this camera hasn't processed a frame for too long.
+         *
+         * @param now the current time, in {@link System#nanoTime()} units
+         */
+        boolean isStale(long now) {
+            long last = lastFrameTime;
+            return last == 0 || (now - last) / 1000000 > STALE_TIMEOUT;
+        }
+
+        @Override
+        public void setState(State state) {
+            this.state = state;
+            combineStates();
+        }
+
+        @Override
+        public State getState() {
+            return state != null ? state : State.UNKNOWN;
+        }
+
+        @Override
+        public void setResult(double[] result) {
+            // Results are per camera, so there isn't a sensible one to publish
+        }
+
+        @Override
+        public boolean isAutonomousVisionRunning() {
+            lastFrameTime = System.nanoTime();
+            if (!communication.isAutonomousVisionRunning()) {
+                done = false;
+                resetStates();
+                return false;
+            }
+            return !done;
+        }
+
+        @Override
+        public void setAutonomousVisionRunning(boolean started) {
+            done = !started;
+        }
+
+        @Override
+        public void setCameraEnabled(boolean enabled) {
+            // The camera is turned off when the combined decision is made
+        }
+
+        @Override
+        public boolean isCameraEnabled() {
+            return communication.isCameraEnabled();
+        }
+
+        @Override
+        public long getAutonomousVisionRunningChangeTime() {
+            return communication.getAutonomousVisionRunningChangeTime();
+        }
+
+        @Override
+        public long getCameraEnabledChangeTime() {
+            return communication.getCameraEnabledChangeTime();
+        }
+
+        @Override
+        public long getStateChangeTime() {
+            return communication.getStateChangeTime();
+        }
+
+        @Override
+        public long getChangeCount() {
+            return communication.getChangeCount();
+        }
+
+        @Override
+        public long awaitChange(long lastChangeCount, long timeoutMs) throws InterruptedException {
+            return communication.awaitChange(lastChangeCount, timeoutMs);
+        }
+
+        @Override
+        public String getProfileName() {
+            return profileName != null ? profileName : communication.getProfileName();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.usfirst.frc2084.vision;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+import edu.wpi.first.wpilibj.networktables2.type.NumberArray;
+import edu.wpi.first.wpilibj.tables.ITable;
+import edu.wpi.first.wpilibj.tables.ITableListener;
+
+/**
+ * Communicates with the robot using NetworkTables. The values of the keys are
+ * mirrored into local fields by a table listener, so the getters never touch
+ * the table itself.
+ * <p>
+ * There is only one instance, which is created the first time
+ * {@link #getInstance()} is called, so nothing connects to NetworkTables until
+ * something actually needs the robot.
+ *
+ * @author Ben Wolsieffer
+ */
+public class NetworkTableCommunication extends CachedCommunication {
+
+    private static NetworkTableCommunication instance;
+
+    /**
+     * Gets the NetworkTables communication, creating it if necessary.
+     *
+     * @return the shared instance
+     */
+    public static synchronized NetworkTableCommunication getInstance() {
+        if (instance == null) {
+            instance = new NetworkTableCommunication();
+        }
+        return instance;
+    }
+
+    private final NetworkTable targetTable = NetworkTable.getTable(TARGET_TABLE_NAME);
+
+    /**
+     * Updates the local copies whenever the robot (or this side) changes a
+     * value.
+     */
+    private final ITableListener tableListener = new ITableListener() {
+
+        @Override
+        public void valueChanged(ITable source, String key, Object value, boolean isNew) {
+            switch (key) {
+                case TARGET_TABLE_AUTONOMOUS_VISION_RUNNING_KEY:
+                    if (value instanceof Boolean) {
+                        updateAutonomousVisionRunning((Boolean) value);
+                    }
+                    break;
+                case TARGET_TABLE_ENABLE_CAMERA_KEY:
+                    if (value instanceof Boolean) {
+                        updateCameraEnabled((Boolean) value);
+                    }
+                    break;
+                case TARGET_TABLE_STATE_KEY:
+                    if (value instanceof Number) {
+                        updateState(((Number) value).intValue());
+                    }
+                    break;
+                case TARGET_TABLE_PROFILE_KEY:
+                    if (value instanceof String) {
+                        updateProfileName((String) value);
+                    }
+                    break;
+            }
+        }
+    };
+
+    private NetworkTableCommunication() {
+        targetTable.addTableListener(tableListener, true);
+        setState(State.UNKNOWN);
+    }
+
+    @Override
+    protected void writeState(int value) {
+        targetTable.putNumber(TARGET_TABLE_STATE_KEY, value);
+    }
+
+    @Override
+    protected void writeAutonomousVisionRunning(boolean running) {
+        targetTable.putBoolean(TARGET_TABLE_AUTONOMOUS_VISION_RUNNING_KEY, running);
+    }
+
+    @Override
+    protected void writeCameraEnabled(boolean enabled) {
+        targetTable.putBoolean(TARGET_TABLE_ENABLE_CAMERA_KEY, enabled);
+    }
+
+    @Override
+    public void setResult(double[] result) {
+        NumberArray array = new NumberArray();
+        for (double value : result) {
+            array.add(value);
+        }
+        targetTable.putValue(TARGET_TABLE_RESULT_KEY, array);
+    }
+}
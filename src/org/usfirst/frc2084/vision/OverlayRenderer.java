@@ -0,0 +1,60 @@
+package org.usfirst.frc2084.vision;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.util.Locale;
+
+/**
+ * Draws the targets in a {@link Detection} over the frame in the widget. This
+ * used to be done by drawing into the frame with OpenCV before converting it,
+ * which meant the processing thread paid for drawing even when no one was
+ * looking, and the lines got blurry when the frame was scaled. Now it is done
+ * in Java2D at the size the frame is actually displayed.
+ * <p>
+ * All valid targets are drawn in red, the static target in green and the hot
+ * target in blue, each labeled with its score.
+ *
+ * @author Ben Wolsieffer
+ */
+public class OverlayRenderer {
+
+    private static final Color OTHER_TARGET_COLOR = Color.RED;
+    private static final Color STATIC_TARGET_COLOR = Color.GREEN;
+    private static final Color HOT_TARGET_COLOR = Color.BLUE;
+
+    private static final Stroke STROKE = new BasicStroke(2);
+
+    /**
+     * Draws the targets from a detection.
+     *
+     * @param g the graphics to draw with
+     * @param detection the targets to draw
+     * @param x the x position of the frame on the screen
+     * @param y the y position of the frame on the screen
+     * @param scale the scale the frame is drawn at
+     */
+    public void paint(Graphics2D g, Detection detection, int x, int y, double scale) {
+        Stroke oldStroke = g.getStroke();
+        g.setStroke(STROKE);
+        for (Detection.Candidate c : detection.getCandidates()) {
+            paintCandidate(g, c, OTHER_TARGET_COLOR, x, y, scale);
+        }
+        if (detection.hasStaticTarget()) {
+            paintCandidate(g, detection.getStaticTarget(), STATIC_TARGET_COLOR, x, y, scale);
+        }
+        if (detection.isHot()) {
+            paintCandidate(g, detection.getHotTarget(), HOT_TARGET_COLOR, x, y, scale);
+        }
+        g.setStroke(oldStroke);
+    }
+
+    private void paintCandidate(Graphics2D g, Detection.Candidate c, Color color, int x, int y, double scale) {
+        int left = x + (int) (c.x * scale);
+        int top = y + (int) (c.y * scale);
+        g.setColor(color);
+        g.drawRect(left, top, (int) (c.width * scale), (int) (c.height * scale));
+        g.drawString(String.format(Locale.ROOT, "%.2f", c.score), left, top - 3);
+    }
+}
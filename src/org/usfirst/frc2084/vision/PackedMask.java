@@ -0,0 +1,268 @@
+package org.usfirst.frc2084.vision;
+
+import java.util.Arrays;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.properties.Range;
+
+/**
+ * A threshold mask with one bit per pixel, packed into a {@code long[]}. It
+ * takes an eighth of the memory of an 8-bit mask, and since it lives in Java,
+ * everything done with it runs in plain loops that the JIT can optimize,
+ * instead of crossing into native code for each step.
+ * <p>
+ * Each row starts on a new word, and pixel x of a row is bit {@code x % 64}
+ * of word {@code x / 64}. Bits past the end of a row are always 0.
+ * <p>
+ * The mask can be thresholded straight from an HSV or BGR frame (which takes
+ * one copy of the frame out of OpenCV), packed from an 8-bit mask, opened and
+ * closed with a square kernel, and unpacked back into an 8-bit mask for
+ * display. The arrays are reused from frame to frame, so each thread needs its
+ * own.
+ *
+ * @author Ben Wolsieffer
+ */
+public class PackedMask {
+
+    /**
+     * The biggest kernel {@link #openClose(int)} can use.
+     */
+    public static final int MAX_KERNEL_SIZE = 64;
+
+    private int width;
+    private int height;
+    private int stride;
+    private long[] bits = new long[0];
+    private long[] temp = new long[0];
+    private byte[] pixels = new byte[0];
+
+    /**
+     * Sets the size of the mask and clears it.
+     *
+     * @param width the width in pixels
+     * @param height the height in pixels
+     */
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        stride = (width + 63) >>> 6;
+        int length = stride * height;
+        if (bits.length < length) {
+            bits = new long[length];
+            temp = new long[length];
+        } else {
+            Arrays.fill(bits, 0, length, 0);
+        }
+    }
+
+    /**
+     * Copies the pixels of an image out of OpenCV.
+     */
+    private byte[] readPixels(Mat image, int channels) {
+        int length = image.rows() * image.cols() * channels;
+        if (pixels.length < length) {
+            pixels = new byte[length];
+        }
+        image.get(0, 0, pixels);
+        return pixels;
+    }
+
+    /**
+     * Packs an 8-bit mask. Every pixel that isn't 0 is set.
+     *
+     * @param mask the 8-bit, single channel mask
+     */
+    public void pack(Mat mask) {
+        setSize(mask.cols(), mask.rows());
+        byte[] p = readPixels(mask, 1);
+        for (int y = 0; y < height; y++) {
+            int in = y * width;
+            int out = y * stride;
+            for (int x = 0; x < width; x++) {
+                if (p[in + x] != 0) {
+                    bits[out + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thresholds an HSV image into this mask, like
+     * {@link org.opencv.core.Core#inRange(org.opencv.core.Mat, org.opencv.core.Scalar, org.opencv.core.Scalar, org.opencv.core.Mat)}.
+     *
+     * @param hsv the 8-bit, 3 channel HSV image
+     * @param h the hue threshold
+     * @param s the saturation threshold
+     * @param v the value threshold
+     */
+    public void thresholdHsv(Mat hsv, Range h, Range s, Range v) {
+        setSize(hsv.cols(), hsv.rows());
+        byte[] p = readPixels(hsv, 3);
+        int hMin = h.getMin(), hMax = h.getMax();
+        int sMin = s.getMin(), sMax = s.getMax();
+        int vMin = v.getMin(), vMax = v.getMax();
+        for (int y = 0; y < height; y++) {
+            int in = y * width * 3;
+            int out = y * stride;
+            for (int x = 0; x < width; x++, in += 3) {
+                int ph = p[in] & 0xFF;
+                int ps = p[in + 1] & 0xFF;
+                int pv = p[in + 2] & 0xFF;
+                if (ph >= hMin && ph <= hMax && ps >= sMin && ps <= sMax && pv >= vMin && pv <= vMax) {
+                    bits[out + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thresholds the green channel of a BGR image, or how much greener than
+     * red or blue each pixel is, into this mask.
+     *
+     * @param bgr the 8-bit, 3 channel BGR image
+     * @param threshold the threshold
+     * @param difference true to threshold G - max(R, B) instead of G
+     */
+    public void thresholdGreen(Mat bgr, Range threshold, boolean difference) {
+        setSize(bgr.cols(), bgr.rows());
+        byte[] p = readPixels(bgr, 3);
+        int min = threshold.getMin();
+        int max = threshold.getMax();
+        for (int y = 0; y < height; y++) {
+            int in = y * width * 3;
+            int out = y * stride;
+            for (int x = 0; x < width; x++, in += 3) {
+                int value = p[in + 1] & 0xFF;
+                if (difference) {
+                    value = Math.max(0, value - Math.max(p[in] & 0xFF, p[in + 2] & 0xFF));
+                }
+                if (value >= min && value <= max) {
+                    bits[out + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+    }
+
+    /**
+     * Unpacks this mask into an 8-bit mask, with set pixels as 255.
+     *
+     * @param mask the mask to unpack into, which is reallocated if it is the
+     * wrong size
+     */
+    public void unpack(Mat mask) {
+        mask.create(height, width, CvType.CV_8UC1);
+        if (pixels.length < width * height) {
+            pixels = new byte[width * height];
+        }
+        for (int y = 0; y < height; y++) {
+            int in = y * stride;
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                pixels[out + x] = (bits[in + (x >>> 6)] & (1L << x)) != 0 ? (byte) 255 : 0;
+            }
+        }
+        mask.put(0, 0, pixels);
+    }
+
+    /**
+     * Does a morphological open and then a close with a square kernel, which
+     * is the same as {@link CalibrationProfile.DenoiseMode#OPEN_CLOSE}.
+     *
+     * @param size the size of the kernel, up to {@link #MAX_KERNEL_SIZE}
+     */
+    public void openClose(int size) {
+        morph(size, true);
+        morph(size, false);
+        morph(size, false);
+        morph(size, true);
+    }
+
+    /**
+     * Erodes or dilates the mask with a square kernel. The kernel is
+     * separable, so this is done along the rows with shifts and then down the
+     * columns by combining whole rows. Like OpenCV, pixels outside the mask
+     * never erode anything and never dilate into anything.
+     *
+     * @param size the size of the kernel
+     * @param erode true to erode, false to dilate
+     */
+    private void morph(int size, boolean erode) {
+        if (size <= 1) {
+            return;
+        }
+        // OpenCV puts the anchor at size / 2
+        int before = size / 2;
+        int after = size - 1 - before;
+        // Bits past the end of the row act like the outside of the mask
+        int tailBits = width & 63;
+        long tailMask = tailBits == 0 ? -1L : (1L << tailBits) - 1;
+
+        // Along the rows
+        for (int y = 0; y < height; y++) {
+            int row = y * stride;
+            if (erode) {
+                bits[row + stride - 1] |= ~tailMask;
+            }
+            for (int i = 0; i < stride; i++) {
+                long w = bits[row + i];
+                long result = w;
+                for (int k = 1; k <= after; k++) {
+                    // The pixel k to the right
+                    long next = i + 1 < stride ? bits[row + i + 1] : (erode ? -1L : 0);
+                    long shifted = (w >>> k) | (next << (64 - k));
+                    result = erode ? result & shifted : result | shifted;
+                }
+                for (int k = 1; k <= before; k++) {
+                    // The pixel k to the left
+                    long prev = i > 0 ? bits[row + i - 1] : (erode ? -1L : 0);
+                    long shifted = (w << k) | (prev >>> (64 - k));
+                    result = erode ? result & shifted : result | shifted;
+                }
+                temp[row + i] = result;
+            }
+            temp[row + stride - 1] &= tailMask;
+            bits[row + stride - 1] &= tailMask;
+        }
+
+        // Down the columns
+        for (int y = 0; y < height; y++) {
+            int from = Math.max(0, y - before);
+            int to = Math.min(height - 1, y + after);
+            int row = y * stride;
+            for (int i = 0; i < stride; i++) {
+                long result = erode ? -1L : 0;
+                for (int r = from; r <= to; r++) {
+                    long w = temp[r * stride + i];
+                    result = erode ? result & w : result | w;
+                }
+                bits[row + i] = result;
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the number of words in each row.
+     *
+     * @return the stride
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Gets the bits of the mask. This must not be modified.
+     *
+     * @return the bits, which may be longer than the mask
+     */
+    long[] getBits() {
+        return bits;
+    }
+}
@@ -0,0 +1,245 @@
+package org.usfirst.frc2084.vision;
+
+import java.awt.Color;
+import java.awt.DisplayMode;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+/**
+ * Draws the camera preview for the widget. Before this, every repaint scaled
+ * the whole frame again and the processing thread asked for a repaint after
+ * every frame, no matter how fast the screen could actually show them.
+ * <p>
+ * Now the scaled frame, mask and overlay are rendered once into a
+ * {@link VolatileImage} (which normally lives on the graphics card) when a new
+ * frame comes in, and repaints only have to copy that to the screen. New
+ * frames are picked up by a timer running at the screen's refresh rate, so
+ * frames that come in faster than that are skipped without being drawn at
+ * all. I couldn't use a {@link java.awt.image.BufferStrategy} because the
+ * widget is a Swing component, not a {@link java.awt.Canvas}, but Swing is
+ * already double buffered anyway.
+ *
+ * @author Ben Wolsieffer
+ */
+public class PreviewRenderer {
+
+    /**
+     * Everything needed to draw one frame. These are handed from the
+     * processing thread to the UI thread as a unit so the overlay always
+     * matches the frame under it. Nothing in here is changed after it is
+     * published.
+     */
+    public static class Frame {
+
+        private final BufferedImage image;
+        private final BufferedImage mask;
+        private final Detection detection;
+
+        /**
+         * Creates a frame to draw.
+         *
+         * @param image the raw camera frame
+         * @param mask the threshold mask to draw over the frame, or null
+         * @param detection the targets to draw over the frame
+         */
+        public Frame(BufferedImage image, BufferedImage mask, Detection detection) {
+            this.image = image;
+            this.mask = mask;
+            this.detection = detection;
+        }
+    }
+
+    /**
+     * The refresh rate to use if the screen doesn't know its own.
+     */
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
+    private final JComponent component;
+    private final OverlayRenderer overlayRenderer = new OverlayRenderer();
+    private final Timer timer;
+
+    /**
+     * The newest frame that the UI thread hasn't picked up yet. The processing
+     * thread puts frames in here and the timer takes them out, so if two
+     * frames come in between ticks the first one is just replaced.
+     */
+    private final AtomicReference<Frame> pendingFrame = new AtomicReference<>();
+
+    // Only used on the UI thread
+    private Frame currentFrame;
+    private VolatileImage buffer;
+    private boolean bufferDirty = true;
+    // Where the frame was last drawn, for converting mouse positions
+    private int frameX;
+    private int frameY;
+    private double frameScale;
+
+    /**
+     * Creates a renderer for a component. It does nothing until
+     * {@link #start()} is called.
+     *
+     * @param component the component the preview is drawn on
+     */
+    public PreviewRenderer(JComponent component) {
+        this.component = component;
+        timer = new Timer(1000 / getRefreshRate(), new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Frame frame = pendingFrame.getAndSet(null);
+                if (frame != null && PreviewRenderer.this.component.isShowing()) {
+                    currentFrame = frame;
+                    bufferDirty = true;
+                    PreviewRenderer.this.component.repaint();
+                }
+            }
+        });
+        timer.setCoalesce(true);
+    }
+
+    /**
+     * Gets the refresh rate of the default screen.
+     */
+    private static int getRefreshRate() {
+        try {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            if (rate != DisplayMode.REFRESH_RATE_UNKNOWN && rate > 0) {
+                return rate;
+            }
+        } catch (HeadlessException ex) {
+        }
+        return DEFAULT_REFRESH_RATE;
+    }
+
+    public void start() {
+        timer.start();
+    }
+
+    public void stop() {
+        timer.stop();
+        pendingFrame.set(null);
+    }
+
+    /**
+     * Hands a new frame to the renderer. This can be called from any thread
+     * and never blocks.
+     *
+     * @param frame the frame to draw
+     */
+    public void publish(Frame frame) {
+        pendingFrame.set(frame);
+    }
+
+    /**
+     * Draws the preview. This must be called on the UI thread, normally from
+     * {@code paintComponent()}.
+     *
+     * @param g the graphics to draw with
+     * @param width the width of the area to draw in
+     * @param height the height of the area to draw in
+     * @return true if a frame was drawn, false if there isn't one yet
+     */
+    public boolean paint(Graphics2D g, int width, int height) {
+        Frame frame = currentFrame;
+        if (frame == null || width <= 0 || height <= 0) {
+            return false;
+        }
+        do {
+            if (buffer == null || buffer.getWidth() != width || buffer.getHeight() != height) {
+                if (buffer != null) {
+                    buffer.flush();
+                }
+                buffer = component.createVolatileImage(width, height);
+                if (buffer == null) {
+                    // Not displayable yet, just draw it directly
+                    render(g, frame, width, height);
+                    return true;
+                }
+                bufferDirty = true;
+            }
+            int status = buffer.validate(component.getGraphicsConfiguration());
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                buffer.flush();
+                buffer = null;
+                continue;
+            }
+            if (status == VolatileImage.IMAGE_RESTORED || bufferDirty) {
+                Graphics2D bg = buffer.createGraphics();
+                try {
+                    render(bg, frame, width, height);
+                } finally {
+                    bg.dispose();
+                }
+                bufferDirty = false;
+            }
+            g.drawImage(buffer, 0, 0, null);
+        } while (buffer == null || buffer.contentsLost());
+        return true;
+    }
+
+    /**
+     * Draws the frame scaled to fit in the area, with the mask and the targets
+     * over it.
+     */
+    private void render(Graphics2D g, Frame frame, int width, int height) {
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, width, height);
+        BufferedImage image = frame.image;
+        double scale = Math.min((double) width / (double) image.getWidth(), (double) height / (double) image.getHeight());
+        int x = (int) (width - (scale * image.getWidth())) / 2;
+        int y = (int) (height - (scale * image.getHeight())) / 2;
+        int drawnWidth = (int) (scale * image.getWidth());
+        int drawnHeight = (int) (scale * image.getHeight());
+        frameX = x;
+        frameY = y;
+        frameScale = scale;
+
+        // This only happens once per frame now, so it can afford to look nice
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, x, y, drawnWidth, drawnHeight, null);
+        if (frame.mask != null) {
+            g.drawImage(frame.mask, x, y, drawnWidth, drawnHeight, null);
+        }
+        // Draw the targets on top at the screen's scale
+        overlayRenderer.paint(g, frame.detection, x, y, scale);
+    }
+
+    /**
+     * Converts a rectangle on the screen to the part of the frame that is
+     * drawn there. This must be called on the UI thread.
+     *
+     * @param screen the rectangle in component coordinates
+     * @return the rectangle in frame coordinates, or null if no frame has been
+     * drawn
+     */
+    public Rectangle toFrameRect(Rectangle screen) {
+        if (currentFrame == null || frameScale <= 0) {
+            return null;
+        }
+        return new Rectangle((int) ((screen.x - frameX) / frameScale), (int) ((screen.y - frameY) / frameScale),
+                (int) (screen.width / frameScale), (int) (screen.height / frameScale));
+    }
+
+    /**
+     * Frees the cached image.
+     */
+    public void dispose() {
+        stop();
+        if (buffer != null) {
+            buffer.flush();
+            buffer = null;
+        }
+        currentFrame = null;
+    }
+}
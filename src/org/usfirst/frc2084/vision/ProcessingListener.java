@@ -0,0 +1,35 @@
+package org.usfirst.frc2084.vision;
+
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+
+/**
+ * Receives the results of the {@link TargetTrackingProcessor} as each frame is
+ * processed. Listeners are called on the processing thread, so they need to be
+ * quick and must not hold on to the image after they return.
+ *
+ * @author Ben Wolsieffer
+ */
+public interface ProcessingListener {
+
+    /**
+     * Called after detection has been run on a frame.
+     *
+     * @param image the frame that was processed
+     * @param detection the targets found in the frame
+     * @param hotFrameRatio the ratio of hot frames to total frames during
+     * autonomous including this frame, or {@link Double#NaN} if no frames have
+     * been counted
+     */
+    void frameProcessed(Mat image, Detection detection, double hotFrameRatio);
+
+    /**
+     * Called when the processor tells the robot the state of the goal. This is
+     * called with {@link State#UNKNOWN} on every frame that has enough frames
+     * behind it but is not conclusive.
+     *
+     * @param state the state that was sent to the robot
+     * @param hotFrameRatio the ratio that caused the state to be sent
+     */
+    void stateReported(State state, double hotFrameRatio);
+}
@@ -0,0 +1,214 @@
+package org.usfirst.frc2084.vision;
+
+import java.awt.image.BufferedImage;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import static org.usfirst.frc2084.vision.TargetTrackingExtension.IMAGE_SIZE;
+
+/**
+ * A separate {@link Thread} that runs the vision processing algorithm. It
+ * basically calls
+ * {@link TargetTrackingProcessor#process(org.opencv.core.Mat, long, long)}
+ * on every new frame from the {@link VideoCaptureThread} and monitors the FPS.
+ * I moved this out of the UI thread to keep it smooth, and out of the widget so
+ * it can be run without one.
+ *
+ * @author Ben Wolsieffer
+ */
+public class ProcessingThread extends Thread {
+
+    /**
+     * Receives the frames and results produced by the processing thread.
+     * Frames are only converted for display if the listener says it is
+     * showing them, so nothing is wasted when the widget is hidden.
+     */
+    public interface FrameListener {
+
+        /**
+         * Checks whether the listener is currently displaying frames.
+         *
+         * @return whether the raw frames should be converted and passed to
+         * {@link #frameReady}
+         */
+        boolean isShowingFrames();
+
+        /**
+         * Checks whether the listener is currently displaying the threshold
+         * mask. This is only checked if {@link #isShowingFrames()} returns
+         * true.
+         *
+         * @return whether the threshold mask should be converted and passed to
+         * {@link #frameReady}
+         */
+        boolean isShowingMask();
+
+        /**
+         * Called on the processing thread after each frame is processed.
+         *
+         * @param image the raw frame, or null if the listener isn't showing
+         * frames
+         * @param mask the threshold mask, or null if the listener isn't
+         * showing it
+         * @param detection the targets found in the frame
+         */
+        void frameReady(BufferedImage image, BufferedImage mask, Detection detection);
+    }
+
+    /**
+     * The longest time in milliseconds the thread waits for the camera to be
+     * enabled before checking whether it was destroyed.
+     */
+    private static final long DISABLED_WAIT_TIMEOUT = 500;
+
+    private final TargetTrackingProcessor processor;
+    private final VideoCaptureThread captureThread;
+    private final Mat image;
+    private final TargetTrackingCommunication communication;
+    private final FrameListener listener;
+
+    private volatile boolean destroyed = false;
+
+    /**
+     * Thread-local copy of the image to process.
+     */
+    private final Mat processingImage = new Mat(IMAGE_SIZE, CvType.CV_8UC3);
+
+    // Variables used to keep track of the FPS.
+    private long lastFPSCheck = 0;
+    private volatile int lastFPS = 0;
+    private int fpsCounter = 0;
+
+    /**
+     * Average time it takes to process a frame in milliseconds, or -1 before
+     * the first frame.
+     */
+    private volatile double processingTime = -1;
+
+    /**
+     * Creates a new processing thread.
+     *
+     * @param processor the processor to run
+     * @param captureThread the capture thread that writes into {@code image}
+     * @param image the image that the capture thread writes into
+     * @param communication the connection to the robot
+     * @param listener the listener for processed frames
+     */
+    public ProcessingThread(TargetTrackingProcessor processor, VideoCaptureThread captureThread, Mat image,
+            TargetTrackingCommunication communication, FrameListener listener) {
+        super("Target Tracker Processing Thread");
+        this.processor = processor;
+        this.captureThread = captureThread;
+        this.image = image;
+        this.communication = communication;
+        this.listener = listener;
+    }
+
+    @Override
+    @SuppressWarnings("SleepWhileInLoop")
+    public void run() {
+        long changeCount = communication.getChangeCount();
+        long lastSequence = -1;
+        // Run until the extension is removed or the SmartDashboard closes
+        while (!destroyed) {
+            // If the camera is enabled, run the processing loop
+            if (communication.isCameraEnabled()) {
+                // Start the camera if it is not running
+                captureThread.start();
+
+                // Copy the image from the video capture to a thread local
+                // copy. This is to fix a bug where the image was being
+                // overwritten by the next video frame capture before the 
+                // algorithm completed because the video capture thread runs
+                // much faster than this thread. It was basically resulting 
+                // in screen tearing.
+                long sequence;
+                long timestamp;
+                synchronized (image) {
+                    sequence = captureThread.getFrameSequence();
+                    timestamp = captureThread.getFrameTimestamp();
+                    // Only process each frame once, otherwise the same frame
+                    // would be counted many times by the decision filter.
+                    if (sequence != lastSequence) {
+                        image.copyTo(processingImage);
+                    }
+                }
+                if (sequence != lastSequence) {
+                    lastSequence = sequence;
+                    long start = System.nanoTime();
+                    Detection detection = processor.process(processingImage, sequence, timestamp);
+                    double time = (System.nanoTime() - start) / 1e6;
+                    // Average over roughly the last 16 frames
+                    processingTime = processingTime < 0 ? time : processingTime + (time - processingTime) / 16;
+
+                    // Update FPS
+                    fpsCounter++;
+                    if (System.currentTimeMillis() - lastFPSCheck > 500) {
+                        lastFPSCheck = System.currentTimeMillis();
+                        lastFPS = fpsCounter * 2;
+                        fpsCounter = 0;
+                    }
+                    // Only convert the frame and the mask if someone is going
+                    // to look at them. The targets are drawn by the widget.
+                    BufferedImage frame = null;
+                    BufferedImage mask = null;
+                    if (listener.isShowingFrames()) {
+                        frame = TargetTrackingProcessor.matToBufferedImage(processingImage);
+                        if (listener.isShowingMask()) {
+                            mask = TargetTrackingProcessor.maskToBufferedImage(processor.getThresholdImage());
+                        }
+                    }
+                    listener.frameReady(frame, mask, detection);
+                }
+            } else {
+                // If the camera is not enabled, stop the capture thread.
+                // This does nothing if the camera is already disabled.
+                captureThread.stop();
+                // Sleep until the robot changes something instead of
+                // checking again every millisecond.
+                try {
+                    changeCount = communication.awaitChange(changeCount, DISABLED_WAIT_TIMEOUT);
+                } catch (InterruptedException ex) {
+                }
+                continue;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+            }
+        }
+        // A pass that was running when this was destroyed could have started
+        // the capture again after the engine stopped it
+        captureThread.stop();
+    }
+
+    /**
+     * Gets the number of frames processed per second.
+     *
+     * @return the frame rate
+     */
+    public int getFPS() {
+        return lastFPS;
+    }
+
+    /**
+     * Gets the average time it takes to process a frame. Unlike the FPS, this
+     * doesn't depend on how fast the camera sends frames, so it shows how
+     * many frames the processing could keep up with.
+     *
+     * @return the processing time in milliseconds, or -1 if no frames have
+     * been processed
+     */
+    public double getProcessingTime() {
+        return processingTime;
+    }
+
+    /**
+     * Sets a flag to tell the thread to stop, and wakes it up if it is
+     * waiting for the camera to be enabled.
+     */
+    @Override
+    public void destroy() {
+        destroyed = true;
+        interrupt();
+    }
+}
@@ -0,0 +1,115 @@
+package org.usfirst.frc2084.vision;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A set of named {@link CalibrationProfile}s, one for each place we compete
+ * or practice, stored together in one small properties file. Each key starts
+ * with the name of its profile, like {@code wpi.h.min=50}. Every profile is
+ * built when the file is loaded, so switching to one later only means
+ * swapping a reference.
+ * <p>
+ * Like the profiles themselves, a library never changes after it is created.
+ *
+ * @author Ben Wolsieffer
+ */
+public class ProfileLibrary {
+
+    private final TreeMap<String, CalibrationProfile> profiles;
+
+    public ProfileLibrary() {
+        this(new TreeMap<String, CalibrationProfile>());
+    }
+
+    private ProfileLibrary(TreeMap<String, CalibrationProfile> profiles) {
+        this.profiles = profiles;
+    }
+
+    /**
+     * Gets a profile.
+     *
+     * @param name the name of the profile
+     * @return the profile, or null if there isn't one with that name
+     */
+    public CalibrationProfile get(String name) {
+        return profiles.get(name);
+    }
+
+    /**
+     * Gets the names of all of the profiles, in alphabetical order.
+     *
+     * @return the profile names
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(profiles.keySet());
+    }
+
+    /**
+     * Creates a copy of this library with a profile added or replaced.
+     *
+     * @param profile the profile to add, which replaces any profile with the
+     * same name
+     * @return the new library
+     */
+    public ProfileLibrary with(CalibrationProfile profile) {
+        TreeMap<String, CalibrationProfile> copy = new TreeMap<>(profiles);
+        copy.put(profile.getName(), profile);
+        return new ProfileLibrary(copy);
+    }
+
+    /**
+     * Loads a library from a file.
+     *
+     * @param file the file to load
+     * @return the library, which is empty if the file doesn't exist
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if a profile has an invalid value
+     */
+    public static ProfileLibrary load(File file) throws IOException {
+        TreeMap<String, CalibrationProfile> profiles = new TreeMap<>();
+        if (!file.isFile()) {
+            return new ProfileLibrary(profiles);
+        }
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        }
+        Set<String> names = new TreeSet<>();
+        for (String key : p.stringPropertyNames()) {
+            int dot = key.indexOf('.');
+            if (dot > 0) {
+                names.add(key.substring(0, dot));
+            }
+        }
+        for (String name : names) {
+            profiles.put(name, CalibrationProfile.fromProperties(p, name + ".", name));
+        }
+        return new ProfileLibrary(profiles);
+    }
+
+    /**
+     * Saves this library to a file.
+     *
+     * @param file the file to save to
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file) throws IOException {
+        Properties p = new Properties();
+        for (CalibrationProfile profile : profiles.values()) {
+            profile.toProperties(p, profile.getName() + ".");
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            p.store(out, "Target tracking calibration profiles");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.usfirst.frc2084.vision;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Finds the boxes around the blobs in a threshold mask using only the sums of
+ * its rows and columns, without tracing any outlines. The static target is a
+ * tall strip and the hot target is a wide one, so they show up as obvious
+ * bands in the sums.
+ * <p>
+ * This works by cutting the mask up wherever there is an empty column or row
+ * (an XY cut): the columns of the whole mask are summed, and each band of
+ * non-empty columns is split by its row sums, then each of those by its
+ * column sums again, and so on until a box can't be split any more. Each sum
+ * is a single {@link Core#reduce(org.opencv.core.Mat, org.opencv.core.Mat, int, int, int)}
+ * over the region, which OpenCV does a row at a time. The boxes also know how
+ * many pixels they have, which is used instead of the blob's outline for the
+ * rectangularity score.
+ * <p>
+ * Two blobs only end up in one box if no row or column separates them, which
+ * doesn't happen with the targets since there is a gap between the strips.
+ * <p>
+ * This reuses its buffers, so each thread needs its own.
+ *
+ * @author Ben Wolsieffer
+ */
+public class ProjectionLocator {
+
+    /**
+     * How many times a region can be split before it is taken as a box
+     * anyway, so a very noisy mask can't take forever.
+     */
+    public static final int MAX_DEPTH = 8;
+
+    private final Mat sums = new Mat();
+    private int[] buffer = new int[0];
+    // The runs of non-empty rows or columns in the last projection, as
+    // start/end pairs
+    private int[] runs = new int[0];
+    // A copy of the runs for each level of splitting, since the next level
+    // overwrites them
+    private final int[][] savedRuns = new int[MAX_DEPTH][0];
+    // The boxes found so far, and the number of pixels in each
+    private final List<Rectangle> boxes = new ArrayList<>();
+    private int[] areas = new int[0];
+    private int boxCount;
+
+    /**
+     * Finds the blobs in a mask and turns them into {@link Target}s.
+     *
+     * @param mask the 8-bit, single channel threshold mask, with every pixel
+     * either 0 or 255
+     * @param profile the profile to take the limits from
+     * @param targets the list to add the targets to
+     */
+    public void locate(Mat mask, CalibrationProfile profile, List<Target> targets) {
+        boxes.clear();
+        boxCount = 0;
+        split(mask, 0, 0, mask.cols(), mask.rows(), 0);
+        for (int i = 0; i < boxCount; i++) {
+            targets.add(new Target(boxes.get(i), areas[i], profile));
+        }
+    }
+
+    /**
+     * Finds the boxes around the blobs in a mask without scoring them. This
+     * is used to limit the contour tracing to the parts of the mask that have
+     * something in them.
+     *
+     * @param mask the 8-bit, single channel threshold mask
+     * @param boxes the list to add the boxes to
+     */
+    public void locateBoxes(Mat mask, List<Rectangle> boxes) {
+        this.boxes.clear();
+        boxCount = 0;
+        split(mask, 0, 0, mask.cols(), mask.rows(), 0);
+        boxes.addAll(this.boxes);
+    }
+
+    /**
+     * Splits a region of the mask by its column sums, and then each part by
+     * its row sums. If the region can't be split either way, it is added as a
+     * box.
+     */
+    private void split(Mat mask, int x, int y, int width, int height, int depth) {
+        // Split by columns
+        int n = project(mask, x, y, width, height, 0);
+        if (n == 0) {
+            return;
+        }
+        if (n > 1 && depth < MAX_DEPTH) {
+            int[] r = saveRuns(n, depth);
+            for (int i = 0; i < n; i++) {
+                split(mask, x + r[2 * i], y, r[2 * i + 1] - r[2 * i], height, depth + 1);
+            }
+            return;
+        }
+        int left = x + runs[0];
+        int right = x + runs[2 * n - 1];
+
+        // Split the band by rows
+        n = project(mask, left, y, right - left, height, 1);
+        if (n > 1 && depth < MAX_DEPTH) {
+            int[] r = saveRuns(n, depth);
+            for (int i = 0; i < n; i++) {
+                split(mask, left, y + r[2 * i], right - left, r[2 * i + 1] - r[2 * i], depth + 1);
+            }
+            return;
+        }
+        int top = y + runs[0];
+        int bottom = y + runs[2 * n - 1];
+        int count = 0;
+        for (int i = runs[0]; i < runs[2 * n - 1]; i++) {
+            count += buffer[i];
+        }
+
+        boxes.add(new Rectangle(left, top, right - left, bottom - top));
+        if (areas.length == boxCount) {
+            areas = Arrays.copyOf(areas, boxCount * 2 + 8);
+        }
+        areas[boxCount++] = count;
+    }
+
+    /**
+     * Copies the runs from the last projection into the saved runs for a
+     * level of splitting.
+     *
+     * @return the saved runs
+     */
+    private int[] saveRuns(int n, int depth) {
+        if (savedRuns[depth].length < 2 * n) {
+            savedRuns[depth] = new int[runs.length];
+        }
+        System.arraycopy(runs, 0, savedRuns[depth], 0, 2 * n);
+        return savedRuns[depth];
+    }
+
+    /**
+     * Sums the columns (dim 0) or rows (dim 1) of a region of the mask, and
+     * finds the runs of non-empty ones. The number of pixels in each column
+     * or row is left in the buffer.
+     *
+     * @return the number of runs
+     */
+    private int project(Mat mask, int x, int y, int width, int height, int dim) {
+        Mat region = mask.submat(new Rect(x, y, width, height));
+        Core.reduce(region, sums, dim, Core.REDUCE_SUM, CvType.CV_32S);
+        region.release();
+        int length = dim == 0 ? width : height;
+        if (buffer.length < length) {
+            buffer = new int[length];
+            runs = new int[length + 1];
+        }
+        sums.get(0, 0, buffer);
+
+        int n = 0;
+        boolean inRun = false;
+        for (int i = 0; i < length; i++) {
+            // The mask is 0 or 255, so this is the number of pixels
+            buffer[i] /= 255;
+            if (buffer[i] > 0 != inRun) {
+                runs[n++] = i;
+                inRun = !inRun;
+            }
+        }
+        if (inRun) {
+            runs[n++] = length;
+        }
+        return n / 2;
+    }
+}
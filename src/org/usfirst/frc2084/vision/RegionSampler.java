@@ -0,0 +1,108 @@
+package org.usfirst.frc2084.vision;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+
+/**
+ * Builds an {@link HsvHistogram} of a region of the next few frames that are
+ * processed. Only the region is converted to HSV, so this barely slows down
+ * the processing while it is running.
+ *
+ * @author Ben Wolsieffer
+ */
+public class RegionSampler implements ProcessingListener {
+
+    /**
+     * Receives the histogram once enough frames have been sampled.
+     */
+    public interface Callback {
+
+        /**
+         * Called on the processing thread when sampling is done.
+         *
+         * @param sampler the sampler that finished
+         * @param histogram the histogram of the region over all of the frames
+         */
+        void samplingDone(RegionSampler sampler, HsvHistogram histogram);
+    }
+
+    private final Rect region;
+    private final int frames;
+    private final Callback callback;
+
+    private final HsvHistogram histogram = new HsvHistogram();
+    private final Mat hsv = new Mat();
+    private volatile int framesSampled = 0;
+
+    /**
+     * Creates a sampler. It starts sampling once it is added to a processor.
+     *
+     * @param region the region of the frame to sample
+     * @param frames the number of frames to sample
+     * @param callback the callback to give the histogram to
+     */
+    public RegionSampler(Rect region, int frames, Callback callback) {
+        this.region = region;
+        this.frames = frames;
+        this.callback = callback;
+    }
+
+    @Override
+    public void frameProcessed(Mat image, Detection detection, double hotFrameRatio) {
+        if (framesSampled >= frames) {
+            return;
+        }
+        Rect r = clip(region, image);
+        if (r == null) {
+            return;
+        }
+        Mat roi = image.submat(r);
+        Imgproc.cvtColor(roi, hsv, Imgproc.COLOR_BGR2HSV);
+        roi.release();
+        histogram.add(hsv);
+
+        framesSampled++;
+        if (framesSampled == frames) {
+            hsv.release();
+            callback.samplingDone(this, histogram);
+        }
+    }
+
+    @Override
+    public void stateReported(State state, double hotFrameRatio) {
+    }
+
+    /**
+     * Gets the number of frames that have been sampled so far.
+     *
+     * @return the number of frames sampled
+     */
+    public int getFramesSampled() {
+        return framesSampled;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Cuts a region down to the part that is inside an image.
+     *
+     * @param region the region
+     * @param image the image
+     * @return the part of the region inside the image, or null if none of it
+     * is
+     */
+    public static Rect clip(Rect region, Mat image) {
+        int x1 = Math.max(0, region.x);
+        int y1 = Math.max(0, region.y);
+        int x2 = Math.min(image.cols(), region.x + region.width);
+        int y2 = Math.min(image.rows(), region.y + region.height);
+        if (x2 <= x1 || y2 <= y1) {
+            return null;
+        }
+        return new Rect(x1, y1, x2 - x1, y2 - y1);
+    }
+}
@@ -0,0 +1,160 @@
+package org.usfirst.frc2084.vision;
+
+import java.util.Arrays;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+import static org.usfirst.frc2084.vision.TargetTrackingCommunication.*;
+
+/**
+ * Publishes the full result of each frame to the robot as a number array, so
+ * the robot can use the targets for aiming instead of only knowing whether the
+ * goal is hot. See the {@code RESULT_*} constants in
+ * {@link TargetTrackingCommunication} for the layout.
+ * <p>
+ * To keep from flooding NetworkTables, a result is only written if something
+ * other than the sequence number and timestamps changed (or a heartbeat
+ * interval has passed), and never more often than the minimum interval. A
+ * state being reported to the robot is always written immediately.
+ *
+ * @author Ben Wolsieffer
+ */
+public class ResultPublisher implements ProcessingListener {
+
+    /**
+     * The default minimum time between writes in milliseconds.
+     */
+    public static final long DEFAULT_MIN_INTERVAL = 20;
+    /**
+     * The time in milliseconds after which an unchanged result is written
+     * again, so the robot can tell that the vision is still running.
+     */
+    public static final long HEARTBEAT_INTERVAL = 500;
+
+    private final TargetTrackingCommunication communication;
+    private final long minIntervalNanos;
+
+    /**
+     * The result of the latest frame.
+     */
+    private final double[] current = new double[RESULT_LENGTH];
+    /**
+     * The last result that was written to the table.
+     */
+    private final double[] lastPublished = new double[RESULT_LENGTH];
+
+    private long captureTimestamp;
+    private long lastPublishTime = 0;
+    private volatile double lastLatency = -1;
+
+    public ResultPublisher(TargetTrackingCommunication communication) {
+        this(communication, DEFAULT_MIN_INTERVAL);
+    }
+
+    /**
+     * Creates a result publisher with the specified rate limit.
+     *
+     * @param communication the connection to the robot
+     * @param minInterval the minimum time between writes in milliseconds
+     */
+    public ResultPublisher(TargetTrackingCommunication communication, long minInterval) {
+        this.communication = communication;
+        this.minIntervalNanos = minInterval * 1000000;
+        Arrays.fill(current, -1);
+        Arrays.fill(lastPublished, Double.NaN);
+        current[RESULT_STATE] = State.UNKNOWN_VALUE;
+    }
+
+    @Override
+    public void frameProcessed(Mat image, Detection detection, double hotFrameRatio) {
+        captureTimestamp = detection.getTimestamp();
+
+        current[RESULT_SEQUENCE] = detection.getSequence();
+        // The capture time is from System.nanoTime(), which means nothing
+        // outside of this JVM, so it is turned into a wall clock time
+        current[RESULT_TIMESTAMP] = System.currentTimeMillis()
+                - (System.nanoTime() - detection.getTimestamp()) / 1e6;
+        if (Double.isNaN(hotFrameRatio)) {
+            current[RESULT_HOT_FRAME_RATIO] = -1;
+            current[RESULT_CONFIDENCE] = -1;
+        } else {
+            current[RESULT_HOT_FRAME_RATIO] = hotFrameRatio;
+            // 0 if the frames are split evenly, 1 if they all agree
+            current[RESULT_CONFIDENCE] = Math.abs(2 * hotFrameRatio - 1);
+        }
+        current[RESULT_IMAGE_WIDTH] = image.width();
+        current[RESULT_IMAGE_HEIGHT] = image.height();
+        putCandidate(RESULT_STATIC_FOUND, detection.getStaticTarget());
+        putCandidate(RESULT_HOT_FOUND, detection.getHotTarget());
+
+        publish(false);
+    }
+
+    @Override
+    public void stateReported(State state, double hotFrameRatio) {
+        current[RESULT_STATE] = state.value;
+        publish(true);
+    }
+
+    /**
+     * Gets the time between the capture of the last published frame and its
+     * result being written to the table.
+     *
+     * @return the latency in milliseconds, or -1 if nothing has been published
+     */
+    public double getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * Fills in the values for a target, starting at the specified index with
+     * whether it was found, followed by its center, size and score.
+     */
+    private void putCandidate(int index, Detection.Candidate c) {
+        if (c != null) {
+            current[index] = 1;
+            current[index + 1] = c.getCenterX();
+            current[index + 2] = c.getCenterY();
+            current[index + 3] = c.width;
+            current[index + 4] = c.height;
+            current[index + 5] = c.score;
+        } else {
+            current[index] = 0;
+            Arrays.fill(current, index + 1, index + 6, -1);
+        }
+    }
+
+    private void publish(boolean force) {
+        long now = System.nanoTime();
+        if (!force) {
+            if (!changed() && now - lastPublishTime < HEARTBEAT_INTERVAL * 1000000) {
+                return;
+            }
+            // If this gets skipped because of the rate limit, a later frame
+            // will still be different from the last published result.
+            if (now - lastPublishTime < minIntervalNanos) {
+                return;
+            }
+        }
+
+        current[RESULT_LATENCY] = (now - captureTimestamp) / 1e6;
+        communication.setResult(current);
+        lastLatency = (System.nanoTime() - captureTimestamp) / 1e6;
+
+        System.arraycopy(current, 0, lastPublished, 0, RESULT_LENGTH);
+        lastPublishTime = now;
+    }
+
+    /**
+     * Checks if the current result is different from the last published one,
+     * ignoring the values that change on every frame (the ones before
+     * {@code RESULT_STATE}).
+     */
+    private boolean changed() {
+        for (int i = RESULT_STATE; i < RESULT_LENGTH; i++) {
+            if (Double.compare(current[i], lastPublished[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+package org.usfirst.frc2084.vision;
+
+import java.util.Arrays;
+
+/**
+ * Finds the 8-connected blobs in a {@link PackedMask}, entirely in Java.
+ * <p>
+ * Each row is turned into runs of set pixels by jumping between the set and
+ * clear bits of each word with {@link Long#numberOfTrailingZeros(long)}, so
+ * empty parts of the mask cost almost nothing. Each run is joined to the runs
+ * it touches in the row above (including diagonally) with a union-find, and
+ * then a second pass over the runs adds each one to its blob in a
+ * {@link BlobTable}. This only looks at runs, not pixels, so it is a lot less
+ * work than tracing outlines.
+ * <p>
+ * The arrays are reused from frame to frame, so each thread needs its own.
+ *
+ * @author Ben Wolsieffer
+ */
+public class RunLengthBlobExtractor {
+
+    private int runCount;
+    private int[] runY = new int[256];
+    private int[] runStart = new int[256];
+    private int[] runEnd = new int[256];
+    private int[] runLabel = new int[256];
+
+    private int labelCount;
+    private int[] parent = new int[256];
+    private int[] blobIndex = new int[256];
+
+    /**
+     * Finds the blobs in a mask.
+     *
+     * @param mask the mask
+     * @param table the table to put the blobs in, which is cleared first
+     */
+    public void extract(PackedMask mask, BlobTable table) {
+        long[] bits = mask.getBits();
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        int stride = mask.getStride();
+
+        runCount = 0;
+        labelCount = 0;
+        int prevFirst = 0;
+        int prevLast = 0;
+        for (int y = 0; y < height; y++) {
+            int rowFirst = runCount;
+            int base = y * stride;
+            // The first run in the row above that could touch the next run
+            int p = prevFirst;
+            int i = 0;
+            long w = stride > 0 ? bits[base] : 0;
+            while (true) {
+                if (w == 0) {
+                    if (++i >= stride) {
+                        break;
+                    }
+                    w = bits[base + i];
+                    continue;
+                }
+                int tz = Long.numberOfTrailingZeros(w);
+                int start = (i << 6) + tz;
+                // Find the first clear bit after the start, which might be in
+                // a later word
+                long clear = ~(w | ((1L << tz) - 1));
+                while (clear == 0 && ++i < stride) {
+                    w = bits[base + i];
+                    clear = ~w;
+                }
+                int end;
+                if (clear == 0) {
+                    end = width;
+                    w = 0;
+                } else {
+                    int endBit = Long.numberOfTrailingZeros(clear);
+                    end = (i << 6) + endBit;
+                    w &= -1L << endBit;
+                }
+
+                // Join the run to the runs it touches in the row above
+                while (p < prevLast && runEnd[p] < start) {
+                    p++;
+                }
+                int label = -1;
+                for (int q = p; q < prevLast && runStart[q] <= end; q++) {
+                    int root = find(runLabel[q]);
+                    if (label < 0) {
+                        label = root;
+                    } else if (root != label) {
+                        // Always keep the older label as the root
+                        if (root < label) {
+                            parent[label] = root;
+                            label = root;
+                        } else {
+                            parent[root] = label;
+                        }
+                    }
+                }
+                if (label < 0) {
+                    label = newLabel();
+                }
+                addRun(y, start, end, label);
+
+                if (end >= width) {
+                    break;
+                }
+            }
+            prevFirst = rowFirst;
+            prevLast = runCount;
+        }
+
+        // Give each blob an index in the table and add the runs to it
+        table.clear();
+        if (blobIndex.length < labelCount) {
+            blobIndex = new int[parent.length];
+        }
+        Arrays.fill(blobIndex, 0, labelCount, -1);
+        for (int r = 0; r < runCount; r++) {
+            int root = find(runLabel[r]);
+            int blob = blobIndex[root];
+            if (blob < 0) {
+                blob = table.add();
+                blobIndex[root] = blob;
+            }
+            table.addRun(blob, runY[r], runStart[r], runEnd[r]);
+        }
+    }
+
+    private int newLabel() {
+        if (labelCount == parent.length) {
+            parent = Arrays.copyOf(parent, labelCount * 2);
+        }
+        parent[labelCount] = labelCount;
+        return labelCount++;
+    }
+
+    private int find(int label) {
+        while (parent[label] != label) {
+            // Halve the path as we go, so it stays short
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+    private void addRun(int y, int start, int end, int label) {
+        if (runCount == runStart.length) {
+            int length = runCount * 2;
+            runY = Arrays.copyOf(runY, length);
+            runStart = Arrays.copyOf(runStart, length);
+            runEnd = Arrays.copyOf(runEnd, length);
+            runLabel = Arrays.copyOf(runLabel, length);
+        }
+        runY[runCount] = y;
+        runStart[runCount] = start;
+        runEnd[runCount] = end;
+        runLabel[runCount] = label;
+        runCount++;
+    }
+}
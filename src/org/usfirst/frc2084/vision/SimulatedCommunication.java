@@ -0,0 +1,200 @@
+package org.usfirst.frc2084.vision;
+
+import java.util.Arrays;
+
+/**
+ * An in-process stand-in for the robot. It runs a thread that acts like the
+ * robot going through matches: it enables the camera and sets
+ * {@code auto_vision} at the start of autonomous, waits for the extension to
+ * report the state of the goal (or for autonomous to end), then clears
+ * {@code auto_vision} and waits before starting the next one. Every write to
+ * {@code goal_hot} is timestamped so that benchmarks can see exactly when the
+ * robot would have found out.
+ * <p>
+ * Subclasses can override {@link #autonomousStarted(int)} and
+ * {@link #autonomousEnded(int, TargetTrackingCommunication.State)} to find
+ * out when the simulated robot changes periods.
+ *
+ * @author Ben Wolsieffer
+ */
+public class SimulatedCommunication extends CachedCommunication {
+
+    /**
+     * The maximum number of {@code goal_hot} writes that are remembered.
+     */
+    private static final int MAX_STATE_WRITES = 100000;
+
+    private final long autonomousLength;
+    private final long disabledLength;
+
+    private final long[] stateWriteTimes = new long[MAX_STATE_WRITES];
+    private final int[] stateWriteValues = new int[MAX_STATE_WRITES];
+    private int stateWrites = 0;
+
+    private double[] lastResult;
+    private long lastResultTime;
+    private long results = 0;
+
+    private volatile boolean running = false;
+    private Thread robotThread;
+
+    /**
+     * Creates a new simulated robot.
+     *
+     * @param autonomousLength the maximum length of autonomous in
+     * milliseconds. Autonomous ends early if the extension reports the state of
+     * the goal.
+     * @param disabledLength the time between autonomous periods in
+     * milliseconds
+     */
+    public SimulatedCommunication(long autonomousLength, long disabledLength) {
+        this.autonomousLength = autonomousLength;
+        this.disabledLength = disabledLength;
+    }
+
+    /**
+     * Starts simulating the robot.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        robotThread = new Thread("Simulated Robot") {
+
+            @Override
+            public void run() {
+                try {
+                    runRobot();
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+        robotThread.setDaemon(true);
+        robotThread.start();
+    }
+
+    /**
+     * Stops simulating the robot and waits for the simulation thread to exit.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = robotThread;
+        }
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    private void runRobot() throws InterruptedException {
+        int period = 0;
+        while (running) {
+            autonomousStarted(period);
+            // The robot enables the camera and starts the vision at the
+            // beginning of autonomous
+            updateCameraEnabled(true);
+            updateAutonomousVisionRunning(true);
+
+            long start = System.currentTimeMillis();
+            long changeCount = getChangeCount();
+            long remaining = autonomousLength;
+            // The extension clears auto_vision once it has told the robot
+            // whether the goal is hot.
+            while (running && isAutonomousVisionRunning() && remaining > 0) {
+                changeCount = awaitChange(changeCount, remaining);
+                remaining = autonomousLength - (System.currentTimeMillis() - start);
+            }
+            updateAutonomousVisionRunning(false);
+            autonomousEnded(period, getState());
+
+            Thread.sleep(disabledLength);
+            period++;
+        }
+    }
+
+    /**
+     * Called right before the simulated robot starts autonomous.
+     *
+     * @param period the number of the autonomous period, starting at 0
+     */
+    protected void autonomousStarted(int period) {
+    }
+
+    /**
+     * Called when the simulated robot's autonomous ends.
+     *
+     * @param period the number of the autonomous period
+     * @param state the state of the goal at the end of autonomous
+     */
+    protected void autonomousEnded(int period, State state) {
+    }
+
+    @Override
+    protected synchronized void writeState(int value) {
+        if (stateWrites < MAX_STATE_WRITES) {
+            stateWriteTimes[stateWrites] = System.nanoTime();
+            stateWriteValues[stateWrites] = value;
+            stateWrites++;
+        }
+    }
+
+    @Override
+    protected void writeAutonomousVisionRunning(boolean running) {
+    }
+
+    @Override
+    protected void writeCameraEnabled(boolean enabled) {
+    }
+
+    @Override
+    public synchronized void setResult(double[] result) {
+        lastResult = Arrays.copyOf(result, result.length);
+        lastResultTime = System.nanoTime();
+        results++;
+    }
+
+    public synchronized int getStateWriteCount() {
+        return stateWrites;
+    }
+
+    /**
+     * Gets the time of a {@code goal_hot} write.
+     *
+     * @param index the index of the write
+     * @return the time in {@link System#nanoTime()} units
+     */
+    public synchronized long getStateWriteTime(int index) {
+        return stateWriteTimes[index];
+    }
+
+    public synchronized int getStateWriteValue(int index) {
+        return stateWriteValues[index];
+    }
+
+    /**
+     * Gets a copy of the last result array that was published.
+     *
+     * @return the last result, or null if none has been published
+     */
+    public synchronized double[] getLastResult() {
+        return lastResult == null ? null : Arrays.copyOf(lastResult, lastResult.length);
+    }
+
+    /**
+     * Gets the time the last result array was published.
+     *
+     * @return the time in {@link System#nanoTime()} units
+     */
+    public synchronized long getLastResultTime() {
+        return lastResultTime;
+    }
+
+    public synchronized long getResultCount() {
+        return results;
+    }
+}
@@ -30,19 +30,21 @@ public class Target {
      * The minimum area that the bounding rectangle of a blob can have for it to
      * be considered a goal. We found that certain values would work when the
      * targets were nearby, but when the robot was a the starting position, the
-     * goal would appear to be too small and get filtered out.
+     * goal would appear to be too small and get filtered out. This and the
+     * other limits are only the defaults; the ones actually used come from the
+     * {@link CalibrationProfile}.
      */
-    public static double MIN_AREA = 100;
+    public static final double MIN_AREA = 100;
 
     /**
      * The minimum rectangularity score a blob can have to be considered a
      * target.
      */
-    public static double MIN_RECTANGULARITY_SCORE = 10;
+    public static final double MIN_RECTANGULARITY_SCORE = 10;
     /**
      * The minimum aspect ratio score a blob can have to be considered a target.
      */
-    public static double MIN_ASPECT_RATIO_SCORE = 10;
+    public static final double MIN_ASPECT_RATIO_SCORE = 10;
 
     /**
      * The shape of the blob that was found by OpenCV.
@@ -54,6 +56,10 @@ public class Target {
      * will be less accurate.
      */
     private final Rectangle rect;
+    /**
+     * The area of the blob, in pixels.
+     */
+    private final double area;
     /**
      * The score of this target.
      */
@@ -62,16 +68,50 @@ public class Target {
      * Stores whether or not the target meets the minimum score requirements.
      */
     private boolean valid = true;
+    /**
+     * The profile that the limits are taken from.
+     */
+    private final CalibrationProfile profile;
 
     /**
      * Creates a new possible target based on the specified blob and calculates
      * its score.
      *
      * @param p the shape of the possible target
+     * @param profile the profile to take the limits from
      */
-    public Target(Polygon p) {
+    public Target(Polygon p, CalibrationProfile profile) {
         shape = p;
         rect = p.getBounds();
+        area = getPolygonArea(p);
+        this.profile = profile;
+
+        score = calculateScore();
+    }
+
+    /**
+     * Creates a new possible target from a box that was found without tracing
+     * the outline of the blob, like by the {@link ProjectionLocator}, and
+     * calculates its score.
+     * <p>
+     * An outline goes through the centers of the pixels on the edge of the
+     * blob, so a traced w by h rectangle of pixels is only w - 1 by h - 1,
+     * with an area of (w - 1) * (h - 1). The box and pixel count are
+     * converted the same way, so the sizes, scores and limits come out the
+     * same whichever way the blob was found. This is exact for rectangles,
+     * which is what the targets are.
+     *
+     * @param pixels the box around the pixels of the blob
+     * @param pixelCount the number of pixels in the blob
+     * @param profile the profile to take the limits from
+     */
+    public Target(Rectangle pixels, double pixelCount, CalibrationProfile profile) {
+        rect = new Rectangle(pixels.x, pixels.y, pixels.width - 1, pixels.height - 1);
+        shape = new Polygon(
+                new int[]{rect.x, rect.x + rect.width, rect.x + rect.width, rect.x},
+                new int[]{rect.y, rect.y, rect.y + rect.height, rect.y + rect.height}, 4);
+        area = Math.max(0, pixelCount - pixels.width - pixels.height + 1);
+        this.profile = profile;
 
         score = calculateScore();
     }
@@ -82,7 +122,7 @@ public class Target {
      * @param p the polygon to perform the calculation on
      * @return the area of the polygon
      */
-    private static double getPolygonArea(Polygon p) {
+    public static double getPolygonArea(Polygon p) {
         int i, j;
         double area = 0;
         for (i = 0; i < p.npoints; i++) {
@@ -125,12 +165,11 @@ public class Target {
      * @return this target's rectangularity score
      */
     private double scoreRectangularity() {
-        double polyArea = getPolygonArea(shape);
-        if (polyArea < MIN_AREA) {
+        if (area < profile.getLimit(CalibrationProfile.MIN_AREA)) {
             invalidate();
         }
-        double lScore = ratioToScore(polyArea / (rect.width * rect.height));
-        if (lScore < MIN_RECTANGULARITY_SCORE) {
+        double lScore = rectangularityScore(area, rect.width, rect.height);
+        if (lScore < profile.getLimit(CalibrationProfile.MIN_RECTANGULARITY_SCORE)) {
             invalidate();
         }
         return lScore;
@@ -144,15 +183,42 @@ public class Target {
      * @return this target's rectangularity score
      */
     private double scoreAspectRatio() {
-        double ratio = (double) rect.width / (double) rect.height;
-        double ideal = isVertical() ? STATIC_TARGET_ASPECT_RATIO : HOT_TARGET_ASPECT_RATIO;
-        double lScore = ratioToScore(ratio / ideal);
-        if (lScore < MIN_ASPECT_RATIO_SCORE) {
+        double lScore = aspectRatioScore(rect.width, rect.height);
+        if (lScore < profile.getLimit(CalibrationProfile.MIN_ASPECT_RATIO_SCORE)) {
             invalidate();
         }
         return lScore;
     }
 
+    /**
+     * Calculates the rectangularity score of a blob from its area and the size
+     * of its bounding rectangle. This doesn't depend on any of the limits, so
+     * it can be saved and compared against different limits later.
+     *
+     * @param polyArea the area of the blob
+     * @param width the width of the bounding rectangle
+     * @param height the height of the bounding rectangle
+     * @return the rectangularity score
+     */
+    public static double rectangularityScore(double polyArea, int width, int height) {
+        return ratioToScore(polyArea / (width * height));
+    }
+
+    /**
+     * Calculates the aspect ratio score of a blob from the size of its
+     * bounding rectangle, compared to the static target if it is vertical or
+     * the hot target if it is horizontal.
+     *
+     * @param width the width of the bounding rectangle
+     * @param height the height of the bounding rectangle
+     * @return the aspect ratio score
+     */
+    public static double aspectRatioScore(int width, int height) {
+        double ratio = (double) width / (double) height;
+        double ideal = width < height ? STATIC_TARGET_ASPECT_RATIO : HOT_TARGET_ASPECT_RATIO;
+        return ratioToScore(ratio / ideal);
+    }
+
     public Polygon getShape() {
         return shape;
     }
@@ -161,6 +227,17 @@ public class Target {
         return rect;
     }
 
+    /**
+     * Gets the area of the blob, which is what the minimum area limit is
+     * checked against.
+     *
+     * @return the area of the outline of the blob, or the number of pixels
+     * in it if it was found without tracing its outline
+     */
+    public double getArea() {
+        return area;
+    }
+
     private void invalidate() {
         valid = false;
     }
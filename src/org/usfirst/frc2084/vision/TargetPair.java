@@ -13,13 +13,16 @@ public class TargetPair {
 
     private static final double HORIZONTAL_DISTANCE_RATIO = 1.2;
 
-    public static double MIN_HORIZONTAL_DISTANCE_SCORE = 20;
-    public static double MIN_TAPE_WIDTH_SCORE = 20;
-    public static double MIN_VERTICAL_DISTANCE_SCORE = 0;
+    // The default limits. The ones actually used come from the
+    // CalibrationProfile.
+    public static final double MIN_HORIZONTAL_DISTANCE_SCORE = 20;
+    public static final double MIN_TAPE_WIDTH_SCORE = 20;
+    public static final double MIN_VERTICAL_DISTANCE_SCORE = 0;
 
     private final Target staticTarget;
     private Target hotTarget;
     private boolean hot = false;
+    private final CalibrationProfile profile;
 
     /**
      * Creates a possible target pair. If {@code hotTarget} is null, then the
@@ -29,10 +32,12 @@ public class TargetPair {
      *
      * @param staticTarget
      * @param hotTarget
+     * @param profile the profile to take the limits from
      */
-    public TargetPair(Target staticTarget, Target hotTarget) {
+    public TargetPair(Target staticTarget, Target hotTarget, CalibrationProfile profile) {
         this.staticTarget = staticTarget;
         this.hotTarget = hotTarget;
+        this.profile = profile;
 
         if (hotTarget != null) {
             test();
@@ -67,21 +72,8 @@ public class TargetPair {
      * @return whether the targets pass the horizontal distance test
      */
     private boolean testHorizontalDistance() {
-        Rectangle hotRect = hotTarget.getRect();
-        Rectangle staticRect = staticTarget.getRect();
-
-        double hotCenter = hotRect.getCenterX();
-        double dist;
-        if (hotRect.getMaxX() < staticRect.getMinX()) {
-            dist = staticRect.getMinX() - hotCenter;
-        } else if (staticRect.getMaxX() < hotRect.getMinX()) {
-            dist = hotCenter - staticRect.getMaxX();
-        } else {
-            return false;
-        }
-
-        return ratioToScore((dist / hotRect.getWidth()) / HORIZONTAL_DISTANCE_RATIO) >= MIN_HORIZONTAL_DISTANCE_SCORE;
-
+        return horizontalDistanceScore(hotTarget.getRect(), staticTarget.getRect())
+                >= profile.getLimit(CalibrationProfile.MIN_HORIZONTAL_DISTANCE_SCORE);
     }
 
     /**
@@ -91,9 +83,8 @@ public class TargetPair {
      * @return whether the targets pass the vertical distance test
      */
     private boolean testVerticalDistance() {
-        Rectangle hotRect = hotTarget.getRect();
-        Rectangle staticRect = staticTarget.getRect();
-        return ratioToScore(1.0 - (staticRect.getMaxY() - hotRect.getCenterY()) / (4 * hotRect.getHeight())) >= MIN_VERTICAL_DISTANCE_SCORE;
+        return verticalDistanceScore(hotTarget.getRect(), staticTarget.getRect())
+                >= profile.getLimit(CalibrationProfile.MIN_VERTICAL_DISTANCE_SCORE);
     }
 
     /**
@@ -103,7 +94,40 @@ public class TargetPair {
      * @return whether the targets pass the tape width test
      */
     private boolean testTapeWidth() {
-        return ratioToScore(hotTarget.getRect().getHeight() / staticTarget.getRect().getWidth()) >= MIN_TAPE_WIDTH_SCORE;
+        return tapeWidthScore(hotTarget.getRect(), staticTarget.getRect())
+                >= profile.getLimit(CalibrationProfile.MIN_TAPE_WIDTH_SCORE);
+    }
+
+    /**
+     * Calculates the horizontal distance score of a pair of targets. Like the
+     * other score methods, this doesn't depend on the limits so it can be
+     * saved and compared against different limits later.
+     *
+     * @param hotRect the bounding rectangle of the hot target
+     * @param staticRect the bounding rectangle of the static target
+     * @return the horizontal distance score, or negative infinity if the
+     * targets overlap horizontally, so that it never passes
+     */
+    public static double horizontalDistanceScore(Rectangle hotRect, Rectangle staticRect) {
+        double hotCenter = hotRect.getCenterX();
+        double dist;
+        if (hotRect.getMaxX() < staticRect.getMinX()) {
+            dist = staticRect.getMinX() - hotCenter;
+        } else if (staticRect.getMaxX() < hotRect.getMinX()) {
+            dist = hotCenter - staticRect.getMaxX();
+        } else {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        return ratioToScore((dist / hotRect.getWidth()) / HORIZONTAL_DISTANCE_RATIO);
+    }
+
+    public static double verticalDistanceScore(Rectangle hotRect, Rectangle staticRect) {
+        return ratioToScore(1.0 - (staticRect.getMaxY() - hotRect.getCenterY()) / (4 * hotRect.getHeight()));
+    }
+
+    public static double tapeWidthScore(Rectangle hotRect, Rectangle staticRect) {
+        return ratioToScore(hotRect.getHeight() / staticRect.getWidth());
     }
 
     public Target getStaticTarget() {
@@ -0,0 +1,126 @@
+package org.usfirst.frc2084.vision;
+
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+
+/**
+ * Filters out mistakes in the vision algorithm (ie. it missed detecting the
+ * goal in one frame) by counting how many of the frames processed during
+ * autonomous showed a hot goal. It does not talk to the robot itself, it just
+ * says what the robot should be told, which means it can be fed recorded
+ * {@link Detection}s just as easily as live ones.
+ *
+ * @author Ben Wolsieffer
+ */
+public class TargetStateFilter {
+
+    /**
+     * The minimum number of frames the algorithm must process in order to
+     * determine the state of the target.
+     */
+    public static final int MIN_FRAMES = 10;
+    public static final double MIN_HOT_FRAME_RATIO = 0.7;
+    public static final double MAX_HOT_FRAME_RATIO = 0.3;
+
+    /**
+     * The number of frames where a hot goal was found since the match started.
+     */
+    private int hotFrameCount = 0;
+    /**
+     * The total number of frames processed since the match started.
+     */
+    private int totalFrames = 0;
+    /**
+     * The hot frame ratio calculated by the last call to
+     * {@link #update(Detection, boolean)}, before any reset.
+     */
+    private double lastHotFrameRatio = Double.NaN;
+
+    /**
+     * Resets the frame counters. This happens automatically when a decision is
+     * made or when autonomous is not running.
+     */
+    public void reset() {
+        totalFrames = 0;
+        hotFrameCount = 0;
+    }
+
+    /**
+     * Adds a frame to the filter and returns what the robot should be told.
+     *
+     * @param detection the result of processing the frame
+     * @param autonomousRunning whether the robot reports that its autonomous is
+     * running
+     * @return {@link State#HOT} or {@link State#NOT_HOT} if a decision was
+     * made, {@link State#UNKNOWN} if there are enough frames but the ratio is
+     * in between, or null if there is nothing to report yet
+     */
+    public State update(Detection detection, boolean autonomousRunning) {
+        if (!autonomousRunning) {
+            reset();
+            lastHotFrameRatio = Double.NaN;
+            return null;
+        }
+
+        // Only frames where the static target was found count, because
+        // otherwise we can't tell anything about the hot target.
+        if (detection.hasStaticTarget()) {
+            if (detection.isHot()) {
+                hotFrameCount++;
+            }
+            totalFrames++;
+        }
+        lastHotFrameRatio = getHotFrameRatio();
+
+        // Filter out mistakes in the algorithm by making sure that the
+        // algorithm has already processed a certain number of frames before
+        // reporting its findings to the robot.
+        if (totalFrames >= MIN_FRAMES) {
+            double hotFrameRatio = lastHotFrameRatio;
+
+            // If this ratio is greater than MIN_HOT_FRAME_RATIO, then the
+            // target is considered hot, if it is less than
+            // MAX_HOT_FRAME_RATIO, then it is considered not hot.
+            if (hotFrameRatio >= MIN_HOT_FRAME_RATIO) {
+                reset();
+                return State.HOT;
+            } else if (hotFrameRatio <= MAX_HOT_FRAME_RATIO) {
+                reset();
+                return State.NOT_HOT;
+            } else {
+                return State.UNKNOWN;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Calculates the ratio of frames in which a hot goal was detected to the
+     * total number of frames.
+     *
+     * @return the hot frame ratio, or {@link Double#NaN} if no frames have
+     * been counted
+     */
+    public double getHotFrameRatio() {
+        return totalFrames == 0 ? Double.NaN : ((double) hotFrameCount) / ((double) totalFrames);
+    }
+
+    /**
+     * Gets the hot frame ratio that was calculated by the last update. Unlike
+     * {@link #getHotFrameRatio()}, this is still valid after a decision resets
+     * the counters.
+     *
+     * @return the last hot frame ratio, or {@link Double#NaN} if autonomous
+     * was not running or no frames had been counted
+     */
+    public double getLastHotFrameRatio() {
+        return lastHotFrameRatio;
+    }
+
+    public int getTotalFrames() {
+        return totalFrames;
+    }
+
+    public int getHotFrameCount() {
+        return hotFrameCount;
+    }
+}
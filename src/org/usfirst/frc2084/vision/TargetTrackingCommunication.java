@@ -1,30 +1,54 @@
 package org.usfirst.frc2084.vision;
 
-import edu.wpi.first.wpilibj.networktables.NetworkTable;
-
 /**
- * This class is what communicates with the robot using NetworkTables. It is
- * duplicated almost identically no the robot side. Both sides call it a lot to
- * make sure all the field are always in the right state.
+ * This is what the extension uses to communicate with the robot. The keys and
+ * the state values are duplicated almost identically on the robot side. Both
+ * sides call it a lot to make sure all the field are always in the right
+ * state.
+ * <p>
+ * {@link NetworkTableCommunication} talks to the real robot. There is also
+ * {@link SimulatedCommunication}, which pretends to be a robot so the
+ * extension can be run and timed without one.
  *
  * @author Ben Wolsieffer
  */
-public class TargetTrackingCommunication {
-
-    public static final String TARGET_TABLE_NAME = "TargetTracking";
-    public static final String TARGET_TABLE_STATE_KEY = "goal_hot";
-    public static final String TARGET_TABLE_AUTONOMOUS_VISION_RUNNING_KEY = "auto_vision";
-    public static final String TARGET_TABLE_ENABLE_CAMERA_KEY = "enable_camera";
-
-    public static final NetworkTable targetTable = NetworkTable.getTable(TARGET_TABLE_NAME);
-
-    static {
-        init();
-    }
-
-    public static void init() {
-        setState(State.UNKNOWN);
-    }
+public interface TargetTrackingCommunication {
+
+    String TARGET_TABLE_NAME = "TargetTracking";
+    String TARGET_TABLE_STATE_KEY = "goal_hot";
+    String TARGET_TABLE_AUTONOMOUS_VISION_RUNNING_KEY = "auto_vision";
+    String TARGET_TABLE_ENABLE_CAMERA_KEY = "enable_camera";
+    String TARGET_TABLE_RESULT_KEY = "result";
+    String TARGET_TABLE_PROFILE_KEY = "vision_profile";
+
+    // Indices of the values in the result array. The array is published after
+    // every frame (if anything changed) and has RESULT_LENGTH numbers in it.
+    // Positions are in pixels from the top left of the image, and -1 is used
+    // for anything that is not available.
+    int RESULT_SEQUENCE = 0;
+    // The wall clock time the frame was captured at, in milliseconds since
+    // 1970 on the dashboard computer
+    int RESULT_TIMESTAMP = 1;
+    // How old the frame was when the result was published, in milliseconds
+    int RESULT_LATENCY = 2;
+    int RESULT_STATE = 3;
+    int RESULT_HOT_FRAME_RATIO = 4;
+    int RESULT_CONFIDENCE = 5;
+    int RESULT_IMAGE_WIDTH = 6;
+    int RESULT_IMAGE_HEIGHT = 7;
+    int RESULT_STATIC_FOUND = 8;
+    int RESULT_STATIC_CENTER_X = 9;
+    int RESULT_STATIC_CENTER_Y = 10;
+    int RESULT_STATIC_WIDTH = 11;
+    int RESULT_STATIC_HEIGHT = 12;
+    int RESULT_STATIC_SCORE = 13;
+    int RESULT_HOT_FOUND = 14;
+    int RESULT_HOT_CENTER_X = 15;
+    int RESULT_HOT_CENTER_Y = 16;
+    int RESULT_HOT_WIDTH = 17;
+    int RESULT_HOT_HEIGHT = 18;
+    int RESULT_HOT_SCORE = 19;
+    int RESULT_LENGTH = 20;
 
     /**
      * A fake enum to store the state of the target. I didn't use a real enum
@@ -81,27 +105,72 @@ public class TargetTrackingCommunication {
 
     }
 
-    public static void setState(State state) {
-        targetTable.putNumber(TARGET_TABLE_STATE_KEY, state.value);
-    }
+    void setState(State state);
 
-    public static State getState() {
-        return new State((int) targetTable.getNumber(TARGET_TABLE_STATE_KEY, State.UNKNOWN_VALUE));
-    }
+    State getState();
 
-    public static boolean isAutonomousVisionRunning() {
-        return targetTable.getBoolean(TARGET_TABLE_AUTONOMOUS_VISION_RUNNING_KEY, false);
-    }
+    /**
+     * Publishes a result array. See the {@code RESULT_*} constants for the
+     * layout.
+     *
+     * @param result the result array
+     */
+    void setResult(double[] result);
 
-    public static void setAutonomousVisionRunning(boolean started) {
-        targetTable.putBoolean(TARGET_TABLE_AUTONOMOUS_VISION_RUNNING_KEY, started);
-    }
+    boolean isAutonomousVisionRunning();
 
-    public static void setCameraEnabled(boolean enabled) {
-        targetTable.putBoolean(TARGET_TABLE_ENABLE_CAMERA_KEY, enabled);
-    }
+    void setAutonomousVisionRunning(boolean started);
 
-    public static boolean isCameraEnabled() {
-        return targetTable.getBoolean(TARGET_TABLE_ENABLE_CAMERA_KEY, true);
-    }
+    void setCameraEnabled(boolean enabled);
+
+    boolean isCameraEnabled();
+
+    /**
+     * Gets the time at which {@code auto_vision} last changed.
+     *
+     * @return the change time in {@link System#nanoTime()} units
+     */
+    long getAutonomousVisionRunningChangeTime();
+
+    /**
+     * Gets the time at which {@code enable_camera} last changed.
+     *
+     * @return the change time in {@link System#nanoTime()} units
+     */
+    long getCameraEnabledChangeTime();
+
+    /**
+     * Gets the time at which {@code goal_hot} last changed.
+     *
+     * @return the change time in {@link System#nanoTime()} units
+     */
+    long getStateChangeTime();
+
+    /**
+     * Gets the number of changes that have happened so far. Pass this to
+     * {@link #awaitChange(long, long)} to wait for the next one.
+     *
+     * @return the current change count
+     */
+    long getChangeCount();
+
+    /**
+     * Blocks until one of the values changes or the timeout expires.
+     *
+     * @param lastChangeCount the value of {@link #getChangeCount()} when the
+     * caller last looked at the values. If anything changed since then this
+     * returns immediately.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the new change count
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    long awaitChange(long lastChangeCount, long timeout) throws InterruptedException;
+
+    /**
+     * Gets the name of the {@link CalibrationProfile} the robot asked for. This
+     * lets the drivers switch profiles without touching the dashboard.
+     *
+     * @return the profile name, or null if the robot hasn't asked for one
+     */
+    String getProfileName();
 }
\ No newline at end of file
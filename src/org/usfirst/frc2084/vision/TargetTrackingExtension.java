@@ -2,36 +2,69 @@ package org.usfirst.frc2084.vision;
 
 import edu.wpi.first.smartdashboard.gui.DashboardPrefs;
 import edu.wpi.first.smartdashboard.gui.StaticWidget;
+import edu.wpi.first.smartdashboard.properties.BooleanProperty;
 import edu.wpi.first.smartdashboard.properties.DoubleProperty;
 import edu.wpi.first.smartdashboard.properties.IPAddressProperty;
+import edu.wpi.first.smartdashboard.properties.IntegerProperty;
+import edu.wpi.first.smartdashboard.properties.MultiProperty;
 import edu.wpi.first.smartdashboard.properties.Property;
+import edu.wpi.first.smartdashboard.properties.StringProperty;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JPopupMenu;
+import javax.swing.SwingUtilities;
+import org.opencv.core.Rect;
 import org.opencv.core.Size;
+import org.usfirst.frc2084.vision.capture.FrameSource;
+import org.usfirst.frc2084.vision.capture.FrameSources;
+import org.usfirst.frc2084.vision.capture.MjpegHttpFrameSource;
+import org.usfirst.frc2084.vision.capture.ParallelDecoder;
 import org.usfirst.frc2084.vision.properties.Range;
 import org.usfirst.frc2084.vision.properties.RangeProperty;
+import org.usfirst.frc2084.vision.udp.UdpResultSender;
 
 /**
  * Team 2084's custom vision processing SmartDashboard extension. It uses our
  * algorithm to detect whether the target the camera is pointing at is hot and
  * tells the robot about it. This extension requires the use of our patched
  * SmartDashboard in order to load the native OpenCV libraries that it requires.
+ * <p>
+ * To show the same camera more than once, add a {@link TargetTrackingView}
+ * for the others. Every one of these sets the thresholds of the camera's
+ * engine, so two of them on the same camera would fight over them.
  *
  * @author Ben Wolsieffer
  */
 public class TargetTrackingExtension extends StaticWidget {
 
     /**
-     * The processor is what actually implements the machine vision algorithm.
+     * The connection to the robot.
      */
-    private final TargetTrackingProcessor processor = new TargetTrackingProcessor();
+    private final TargetTrackingCommunication communication = NetworkTableCommunication.getInstance();
+
+    /**
+     * The engine that captures and processes the stream from the camera. It
+     * is shared with any other widgets that are looking at the same camera.
+     */
+    private VisionEngine engine;
 
     /**
      * The {@code NAME} field is used by the SmartDashboard to give the
@@ -43,17 +76,88 @@ public class TargetTrackingExtension extends StaticWidget {
      * The range of values (0-255) that a color property can hold.
      */
     private static final Range COLOR_RANGE = new Range(0, 255);
+    /**
+     * The range of values (0-179) that the hue property can hold, because
+     * that is all OpenCV uses for hue.
+     */
+    private static final Range HUE_RANGE = new Range(0, TargetTrackingProcessor.MAX_HUE);
 
     // Various properties that appear in the properties editor of the extension.
-    public final RangeProperty hThreshold = new RangeProperty(this, "H Threshold", COLOR_RANGE, processor.getHThreshold());
-    public final RangeProperty sThreshold = new RangeProperty(this, "S Threshold", COLOR_RANGE, processor.getSThreshold());
-    public final RangeProperty vThreshold = new RangeProperty(this, "V Threshold", COLOR_RANGE, processor.getVThreshold());
+    public final RangeProperty hThreshold = new RangeProperty(this, "H Threshold", HUE_RANGE, TargetTrackingProcessor.DEFAULT_H_THRESHOLD);
+    public final RangeProperty sThreshold = new RangeProperty(this, "S Threshold", COLOR_RANGE, TargetTrackingProcessor.DEFAULT_S_THRESHOLD);
+    public final RangeProperty vThreshold = new RangeProperty(this, "V Threshold", COLOR_RANGE, TargetTrackingProcessor.DEFAULT_V_THRESHOLD);
     public final DoubleProperty minArea = new DoubleProperty(this, "Min Blob Area", Target.MIN_AREA);
     public final DoubleProperty minRectangularityScore = new DoubleProperty(this, "Min Rectangluarity", Target.MIN_RECTANGULARITY_SCORE);
     public final DoubleProperty minAspectRatioScore = new DoubleProperty(this, "Min Aspect Ratio Score", Target.MIN_ASPECT_RATIO_SCORE);
     public final DoubleProperty minHorizontalDistanceScore = new DoubleProperty(this, "Min Horizontal Distance Score", TargetPair.MIN_HORIZONTAL_DISTANCE_SCORE);
     public final DoubleProperty minTapeWidthScore = new DoubleProperty(this, "Min Tape Width Score", TargetPair.MIN_TAPE_WIDTH_SCORE);
     public final DoubleProperty minVerticalDistanceScore = new DoubleProperty(this, "Min Vertical Distance Score", TargetPair.MIN_VERTICAL_DISTANCE_SCORE);
+    public final IntegerProperty blackBoxFrames = new IntegerProperty(this, "Black Box Frames (0 to disable)", 60);
+    public final IntegerProperty blackBoxFrameSize = new IntegerProperty(this, "Black Box Max Frame Size (KB)", 64);
+    public final StringProperty blackBoxDirectory = new StringProperty(this, "Black Box Directory",
+            new File(System.getProperty("user.home"), "TargetTrackingBlackBox").getPath());
+    public final StringProperty udpAddress = new StringProperty(this, "UDP Result Address (blank to disable)", "");
+    public final IntegerProperty udpPort = new IntegerProperty(this, "UDP Result Port", UdpResultSender.DEFAULT_PORT);
+    public final MultiProperty captureBackend = new MultiProperty(this, "Capture Backend");
+    public final BooleanProperty negotiateStream = new BooleanProperty(this, "Negotiate Camera Stream", false);
+    public final StringProperty sourceOverride = new StringProperty(this, "Frame Source (blank to use camera)", "");
+    public final BooleanProperty showMask = new BooleanProperty(this, "Show Threshold Mask", false);
+    public final BooleanProperty tuningMode = new BooleanProperty(this, "Tuning Mode (Freeze Frame)", false);
+    public final IntegerProperty sampleFrames = new IntegerProperty(this, "Threshold Sample Frames", 30);
+    public final MultiProperty denoiseMode = new MultiProperty(this, "Mask Denoise Mode");
+    public final IntegerProperty blurSize = new IntegerProperty(this, "Mask Denoise Size (odd)", CalibrationProfile.DEFAULT_BLUR_SIZE);
+    public final BooleanProperty skipCleanFrames = new BooleanProperty(this, "Skip Denoise On Clean Frames", false);
+    public final MultiProperty locatorMode = new MultiProperty(this, "Blob Locator");
+    public final IntegerProperty streamWidth = new IntegerProperty(this, "Camera Stream Width (0 for auto)", 0);
+    public final IntegerProperty streamHeight = new IntegerProperty(this, "Camera Stream Height (0 for auto)", 0);
+    public final StringProperty profilesFile = new StringProperty(this, "Calibration Profiles File",
+            new File(System.getProperty("user.home"), "TargetTrackingProfiles.properties").getPath());
+    public final StringProperty profileName = new StringProperty(this, "Calibration Profile (blank for none)", "");
+    public final BooleanProperty exposureCompensation = new BooleanProperty(this, "Automatic V Threshold", false);
+    public final MultiProperty thresholdMode = new MultiProperty(this, "Threshold Mode");
+    public final RangeProperty greenThreshold = new RangeProperty(this, "Green Threshold", COLOR_RANGE, CalibrationProfile.DEFAULT_GREEN_THRESHOLD);
+    public final StringProperty extraCameraList = new StringProperty(this, "Extra Cameras (name,host[:port][,priority[,profile]]; ...)", "");
+
+    {
+        addCaptureBackends(captureBackend);
+        thresholdMode.add("HSV", CalibrationProfile.ThresholdMode.HSV);
+        thresholdMode.add("Green (LED ring)", CalibrationProfile.ThresholdMode.GREEN);
+        thresholdMode.add("Green - max(Red, Blue) (LED ring)", CalibrationProfile.ThresholdMode.GREEN_DIFFERENCE);
+        thresholdMode.setDefault("HSV");
+        denoiseMode.add("Median Blur", CalibrationProfile.DenoiseMode.MEDIAN);
+        denoiseMode.add("Box Blur + Threshold", CalibrationProfile.DenoiseMode.BOX);
+        denoiseMode.add("Open + Close", CalibrationProfile.DenoiseMode.OPEN_CLOSE);
+        denoiseMode.add("None", CalibrationProfile.DenoiseMode.NONE);
+        denoiseMode.setDefault("Median Blur");
+        locatorMode.add("Contours", CalibrationProfile.LocatorMode.CONTOURS);
+        locatorMode.add("Row/Column Sums", CalibrationProfile.LocatorMode.PROJECTION);
+        locatorMode.add("Row/Column Sums, Then Contours", CalibrationProfile.LocatorMode.PROJECTION_FIRST);
+        locatorMode.add("Run-Length in Java", CalibrationProfile.LocatorMode.RUN_LENGTH);
+        locatorMode.setDefault("Contours");
+    }
+
+    /**
+     * Records the frames behind each decision. It is null if the black box is
+     * disabled.
+     */
+    private BlackBoxRecorder blackBox;
+
+    /**
+     * Sends the result of every frame to the robot over UDP. It is null if no
+     * address is set.
+     */
+    private UdpResultSender udpSender;
+
+    /**
+     * Processes the extra cameras and combines their decisions with this
+     * widget's camera, or null if there aren't any extra cameras.
+     */
+    private MultiCameraEngine extraCameras;
+    /**
+     * What this widget's processor reports to instead of the robot while
+     * there are extra cameras.
+     */
+    private TargetTrackingCommunication extraCamerasCommunication;
 
     /**
      * The size of the image which is grabbed from the camera and operated on by
@@ -62,109 +166,112 @@ public class TargetTrackingExtension extends StaticWidget {
      */
     public static Size IMAGE_SIZE = new Size(800, 600);
 
-    // Variables used to keep track of the FPS.
-    private long lastFPSCheck = 0;
-    private int lastFPS = 0;
-    private int fpsCounter = 0;
+    /**
+     * Draws the frames from the processing loop. It takes care of handing the
+     * frames over to the UI thread safely.
+     */
+    private final PreviewRenderer previewRenderer = new PreviewRenderer(this);
+
+    /**
+     * Reprocesses a frozen frame while tuning mode is on, or null if it is
+     * off or no frame has come in since it was turned on.
+     */
+    private TuningSession tuningSession;
+    private final Object tuningLock = new Object();
+
+    /**
+     * The box the user is dragging over the frame to sample, in component
+     * coordinates, or null if they aren't dragging. Only used on the UI
+     * thread.
+     */
+    private Rectangle selection;
+    private Point selectionStart;
 
     /**
-     * Image used to transfer data between the processing loop and the UI
-     * drawing thread. It probably should be made more thread-safe but I haven't
-     * had a problem and it doesn't matter that much if a few frames get
-     * corrupted.
+     * Builds a histogram of the selected box to suggest thresholds from, or
+     * null if nothing is being sampled. Only changed on the UI thread.
      */
-    private BufferedImage imageToDraw;
+    private RegionSampler regionSampler;
 
     /**
-     * A separate {@link Thread} that runs the vision processing algorithm. It
-     * basically calls
-     * {@link TargetTrackingProcessor#processImage(org.opencv.core.Mat)} and
-     * monitors the FPS. I moved this out of the UI thread to keep it smooth.
+     * Called when the sampler has looked at enough frames. This just moves
+     * over to the UI thread to show the suggestion.
      */
-    public class ProcessingThread extends Thread {
+    private final RegionSampler.Callback samplerCallback = new RegionSampler.Callback() {
 
-        boolean destroyed = false;
+        @Override
+        public void samplingDone(final RegionSampler sampler, final HsvHistogram histogram) {
+            SwingUtilities.invokeLater(new Runnable() {
 
-        public ProcessingThread() {
-            super("Target Tracker Processing Thread");
+                @Override
+                public void run() {
+                    suggestThresholds(sampler, histogram);
+                }
+            });
         }
+    };
 
-        /**
-         * Thread-local copy of the image to process.
-         */
-        private final Mat processingImage = new Mat(IMAGE_SIZE, CvType.CV_8UC3);
+    /**
+     * Shows the profile in the properties when the robot switches to it, so
+     * the next change to a property doesn't put the old profile's values
+     * back.
+     */
+    private final TargetTrackingProcessor.ProfileListener profileListener = new TargetTrackingProcessor.ProfileListener() {
 
         @Override
-        @SuppressWarnings("SleepWhileInLoop")
-        public void run() {
-            // Run until the extension is removed or the SmartDashboard closes
-            while (!destroyed) {
-                // If the camera is enabled, run the processing loop
-                if (TargetTrackingCommunication.isCameraEnabled()) {
-                    // Start the camera if it is not running
-                    captureThread.start();
-
-                    // Possibly would prevent the algorithm from running after 
-                    // the camera was enabled but before it was connected.
-//                    if (captureThread.isConnected()) {
-//                    
-                    // Copy the image from the video capture to a thread local
-                    // copy. This is to fix a bug where the image was being
-                    // overwritten by the next video frame capture before the 
-                    // algorithm completed because the video capture thread runs
-                    // much faster than this thread. It was basically resulting 
-                    // in screen tearing.
-                    synchronized (image) {
-                        image.copyTo(processingImage);
-                    }
-                    // Process the image. The return value is what will be drawn
-                    // to the screen.
-                    imageToDraw = processor.processImage(processingImage);
-
-                    // Update FPS
-                    fpsCounter++;
-                    if (System.currentTimeMillis() - lastFPSCheck > 500) {
-                        lastFPSCheck = System.currentTimeMillis();
-                        lastFPS = fpsCounter * 2;
-                        fpsCounter = 0;
+        public void profileSwitched(final CalibrationProfile profile) {
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    // Showing the profile sets it again, so make sure the
+                    // robot hasn't switched to another one in the meantime
+                    if (engine != null && engine.getProcessor().getProfile() == profile) {
+                        showProfile(profile);
                     }
-                    // Draw the new image (this is thread-safe)
-                    repaint();
-//                    }
-                } else {
-                    // If the camera is not enabled, stop the capture thread.
-                    // This does nothing if the camera is already disabled.
-                    captureThread.stop();
                 }
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException ex) {
+            });
+        }
+    };
+
+    /**
+     * Receives the processed frames from the engine.
+     */
+    private final ProcessingThread.FrameListener frameListener = new ProcessingThread.FrameListener() {
+
+        @Override
+        public boolean isShowingFrames() {
+            if (tuningMode.getValue()) {
+                // Once a frame is frozen the live frames aren't needed
+                synchronized (tuningLock) {
+                    return isShowing() && tuningSession == null;
                 }
             }
+            return isShowing();
         }
 
-        /**
-         * Sets a flag to tell the thread to stop.
-         */
         @Override
-        public void destroy() {
-            destroyed = true;
+        public boolean isShowingMask() {
+            return showMask.getValue();
         }
-    }
-
-    /**
-     * Image retrieved from the camera.
-     */
-    private final Mat image = new Mat(IMAGE_SIZE, CvType.CV_8UC3);
 
-    /**
-     * The {@link Thread} which runs the {@link TargetTrackingProcessor}.
-     */
-    private final ProcessingThread processingThread = new ProcessingThread();
-    /**
-     * The thread which captures the image from the camera.
-     */
-    private final VideoCaptureThread captureThread = new VideoCaptureThread(image);
+        @Override
+        public void frameReady(BufferedImage image, BufferedImage mask, Detection detection) {
+            if (tuningMode.getValue()) {
+                // Freeze the first frame that comes in after tuning mode is
+                // turned on, and ignore the rest
+                synchronized (tuningLock) {
+                    if (tuningSession == null) {
+                        tuningSession = new TuningSession(image, previewRenderer, engine.getProcessor());
+                    }
+                }
+                return;
+            }
+            // The renderer repaints at the screen's refresh rate, so this
+            // doesn't need to ask for a repaint
+            previewRenderer.publish(new PreviewRenderer.Frame(image, mask, detection));
+        }
+    };
     /**
      * Team number.
      */
@@ -199,27 +306,71 @@ public class TargetTrackingExtension extends StaticWidget {
 
         });
 
+        // Right click for the things that aren't settings
+        final JPopupMenu menu = new JPopupMenu();
+        JMenuItem saveProfileItem = new JMenuItem("Save Settings As Profile...");
+        saveProfileItem.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                saveProfile();
+            }
+        });
+        menu.add(saveProfileItem);
+
+        // Drag a box over the tape to get thresholds for it
+        MouseAdapter selectionListener = new MouseAdapter() {
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                if (e.isPopupTrigger()) {
+                    menu.show(e.getComponent(), e.getX(), e.getY());
+                } else if (SwingUtilities.isLeftMouseButton(e)) {
+                    selectionStart = e.getPoint();
+                    selection = new Rectangle(selectionStart);
+                    repaint();
+                }
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (selectionStart != null) {
+                    selection = new Rectangle(selectionStart);
+                    selection.add(e.getPoint());
+                    repaint();
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (e.isPopupTrigger()) {
+                    menu.show(e.getComponent(), e.getX(), e.getY());
+                } else if (selection != null && selection.width >= 4 && selection.height >= 4) {
+                    startSampling(selection);
+                }
+                selection = null;
+                selectionStart = null;
+                repaint();
+            }
+        };
+        addMouseListener(selectionListener);
+        addMouseMotionListener(selectionListener);
+
         // Enable the camera (there are a lot of seemingly redundant 
         // communication calls to make sure everything works in every situation).
         // We had lots of problems where the if the robot and SmartDashboard 
         // were started in the wrong order then the vision would not work.
-        TargetTrackingCommunication.setCameraEnabled(true);
+        communication.setCameraEnabled(true);
+
+        // Start (or join) the engine for the camera
+        setEngine(VisionEngine.acquire(getSourceDescription(), communication));
+
+        updateBlackBox();
+        updateUdpSender();
+        updateExtraCameras();
+
+        previewRenderer.start();
 
-        // Set initial saved values for the properties
-        processor.setHThreshold(hThreshold.getValue());
-        processor.setSThreshold(sThreshold.getValue());
-        processor.setVThreshold(vThreshold.getValue());
-        Target.MIN_RECTANGULARITY_SCORE = minRectangularityScore.getValue();
-        Target.MIN_AREA = minArea.getValue();
-        Target.MIN_ASPECT_RATIO_SCORE = minAspectRatioScore.getValue();
-        TargetPair.MIN_HORIZONTAL_DISTANCE_SCORE = minHorizontalDistanceScore.getValue();
-        TargetPair.MIN_TAPE_WIDTH_SCORE = minTapeWidthScore.getValue();
-        TargetPair.MIN_VERTICAL_DISTANCE_SCORE = minVerticalDistanceScore.getValue();
-        captureThread.setIP(ipProperty.getSaveValue());
-
-        // Start everything
-        captureThread.start();
-        processingThread.start();
         revalidate();
         repaint();
     }
@@ -232,44 +383,501 @@ public class TargetTrackingExtension extends StaticWidget {
      */
     @Override
     public void propertyChanged(Property property) {
-        if (property == ipProperty) {
-            captureThread.setIP(ipProperty.getSaveValue());
+        // Saved values are loaded before init() is called, which applies them
+        // all anyway.
+        if (engine == null) {
+            return;
+        }
+        if (property == ipProperty || property == captureBackend || property == sourceOverride
+                || property == negotiateStream) {
+            VisionEngine oldEngine = engine;
+            setEngine(VisionEngine.acquire(getSourceDescription(), communication));
+            oldEngine.release();
+        } else if (property == blackBoxFrames || property == blackBoxFrameSize || property == blackBoxDirectory) {
+            updateBlackBox();
+        } else if (property == udpAddress || property == udpPort) {
+            updateUdpSender();
+        } else if (property == extraCameraList) {
+            updateExtraCameras();
+        } else if (property == profilesFile) {
+            loadProfiles();
+        } else if (property == profileName) {
+            String name = profileName.getValue().trim();
+            if (!name.isEmpty()) {
+                showProfile(engine.getProcessor().switchProfile(name));
+            }
+        } else if (property == blurSize) {
+            engine.getProcessor().setBlurSize(toBlurSize(blurSize.getValue()));
+        } else if (property == streamWidth || property == streamHeight) {
+            engine.getProcessor().setStreamResolution(streamWidth.getValue(), streamHeight.getValue());
+        } else if (property == exposureCompensation) {
+            engine.getProcessor().setExposureCompensation(exposureCompensation.getValue());
+        } else if (property == denoiseMode) {
+            engine.getProcessor().setDenoiseMode((CalibrationProfile.DenoiseMode) denoiseMode.getValue());
+        } else if (property == skipCleanFrames) {
+            engine.getProcessor().setSkipCleanFrames(skipCleanFrames.getValue());
+        } else if (property == locatorMode) {
+            engine.getProcessor().setLocatorMode((CalibrationProfile.LocatorMode) locatorMode.getValue());
+        } else if (property == thresholdMode) {
+            engine.getProcessor().setThresholdMode((CalibrationProfile.ThresholdMode) thresholdMode.getValue());
+        } else if (property == tuningMode) {
+            if (!tuningMode.getValue()) {
+                stopTuning();
+            } else {
+                // A sampler that is running would keep reading live frames
+                // that aren't being shown anymore
+                cancelSampling();
+            }
         } else if (property instanceof RangeProperty) {
             Range r = ((RangeProperty) property).getValue();
+            TargetTrackingProcessor processor = engine.getProcessor();
             if (property == hThreshold) {
                 processor.setHThreshold(r);
             } else if (property == sThreshold) {
                 processor.setSThreshold(r);
             } else if (property == vThreshold) {
                 processor.setVThreshold(r);
+            } else if (property == greenThreshold) {
+                processor.setGreenThreshold(r);
             }
         } else if (property instanceof DoubleProperty) {
             double d = ((DoubleProperty) property).getValue();
+            TargetTrackingProcessor processor = engine.getProcessor();
             if (property == minRectangularityScore) {
-                Target.MIN_RECTANGULARITY_SCORE = d;
+                processor.setLimit(CalibrationProfile.MIN_RECTANGULARITY_SCORE, d);
             } else if (property == minArea) {
-                Target.MIN_AREA = d;
+                processor.setLimit(CalibrationProfile.MIN_AREA, d);
             } else if (property == minAspectRatioScore) {
-                Target.MIN_ASPECT_RATIO_SCORE = d;
+                processor.setLimit(CalibrationProfile.MIN_ASPECT_RATIO_SCORE, d);
             } else if (property == minHorizontalDistanceScore) {
-                TargetPair.MIN_HORIZONTAL_DISTANCE_SCORE = d;
+                processor.setLimit(CalibrationProfile.MIN_HORIZONTAL_DISTANCE_SCORE, d);
             } else if (property == minTapeWidthScore) {
-                TargetPair.MIN_TAPE_WIDTH_SCORE = d;
+                processor.setLimit(CalibrationProfile.MIN_TAPE_WIDTH_SCORE, d);
             } else if (property == minVerticalDistanceScore) {
-                TargetPair.MIN_VERTICAL_DISTANCE_SCORE = d;
+                processor.setLimit(CalibrationProfile.MIN_VERTICAL_DISTANCE_SCORE, d);
+            }
+        }
+        // Show the change on the frozen frame right away
+        synchronized (tuningLock) {
+            if (tuningSession != null) {
+                tuningSession.update();
+            }
+        }
+    }
+
+    /**
+     * Starts building a histogram of the part of the frame under a box on the
+     * screen. Any sampling that was already running is cancelled.
+     *
+     * @param screenRect the box, in component coordinates
+     */
+    private void startSampling(Rectangle screenRect) {
+        Rectangle r = previewRenderer.toFrameRect(screenRect);
+        if (r == null || engine == null) {
+            return;
+        }
+        cancelSampling();
+        Rect region = new Rect(r.x, r.y, r.width, r.height);
+        if (tuningMode.getValue()) {
+            // The box was drawn over the frozen frame, so that is the one to
+            // sample, not whatever the camera sees now
+            TuningSession session;
+            synchronized (tuningLock) {
+                session = tuningSession;
+            }
+            HsvHistogram histogram = session != null ? session.sample(region) : null;
+            if (histogram != null) {
+                showSuggestedThresholds(histogram, "the frozen frame");
+            }
+            return;
+        }
+        regionSampler = new RegionSampler(region, Math.max(1, sampleFrames.getValue()), samplerCallback);
+        engine.getProcessor().addListener(regionSampler);
+    }
+
+    /**
+     * Stops the sampler that is running, if there is one.
+     */
+    private void cancelSampling() {
+        if (regionSampler != null) {
+            engine.getProcessor().removeListener(regionSampler);
+            regionSampler = null;
+            repaint();
+        }
+    }
+
+    /**
+     * Called when a sampler is done, to show its suggestion.
+     */
+    private void suggestThresholds(RegionSampler sampler, HsvHistogram histogram) {
+        // Ignore samplers that were replaced while they were finishing
+        if (sampler != regionSampler) {
+            return;
+        }
+        cancelSampling();
+        showSuggestedThresholds(histogram, sampler.getFrames() + " frames");
+    }
+
+    /**
+     * Shows the thresholds suggested by a histogram and applies them if the
+     * user wants. All three are changed in one step, so the processing never
+     * sees a mix of the old and new thresholds.
+     *
+     * @param histogram the histogram to suggest thresholds from
+     * @param source what the pixels came from, for the message
+     */
+    private void showSuggestedThresholds(HsvHistogram histogram, String source) {
+        Range h = histogram.suggestH();
+        Range s = histogram.suggestS();
+        Range v = histogram.suggestV();
+        int choice = JOptionPane.showConfirmDialog(this,
+                String.format(Locale.ROOT, "Sampled %d pixels from %s.%nSuggested thresholds:%nH: %d-%d%nS: %d-%d%nV: %d-%d%nApply them?",
+                        histogram.getCount(), source,
+                        h.getMin(), h.getMax(), s.getMin(), s.getMax(), v.getMin(), v.getMax()),
+                "Suggested Thresholds", JOptionPane.YES_NO_OPTION);
+        if (choice == JOptionPane.YES_OPTION) {
+            engine.getProcessor().setThresholds(h, s, v);
+            // This sets each one again, but they already match
+            hThreshold.setValue(h);
+            sThreshold.setValue(s);
+            vThreshold.setValue(v);
+        }
+    }
+
+    /**
+     * Loads the calibration profiles file, so the robot can switch between
+     * them, and switches to the selected profile if there is one.
+     */
+    private void loadProfiles() {
+        TargetTrackingProcessor processor = engine.getProcessor();
+        ProfileLibrary library;
+        try {
+            library = ProfileLibrary.load(new File(profilesFile.getValue().trim()));
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Could not load calibration profiles: " + ex);
+            return;
+        }
+        processor.setProfileLibrary(library);
+        if (extraCameras != null) {
+            extraCameras.setProfileLibrary(library);
+        }
+        System.out.println("Loaded calibration profiles: " + library.getNames());
+        String name = profileName.getValue().trim();
+        if (!name.isEmpty()) {
+            showProfile(processor.switchProfile(name));
+        }
+    }
+
+    /**
+     * Asks for a name and saves the current settings as a profile in the
+     * calibration profiles file, replacing any profile with the same name.
+     */
+    private void saveProfile() {
+        TargetTrackingProcessor processor = engine.getProcessor();
+        String name = JOptionPane.showInputDialog(this, "Save the current settings as profile:",
+                processor.getProfile().getName());
+        if (name == null || name.trim().isEmpty()) {
+            return;
+        }
+        name = name.trim();
+        ProfileLibrary library = processor.getProfileLibrary();
+        if (library == null) {
+            library = new ProfileLibrary();
+        }
+        try {
+            library = library.with(processor.getProfile().withName(name));
+            library.save(new File(profilesFile.getValue().trim()));
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Could not save calibration profile: " + ex);
+            return;
+        }
+        processor.setProfileLibrary(library);
+        if (extraCameras != null) {
+            extraCameras.setProfileLibrary(library);
+        }
+        System.out.println("Saved calibration profile: " + name);
+    }
+
+    /**
+     * Shows the values of a profile in the properties.
+     *
+     * @param profile the profile to show, or null to do nothing
+     */
+    private void showProfile(CalibrationProfile profile) {
+        if (profile == null) {
+            return;
+        }
+        // This sets each value again, but they already match
+        hThreshold.setValue(profile.getHThreshold());
+        sThreshold.setValue(profile.getSThreshold());
+        vThreshold.setValue(profile.getVThreshold());
+        denoiseMode.setValue(profile.getDenoiseMode());
+        blurSize.setValue(profile.getBlurSize());
+        skipCleanFrames.setValue(profile.isSkipCleanFrames());
+        locatorMode.setValue(profile.getLocatorMode());
+        thresholdMode.setValue(profile.getThresholdMode());
+        greenThreshold.setValue(profile.getGreenThreshold());
+        minArea.setValue(profile.getLimit(CalibrationProfile.MIN_AREA));
+        minRectangularityScore.setValue(profile.getLimit(CalibrationProfile.MIN_RECTANGULARITY_SCORE));
+        minAspectRatioScore.setValue(profile.getLimit(CalibrationProfile.MIN_ASPECT_RATIO_SCORE));
+        minHorizontalDistanceScore.setValue(profile.getLimit(CalibrationProfile.MIN_HORIZONTAL_DISTANCE_SCORE));
+        minTapeWidthScore.setValue(profile.getLimit(CalibrationProfile.MIN_TAPE_WIDTH_SCORE));
+        minVerticalDistanceScore.setValue(profile.getLimit(CalibrationProfile.MIN_VERTICAL_DISTANCE_SCORE));
+        streamWidth.setValue(profile.getStreamWidth());
+        streamHeight.setValue(profile.getStreamHeight());
+    }
+
+    /**
+     * Makes a denoise size odd, since the median blur only works with odd
+     * sizes and the others are centered better with them.
+     */
+    private static int toBlurSize(int size) {
+        return size > 1 && size % 2 == 0 ? size + 1 : size;
+    }
+
+    /**
+     * Stops tuning mode and goes back to showing live frames.
+     */
+    private void stopTuning() {
+        synchronized (tuningLock) {
+            if (tuningSession != null) {
+                tuningSession.stop();
+                tuningSession = null;
             }
         }
     }
 
+    /**
+     * Sets everything in the property sheet on a processor. This is done for
+     * every new engine, because a new engine's processor starts out with the
+     * default settings.
+     *
+     * @param processor the processor to set up
+     */
+    private void applySettings(TargetTrackingProcessor processor) {
+        processor.setHThreshold(hThreshold.getValue());
+        processor.setSThreshold(sThreshold.getValue());
+        processor.setVThreshold(vThreshold.getValue());
+        processor.setDenoiseMode((CalibrationProfile.DenoiseMode) denoiseMode.getValue());
+        processor.setBlurSize(toBlurSize(blurSize.getValue()));
+        processor.setSkipCleanFrames(skipCleanFrames.getValue());
+        processor.setLocatorMode((CalibrationProfile.LocatorMode) locatorMode.getValue());
+        processor.setLimit(CalibrationProfile.MIN_RECTANGULARITY_SCORE, minRectangularityScore.getValue());
+        processor.setLimit(CalibrationProfile.MIN_AREA, minArea.getValue());
+        processor.setLimit(CalibrationProfile.MIN_ASPECT_RATIO_SCORE, minAspectRatioScore.getValue());
+        processor.setLimit(CalibrationProfile.MIN_HORIZONTAL_DISTANCE_SCORE, minHorizontalDistanceScore.getValue());
+        processor.setLimit(CalibrationProfile.MIN_TAPE_WIDTH_SCORE, minTapeWidthScore.getValue());
+        processor.setLimit(CalibrationProfile.MIN_VERTICAL_DISTANCE_SCORE, minVerticalDistanceScore.getValue());
+        processor.setStreamResolution(streamWidth.getValue(), streamHeight.getValue());
+        processor.setExposureCompensation(exposureCompensation.getValue());
+        processor.setThresholdMode((CalibrationProfile.ThresholdMode) thresholdMode.getValue());
+        processor.setGreenThreshold(greenThreshold.getValue());
+    }
+
+    /**
+     * Gets the description of the frame source to use, which is the camera
+     * unless a source has been typed in.
+     *
+     * @return the frame source description
+     * @see FrameSources#create(String)
+     */
+    private String getSourceDescription() {
+        return getSourceDescription(sourceOverride, captureBackend, ipProperty, negotiateStream);
+    }
+
+    /**
+     * Gets the description of the frame source for a widget's properties.
+     * The views use this too, so they end up on the same engine.
+     *
+     * @param sourceOverride the typed in source, or blank to use the camera
+     * @param captureBackend the backend to read the camera with
+     * @param ip the IP address of the camera
+     * @param negotiate whether to negotiate the stream with the camera
+     * @return the frame source description
+     */
+    static String getSourceDescription(StringProperty sourceOverride, MultiProperty captureBackend,
+            IPAddressProperty ip, BooleanProperty negotiate) {
+        String override = sourceOverride.getValue().trim();
+        if (!override.isEmpty()) {
+            return override;
+        }
+        return FrameSources.describeCamera((String) captureBackend.getValue(), ip.getSaveValue(),
+                negotiate.getValue());
+    }
+
+    /**
+     * Adds the capture backends to a property.
+     *
+     * @param captureBackend the property to add them to
+     */
+    static void addCaptureBackends(MultiProperty captureBackend) {
+        captureBackend.add("OpenCV", FrameSources.OPENCV);
+        captureBackend.add("FFmpeg", FrameSources.FFMPEG);
+        captureBackend.add("Scaled JPEG", FrameSources.MJPEG);
+        captureBackend.setDefault("OpenCV");
+    }
+
+    /**
+     * Switches this widget to a different engine, moving its frame listener
+     * and processing listeners over from the old one and setting up the new
+     * processor from the properties and the profiles file.
+     *
+     * @param newEngine the engine to switch to
+     */
+    private void setEngine(VisionEngine newEngine) {
+        if (engine != null) {
+            engine.removeFrameListener(frameListener);
+            engine.getProcessor().removeProfileListener(profileListener);
+            if (blackBox != null) {
+                engine.getProcessor().removeListener(blackBox);
+                newEngine.getProcessor().addListener(blackBox);
+            }
+            if (udpSender != null) {
+                engine.getProcessor().removeListener(udpSender);
+                newEngine.getProcessor().addListener(udpSender);
+            }
+            if (regionSampler != null) {
+                engine.getProcessor().removeListener(regionSampler);
+                newEngine.getProcessor().addListener(regionSampler);
+            }
+            if (extraCamerasCommunication != null) {
+                engine.getProcessor().setCommunication(communication);
+                newEngine.getProcessor().setCommunication(extraCamerasCommunication);
+            }
+        }
+        // The frozen frame came from the old engine, and the session would
+        // keep tuning the old processor's profile. If tuning mode is still on
+        // a new frame is frozen from the new engine.
+        stopTuning();
+        engine = newEngine;
+        applySettings(engine.getProcessor());
+        loadProfiles();
+        engine.addFrameListener(frameListener);
+        engine.getProcessor().addProfileListener(profileListener);
+    }
+
+    /**
+     * Replaces the black box recorder with one that matches the current
+     * property values.
+     */
+    private void updateBlackBox() {
+        TargetTrackingProcessor processor = engine.getProcessor();
+        if (blackBox != null) {
+            processor.removeListener(blackBox);
+            blackBox.shutdown();
+            blackBox = null;
+        }
+        int frames = blackBoxFrames.getValue();
+        if (frames > 0) {
+            // Done as a long so a silly value can't overflow
+            long frameSize = blackBoxFrameSize.getValue() * 1024L;
+            try {
+                blackBox = new BlackBoxRecorder(frames, (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, frameSize)),
+                        new File(blackBoxDirectory.getValue()));
+                processor.addListener(blackBox);
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Could not start the black box: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replaces the UDP sender with one that sends to the current address.
+     */
+    private void updateUdpSender() {
+        TargetTrackingProcessor processor = engine.getProcessor();
+        if (udpSender != null) {
+            processor.removeListener(udpSender);
+            udpSender.close();
+            udpSender = null;
+        }
+        String address = udpAddress.getValue().trim();
+        if (!address.isEmpty()) {
+            try {
+                udpSender = new UdpResultSender(address, udpPort.getValue());
+                processor.addListener(udpSender);
+            } catch (IOException ex) {
+                System.err.println("Could not open UDP result channel: " + ex);
+            }
+        }
+    }
+
+    /**
+     * Starts processing the extra cameras in the property, replacing any that
+     * were already running. While there are extra cameras, this widget's
+     * camera reports to them instead of the robot, and the robot gets the
+     * combined decision.
+     */
+    private void updateExtraCameras() {
+        stopExtraCameras();
+        List<CameraConfig> configs = new ArrayList<>();
+        try {
+            for (String camera : extraCameraList.getValue().split(";")) {
+                if (!camera.trim().isEmpty()) {
+                    configs.add(CameraConfig.parse(camera.trim()));
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Could not read the extra cameras: " + ex.getMessage());
+            return;
+        }
+        if (configs.isEmpty()) {
+            return;
+        }
+        MultiCameraEngine multiCamera = new MultiCameraEngine(configs, communication,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        multiCamera.setProfileLibrary(engine.getProcessor().getProfileLibrary());
+        try {
+            multiCamera.start();
+        } catch (IOException ex) {
+            System.err.println("Could not start the extra cameras: " + ex);
+            multiCamera.stop();
+            return;
+        }
+        extraCameras = multiCamera;
+        extraCamerasCommunication = multiCamera.join("main");
+        engine.getProcessor().setCommunication(extraCamerasCommunication);
+    }
+
+    /**
+     * Stops the extra cameras and lets this widget's camera report to the
+     * robot directly again.
+     */
+    private void stopExtraCameras() {
+        if (extraCameras != null) {
+            engine.getProcessor().setCommunication(communication);
+            extraCameras.stop();
+            extraCameras = null;
+            extraCamerasCommunication = null;
+        }
+    }
+
     /**
      * Called from the event thread when the SmartDashboard is started or this extension is added. It
      * is not called when the robot disconnects and the name implies.
      */
     @Override
     public void disconnect() {
-        // Stop all the threads
-        captureThread.stop();
-        processingThread.destroy();
+        // Stop listening to the engine, which stops its threads if no other
+        // widget is using it
+        if (blackBox != null) {
+            engine.getProcessor().removeListener(blackBox);
+            blackBox.shutdown();
+        }
+        if (udpSender != null) {
+            engine.getProcessor().removeListener(udpSender);
+            udpSender.close();
+        }
+        if (regionSampler != null) {
+            engine.getProcessor().removeListener(regionSampler);
+            regionSampler = null;
+        }
+        stopExtraCameras();
+        engine.removeFrameListener(frameListener);
+        engine.getProcessor().removeProfileListener(profileListener);
+        engine.release();
+        stopTuning();
+        previewRenderer.dispose();
         super.disconnect();
     }
 
@@ -282,19 +890,67 @@ public class TargetTrackingExtension extends StaticWidget {
     protected void paintComponent(Graphics g) {
         Graphics2D g2d = (Graphics2D) g;
         // If the capture thread is connected and there is a image to draw, draw it.
-        if (captureThread.isConnected() && imageToDraw != null) {
-            BufferedImage drawnImage = imageToDraw;
-            int width = getBounds().width;
-            int height = getBounds().height;
-            // Scale the image to fit in the component and draw it.
-            double scale = Math.min((double) width / (double) image.width(), (double) height / (double) image.height());
-
-            g2d.drawImage(drawnImage, (int) (width - (scale * image.width())) / 2, (int) (height - (scale * drawnImage.getHeight())) / 2,
-                    (int) ((width + scale * drawnImage.getWidth()) / 2), (int) (height + scale * drawnImage.getHeight()) / 2,
-                    0, 0, drawnImage.getWidth(), drawnImage.getHeight(), null);
+        if (engine != null && engine.isConnected()
+                && previewRenderer.paint(g2d, getBounds().width, getBounds().height)) {
             // Draw the FPs indicator.
             g2d.setColor(Color.WHITE);
-            g2d.drawString("FPS: " + lastFPS, 10, 15);
+            g2d.drawString("FPS: " + engine.getFPS(), 10, 15);
+            double latency = engine.getLatency();
+            if (latency >= 0) {
+                g2d.drawString(String.format(Locale.ROOT, "Latency: %.1f ms", latency), 10, 30);
+            }
+            double sourceLatency = engine.getSourceLatency();
+            if (sourceLatency >= 0) {
+                g2d.drawString(String.format(Locale.ROOT, "Capture: %.1f ms", sourceLatency), 10, 45);
+            }
+            FrameSource source = engine.getCaptureThread().getFrameSource();
+            if (source instanceof MjpegHttpFrameSource) {
+                ParallelDecoder decoder = ((MjpegHttpFrameSource) source).getParallelDecoder();
+                if (decoder != null) {
+                    g2d.drawString(String.format(Locale.ROOT, "Decode: %.1f fps, queue %d, dropped %d late/%d queued",
+                            decoder.getThroughput(), decoder.getQueueDepth(),
+                            decoder.getLateDropCount(), decoder.getQueueDropCount()), 10, 60);
+                }
+            }
+            if (regionSampler != null) {
+                g2d.setColor(Color.YELLOW);
+                g2d.drawString(String.format(Locale.ROOT, "Sampling thresholds: %d/%d frames",
+                        regionSampler.getFramesSampled(), regionSampler.getFrames()), 10, 90);
+            }
+            if (selection != null) {
+                g2d.setColor(Color.YELLOW);
+                g2d.draw(selection);
+            }
+            TuningSession session;
+            synchronized (tuningLock) {
+                session = tuningSession;
+            }
+            if (session != null) {
+                g2d.setColor(Color.YELLOW);
+                g2d.drawString(String.format(Locale.ROOT, "TUNING (frozen frame): %.1f ms", session.getRunTime()), 10, 75);
+            }
+            g2d.setColor(Color.WHITE);
+            TargetTrackingProcessor processor = engine.getProcessor();
+            g2d.drawString("Profile: " + processor.getProfile().getName(), 10, 105);
+            if (processor.isExposureCompensation()) {
+                ExposureCompensator compensator = processor.getExposureCompensator();
+                if (compensator.isTracking()) {
+                    g2d.drawString(String.format(Locale.ROOT, "Auto V: %+d (tape V %d)",
+                            compensator.getShift(), compensator.getBrightness()), 10, 120);
+                } else {
+                    g2d.drawString("Auto V: measuring", 10, 120);
+                }
+            }
+            drawConnectionStats(g2d, 135);
+            MultiCameraEngine multiCamera = extraCameras;
+            if (multiCamera != null) {
+                for (int i = 0; i < multiCamera.getCameraCount(); i++) {
+                    g2d.drawString(String.format(Locale.ROOT, "%s: %d processed, %d skipped, state %s%s",
+                            multiCamera.getCameraConfig(i).getName(), multiCamera.getProcessedFrames(i),
+                            multiCamera.getSkippedFrames(i), multiCamera.getCameraState(i),
+                            multiCamera.isCameraStale(i) ? " (stale)" : ""), 10, 150 + 15 * i);
+                }
+            }
         } else {
             // If the camera is not connected, make the background pink and say
             // "NO CONNECTION"
@@ -302,6 +958,28 @@ public class TargetTrackingExtension extends StaticWidget {
             g2d.fillRect(0, 0, getBounds().width, getBounds().height);
             g2d.setColor(Color.BLACK);
             g2d.drawString("NO CONNECTION", 10, 15);
+            if (engine != null) {
+                drawConnectionStats(g2d, 30);
+            }
+        }
+    }
+
+    /**
+     * Draws the capture supervisor's metrics, so it's possible to tell how
+     * well the camera connection is holding up.
+     *
+     * @param g2d the {@link Graphics2D} object to draw with
+     * @param y the position of the line
+     */
+    private void drawConnectionStats(Graphics2D g2d, int y) {
+        VideoCaptureThread capture = engine.getCaptureThread();
+        String stats = String.format(Locale.ROOT, "Reconnects: %d, stalls: %d (%d ms), first frame: %d ms",
+                capture.getReconnectCount(), capture.getStallCount(),
+                capture.getTotalStallTime(), capture.getLastTimeToFirstFrame());
+        if (capture.getAbandonedReaderCount() > 0 || capture.getLostReaderCount() > 0) {
+            stats += String.format(Locale.ROOT, ", stuck: %d, lost: %d",
+                    capture.getAbandonedReaderCount(), capture.getLostReaderCount());
         }
+        g2d.drawString(stats, 10, y);
     }
 }
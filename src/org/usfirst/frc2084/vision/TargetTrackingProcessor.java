@@ -3,22 +3,23 @@ package org.usfirst.frc2084.vision;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
 import java.util.ArrayList;
 import java.util.List;
-import javax.imageio.ImageIO;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
 import org.opencv.core.MatOfInt;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
-import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
+import org.usfirst.frc2084.vision.CalibrationProfile.DenoiseMode;
+import org.usfirst.frc2084.vision.CalibrationProfile.LocatorMode;
+import org.usfirst.frc2084.vision.CalibrationProfile.ThresholdMode;
 import static org.usfirst.frc2084.vision.TargetTrackingExtension.IMAGE_SIZE;
 import org.usfirst.frc2084.vision.properties.Range;
 
@@ -28,51 +29,350 @@ import org.usfirst.frc2084.vision.properties.Range;
  */
 public class TargetTrackingProcessor {
 
-    private static final Scalar MIN_THRESHOLD = new Scalar(0, 0, 50);
-    private static final Scalar MAX_THRESHOLD = new Scalar(255, 255, 200);
+    /**
+     * Told when the robot switches the profile, so the widget can show the
+     * new values instead of writing its old ones over them.
+     */
+    public interface ProfileListener {
+
+        /**
+         * Called on the processing thread when the robot switches to a
+         * different profile.
+         *
+         * @param profile the profile that was switched to
+         */
+        void profileSwitched(CalibrationProfile profile);
+    }
+
+    /**
+     * The highest hue OpenCV gives an 8-bit HSV image. It stores half of the
+     * angle in degrees so it fits in a byte.
+     */
+    public static final int MAX_HUE = 179;
+
+    /**
+     * The default thresholds for each of the HSV channels.
+     */
+    public static final Range DEFAULT_H_THRESHOLD = new Range(0, MAX_HUE);
+    public static final Range DEFAULT_S_THRESHOLD = new Range(0, 255);
+    public static final Range DEFAULT_V_THRESHOLD = new Range(50, 200);
+
+    /**
+     * The thresholds and denoise settings that are used for every frame. This is
+     * replaced instead of being changed, so the processing thread never sees
+     * a profile that is only partly updated. Each processor has its own, so
+     * engines for different cameras don't overwrite each other's settings.
+     */
+    private volatile CalibrationProfile profile = new CalibrationProfile(
+            DEFAULT_H_THRESHOLD, DEFAULT_S_THRESHOLD, DEFAULT_V_THRESHOLD,
+            CalibrationProfile.DEFAULT_BLUR_SIZE);
+    /**
+     * Held while changing the profile, so two changes at once can't lose one
+     * of them.
+     */
+    private final Object profileLock = new Object();
+
+    /**
+     * Decides whether the goal is hot based on the results of many frames.
+     */
+    private final TargetStateFilter filter = new TargetStateFilter();
+
+    /**
+     * Listeners that are told about every processed frame and every state sent
+     * to the robot.
+     */
+    private final List<ProcessingListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<ProfileListener> profileListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The profiles the robot can switch between by name.
+     */
+    private volatile ProfileLibrary profileLibrary;
+    // The last profile the robot asked for, so the profile is only switched
+    // when it changes. If it wasn't in the library, it is tried again when
+    // the library changes. These are only used on the processing thread.
+    private String requestedProfileName;
+    private boolean requestedProfileApplied;
+    private ProfileLibrary requestedProfileLibrary;
+
+    /**
+     * Shifts the V threshold to follow the lighting, if it is turned on.
+     */
+    private final ExposureCompensator exposureCompensator = new ExposureCompensator();
+    private volatile boolean exposureCompensation = false;
+    private volatile boolean exposureCompensationReset = false;
 
-    private static final Scalar HOT_TARGET_COLOR = new Scalar(255, 0, 0);
-    private static final Scalar STATIC_TARGET_COLOR = new Scalar(0, 255, 0);
-    private static final Scalar OTHER_TARGET_COLOR = new Scalar(0, 0, 255);
+    /**
+     * The connection to the robot, or whatever the decisions go through to
+     * get there.
+     */
+    private volatile TargetTrackingCommunication communication;
 
     /**
-     * The minimum number of frames the algorithm must process in order to
-     * determine the state of the target.
+     * Creates a processor that can only be used for
+     * {@link #detect(org.opencv.core.Mat, long, long)}, because it is not
+     * connected to a robot.
      */
-    private static final int MIN_FRAMES = 10;
-    private static final double MIN_HOT_FRAME_RATIO = 0.7;
-    private static final double MAX_HOT_FRAME_RATIO = 0.3;
+    public TargetTrackingProcessor() {
+        this(null);
+    }
 
     /**
-     * The number of frames where a hot goal was found since the match started.
+     * Creates a processor that reports to the specified robot.
+     *
+     * @param communication the connection to the robot
      */
-    private int hotFrameCount = 0;
+    public TargetTrackingProcessor(TargetTrackingCommunication communication) {
+        this.communication = communication;
+    }
+
     /**
-     * The total number of frames processed since the match started. These
-     * counters are used to filter out mistakes in the algorithm (ie. it missed
-     * detecting the goal in one frame).
+     * Changes where the decisions are reported. The
+     * {@link MultiCameraEngine} uses this to combine this processor's
+     * decisions with other cameras' before the robot sees them.
+     *
+     * @param communication the new connection to report to
      */
-    private int totalFrames = 0;
+    public void setCommunication(TargetTrackingCommunication communication) {
+        this.communication = communication;
+    }
 
     public void init() {
-        totalFrames = 0;
-        hotFrameCount = 0;
+        filter.reset();
+    }
+
+    /**
+     * Processes a frame from the camera and tells the robot about it. Nothing
+     * is drawn on the frame; the widget draws the targets itself from the
+     * returned {@link Detection}, and headless users don't draw at all.
+     *
+     * @param image the frame to process
+     * @param sequence the sequence number of the frame
+     * @param timestamp the time the frame was captured, in
+     * {@link System#nanoTime()} units
+     * @return the targets found in the frame
+     */
+    public Detection process(Mat image, long sequence, long timestamp) {
+        // This can be changed at any time, so use the same one for the whole
+        // frame
+        TargetTrackingCommunication communication = this.communication;
+
+        boolean autonomousRunning = communication.isAutonomousVisionRunning();
+
+        // Switch profiles if the robot asked for a different one
+        String requested = communication.getProfileName();
+        ProfileLibrary library = profileLibrary;
+        if (requested != null && (!requested.equals(requestedProfileName)
+                || (!requestedProfileApplied && library != requestedProfileLibrary))) {
+            requestedProfileName = requested;
+            requestedProfileLibrary = library;
+            CalibrationProfile switched = switchProfile(requested);
+            requestedProfileApplied = switched != null;
+            if (switched != null) {
+                for (ProfileListener l : profileListeners) {
+                    l.profileSwitched(switched);
+                }
+            }
+        }
+
+        CalibrationProfile p = profile;
+        Detection detection;
+        if (p.getThresholdMode() == ThresholdMode.HSV) {
+            Mat hsv = convertToHsv(image);
+            if (exposureCompensation) {
+                if (exposureCompensationReset) {
+                    exposureCompensationReset = false;
+                    exposureCompensator.reset();
+                }
+                exposureCompensator.update(hsv, p);
+                p = exposureCompensator.apply(p);
+            }
+            detection = detectHsv(hsv, p, sequence, timestamp);
+        } else {
+            // The exposure compensation only works with the V threshold
+            detection = detect(image, p, sequence, timestamp);
+        }
+
+        TargetTrackingCommunication.State state = filter.update(detection, autonomousRunning);
+        double hotFrameRatio = filter.getLastHotFrameRatio();
+
+        // Tell the listeners about the frame
+        for (ProcessingListener l : listeners) {
+            l.frameProcessed(image, detection, hotFrameRatio);
+        }
+
+        if (state != null) {
+            if (state.equals(TargetTrackingCommunication.State.UNKNOWN)) {
+                communication.setState(state);
+            } else {
+                setTargetState(communication, state);
+            }
+            for (ProcessingListener l : listeners) {
+                l.stateReported(state, hotFrameRatio);
+            }
+        }
+
+        return detection;
+    }
+
+    public void addListener(ProcessingListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ProcessingListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addProfileListener(ProfileListener listener) {
+        profileListeners.add(listener);
+    }
+
+    public void removeProfileListener(ProfileListener listener) {
+        profileListeners.remove(listener);
+    }
+
+    /**
+     * Runs the detection part of the algorithm on an image. This does not
+     * modify the image and does not depend on the state of the robot, so it
+     * can safely be run on many frames at once as long as each thread has its
+     * own processor.
+     *
+     * @param image the image to process
+     * @param sequence the sequence number of the frame
+     * @param timestamp the time the frame was captured, in
+     * {@link System#nanoTime()} units
+     * @return the targets found in the image
+     */
+    public Detection detect(Mat image, long sequence, long timestamp) {
+        return detect(image, profile, sequence, timestamp);
+    }
+
+    /**
+     * Runs the detection part of the algorithm on an image with a specific
+     * profile, thresholding it however the profile says to.
+     *
+     * @param image the image to process
+     * @param profile the thresholds and denoise settings to use
+     * @param sequence the sequence number of the frame
+     * @param timestamp the time the frame was captured, in
+     * {@link System#nanoTime()} units
+     * @return the targets found in the image
+     */
+    public Detection detect(Mat image, CalibrationProfile profile, long sequence, long timestamp) {
+        if (profile.getThresholdMode() == ThresholdMode.HSV) {
+            return detectHsv(convertToHsv(image), profile, sequence, timestamp);
+        }
+        if (canDetectPacked(profile)) {
+            packedMask.thresholdGreen(image, profile.getGreenThreshold(),
+                    profile.getThresholdMode() == ThresholdMode.GREEN_DIFFERENCE);
+            return detectPacked(profile, sequence, timestamp);
+        }
+        return detectMask(thresholdGreen(image, profile), profile, sequence, timestamp);
+    }
+
+    /**
+     * Runs the detection part of the algorithm on an image that has already
+     * been converted to HSV. This lets the tuning mode convert a frozen frame
+     * once and then only redo the stages after the conversion every time a
+     * threshold changes.
+     *
+     * @param hsv the image to process, in HSV
+     * @param sequence the sequence number of the frame
+     * @param timestamp the time the frame was captured, in
+     * {@link System#nanoTime()} units
+     * @return the targets found in the image
+     */
+    public Detection detectHsv(Mat hsv, long sequence, long timestamp) {
+        return detectHsv(hsv, profile, sequence, timestamp);
     }
 
-    public BufferedImage processImage(Mat image) {
+    /**
+     * Runs the detection part of the algorithm on an HSV image with a
+     * specific profile instead of the processor's profile. This is used to
+     * try out many profiles at once when searching for the best one.
+     *
+     * @param hsv the image to process, in HSV
+     * @param profile the thresholds and denoise settings to use
+     * @param sequence the sequence number of the frame
+     * @param timestamp the time the frame was captured, in
+     * {@link System#nanoTime()} units
+     * @return the targets found in the image
+     */
+    public Detection detectHsv(Mat hsv, CalibrationProfile profile, long sequence, long timestamp) {
+        if (canDetectPacked(profile)) {
+            packedMask.thresholdHsv(hsv, profile.getHThreshold(), profile.getSThreshold(), profile.getVThreshold());
+            return detectPacked(profile, sequence, timestamp);
+        }
+        return detectMask(threshold(hsv, profile), profile, sequence, timestamp);
+    }
 
-        boolean autonomousRunning = TargetTrackingCommunication.isAutonomousVisionRunning();
+    private final PackedMask packedMask = new PackedMask();
+    private final RunLengthBlobExtractor blobExtractor = new RunLengthBlobExtractor();
+    private final BlobTable blobTable = new BlobTable();
+    /**
+     * Whether the last mask was only made in the packed mask, so the threshold
+     * image has to be unpacked from it if anyone wants to see it.
+     */
+    private boolean thresholdImagePacked = false;
 
-        // Convert the image to HSV, threshold it and find contours
-        List<MatOfPoint> contours = findContours(threshold(convertToHsv(image)));
+    /**
+     * Checks whether everything after the color conversion can be done in
+     * Java on a {@link PackedMask}. The median and box blurs aren't done on
+     * packed masks, and skipping clean frames needs the 8-bit mask to fall
+     * back on.
+     */
+    private static boolean canDetectPacked(CalibrationProfile profile) {
+        if (profile.getLocatorMode() != LocatorMode.RUN_LENGTH || profile.isSkipCleanFrames()) {
+            return false;
+        }
+        switch (profile.getDenoiseMode()) {
+            case NONE:
+                return true;
+            case OPEN_CLOSE:
+                return profile.getBlurSize() <= PackedMask.MAX_KERNEL_SIZE;
+            default:
+                return profile.getBlurSize() <= 1;
+        }
+    }
 
-        // Array to hold blobs that possibly could be targets
-        ArrayList<Target> possibleTargets = new ArrayList<>();
+    /**
+     * Runs everything after the threshold on the packed mask.
+     */
+    private Detection detectPacked(CalibrationProfile profile, long sequence, long timestamp) {
+        if (profile.getDenoiseMode() == DenoiseMode.OPEN_CLOSE) {
+            packedMask.openClose(profile.getBlurSize());
+        }
+        thresholdImagePacked = true;
+        lastFrameDenoised = true;
+        List<Target> blobs = new ArrayList<>();
+        extractTargets(profile, blobs);
+        return selectTargets(blobs, profile, sequence, timestamp);
+    }
 
-        // Convert the contours to Targets
-        for (MatOfPoint contour : contours) {
-            possibleTargets.add(new Target(convexHull(contour)));
+    /**
+     * Finds the blobs in the packed mask and turns them into targets.
+     */
+    private void extractTargets(CalibrationProfile profile, List<Target> targets) {
+        blobExtractor.extract(packedMask, blobTable);
+        for (int i = 0; i < blobTable.size(); i++) {
+            targets.add(new Target(blobTable.getRect(i), blobTable.getArea(i), profile));
         }
+    }
+
+    /**
+     * Runs everything after the threshold.
+     */
+    private Detection detectMask(Mat mask, CalibrationProfile profile, long sequence, long timestamp) {
+        return selectTargets(denoiseAndFindTargets(mask, profile), profile, sequence, timestamp);
+    }
+
+    /**
+     * Picks the static and hot targets out of the blobs.
+     */
+    private Detection selectTargets(List<Target> blobs, CalibrationProfile profile, long sequence, long timestamp) {
+
+        // Valid targets that were found in the image
+        ArrayList<Detection.Candidate> candidates = new ArrayList<>();
 
         // Object to store the static target in
         Target staticTarget = null;
@@ -84,18 +384,12 @@ public class TargetTrackingProcessor {
         Target hotTarget = null;
         double maxHotScore = 0;
 
-        // Loop through all the possible targets
-        for (Target b : possibleTargets) {
+        // Loop through the possible targets
+        for (Target b : blobs) {
             // Check if the target is valid (ie. it exceeds all the minimum
             // values for the different tests
             if (b.isValid()) {
-                // Get the bounding rectangle for the target
-                Rectangle rect = b.getRect();
-                // Draw the bounding rectangle in red around all the targets
-                Core.rectangle(image,
-                        new Point(rect.x, rect.y),
-                        new Point(rect.getMaxX(), rect.getMaxY()),
-                        OTHER_TARGET_COLOR, 5);
+                candidates.add(new Detection.Candidate(b));
                 // Get the target's score
                 double score = b.getScore();
                 // If it is vertical (height > width) then it could be a static 
@@ -117,94 +411,143 @@ public class TargetTrackingProcessor {
             }
         }
 
+        Detection.Candidate staticCandidate = null;
+        Detection.Candidate hotCandidate = null;
         // If the algorithm found a suitable static target, try to form a target
         // pair.
         if (staticTarget != null) {
+            staticCandidate = new Detection.Candidate(staticTarget);
             // This object hold a pair of targets
-            TargetPair targets = new TargetPair(staticTarget, hotTarget);
-
-            // Draw a rectangle in green around the static target.
-            Rectangle staticRect = staticTarget.getRect();
-            Core.rectangle(image,
-                    new Point(staticRect.x, staticRect.y),
-                    new Point(staticRect.getMaxX(), staticRect.getMaxY()),
-                    STATIC_TARGET_COLOR, 5);
-
-            // If the algorithm found a hot target, process it
+            TargetPair targets = new TargetPair(staticTarget, hotTarget, profile);
             if (hotTarget != null && targets.isHot()) {
-                // Draw a rectangle in blue around the hot target.
-                Rectangle hotRect = hotTarget.getRect();
-                Core.rectangle(image,
-                        new Point(hotRect.x, hotRect.y),
-                        new Point(hotRect.getMaxX(), hotRect.getMaxY()),
-                        HOT_TARGET_COLOR, 5);
-                System.out.println("HOT");
-                // If the robot reports that its autonomous is running, then
-                // record that a hot goal was detected
-                if (autonomousRunning) {
-                    hotFrameCount++;
-                }
-            } else { // No hot goal was found
-                System.out.println("NOT HOT");
-
-            }
-            // If the robot's autonomous is running, record that the algorithm 
-            // has processed another frame.
-            if (autonomousRunning) {
-                totalFrames++;
+                hotCandidate = new Detection.Candidate(hotTarget);
             }
         }
 
-        if (autonomousRunning) {
-            // Filter out mistakes in the algorithm by making sure that the 
-            // algorithm has already processed a certain number of frames before
-            // reporting its findings to the robot.
-            if (totalFrames >= MIN_FRAMES) {
-                // Calulate the ratio of frames in which a hot goal was detected
-                // the total number of frames.
-                double hotFrameRatio = ((double) hotFrameCount) / ((double) totalFrames);
-
-                // If this ratio is greater than MIN_HOT_FRAME_RATIO, then the
-                // target is considered hot, if it is less than 
-                // MAX_HOT_FRAME_RATIO, then it is considered not hot.
-                if (hotFrameRatio >= MIN_HOT_FRAME_RATIO) {
-                    setTargetState(TargetTrackingCommunication.State.HOT);
-                } else if (hotFrameRatio <= MAX_HOT_FRAME_RATIO) {
-                    setTargetState(TargetTrackingCommunication.State.NOT_HOT);
-                } else {
-                    TargetTrackingCommunication.setState(TargetTrackingCommunication.State.UNKNOWN);
+        return new Detection(sequence, timestamp, candidates, staticCandidate, hotCandidate);
+    }
+
+    /**
+     * Finds every blob in an HSV image and turns it into a {@link Target},
+     * including the ones that aren't valid. This is the part of the algorithm
+     * that works on the image; everything after it only looks at the
+     * targets.
+     *
+     * @param hsv the image to process, in HSV
+     * @param profile the thresholds and denoise settings to use
+     * @return all of the blobs in the image
+     */
+    public List<Target> findTargets(Mat hsv, CalibrationProfile profile) {
+        return denoiseAndFindTargets(threshold(hsv, profile), profile);
+    }
+
+    /**
+     * Finds the blobs in a threshold mask, either by tracing their outlines,
+     * from the row and column sums of the mask, by tracing the outlines in
+     * only the boxes found from the sums, or from the runs in a packed copy
+     * of the mask.
+     */
+    private List<Target> findTargetsInMask(Mat mask, CalibrationProfile profile) {
+        List<Target> targets = new ArrayList<>();
+        switch (profile.getLocatorMode()) {
+            case CONTOURS:
+                for (MatOfPoint contour : findContours(mask)) {
+                    targets.add(new Target(convexHull(contour), profile));
                 }
-            }
-        } else {
-            init();
+                break;
+            case PROJECTION:
+                projectionLocator.locate(mask, profile, targets);
+                break;
+            case PROJECTION_FIRST:
+                // Every blob is completely inside one box, so this finds the
+                // same outlines as tracing the whole mask
+                locatorBoxes.clear();
+                projectionLocator.locateBoxes(mask, locatorBoxes);
+                for (Rectangle box : locatorBoxes) {
+                    for (MatOfPoint contour : findContours(mask, box)) {
+                        targets.add(new Target(convexHull(contour), profile));
+                    }
+                }
+                break;
+            case RUN_LENGTH:
+                packedMask.pack(mask);
+                extractTargets(profile, targets);
+                break;
         }
-
-        BufferedImage outImg = matToBufferedImage(image);
-        return outImg;
+        return targets;
     }
 
+    private final ProjectionLocator projectionLocator = new ProjectionLocator();
+    private final List<Rectangle> locatorBoxes = new ArrayList<>();
+
     public void setTargetState(TargetTrackingCommunication.State state) {
-        TargetTrackingCommunication.setState(state);
-        TargetTrackingCommunication.setAutonomousVisionRunning(false);
-        TargetTrackingCommunication.setCameraEnabled(false);
+        setTargetState(communication, state);
+    }
+
+    private void setTargetState(TargetTrackingCommunication communication, TargetTrackingCommunication.State state) {
+        communication.setState(state);
+        communication.setAutonomousVisionRunning(false);
+        communication.setCameraEnabled(false);
         System.out.println("Told robot: " + state);
         init();
     }
 
-    public BufferedImage matToBufferedImage(Mat m) {
-        MatOfByte matOfByte = new MatOfByte();
+    /**
+     * Converts a BGR image to a {@link BufferedImage} for display. The pixels
+     * are copied straight into the image's buffer, which is a lot faster than
+     * encoding and decoding a JPEG like this used to do.
+     *
+     * @param m the 8-bit, 3 channel BGR image to convert
+     * @return the converted image
+     */
+    public static BufferedImage matToBufferedImage(Mat m) {
+        BufferedImage image = new BufferedImage(m.width(), m.height(), BufferedImage.TYPE_3BYTE_BGR);
+        m.get(0, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
 
-        Highgui.imencode(".jpg", m, matOfByte);
+    /**
+     * Converts a {@link BufferedImage} created by
+     * {@link #matToBufferedImage(org.opencv.core.Mat)} back to a BGR image.
+     *
+     * @param image the 3 byte BGR image to convert
+     * @return the converted image
+     */
+    public static Mat bufferedImageToMat(BufferedImage image) {
+        Mat m = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC3);
+        m.put(0, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        return m;
+    }
 
-        byte[] byteArray = matOfByte.toArray();
-        BufferedImage bufImage = null;
+    /**
+     * The colors used to draw the threshold mask. Everything that was
+     * thresholded out is transparent and everything that passed is a
+     * translucent magenta, so the mask can be drawn right over the frame.
+     */
+    private static final IndexColorModel MASK_COLOR_MODEL;
+
+    static {
+        byte[] r = new byte[256];
+        byte[] g = new byte[256];
+        byte[] b = new byte[256];
+        byte[] a = new byte[256];
+        r[255] = (byte) 255;
+        b[255] = (byte) 255;
+        a[255] = (byte) 128;
+        MASK_COLOR_MODEL = new IndexColorModel(8, 256, r, g, b, a);
+    }
 
-        try {
-            InputStream in = new ByteArrayInputStream(byteArray);
-            bufImage = ImageIO.read(in);
-        } catch (IOException e) {
-        }
-        return bufImage;
+    /**
+     * Converts a threshold mask to a translucent {@link BufferedImage} that
+     * can be drawn over the frame it came from.
+     *
+     * @param mask the 8-bit, single channel mask to convert
+     * @return the converted mask
+     */
+    public static BufferedImage maskToBufferedImage(Mat mask) {
+        BufferedImage image = new BufferedImage(mask.width(), mask.height(), BufferedImage.TYPE_BYTE_INDEXED, MASK_COLOR_MODEL);
+        mask.get(0, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        return image;
     }
 
     private final Mat hsvImage = new Mat(IMAGE_SIZE, CvType.CV_8UC3);
@@ -216,12 +559,143 @@ public class TargetTrackingProcessor {
 
     private final Mat thresholdImage = new Mat(IMAGE_SIZE, CvType.CV_8UC1);
 
-    private Mat threshold(Mat image) {
-        Core.inRange(image, MIN_THRESHOLD, MAX_THRESHOLD, thresholdImage);
-        Imgproc.medianBlur(thresholdImage, thresholdImage, 13);
+    /**
+     * Gets the threshold mask of the last frame that was processed. This is
+     * overwritten by the next frame, so it should only be used on the thread
+     * that runs the processor.
+     *
+     * @return the threshold mask
+     */
+    public Mat getThresholdImage() {
+        if (thresholdImagePacked) {
+            packedMask.unpack(thresholdImage);
+            thresholdImagePacked = false;
+        }
+        return thresholdImage;
+    }
+
+    private Mat threshold(Mat image, CalibrationProfile profile) {
+        Core.inRange(image, profile.getMinScalar(), profile.getMaxScalar(), thresholdImage);
+        thresholdImagePacked = false;
+        return thresholdImage;
+    }
+
+    private final Mat greenImage = new Mat(IMAGE_SIZE, CvType.CV_8UC1);
+    private final Mat redImage = new Mat(IMAGE_SIZE, CvType.CV_8UC1);
+    private final Mat blueImage = new Mat(IMAGE_SIZE, CvType.CV_8UC1);
+
+    /**
+     * Thresholds a BGR image using only its green channel, or how much greener
+     * than red or blue each pixel is. Each step is a single pass over one
+     * channel, so this is a lot cheaper than converting to HSV and
+     * thresholding three channels.
+     */
+    private Mat thresholdGreen(Mat image, CalibrationProfile profile) {
+        Core.extractChannel(image, greenImage, 1);
+        if (profile.getThresholdMode() == ThresholdMode.GREEN_DIFFERENCE) {
+            Core.extractChannel(image, blueImage, 0);
+            Core.extractChannel(image, redImage, 2);
+            Core.max(blueImage, redImage, redImage);
+            // This saturates at 0, so pixels that aren't green at all are 0
+            Core.subtract(greenImage, redImage, greenImage);
+        }
+        Core.inRange(greenImage, profile.getGreenMinScalar(), profile.getGreenMaxScalar(), thresholdImage);
+        thresholdImagePacked = false;
         return thresholdImage;
     }
 
+    /**
+     * A mask with no more than this many specks (blobs smaller than the
+     * minimum area) is clean enough to use without denoising.
+     */
+    public static final int CLEAN_MAX_SPECKS = 2;
+    /**
+     * Once a frame needed to be denoised, this many more are denoised before
+     * checking whether it can be skipped again.
+     */
+    public static final int NOISY_FRAMES = 15;
+
+    private int denoiseFramesLeft = 0;
+    private boolean lastFrameDenoised = true;
+    private Mat denoiseKernel;
+    private int denoiseKernelSize;
+
+    /**
+     * Cleans up a threshold mask and finds the blobs in it. If the profile
+     * says to skip clean frames, the blobs are first found in the raw mask,
+     * and it is only cleaned up (and the blobs found again) if it has too
+     * many specks. After a noisy mask, the next few are cleaned up right
+     * away, since the noise probably hasn't gone anywhere.
+     */
+    private List<Target> denoiseAndFindTargets(Mat mask, CalibrationProfile profile) {
+        if (profile.isSkipCleanFrames() && denoiseFramesLeft == 0) {
+            List<Target> blobs = findTargetsInMask(mask, profile);
+            int specks = 0;
+            double minArea = profile.getLimit(CalibrationProfile.MIN_AREA);
+            for (Target t : blobs) {
+                // Use the same area the target checks, so a thin diagonal
+                // speck with a big bounding box still counts
+                if (t.getArea() < minArea) {
+                    specks++;
+                }
+            }
+            if (specks <= CLEAN_MAX_SPECKS) {
+                lastFrameDenoised = false;
+                return blobs;
+            }
+            denoiseFramesLeft = NOISY_FRAMES;
+        } else if (denoiseFramesLeft > 0) {
+            denoiseFramesLeft--;
+        }
+        denoise(mask, profile);
+        lastFrameDenoised = true;
+        return findTargetsInMask(mask, profile);
+    }
+
+    /**
+     * Cleans up a threshold mask in place however the profile says to.
+     *
+     * @param mask the mask to clean up
+     * @param profile the profile with the denoise mode and size
+     */
+    public void denoise(Mat mask, CalibrationProfile profile) {
+        int size = profile.getBlurSize();
+        if (size <= 1) {
+            return;
+        }
+        switch (profile.getDenoiseMode()) {
+            case MEDIAN:
+                Imgproc.medianBlur(mask, mask, size);
+                break;
+            case BOX:
+                // On a mask, the average is over half exactly when most of
+                // the pixels passed, which is what the median would keep
+                Imgproc.blur(mask, mask, profile.getDenoiseSize());
+                Imgproc.threshold(mask, mask, 127, 255, Imgproc.THRESH_BINARY);
+                break;
+            case OPEN_CLOSE:
+                if (denoiseKernel == null || denoiseKernelSize != size) {
+                    denoiseKernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, profile.getDenoiseSize());
+                    denoiseKernelSize = size;
+                }
+                Imgproc.morphologyEx(mask, mask, Imgproc.MORPH_OPEN, denoiseKernel);
+                Imgproc.morphologyEx(mask, mask, Imgproc.MORPH_CLOSE, denoiseKernel);
+                break;
+            case NONE:
+                break;
+        }
+    }
+
+    /**
+     * Checks whether the last mask was cleaned up, which is only false when
+     * it was clean enough to skip.
+     *
+     * @return true if the last mask was denoised
+     */
+    public boolean isLastFrameDenoised() {
+        return lastFrameDenoised;
+    }
+
     private final Mat contoursImage = new Mat(IMAGE_SIZE, CvType.CV_8UC1);
 
     private List<MatOfPoint> findContours(Mat image) {
@@ -232,6 +706,48 @@ public class TargetTrackingProcessor {
         return contours;
     }
 
+    /**
+     * Finds the contours in part of an image. The points are in the
+     * coordinates of the whole image.
+     * <p>
+     * findContours() clears the outside pixels of the image it is given, and
+     * the boxes are tight around the blobs, so the box is copied with an
+     * empty 1 pixel border around it. Otherwise every blob would lose its
+     * outside edge. The sides of the box that are on the edge of the whole
+     * image are still cleared, the same as when the whole mask is traced.
+     */
+    private List<MatOfPoint> findContours(Mat image, Rectangle box) {
+        Mat hierarchy = new Mat();
+        ArrayList<MatOfPoint> contours = new ArrayList<>();
+        Mat region = image.submat(new Rect(box.x, box.y, box.width, box.height));
+        Imgproc.copyMakeBorder(region, contoursRegion, 1, 1, 1, 1, Imgproc.BORDER_CONSTANT, BLACK);
+        region.release();
+        if (box.x == 0) {
+            clear(contoursRegion.col(1));
+        }
+        if (box.x + box.width == image.cols()) {
+            clear(contoursRegion.col(box.width));
+        }
+        if (box.y == 0) {
+            clear(contoursRegion.row(1));
+        }
+        if (box.y + box.height == image.rows()) {
+            clear(contoursRegion.row(box.height));
+        }
+        Imgproc.findContours(contoursRegion, contours, hierarchy, Imgproc.RETR_EXTERNAL,
+                Imgproc.CHAIN_APPROX_SIMPLE, new Point(box.x - 1, box.y - 1));
+        return contours;
+    }
+
+    private static final Scalar BLACK = new Scalar(0);
+
+    private static void clear(Mat part) {
+        part.setTo(BLACK);
+        part.release();
+    }
+
+    private final Mat contoursRegion = new Mat();
+
     private Polygon convexHull(MatOfPoint contour) {
         MatOfInt hullMatrix = new MatOfInt();
         Imgproc.convexHull(contour, hullMatrix); //perform convex hull, gap filler
@@ -246,29 +762,184 @@ public class TargetTrackingProcessor {
     }
 
     public void setHThreshold(Range threshold) {
-        MIN_THRESHOLD.val[0] = threshold.getMin();
-        MAX_THRESHOLD.val[0] = threshold.getMax();
+        setThreshold(0, threshold);
     }
 
     public void setSThreshold(Range threshold) {
-        MIN_THRESHOLD.val[1] = threshold.getMin();
-        MAX_THRESHOLD.val[1] = threshold.getMax();
+        setThreshold(1, threshold);
     }
 
     public void setVThreshold(Range threshold) {
-        MIN_THRESHOLD.val[2] = threshold.getMin();
-        MAX_THRESHOLD.val[2] = threshold.getMax();
+        setThreshold(2, threshold);
+    }
+
+    /**
+     * Sets all three thresholds at once, so no frame is processed with only
+     * some of them changed.
+     *
+     * @param h the hue threshold
+     * @param s the saturation threshold
+     * @param v the value threshold
+     */
+    public void setThresholds(Range h, Range s, Range v) {
+        synchronized (profileLock) {
+            profile = profile.withThresholds(h, s, v);
+        }
+    }
+
+    private void setThreshold(int channel, Range threshold) {
+        synchronized (profileLock) {
+            profile = profile.withThreshold(channel, threshold);
+        }
+    }
+
+    public void setDenoiseMode(DenoiseMode mode) {
+        synchronized (profileLock) {
+            profile = profile.withDenoiseMode(mode);
+        }
+    }
+
+    public void setSkipCleanFrames(boolean skipCleanFrames) {
+        synchronized (profileLock) {
+            profile = profile.withSkipCleanFrames(skipCleanFrames);
+        }
+    }
+
+    public void setLocatorMode(LocatorMode mode) {
+        synchronized (profileLock) {
+            profile = profile.withLocatorMode(mode);
+        }
+    }
+
+    public void setThresholdMode(ThresholdMode mode) {
+        synchronized (profileLock) {
+            profile = profile.withThresholdMode(mode);
+        }
+    }
+
+    public void setGreenThreshold(Range threshold) {
+        synchronized (profileLock) {
+            profile = profile.withGreenThreshold(threshold);
+        }
+    }
+
+    /**
+     * Sets the size of the filter that cleans up the threshold mask.
+     *
+     * @param blurSize the size, which must be odd for the median blur, or 1
+     * or less to turn off the filter
+     */
+    public void setBlurSize(int blurSize) {
+        synchronized (profileLock) {
+            profile = profile.withBlurSize(blurSize);
+        }
+    }
+
+    /**
+     * Sets one of the {@link Target} or {@link TargetPair} limits.
+     *
+     * @param limit the index of the limit, such as
+     * {@link CalibrationProfile#MIN_AREA}
+     * @param value the new value
+     */
+    public void setLimit(int limit, double value) {
+        synchronized (profileLock) {
+            profile = profile.withLimit(limit, value);
+        }
+    }
+
+    /**
+     * Sets the resolution to ask the camera for.
+     *
+     * @param width the width, or 0 to pick one based on the processing size
+     * @param height the height, or 0 to pick one based on the processing size
+     */
+    public void setStreamResolution(int width, int height) {
+        synchronized (profileLock) {
+            profile = profile.withStreamResolution(width, height);
+        }
+    }
+
+    /**
+     * Turns the automatic V threshold on or off. When it is turned on, the
+     * brightness of the tape over the next few frames becomes the reference
+     * that the threshold follows, so it should be turned on when the current
+     * thresholds work.
+     *
+     * @param enabled whether to compensate for changes in the lighting
+     */
+    public void setExposureCompensation(boolean enabled) {
+        if (enabled && !exposureCompensation) {
+            exposureCompensationReset = true;
+        }
+        exposureCompensation = enabled;
+    }
+
+    public boolean isExposureCompensation() {
+        return exposureCompensation;
+    }
+
+    public ExposureCompensator getExposureCompensator() {
+        return exposureCompensator;
+    }
+
+    /**
+     * Sets the profiles that the robot can switch between by name.
+     *
+     * @param library the profiles, or null if there aren't any
+     */
+    public void setProfileLibrary(ProfileLibrary library) {
+        profileLibrary = library;
+    }
+
+    public ProfileLibrary getProfileLibrary() {
+        return profileLibrary;
+    }
+
+    /**
+     * Switches this processor to a named profile from the library. The
+     * profile is ready to use as soon as it is loaded, so this only replaces
+     * a reference and is safe to do in the middle of a match.
+     *
+     * @param name the name of the profile
+     * @return the profile, or null if there is no profile with that name
+     */
+    public CalibrationProfile switchProfile(String name) {
+        ProfileLibrary library = profileLibrary;
+        CalibrationProfile p = library != null ? library.get(name) : null;
+        if (p == null) {
+            System.err.println("Unknown calibration profile: " + name);
+            return null;
+        }
+        setProfile(p);
+        System.out.println("Switched to calibration profile: " + p);
+        return p;
+    }
+
+    /**
+     * Switches this processor to a different profile.
+     *
+     * @param newProfile the profile to use
+     */
+    public void setProfile(CalibrationProfile newProfile) {
+        synchronized (profileLock) {
+            profile = newProfile;
+        }
+    }
+
+    public CalibrationProfile getProfile() {
+        return profile;
     }
 
     public Range getHThreshold() {
-        return new Range((int) MIN_THRESHOLD.val[0], (int) MAX_THRESHOLD.val[0]);
+        return profile.getHThreshold();
     }
 
     public Range getSThreshold() {
-        return new Range((int) MIN_THRESHOLD.val[1], (int) MAX_THRESHOLD.val[1]);
+        return profile.getSThreshold();
     }
 
     public Range getVThreshold() {
-        return new Range((int) MIN_THRESHOLD.val[2], (int) MAX_THRESHOLD.val[2]);
+        return profile.getVThreshold();
     }
 }
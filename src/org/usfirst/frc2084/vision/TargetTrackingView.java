@@ -0,0 +1,142 @@
+package org.usfirst.frc2084.vision;
+
+import edu.wpi.first.smartdashboard.gui.DashboardPrefs;
+import edu.wpi.first.smartdashboard.gui.StaticWidget;
+import edu.wpi.first.smartdashboard.properties.BooleanProperty;
+import edu.wpi.first.smartdashboard.properties.IPAddressProperty;
+import edu.wpi.first.smartdashboard.properties.MultiProperty;
+import edu.wpi.first.smartdashboard.properties.Property;
+import edu.wpi.first.smartdashboard.properties.StringProperty;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import static org.usfirst.frc2084.vision.TargetTrackingExtension.IMAGE_SIZE;
+
+/**
+ * Shows a camera that a {@link TargetTrackingExtension} is processing, so it
+ * can be on the dashboard more than once (for example a big view and a small
+ * one). This only displays the frames. It doesn't have any thresholds, black
+ * box or tuning, so it can't change anything the main widget set. As long as
+ * the camera properties match the main widget's, it joins the same
+ * {@link VisionEngine}, so the stream is only read and processed once.
+ * <p>
+ * If a view is the only widget on a camera, the camera is processed with the
+ * default settings.
+ *
+ * @author Ben Wolsieffer
+ */
+public class TargetTrackingView extends StaticWidget {
+
+    /**
+     * The {@code NAME} field is used by the SmartDashboard to give the
+     * extension a name in the menus.
+     */
+    public static final String NAME = "Team 2084 Hot Target Tracker View";
+
+    /**
+     * The connection to the robot, which is only used if this view starts the
+     * engine.
+     */
+    private final TargetTrackingCommunication communication = NetworkTableCommunication.getInstance();
+
+    private VisionEngine engine;
+
+    private final PreviewRenderer previewRenderer = new PreviewRenderer(this);
+
+    /**
+     * Team number.
+     */
+    private final int team = DashboardPrefs.getInstance().team.getValue();
+
+    // These have to match the main widget's to share its engine
+    public final IPAddressProperty ipProperty = new IPAddressProperty(this, "Camera IP Address", new int[]{10, (team / 100), (team % 100), 11});
+    public final MultiProperty captureBackend = new MultiProperty(this, "Capture Backend");
+    public final BooleanProperty negotiateStream = new BooleanProperty(this, "Negotiate Camera Stream", false);
+    public final StringProperty sourceOverride = new StringProperty(this, "Frame Source (blank to use camera)", "");
+    public final BooleanProperty showMask = new BooleanProperty(this, "Show Threshold Mask", false);
+
+    {
+        TargetTrackingExtension.addCaptureBackends(captureBackend);
+    }
+
+    /**
+     * Receives the processed frames from the engine.
+     */
+    private final ProcessingThread.FrameListener frameListener = new ProcessingThread.FrameListener() {
+
+        @Override
+        public boolean isShowingFrames() {
+            return isShowing();
+        }
+
+        @Override
+        public boolean isShowingMask() {
+            return showMask.getValue();
+        }
+
+        @Override
+        public void frameReady(BufferedImage image, BufferedImage mask, Detection detection) {
+            previewRenderer.publish(new PreviewRenderer.Frame(image, mask, detection));
+        }
+    };
+
+    @Override
+    public void init() {
+        setPreferredSize(new Dimension((int) IMAGE_SIZE.width / 2, (int) IMAGE_SIZE.height / 2));
+        setEngine(VisionEngine.acquire(getSourceDescription(), communication));
+        previewRenderer.start();
+        revalidate();
+        repaint();
+    }
+
+    @Override
+    public void propertyChanged(Property property) {
+        // Saved values are loaded before init() is called
+        if (engine == null) {
+            return;
+        }
+        if (property == ipProperty || property == captureBackend || property == sourceOverride
+                || property == negotiateStream) {
+            VisionEngine oldEngine = engine;
+            setEngine(VisionEngine.acquire(getSourceDescription(), communication));
+            oldEngine.release();
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        engine.removeFrameListener(frameListener);
+        engine.release();
+        previewRenderer.dispose();
+        super.disconnect();
+    }
+
+    private String getSourceDescription() {
+        return TargetTrackingExtension.getSourceDescription(sourceOverride, captureBackend, ipProperty, negotiateStream);
+    }
+
+    private void setEngine(VisionEngine newEngine) {
+        if (engine != null) {
+            engine.removeFrameListener(frameListener);
+        }
+        engine = newEngine;
+        engine.addFrameListener(frameListener);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2d = (Graphics2D) g;
+        if (engine != null && engine.isConnected()
+                && previewRenderer.paint(g2d, getBounds().width, getBounds().height)) {
+            g2d.setColor(Color.WHITE);
+            g2d.drawString("FPS: " + engine.getFPS(), 10, 15);
+        } else {
+            g2d.setColor(Color.PINK);
+            g2d.fillRect(0, 0, getBounds().width, getBounds().height);
+            g2d.setColor(Color.BLACK);
+            g2d.drawString("NO CONNECTION", 10, 15);
+        }
+    }
+}
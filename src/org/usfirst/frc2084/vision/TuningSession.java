@@ -0,0 +1,168 @@
+package org.usfirst.frc2084.vision;
+
+import java.awt.image.BufferedImage;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Runs the vision algorithm over and over on a single frozen frame, to make
+ * tuning the thresholds easier. With a live stream, each change only showed
+ * up on the next frame and the picture kept moving, so it was hard to tell
+ * what the change actually did.
+ * <p>
+ * The frame is converted to HSV once when the session starts, and every time
+ * something changes only the stages after that (threshold, blur, contours and
+ * scoring) are run again. The green threshold modes don't use HSV, so they
+ * run on the original frame instead. This happens on a separate thread so
+ * the UI doesn't freeze. If several changes come in while it is running
+ * (like when dragging a slider), they are combined into one more run, so it
+ * never falls behind. The results, including the threshold mask, go to the
+ * same {@link PreviewRenderer} as the live frames.
+ *
+ * @author Ben Wolsieffer
+ */
+public class TuningSession {
+
+    private final BufferedImage image;
+    private final Mat bgr;
+    private final Mat hsv = new Mat();
+    private final PreviewRenderer renderer;
+
+    /**
+     * This processor is only used for detection, so it never tells the robot
+     * anything.
+     */
+    private final TargetTrackingProcessor processor = new TargetTrackingProcessor();
+    /**
+     * The live processor, whose profile is used for every run so changes to
+     * it show up on the frozen frame.
+     */
+    private final TargetTrackingProcessor liveProcessor;
+    private final Thread thread;
+
+    // Guarded by this
+    private boolean dirty = true;
+    private boolean running = true;
+
+    private volatile double runTime = -1;
+    private volatile Detection lastDetection;
+
+    /**
+     * Freezes a frame and starts tuning on it.
+     *
+     * @param image the frame to freeze, as created by
+     * {@link TargetTrackingProcessor#matToBufferedImage(org.opencv.core.Mat)}
+     * @param renderer the renderer to draw the results with
+     * @param liveProcessor the processor whose thresholds and limits are
+     * being tuned
+     */
+    public TuningSession(BufferedImage image, PreviewRenderer renderer, TargetTrackingProcessor liveProcessor) {
+        this.image = image;
+        this.renderer = renderer;
+        this.liveProcessor = liveProcessor;
+        bgr = TargetTrackingProcessor.bufferedImageToMat(image);
+        Imgproc.cvtColor(bgr, hsv, Imgproc.COLOR_BGR2HSV);
+
+        thread = new Thread("Target Tracker Tuning Thread") {
+
+            @Override
+            public void run() {
+                runLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Tells the session that a threshold or limit changed and the frame needs
+     * to be processed again. This returns immediately.
+     */
+    public synchronized void update() {
+        dirty = true;
+        notifyAll();
+    }
+
+    private void runLoop() {
+        long sequence = 0;
+        while (true) {
+            synchronized (this) {
+                while (!dirty && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    // Released while holding the lock so sample() can't be
+                    // reading them
+                    hsv.release();
+                    bgr.release();
+                    return;
+                }
+                dirty = false;
+            }
+            long start = System.nanoTime();
+            CalibrationProfile profile = liveProcessor.getProfile();
+            Detection detection = profile.getThresholdMode() == CalibrationProfile.ThresholdMode.HSV
+                    ? processor.detectHsv(hsv, profile, sequence++, start)
+                    : processor.detect(bgr, profile, sequence++, start);
+            BufferedImage mask = TargetTrackingProcessor.maskToBufferedImage(processor.getThresholdImage());
+            runTime = (System.nanoTime() - start) / 1e6;
+            lastDetection = detection;
+            renderer.publish(new PreviewRenderer.Frame(image, mask, detection));
+        }
+    }
+
+    /**
+     * Builds a histogram of part of the frozen frame, so thresholds can be
+     * suggested from the same pixels that are being tuned on. The HSV frame
+     * is already there, so this is quick enough to call on the UI thread.
+     *
+     * @param region the part of the frame to sample
+     * @return the histogram, or null if the region is outside of the frame or
+     * the session has stopped
+     */
+    public synchronized HsvHistogram sample(Rect region) {
+        if (!running) {
+            return null;
+        }
+        Rect r = RegionSampler.clip(region, hsv);
+        if (r == null) {
+            return null;
+        }
+        HsvHistogram histogram = new HsvHistogram();
+        Mat roi = hsv.submat(r);
+        histogram.add(roi);
+        roi.release();
+        return histogram;
+    }
+
+    /**
+     * Gets the time it took to process the frame the last time.
+     *
+     * @return the processing time in milliseconds, or -1 if it hasn't run yet
+     */
+    public double getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * Gets the result of the last run.
+     *
+     * @return the targets found in the frame, or null if it hasn't run yet
+     */
+    public Detection getLastDetection() {
+        return lastDetection;
+    }
+
+    /**
+     * Stops the session. The frame is not processed again after this.
+     */
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+}
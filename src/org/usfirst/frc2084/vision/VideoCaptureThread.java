@@ -1,8 +1,14 @@
 package org.usfirst.frc2084.vision;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import org.opencv.core.Mat;
 import org.opencv.highgui.VideoCapture;
+import org.usfirst.frc2084.vision.capture.FrameSource;
+import org.usfirst.frc2084.vision.capture.FrameSources;
 
 /**
  * This class creates a thread which constantly captures frames from the Axis
@@ -10,77 +16,378 @@ import org.opencv.highgui.VideoCapture;
  * processing because new frames become available much faster than they can be
  * processed, and the frames will begin to backup if they are not constantly
  * read.
+ * <p>
+ * The frames come from a {@link FrameSource}, which is OpenCV's
+ * {@link VideoCapture} unless something else is set with
+ * {@link #setSource(String)}. Each reader reads into two images of its own,
+ * taking turns, and the shared image is pointed at each one once it is
+ * complete (which doesn't copy anything), so the processing thread is never
+ * stuck waiting for the camera.
+ * <p>
+ * Each connection is read by its own reader thread, which is watched by a
+ * supervisor thread. {@link VideoCapture#read(Mat)} blocks forever when the
+ * camera disconnects, and this used to be worked around with
+ * {@link Thread#stop()}. Now if a reader doesn't get its first frame in time,
+ * or frames stop arriving, the supervisor abandons it and starts a new one
+ * with a fresh source. An abandoned reader can't write into the image any more,
+ * and its source is told to {@link FrameSource#abort() abort} so it exits as
+ * soon as its read returns. Sources that can't be aborted are eventually
+ * given up on, so a stuck read can't stop the reconnects. Reconnects are
+ * spaced out with a randomized exponential backoff so a missing camera
+ * doesn't get hammered.
  *
  * @author Ben Wolsieffer
  */
 public class VideoCaptureThread {
 
     /**
-     * OpenCV video capture that is used for getting the video. I used this
-     * instead of the pure Java method that the normal SmartDashboard video
-     * viewer uses because it eliminates a conversion from {@link BufferedImage}
-     * to {@link Mat}.
+     * How often the supervisor checks on the reader, in milliseconds.
      */
-    private final VideoCapture vcap = new VideoCapture();
+    private static final long SUPERVISOR_PERIOD = 100;
     /**
-     * The Java {@link Thread} that captures the video.
+     * How long a new connection has to produce its first frame, in
+     * milliseconds.
      */
-    private CaptureThread captureThread = new CaptureThread();
+    private static final long CONNECT_TIMEOUT = 5000;
+    /**
+     * How long frames can stop arriving before the connection is considered
+     * stalled, in milliseconds. The camera sends at least 10 fps, so this is
+     * a lot of missed frames.
+     */
+    private static final long STALL_TIMEOUT = 2000;
+    /**
+     * The delay before the first reconnect attempt, in milliseconds. It
+     * doubles for each failed attempt, up to {@link #MAX_BACKOFF}.
+     */
+    private static final long MIN_BACKOFF = 250;
+    private static final long MAX_BACKOFF = 8000;
+    /**
+     * The most abandoned readers that can still be stuck before the
+     * supervisor waits for them before making new ones. Each one is a thread
+     * and whatever native resources its source holds.
+     */
+    private static final int MAX_ABANDONED_READERS = 4;
+    /**
+     * How long to wait for an abandoned reader to exit before giving up on it,
+     * in milliseconds. After that it is just left alone. It's a daemon
+     * thread, so it doesn't keep the SmartDashboard from exiting, but if it is
+     * stuck in {@link VideoCapture#read(Mat)} there's no way to get it out.
+     */
+    private static final long ABANDONED_TIMEOUT = 30000;
 
     /**
-     * The camera's IP address.
+     * The description of where the frames come from, see
+     * {@link FrameSources}. By default this is OpenCV's video capture. I used
+     * this instead of the pure Java method that the normal SmartDashboard
+     * video viewer uses because it eliminates a conversion from
+     * {@link BufferedImage} to {@link Mat}.
      */
-    private String ip;
-    private boolean ipChanged = false;
+    private volatile String source;
     /**
-     * Flag that is set if the camera's IP address is changed.
+     * Flag that is set if the source is changed.
      */
-    private boolean running = false;
+    private volatile boolean sourceChanged = false;
+    private volatile boolean running = false;
 
     /**
      * The image to write read the camera data into.
      */
     private final Mat image;
 
-    private class CaptureThread extends Thread {
+    /**
+     * The sequence number of the frame currently in {@link #image}.
+     */
+    private long frameSequence = -1;
+    /**
+     * The time at which the frame currently in {@link #image} was read.
+     */
+    private long frameTimestamp = 0;
+
+    private volatile SupervisorThread supervisor;
+    /**
+     * The reader that is currently allowed to write frames.
+     */
+    private volatile ReaderThread reader;
+    private final Random random = new Random();
 
-        public CaptureThread() {
+    // Metrics
+    private volatile int reconnectCount = 0;
+    private volatile int stallCount = 0;
+    private volatile long totalStallTime = 0;
+    private volatile long lastTimeToFirstFrame = -1;
+    private volatile int stuckReaderCount = 0;
+    private volatile int lostReaderCount = 0;
+
+    /**
+     * Reads frames from one connection to the source. Once it is abandoned
+     * it stops writing frames and closes its source as soon as it can.
+     */
+    private class ReaderThread extends Thread {
+
+        final FrameSource frameSource;
+        final long startTime = System.nanoTime();
+        volatile long firstFrameTime = 0;
+        volatile long lastFrameTime = 0;
+        /**
+         * Whether the time to first frame of this reader has been recorded,
+         * which is only used by the supervisor.
+         */
+        boolean firstFrameCounted = false;
+        /**
+         * When this reader was abandoned, which is only used by the
+         * supervisor.
+         */
+        long abandonTime = 0;
+        /**
+         * The images this reader reads frames into, taking turns.
+         */
+        private Mat frame = new Mat();
+        private Mat nextFrame = new Mat();
+        // These are only changed while synchronized on the image, so no frame
+        // is written after the reader is abandoned.
+        volatile boolean finished = false;
+        volatile boolean abandoned = false;
+
+        ReaderThread(FrameSource frameSource) {
             super("Target Tracker Capture Thread");
+            this.frameSource = frameSource;
+            setDaemon(true);
         }
 
-        long lastRepaint = 0;
-
         @Override
-        @SuppressWarnings({"SleepWhileInLoop", "CallToPrintStackTrace", "ConfusingArrayVararg", "PrimitiveArrayArgumentToVariableArgMethod"})
+        @SuppressWarnings("SleepWhileInLoop")
         public void run() {
-            while (running) {
-                System.out.println("Connecting to camera at: \"" + ip + "\"...");
-                ipChanged = false;
-                if (vcap.open("http://" + ip + "/mjpg/video.mjpg")) {
-                    System.out.println("Connected to camera.");
-                    // Capture the image until the thread is stopped or the ip is changed.
-                    while (running && !ipChanged) {
-                        // Read the image. This needs to be synchronized to
-                        // prevent data corruption by the processing thread.
-                        synchronized (image) {
-                            if (!vcap.read(image)) {
-                                // If the read fails (in thoery when the camera 
-                                // is disconnected), close the video capture. In
-                                // reality vcap.read() just blocks when the
-                                // camera is disconnected.
-                                vcap.release();
-                                System.out.println("Disconnected from camera.");
-                                break;
-                            }
-                        }
-                        try {
-                            Thread.sleep(1);
-                        } catch (InterruptedException ex) {
+            try {
+                System.out.println("Connecting to " + frameSource + "...");
+                if (!frameSource.open()) {
+                    System.out.println("Could not connect to " + frameSource + ".");
+                    return;
+                }
+                System.out.println("Connected to " + frameSource + ".");
+                while (!abandoned) {
+                    if (!frameSource.read(frame)) {
+                        System.out.println("Disconnected from " + frameSource + ".");
+                        return;
+                    }
+                    // Point the image at the frame. This needs to be
+                    // synchronized to prevent data corruption by the
+                    // processing thread.
+                    synchronized (image) {
+                        if (abandoned) {
+                            return;
                         }
+                        frame.assignTo(image);
+                        frameSequence++;
+                        frameTimestamp = System.nanoTime();
+                    }
+                    // The image doesn't use the other one any more, so the
+                    // next frame can be read into it
+                    Mat tmp = frame;
+                    frame = nextFrame;
+                    nextFrame = tmp;
+                    if (firstFrameTime == 0) {
+                        firstFrameTime = frameTimestamp;
                     }
+                    lastFrameTime = frameTimestamp;
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            } finally {
+                frameSource.close();
+                // This only lets go of them; the data the image uses is kept
+                // until the image is pointed somewhere else
+                frame.release();
+                nextFrame.release();
+                synchronized (image) {
+                    finished = true;
+                }
+            }
+        }
+
+        /**
+         * Stops this reader from writing any more frames, and tries to get it
+         * out of whatever it is stuck in.
+         */
+        void abandon() {
+            synchronized (image) {
+                if (abandoned) {
+                    return;
                 }
-                vcap.release();
+                abandoned = true;
             }
+            // Wakes it up if it's just sleeping between frames
+            interrupt();
+            frameSource.abort();
+        }
+    }
+
+    /**
+     * Starts readers, watches them for stalls and replaces them when they fail.
+     */
+    private class SupervisorThread extends Thread {
+
+        /**
+         * The number of reconnects since the last connection that got a frame.
+         */
+        private int failedAttempts = 0;
+        /**
+         * When the next reader should be started.
+         */
+        private long nextAttemptTime = 0;
+        /**
+         * When frames stopped arriving, or 0 if they haven't.
+         */
+        private long stallStartTime = 0;
+        private boolean connectedBefore = false;
+        private boolean waitingForAbandoned = false;
+        /**
+         * The abandoned readers that haven't exited yet.
+         */
+        private final List<ReaderThread> abandonedReaders = new ArrayList<>();
+
+        SupervisorThread() {
+            super("Target Tracker Capture Supervisor");
+            setDaemon(true);
+        }
+
+        @Override
+        @SuppressWarnings("SleepWhileInLoop")
+        public void run() {
+            // A new supervisor is started if the capture is restarted before
+            // this one notices it was stopped
+            while (running && supervisor == this) {
+                supervise(System.nanoTime());
+                try {
+                    Thread.sleep(SUPERVISOR_PERIOD);
+                } catch (InterruptedException ex) {
+                }
+            }
+            if (supervisor == this) {
+                ReaderThread r = reader;
+                if (r != null) {
+                    r.abandon();
+                    reader = null;
+                }
+            }
+        }
+
+        private void supervise(long now) {
+            checkAbandoned(now);
+            ReaderThread r = reader;
+            if (sourceChanged) {
+                sourceChanged = false;
+                // A different source isn't a failure, so start the new one
+                // right away
+                if (r != null) {
+                    replace(r, now, false);
+                    r = null;
+                }
+                nextAttemptTime = now;
+                failedAttempts = 0;
+                stallStartTime = 0;
+            }
+
+            if (r == null) {
+                if (now - nextAttemptTime >= 0) {
+                    connect(now);
+                }
+                return;
+            }
+
+            if (r.firstFrameTime != 0 && stallStartTime != 0) {
+                // Frames are arriving again
+                totalStallTime += (r.firstFrameTime - stallStartTime) / 1000000;
+                stallStartTime = 0;
+            }
+            if (r.firstFrameTime != 0 && !r.firstFrameCounted) {
+                r.firstFrameCounted = true;
+                lastTimeToFirstFrame = (r.firstFrameTime - r.startTime) / 1000000;
+                failedAttempts = 0;
+            }
+
+            if (r.finished) {
+                markStalled(r, now);
+                replace(r, now, true);
+            } else if (r.firstFrameTime == 0) {
+                if ((now - r.startTime) / 1000000 > CONNECT_TIMEOUT) {
+                    System.out.println("Timed out connecting to " + r.frameSource + ".");
+                    markStalled(r, now);
+                    replace(r, now, true);
+                }
+            } else if ((now - r.lastFrameTime) / 1000000 > STALL_TIMEOUT) {
+                System.out.println("No frames from " + r.frameSource + " for "
+                        + (now - r.lastFrameTime) / 1000000 + " ms, reconnecting.");
+                markStalled(r, now);
+                replace(r, now, true);
+            }
+        }
+
+        /**
+         * Starts the stall timer if it isn't running already. The stall is
+         * counted from the last frame that arrived.
+         */
+        private void markStalled(ReaderThread r, long now) {
+            if (stallStartTime == 0) {
+                stallStartTime = r.lastFrameTime != 0 ? r.lastFrameTime : now;
+                stallCount++;
+            }
+        }
+
+        /**
+         * Forgets about abandoned readers that have exited, or that have been
+         * stuck for too long.
+         */
+        private void checkAbandoned(long now) {
+            Iterator<ReaderThread> it = abandonedReaders.iterator();
+            while (it.hasNext()) {
+                ReaderThread r = it.next();
+                if (r.finished) {
+                    it.remove();
+                } else if ((now - r.abandonTime) / 1000000 > ABANDONED_TIMEOUT) {
+                    System.out.println("Giving up on stuck connection to " + r.frameSource + ".");
+                    it.remove();
+                    lostReaderCount++;
+                }
+            }
+            stuckReaderCount = abandonedReaders.size();
+        }
+
+        private void replace(ReaderThread r, long now, boolean backoff) {
+            r.abandon();
+            if (!r.finished) {
+                r.abandonTime = now;
+                abandonedReaders.add(r);
+                stuckReaderCount = abandonedReaders.size();
+            }
+            reader = null;
+            if (backoff) {
+                long delay = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failedAttempts, 16));
+                // Randomize the delay between half and all of it, so multiple
+                // dashboards don't all reconnect at the same time
+                delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+                nextAttemptTime = now + delay * 1000000;
+                failedAttempts++;
+            }
+        }
+
+        private void connect(long now) {
+            if (abandonedReaders.size() >= MAX_ABANDONED_READERS) {
+                if (!waitingForAbandoned) {
+                    System.out.println("Too many stuck camera connections, waiting for them to give up.");
+                    waitingForAbandoned = true;
+                }
+                return;
+            }
+            waitingForAbandoned = false;
+            if (connectedBefore) {
+                reconnectCount++;
+            }
+            connectedBefore = true;
+            ReaderThread r = new ReaderThread(FrameSources.create(source));
+            reader = r;
+            r.start();
         }
     }
 
@@ -95,52 +402,162 @@ public class VideoCaptureThread {
      * @param ip
      */
     public void setIP(String ip) {
-        this.ip = ip;
-        ipChanged = true;
+        setSource(ip);
+    }
+
+    /**
+     * Sets where the frames come from. If a source is currently open, this
+     * causes it to be closed and the new one to be opened.
+     *
+     * @param source the description of the new source
+     * @see FrameSources#create(String)
+     */
+    public void setSource(String source) {
+        this.source = source;
+        sourceChanged = true;
+    }
+
+    public String getSource() {
+        return source;
     }
 
     /**
      * Starts the capture thread if it is not already running.
      */
-    public void start() {
+    public synchronized void start() {
         if (!running) {
-            if (captureThread.getState() != Thread.State.NEW) {
-                captureThread = new CaptureThread();
-            }
             running = true;
-            captureThread.start();
+            supervisor = new SupervisorThread();
+            supervisor.start();
         }
     }
 
     /**
-     * Stops the capture thread by calling {@link Thread#stop()} on it. This
-     * should only be used if the thread needs to be stopped after the camera
-     * was disconnected. When {@link VideoCapture} loses connection, reads block
-     * until it is reconnected.
+     * Stop the video capture thread. This returns right away; the reader
+     * stops writing frames immediately and closes the source as soon as its
+     * current read returns.
      */
-    @SuppressWarnings("CallToThreadStopSuspendOrResumeManager")
-    public void stopHard() {
+    public synchronized void stop() {
         if (running) {
-            stop();
-            // Warning: Unsafe code, necessary to work around a bug in VideoCapture
-            captureThread.stop();
-            vcap.release();
+            running = false;
+            supervisor.interrupt();
         }
     }
 
     /**
-     * Stop the video capture thread normally.
+     * Gets the sequence number of the frame that is currently in the image.
+     * This must be called while synchronized on the image so that it matches
+     * the image data.
+     *
+     * @return the frame sequence number, or -1 if no frame has been read
+     */
+    public long getFrameSequence() {
+        return frameSequence;
+    }
+
+    /**
+     * Gets the time at which the frame that is currently in the image was
+     * read. This must be called while synchronized on the image so that it
+     * matches the image data.
+     *
+     * @return the capture time in {@link System#nanoTime()} units
      */
-    public void stop() {
-        running = false;
+    public long getFrameTimestamp() {
+        return frameTimestamp;
     }
 
     /**
-     * Returns whether or not the video capture thread is connected.
+     * Returns whether or not the video capture thread is connected, which
+     * means the current connection has received a frame and hasn't stalled.
      *
      * @return whether the camera is connected
      */
     public boolean isConnected() {
-        return vcap.isOpened();
+        ReaderThread r = reader;
+        return r != null && r.firstFrameTime != 0 && !r.finished
+                && (System.nanoTime() - r.lastFrameTime) / 1000000 <= STALL_TIMEOUT;
+    }
+
+    /**
+     * Gets the source that frames are currently being read from.
+     *
+     * @return the current source, or null if no reader is running
+     */
+    public FrameSource getFrameSource() {
+        ReaderThread r = reader;
+        return r != null ? r.frameSource : null;
+    }
+
+    /**
+     * Gets the average time the source takes to read a frame.
+     *
+     * @return the read time in milliseconds, or -1 if no frames have been read
+     * @see FrameSource#getLatency()
+     */
+    public double getSourceLatency() {
+        ReaderThread r = reader;
+        return r != null ? r.frameSource.getLatency() : -1;
+    }
+
+    /**
+     * Gets the number of times a new connection was started after the first
+     * one, because the old one failed or the source was changed.
+     *
+     * @return the reconnect count
+     */
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * Gets the number of times frames stopped arriving, including
+     * connections that never got a frame.
+     *
+     * @return the stall count
+     */
+    public int getStallCount() {
+        return stallCount;
+    }
+
+    /**
+     * Gets the total time that frames weren't arriving because of stalls that
+     * have since recovered.
+     *
+     * @return the total stall time in milliseconds
+     */
+    public long getTotalStallTime() {
+        return totalStallTime;
+    }
+
+    /**
+     * Gets the time between starting the latest connection that got a frame
+     * and its first frame.
+     *
+     * @return the time to first frame in milliseconds, or -1 if no
+     * connection has gotten a frame
+     */
+    public long getLastTimeToFirstFrame() {
+        return lastTimeToFirstFrame;
+    }
+
+    /**
+     * Gets the number of abandoned readers that are still stuck in a read,
+     * not counting the ones that have been given up on.
+     *
+     * @return the number of stuck readers
+     */
+    public int getAbandonedReaderCount() {
+        return stuckReaderCount;
+    }
+
+    /**
+     * Gets the number of abandoned readers that were given up on because
+     * they stayed stuck for too long. Each one is a thread that will probably
+     * never exit.
+     *
+     * @return the number of lost readers
+     */
+    public int getLostReaderCount() {
+        return lostReaderCount;
     }
 }
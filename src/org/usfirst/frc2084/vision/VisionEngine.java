@@ -0,0 +1,267 @@
+package org.usfirst.frc2084.vision;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.capture.FrameSources;
+import org.usfirst.frc2084.vision.capture.StreamNegotiator;
+import org.usfirst.frc2084.vision.capture.StreamParameters;
+import static org.usfirst.frc2084.vision.TargetTrackingExtension.IMAGE_SIZE;
+
+/**
+ * Captures and processes the stream from one camera and hands the results to
+ * any number of widgets. Before this, every instance of the widget opened its
+ * own stream and ran its own processor, so adding it to the dashboard twice
+ * (for example a big view and a small one) used twice the bandwidth and CPU.
+ * <p>
+ * Engines are shared by frame source (usually a camera's IP address and the
+ * backend used to read it, see {@link FrameSources}) and reference counted.
+ * Widgets get one with {@link #acquire(String, TargetTrackingCommunication)}
+ * and give it back with {@link #release()}; the engine stops its threads
+ * when the last widget releases it.
+ * <p>
+ * If the source is an Axis camera stream on
+ * {@link FrameSources#CAMERA_STREAM_PATH} (which the widget only uses if
+ * negotiation is turned on), the engine asks it for a stream that matches
+ * the processing resolution and how fast frames can be processed, and
+ * renegotiates the stream when the processing speed changes (see
+ * {@link StreamNegotiator}).
+ *
+ * @author Ben Wolsieffer
+ */
+public class VisionEngine {
+
+    /**
+     * The running engines, by frame source description.
+     */
+    private static final Map<String, VisionEngine> engines = new HashMap<>();
+
+    /**
+     * The longest time in milliseconds {@link #release()} waits for the
+     * processing thread to finish its current frame.
+     */
+    private static final long RELEASE_TIMEOUT = 1000;
+
+    /**
+     * Gets the engine for a frame source, creating and starting it if no
+     * other widget is using that source. Every call must be matched by a call
+     * to {@link #release()}.
+     *
+     * @param source the description of the source, as understood by
+     * {@link FrameSources#create(String)}
+     * @param communication the connection to the robot, which is only used if
+     * a new engine is created
+     * @return the engine for the camera
+     */
+    public static VisionEngine acquire(String source, TargetTrackingCommunication communication) {
+        synchronized (engines) {
+            VisionEngine engine = engines.get(source);
+            if (engine == null) {
+                engine = new VisionEngine(source, communication);
+                engines.put(source, engine);
+                engine.start();
+            }
+            engine.references++;
+            return engine;
+        }
+    }
+
+    private final String source;
+    private int references = 0;
+
+    /**
+     * Image retrieved from the camera.
+     */
+    private final Mat image = new Mat(IMAGE_SIZE, CvType.CV_8UC3);
+    private final TargetTrackingProcessor processor;
+    private final VideoCaptureThread captureThread = new VideoCaptureThread(image);
+    private final ProcessingThread processingThread;
+    private final ResultPublisher resultPublisher;
+    /**
+     * Picks the stream parameters to ask the camera for, or null if the
+     * source is not a camera.
+     */
+    private final StreamNegotiator negotiator;
+    /**
+     * The stream resolution from the profile that was last applied.
+     */
+    private int streamWidth = 0;
+    private int streamHeight = 0;
+
+    /**
+     * The widgets that are displaying this engine's frames.
+     */
+    private final List<ProcessingThread.FrameListener> frameListeners = new CopyOnWriteArrayList<>();
+
+    private VisionEngine(String source, TargetTrackingCommunication communication) {
+        this.source = source;
+        processor = new TargetTrackingProcessor(communication);
+        resultPublisher = new ResultPublisher(communication);
+        processor.addListener(resultPublisher);
+        processingThread = new ProcessingThread(processor, captureThread, image, communication,
+                new ProcessingThread.FrameListener() {
+
+                    @Override
+                    public boolean isShowingFrames() {
+                        for (ProcessingThread.FrameListener l : frameListeners) {
+                            if (l.isShowingFrames()) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+
+                    @Override
+                    public boolean isShowingMask() {
+                        for (ProcessingThread.FrameListener l : frameListeners) {
+                            if (l.isShowingFrames() && l.isShowingMask()) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+
+                    @Override
+                    public void frameReady(BufferedImage image, BufferedImage mask, Detection detection) {
+                        for (ProcessingThread.FrameListener l : frameListeners) {
+                            // Widgets that are hidden don't get anything, and
+                            // widgets that don't want the mask don't get it
+                            if (image != null && l.isShowingFrames()) {
+                                l.frameReady(image, l.isShowingMask() ? mask : null, detection);
+                            }
+                        }
+                        negotiate();
+                    }
+                });
+        StreamNegotiator n = new StreamNegotiator((int) IMAGE_SIZE.width, (int) IMAGE_SIZE.height,
+                StreamNegotiator.DEFAULT_COMPRESSION);
+        String negotiated = FrameSources.withStreamParameters(source, n.getParameters());
+        if (negotiated != null) {
+            negotiator = n;
+            captureThread.setSource(negotiated);
+        } else {
+            negotiator = null;
+            captureThread.setSource(source);
+        }
+    }
+
+    /**
+     * Reconnects to the camera with new stream parameters if the processing
+     * speed has changed enough. This is called on the processing thread after
+     * every frame.
+     */
+    private void negotiate() {
+        if (negotiator == null) {
+            return;
+        }
+        // The profile can ask for a different resolution
+        CalibrationProfile profile = processor.getProfile();
+        StreamParameters parameters = null;
+        if (profile.getStreamWidth() != streamWidth || profile.getStreamHeight() != streamHeight) {
+            streamWidth = profile.getStreamWidth();
+            streamHeight = profile.getStreamHeight();
+            parameters = negotiator.setResolution(streamWidth, streamHeight);
+        }
+        if (parameters == null) {
+            parameters = negotiator.update(processingThread.getProcessingTime());
+        }
+        if (parameters != null) {
+            // The capture thread prints the new source when it connects, so
+            // the processing thread doesn't have to
+            captureThread.setSource(FrameSources.withStreamParameters(source, parameters));
+        }
+    }
+
+    /**
+     * Gets the stream parameters that were requested from the camera.
+     *
+     * @return the stream parameters, or null if the source is not a camera
+     */
+    public StreamParameters getStreamParameters() {
+        return negotiator != null ? negotiator.getParameters() : null;
+    }
+
+    private void start() {
+        captureThread.start();
+        processingThread.start();
+    }
+
+    /**
+     * Gives back an engine that was acquired. If no other widget is using it,
+     * its threads are stopped.
+     */
+    public void release() {
+        synchronized (engines) {
+            references--;
+            if (references > 0) {
+                return;
+            }
+            engines.remove(source);
+        }
+        processingThread.destroy();
+        // Wait for the current pass to finish, because it can start the
+        // capture again. If it takes too long, the processing thread stops
+        // the capture itself when it exits.
+        try {
+            processingThread.join(RELEASE_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        captureThread.stop();
+    }
+
+    public void addFrameListener(ProcessingThread.FrameListener listener) {
+        frameListeners.add(listener);
+    }
+
+    public void removeFrameListener(ProcessingThread.FrameListener listener) {
+        frameListeners.remove(listener);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public TargetTrackingProcessor getProcessor() {
+        return processor;
+    }
+
+    public boolean isConnected() {
+        return captureThread.isConnected();
+    }
+
+    /**
+     * Gets the average time the frame source takes to read a frame.
+     *
+     * @return the read time in milliseconds, or -1 if no frames have been read
+     */
+    public double getSourceLatency() {
+        return captureThread.getSourceLatency();
+    }
+
+    /**
+     * Gets the capture thread, which has the connection metrics.
+     *
+     * @return the capture thread
+     */
+    public VideoCaptureThread getCaptureThread() {
+        return captureThread;
+    }
+
+    public int getFPS() {
+        return processingThread.getFPS();
+    }
+
+    /**
+     * Gets the latency of the last result published to the robot.
+     *
+     * @return the latency in milliseconds, or -1 if nothing has been published
+     */
+    public double getLatency() {
+        return resultPublisher.getLastLatency();
+    }
+}
@@ -0,0 +1,78 @@
+package org.usfirst.frc2084.vision.capture;
+
+import org.opencv.core.Mat;
+
+/**
+ * Keeps track of the read time and frame count for a {@link FrameSource}.
+ * Subclasses implement {@link #readFrame(Mat)} instead of
+ * {@link #read(Mat)}.
+ *
+ * @author Ben Wolsieffer
+ */
+public abstract class AbstractFrameSource implements FrameSource {
+
+    /**
+     * How much each new read time counts towards the average. This makes the
+     * average mostly cover the last 30 or so frames.
+     */
+    private static final double LATENCY_SMOOTHING = 1.0 / 16;
+
+    private volatile double latency = -1;
+    private volatile long frameCount = 0;
+
+    /**
+     * Reads the next frame.
+     *
+     * @param image the image to write the frame into
+     * @return whether a frame was read
+     * @see FrameSource#read(Mat)
+     */
+    protected abstract boolean readFrame(Mat image);
+
+    @Override
+    public final boolean read(Mat image) {
+        long start = System.nanoTime();
+        if (!readFrame(image)) {
+            return false;
+        }
+        double time = (System.nanoTime() - start) / 1e6;
+        latency = latency < 0 ? time : latency + (time - latency) * LATENCY_SMOOTHING;
+        frameCount++;
+        return true;
+    }
+
+    /**
+     * Does nothing, because most sources either can't be interrupted or
+     * already time out on their own.
+     */
+    @Override
+    public void abort() {
+    }
+
+    @Override
+    public double getLatency() {
+        return latency;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Sleeps until the specified time, which is used by the recorded sources
+     * to play back at the right speed.
+     *
+     * @param time the time to wake up, in {@link System#nanoTime()} units
+     */
+    protected static void sleepUntil(long time) {
+        long delay = time - System.nanoTime();
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
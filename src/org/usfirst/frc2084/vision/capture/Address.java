@@ -0,0 +1,22 @@
+package org.usfirst.frc2084.vision.capture;
+
+import com.googlecode.javacpp.Pointer;
+
+/**
+ * A pointer to an address, which is used to point FFmpeg at part of an
+ * OpenCV image, or to copy straight into one. JavaCPP only lets subclasses
+ * set the address.
+ *
+ * @author Ben Wolsieffer
+ */
+class Address extends Pointer {
+
+    Address(long address) {
+        this.address = address;
+    }
+
+    Address(Pointer p, long offset) {
+        super(p);
+        this.address += offset;
+    }
+}
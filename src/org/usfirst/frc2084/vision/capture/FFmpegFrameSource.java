@@ -0,0 +1,134 @@
+package org.usfirst.frc2084.vision.capture;
+
+import com.googlecode.javacpp.BytePointer;
+import com.googlecode.javacpp.Pointer;
+import com.googlecode.javacv.FFmpegFrameGrabber;
+import com.googlecode.javacv.FrameGrabber;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Reads frames using JavaCV's {@link FFmpegFrameGrabber}. FFmpeg gives a lot
+ * more control over the stream than {@link VideoCaptureFrameSource}, and it
+ * doesn't hang forever when the camera disconnects.
+ * <p>
+ * It is set up for latency instead of robustness: the format is given up
+ * front so FFmpeg doesn't have to read part of the stream to figure out what
+ * it is, and the grabber doesn't keep any frames buffered.
+ *
+ * @author Ben Wolsieffer
+ */
+public class FFmpegFrameSource extends AbstractFrameSource {
+
+    /**
+     * How long to wait for the camera before giving up on a read, in
+     * milliseconds.
+     */
+    private static final int TIMEOUT = 2000;
+
+    private final String url;
+    private final String format;
+    private FFmpegFrameGrabber grabber;
+
+    /**
+     * Creates a source for an MJPEG stream.
+     *
+     * @param url the URL of the stream
+     */
+    public FFmpegFrameSource(String url) {
+        this(url, "mjpeg");
+    }
+
+    /**
+     * Creates a source for a stream or file.
+     *
+     * @param url the URL of the stream or the path to a file
+     * @param format the FFmpeg format name, or null to let FFmpeg figure it
+     * out
+     */
+    public FFmpegFrameSource(String url, String format) {
+        this.url = url;
+        this.format = format;
+    }
+
+    @Override
+    public boolean open() {
+        grabber = new FFmpegFrameGrabber(url);
+        if (format != null) {
+            // Skips probing the stream to find its format, which is most of
+            // the time it takes to open it.
+            grabber.setFormat(format);
+        }
+        grabber.setImageMode(FrameGrabber.ImageMode.COLOR);
+        grabber.setNumBuffers(0);
+        grabber.setTimeout(TIMEOUT);
+        try {
+            grabber.start();
+            return true;
+        } catch (FrameGrabber.Exception ex) {
+            System.out.println("Could not open " + url + ": " + ex.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    protected boolean readFrame(Mat image) {
+        IplImage frame;
+        try {
+            frame = grabber.grab();
+        } catch (FrameGrabber.Exception ex) {
+            System.out.println("Could not read from " + url + ": " + ex.getMessage());
+            return false;
+        }
+        if (frame == null) {
+            return false;
+        }
+
+        int width = frame.width();
+        int height = frame.height();
+        int rowLength = width * frame.nChannels();
+        int step = frame.widthStep();
+        if (frame.nChannels() != 3) {
+            return false;
+        }
+        image.create(height, width, CvType.CV_8UC3);
+
+        // The JavaCV and OpenCV images don't share memory, so the pixels are
+        // copied straight from one to the other without going through Java
+        BytePointer data = frame.imageData();
+        long imageStep = image.step1();
+        if (step == rowLength && imageStep == rowLength) {
+            Pointer.memcpy(new Address(image.dataAddr()), data, (long) rowLength * height);
+        } else {
+            // Rows are padded, so copy them one at a time
+            for (int y = 0; y < height; y++) {
+                Pointer.memcpy(new Address(image.dataAddr() + y * imageStep),
+                        new Address(data, (long) y * step), rowLength);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (grabber != null) {
+            try {
+                grabber.release();
+            } catch (FrameGrabber.Exception ex) {
+            }
+            grabber = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return grabber != null;
+    }
+
+    @Override
+    public String toString() {
+        return "FFmpeg " + url;
+    }
+}
@@ -0,0 +1,68 @@
+package org.usfirst.frc2084.vision.capture;
+
+import org.opencv.core.Mat;
+
+/**
+ * Somewhere frames come from, like a camera or a recording. The
+ * {@link org.usfirst.frc2084.vision.VideoCaptureThread} reads from one of
+ * these, so the rest of the extension doesn't care how the frames are
+ * captured or decoded. Use {@link FrameSources#create(String)} to get one from
+ * a description.
+ * <p>
+ * Sources are only used from one thread at a time, except for
+ * {@link #abort()}.
+ *
+ * @author Ben Wolsieffer
+ */
+public interface FrameSource {
+
+    /**
+     * Opens the source. This may block for a while if the source is a camera.
+     *
+     * @return whether the source was opened
+     */
+    boolean open();
+
+    /**
+     * Reads the next frame into an image. The image is reallocated if it is
+     * not the right size or type, so the same image should be reused instead
+     * of being allocated for every frame.
+     *
+     * @param image the image to write the frame into, as 8-bit BGR
+     * @return false if the frame could not be read, which means the source
+     * should be closed and reopened
+     */
+    boolean read(Mat image);
+
+    /**
+     * Closes the source. It can be opened again afterwards.
+     */
+    void close();
+
+    /**
+     * Makes a read or open that is stuck in another thread give up as soon as
+     * possible, if the source has a way to do that. This is the only method
+     * that can be called from a different thread than the one using the
+     * source. The source still has to be closed by the thread using it.
+     */
+    void abort();
+
+    boolean isOpen();
+
+    /**
+     * Gets the average time it takes to read a frame. For live sources this
+     * includes waiting for the camera to send it.
+     *
+     * @return the average read time in milliseconds, or -1 if no frames have
+     * been read
+     */
+    double getLatency();
+
+    /**
+     * Gets the number of frames that have been read since the source was
+     * created.
+     *
+     * @return the frame count
+     */
+    long getFrameCount();
+}
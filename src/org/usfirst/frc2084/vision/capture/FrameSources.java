@@ -0,0 +1,180 @@
+package org.usfirst.frc2084.vision.capture;
+
+import java.io.File;
+import static org.usfirst.frc2084.vision.TargetTrackingExtension.IMAGE_SIZE;
+
+/**
+ * Creates {@link FrameSource}s from short descriptions, so a source can be
+ * picked with a single string in a property or on the command line. A
+ * description is a type and a location separated by a colon:
+ * <ul>
+ * <li>{@code opencv:<url>} - {@link VideoCaptureFrameSource}</li>
+ * <li>{@code ffmpeg:<url>} - {@link FFmpegFrameSource}</li>
+ * <li>{@code mjpeg:<url>} - {@link MjpegHttpFrameSource}, decoding straight to
+ * the processing resolution on {@link #DECODE_THREADS} threads</li>
+ * <li>{@code file:<path>} - {@link VideoFileFrameSource}, played back at the
+ * file's frame rate</li>
+ * <li>{@code dir:<path>} - {@link ImageDirectoryFrameSource} at 30 fps</li>
+ * </ul>
+ * A description without a known type is opened with OpenCV. If it is a URL
+ * (it has a scheme like {@code http://}) it is used as it is, and otherwise it
+ * is treated as the IP address of an Axis camera, like the extension always
+ * did.
+ * <p>
+ * Only camera streams on {@link #CAMERA_STREAM_PATH} can be negotiated (see
+ * {@link #withStreamParameters(String, StreamParameters)}), and cameras only
+ * use that path when negotiation is asked for, so nothing changes for anyone
+ * who doesn't turn it on.
+ *
+ * @author Ben Wolsieffer
+ */
+public class FrameSources {
+
+    public static final String OPENCV = "opencv";
+    public static final String FFMPEG = "ffmpeg";
+    public static final String MJPEG = "mjpeg";
+    public static final String FILE = "file";
+    public static final String DIRECTORY = "dir";
+
+    /**
+     * The path of the MJPEG stream on an Axis camera that the extension has
+     * always used.
+     */
+    public static final String DEFAULT_STREAM_PATH = "/mjpg/video.mjpg";
+    /**
+     * The VAPIX path of the MJPEG stream on an Axis camera, which accepts
+     * {@link StreamParameters} in its query string. This is only used when
+     * the stream is negotiated.
+     */
+    public static final String CAMERA_STREAM_PATH = "/axis-cgi/mjpg/video.cgi";
+
+    /**
+     * The frame rate directories of images are played back at, which is what
+     * the camera runs at.
+     */
+    private static final double DIRECTORY_FPS = 30;
+
+    /**
+     * The number of threads MJPEG sources decode with. This leaves one core
+     * for processing, and more than three threads doesn't help at camera
+     * frame rates.
+     */
+    public static final int DECODE_THREADS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    private FrameSources() {
+    }
+
+    /**
+     * Gets the URL of the MJPEG stream of an Axis camera.
+     *
+     * @param ip the IP address of the camera
+     * @return the stream URL
+     */
+    public static String getCameraUrl(String ip) {
+        return getCameraUrl(ip, false);
+    }
+
+    /**
+     * Gets the URL of the MJPEG stream of an Axis camera.
+     *
+     * @param ip the IP address of the camera
+     * @param negotiate whether to use the stream path that can be negotiated
+     * @return the stream URL
+     */
+    public static String getCameraUrl(String ip, boolean negotiate) {
+        return "http://" + ip + (negotiate ? CAMERA_STREAM_PATH : DEFAULT_STREAM_PATH);
+    }
+
+    /**
+     * Gets the description of an Axis camera using the specified backend.
+     *
+     * @param backend {@link #OPENCV}, {@link #FFMPEG} or {@link #MJPEG}
+     * @param ip the IP address of the camera
+     * @return the description of the source
+     */
+    public static String describeCamera(String backend, String ip) {
+        return describeCamera(backend, ip, false);
+    }
+
+    /**
+     * Gets the description of an Axis camera using the specified backend.
+     *
+     * @param backend {@link #OPENCV}, {@link #FFMPEG} or {@link #MJPEG}
+     * @param ip the IP address of the camera
+     * @param negotiate whether the stream should be negotiated
+     * @return the description of the source
+     */
+    public static String describeCamera(String backend, String ip, boolean negotiate) {
+        return backend + ":" + getCameraUrl(ip, negotiate);
+    }
+
+    /**
+     * Gets the URL of a description without a known type, which is either a
+     * URL already or the IP address of a camera.
+     */
+    private static String toUrl(String description) {
+        if (description.matches("[A-Za-z][A-Za-z0-9+.-]*://.*")) {
+            return description;
+        }
+        return getCameraUrl(description);
+    }
+
+    /**
+     * Changes the description of a camera source to request the specified
+     * stream parameters.
+     *
+     * @param description the description of the source
+     * @param parameters the stream parameters to request
+     * @return the new description, or null if the source is not an Axis
+     * camera stream
+     */
+    public static String withStreamParameters(String description, StreamParameters parameters) {
+        int colon = description.indexOf(':');
+        String type = colon > 0 ? description.substring(0, colon) : "";
+        switch (type) {
+            case OPENCV:
+            case FFMPEG:
+            case MJPEG:
+                break;
+            case FILE:
+            case DIRECTORY:
+                return null;
+            default:
+                description = OPENCV + ":" + toUrl(description);
+        }
+        int query = description.indexOf('?');
+        if (query >= 0) {
+            description = description.substring(0, query);
+        }
+        if (!description.endsWith(CAMERA_STREAM_PATH)) {
+            return null;
+        }
+        return description + "?" + parameters.toQuery();
+    }
+
+    /**
+     * Creates a source from a description.
+     *
+     * @param description the description of the source
+     * @return a new source, which has not been opened
+     */
+    public static FrameSource create(String description) {
+        int colon = description.indexOf(':');
+        String type = colon > 0 ? description.substring(0, colon) : "";
+        String location = description.substring(colon + 1);
+        switch (type) {
+            case OPENCV:
+                return new VideoCaptureFrameSource(location);
+            case FFMPEG:
+                return new FFmpegFrameSource(location);
+            case MJPEG:
+                return new MjpegHttpFrameSource(location, (int) IMAGE_SIZE.width, (int) IMAGE_SIZE.height, DECODE_THREADS);
+            case FILE:
+                return new VideoFileFrameSource(location, true);
+            case DIRECTORY:
+                return new ImageDirectoryFrameSource(new File(location), DIRECTORY_FPS);
+            default:
+                return new VideoCaptureFrameSource(toUrl(description));
+        }
+    }
+}
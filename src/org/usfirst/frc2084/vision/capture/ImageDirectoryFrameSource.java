@@ -0,0 +1,95 @@
+package org.usfirst.frc2084.vision.capture;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.Locale;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Plays back a directory of images (like a black box dump or a replay corpus
+ * match) as if it were a camera. The images are read in name order at a fixed
+ * frame rate, and when the last one has been read the read fails, so the
+ * capture thread reopens the directory and it loops.
+ *
+ * @author Ben Wolsieffer
+ */
+public class ImageDirectoryFrameSource extends AbstractFrameSource {
+
+    private static final FilenameFilter IMAGE_FILTER = new FilenameFilter() {
+
+        @Override
+        public boolean accept(File dir, String name) {
+            String n = name.toLowerCase(Locale.ROOT);
+            return n.endsWith(".jpg") || n.endsWith(".jpeg") || n.endsWith(".png");
+        }
+    };
+
+    private final File directory;
+    private final long frameInterval;
+    private File[] files;
+    private int next;
+    private long nextFrameTime;
+
+    /**
+     * Creates a source for a directory.
+     *
+     * @param directory the directory containing the images
+     * @param fps the frame rate to play back at, or 0 to go as fast as
+     * possible
+     */
+    public ImageDirectoryFrameSource(File directory, double fps) {
+        this.directory = directory;
+        this.frameInterval = fps > 0 ? (long) (1e9 / fps) : 0;
+    }
+
+    @Override
+    public boolean open() {
+        files = directory.listFiles(IMAGE_FILTER);
+        if (files == null || files.length == 0) {
+            System.out.println("No images in " + directory);
+            files = null;
+            return false;
+        }
+        Arrays.sort(files);
+        next = 0;
+        nextFrameTime = System.nanoTime();
+        return true;
+    }
+
+    @Override
+    protected boolean readFrame(Mat image) {
+        if (next >= files.length) {
+            return false;
+        }
+        if (frameInterval > 0) {
+            sleepUntil(nextFrameTime);
+            nextFrameTime += frameInterval;
+        }
+        // imread always allocates, so copy it into the pooled image
+        Mat frame = Highgui.imread(files[next++].getPath(), Highgui.CV_LOAD_IMAGE_COLOR);
+        if (frame.empty()) {
+            System.out.println("Could not read " + files[next - 1]);
+            return false;
+        }
+        frame.copyTo(image);
+        frame.release();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        files = null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return files != null;
+    }
+
+    @Override
+    public String toString() {
+        return "directory " + directory;
+    }
+}
@@ -0,0 +1,245 @@
+package org.usfirst.frc2084.vision.capture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.opencv.core.Mat;
+
+/**
+ * Reads an MJPEG stream over HTTP itself and decodes the frames with a
+ * {@link ScaledJpegDecoder}, so they are decoded straight to the processing
+ * resolution instead of at whatever size the camera sends. The stream is
+ * split into frames by an {@link MjpegParser}.
+ * <p>
+ * With more than one decode thread, the stream is read on its own thread and
+ * the frames are decoded by a {@link ParallelDecoder}, so the decoding can
+ * keep up with high frame rates. Each read returns the newest frame that has
+ * been decoded since the last one.
+ *
+ * @author Ben Wolsieffer
+ */
+public class MjpegHttpFrameSource extends AbstractFrameSource {
+
+    /**
+     * How long to wait for the camera to connect or send data, in
+     * milliseconds.
+     */
+    private static final int TIMEOUT = 2000;
+
+    private final String url;
+    private final int width;
+    private final int height;
+    private final int decodeThreads;
+    /**
+     * The decoder, which is freed when the source is closed and made again
+     * when it is opened. It is only used while synchronized on
+     * {@link #decoderLock}, so it can't be freed in the middle of a frame.
+     */
+    private ScaledJpegDecoder decoder;
+    private final Object decoderLock = new Object();
+    private volatile Socket socket;
+    private InputStream in;
+    private final MjpegParser parser = new MjpegParser();
+
+    private volatile ParallelDecoder parallelDecoder;
+    private Thread streamThread;
+    private volatile boolean streamEnded;
+
+    /**
+     * Creates a source for a stream that decodes on the thread that reads
+     * it.
+     *
+     * @param url the URL of the stream
+     * @param width the width to decode the frames to
+     * @param height the height to decode the frames to
+     */
+    public MjpegHttpFrameSource(String url, int width, int height) {
+        this(url, width, height, 1);
+    }
+
+    /**
+     * Creates a source for a stream.
+     *
+     * @param url the URL of the stream
+     * @param width the width to decode the frames to
+     * @param height the height to decode the frames to
+     * @param decodeThreads the number of threads to decode with
+     */
+    public MjpegHttpFrameSource(String url, int width, int height, int decodeThreads) {
+        this.url = url;
+        this.width = width;
+        this.height = height;
+        this.decodeThreads = decodeThreads;
+    }
+
+    @Override
+    public boolean open() {
+        try {
+            URL u = new URL(url);
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(u.getHost(), u.getPort() < 0 ? 80 : u.getPort()), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            String path = u.getFile().isEmpty() ? "/" : u.getFile();
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.0\r\nHost: " + u.getHost() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            in = socket.getInputStream();
+            // The response is checked by the parser when the first frame is
+            // read
+            parser.reset();
+            if (decodeThreads > 1) {
+                startParallelDecoding();
+            } else {
+                synchronized (decoderLock) {
+                    if (decoder == null) {
+                        decoder = new ScaledJpegDecoder(width, height);
+                    }
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            System.out.println("Could not open " + url + ": " + ex);
+            close();
+            return false;
+        }
+    }
+
+    private void startParallelDecoding() {
+        // close() can clear the field at any time, so the stream thread keeps
+        // its own reference
+        final ParallelDecoder parallelDecoder = new ParallelDecoder(decodeThreads, width, height);
+        this.parallelDecoder = parallelDecoder;
+        streamEnded = false;
+        streamThread = new Thread("Target Tracker MJPEG Stream") {
+
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        int length = readJpeg();
+                        if (length < 0) {
+                            break;
+                        }
+                        parallelDecoder.submit(parser.getFrame(), length, System.nanoTime());
+                    }
+                } catch (IOException ex) {
+                    if (socket != null) {
+                        System.out.println("Could not read from " + url + ": " + ex);
+                    }
+                }
+                streamEnded = true;
+            }
+        };
+        streamThread.setDaemon(true);
+        streamThread.start();
+    }
+
+    @Override
+    protected boolean readFrame(Mat image) {
+        // Read it once, because close() can clear it from the supervisor
+        // thread
+        ParallelDecoder parallelDecoder = this.parallelDecoder;
+        if (parallelDecoder != null) {
+            try {
+                return !streamEnded && parallelDecoder.awaitFrame(image, TIMEOUT) >= 0;
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+
+        int length;
+        try {
+            length = readJpeg();
+            if (length < 0) {
+                return false;
+            }
+        } catch (IOException ex) {
+            System.out.println("Could not read from " + url + ": " + ex);
+            return false;
+        }
+        synchronized (decoderLock) {
+            return decoder != null && decoder.decode(parser.getFrame(), length, image);
+        }
+    }
+
+    /**
+     * Reads the next JPEG from the stream into the parser.
+     *
+     * @return the length of the JPEG, or -1 at the end of the stream
+     * @throws IOException if the stream can't be read or is garbage
+     */
+    private int readJpeg() throws IOException {
+        int length;
+        while ((length = parser.next()) < 0) {
+            if (!parser.read(in)) {
+                return -1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Gets the parallel decoder, which has the decode metrics.
+     *
+     * @return the parallel decoder, or null if the source is closed or only
+     * uses one decode thread
+     */
+    public ParallelDecoder getParallelDecoder() {
+        return parallelDecoder;
+    }
+
+    @Override
+    public void close() {
+        Socket s = socket;
+        socket = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ex) {
+            }
+        }
+        ParallelDecoder pd = parallelDecoder;
+        parallelDecoder = null;
+        if (pd != null) {
+            pd.shutdown();
+        }
+        // A new source is made for every reconnect, so the native decoder
+        // would leak if it were left for the garbage collector
+        synchronized (decoderLock) {
+            if (decoder != null) {
+                decoder.close();
+                decoder = null;
+            }
+        }
+    }
+
+    /**
+     * Closes the socket, which makes a blocked read fail right away instead
+     * of waiting for the timeout.
+     */
+    @Override
+    public void abort() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket != null;
+    }
+
+    @Override
+    public String toString() {
+        return "MJPEG " + url;
+    }
+}
@@ -0,0 +1,222 @@
+package org.usfirst.frc2084.vision.capture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Splits an MJPEG stream into JPEGs. It doesn't care where the data comes
+ * from: the {@link MjpegHttpFrameSource} fills it from a blocking socket, and
+ * the {@link org.usfirst.frc2084.vision.MjpegStreamReader} fills it from a
+ * non-blocking channel, so they both parse the stream the same way.
+ * <p>
+ * Data goes into {@link #getBuffer()} (or is read with
+ * {@link #read(InputStream)}), and then {@link #next()} is called until it
+ * says it needs more. Only the {@code Content-Length} header of each part is
+ * used to find the frames, which is what Axis cameras send. The HTTP response
+ * headers and anything else without a length are skipped.
+ *
+ * @author Ben Wolsieffer
+ */
+public class MjpegParser {
+
+    /**
+     * The biggest frame that will be read, in bytes. Even a full resolution
+     * frame at the lowest compression is a lot smaller than this, so anything
+     * bigger means the stream is garbage.
+     */
+    public static final int MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    /**
+     * Bytes from the stream that have not been parsed yet. Between calls it
+     * is ready to be written to.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private byte[] frame = new byte[256 * 1024];
+    /**
+     * The length of the frame being read, or -1 if headers are being read.
+     */
+    private int frameLength = -1;
+    private int frameRead = 0;
+    /**
+     * Whether the HTTP response headers have been seen yet.
+     */
+    private boolean responseRead = false;
+
+    /**
+     * Gets the buffer to put data from the stream into before calling
+     * {@link #next()}.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Reads whatever is available from a stream into the buffer. This blocks
+     * until at least one byte is available.
+     *
+     * @param in the stream to read from
+     * @return false if the stream has ended
+     * @throws IOException if the stream can't be read
+     */
+    public boolean read(InputStream in) throws IOException {
+        int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (n < 0) {
+            return false;
+        }
+        buffer.position(buffer.position() + n);
+        return true;
+    }
+
+    /**
+     * Parses the buffered data until a frame is complete.
+     *
+     * @return the length of the frame, which is now at the start of
+     * {@link #getFrame()}, or -1 if more data is needed
+     * @throws IOException if the camera sent an error, a header was too long
+     * or a frame had a bad length
+     */
+    public int next() throws IOException {
+        buffer.flip();
+        int length;
+        try {
+            length = parse();
+        } finally {
+            buffer.compact();
+        }
+        if (length < 0 && frameLength < 0 && !buffer.hasRemaining()) {
+            throw new IOException("header too long");
+        }
+        return length;
+    }
+
+    /**
+     * Parses as much of the buffer as possible, stopping after a frame.
+     *
+     * @return the length of the frame, or -1 if more data is needed
+     */
+    private int parse() throws IOException {
+        while (true) {
+            if (frameLength < 0) {
+                if (!parseHeaders()) {
+                    return -1;
+                }
+            } else {
+                int n = Math.min(buffer.remaining(), frameLength - frameRead);
+                buffer.get(frame, frameRead, n);
+                frameRead += n;
+                if (frameRead < frameLength) {
+                    return -1;
+                }
+                int length = frameLength;
+                frameLength = -1;
+                return length;
+            }
+        }
+    }
+
+    /**
+     * Parses the next header block, if all of it has arrived.
+     *
+     * @return whether a header block was parsed
+     */
+    private boolean parseHeaders() throws IOException {
+        int end = indexOf(buffer, HEADER_END);
+        if (end < 0) {
+            return false;
+        }
+        String headers = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                end - buffer.position(), StandardCharsets.US_ASCII);
+        buffer.position(end + HEADER_END.length);
+        if (!responseRead) {
+            responseRead = true;
+            String status = headers.split("\r\n", 2)[0];
+            if (status.startsWith("HTTP/") && !status.contains(" 200")) {
+                throw new IOException("bad response: " + status);
+            }
+        }
+        int length = parseContentLength(headers);
+        if (length == 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("bad Content-Length: " + length);
+        }
+        if (length > 0) {
+            if (frame.length < length) {
+                frame = new byte[length];
+            }
+            frameLength = length;
+            frameRead = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the array that the last frame was read into. It is reused for
+     * the next frame.
+     *
+     * @return the frame data
+     */
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * Throws away everything that has been read, for when the connection is
+     * reopened.
+     */
+    public void reset() {
+        buffer.clear();
+        frameLength = -1;
+        frameRead = 0;
+        responseRead = false;
+    }
+
+    /**
+     * Finds the {@code Content-Length} in a block of headers.
+     *
+     * @return the length, or -1 if there isn't one
+     * @throws IOException if the length is not a number
+     */
+    private static int parseContentLength(String headers) throws IOException {
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT).equals("content-length")) {
+                try {
+                    int length = Integer.parseInt(line.substring(colon + 1).trim());
+                    if (length < 0) {
+                        throw new IOException("bad Content-Length: " + length);
+                    }
+                    return length;
+                } catch (NumberFormatException ex) {
+                    throw new IOException("bad Content-Length: " + line.substring(colon + 1).trim());
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a sequence of bytes in the remaining part of a heap buffer.
+     *
+     * @return the absolute index of the start of the sequence, or -1
+     */
+    private static int indexOf(ByteBuffer b, byte[] pattern) {
+        byte[] array = b.array();
+        int offset = b.arrayOffset();
+        outer:
+        for (int i = b.position(); i <= b.limit() - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (array[offset + i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,289 @@
+package org.usfirst.frc2084.vision.capture;
+
+import java.util.ArrayDeque;
+import org.opencv.core.Mat;
+
+/**
+ * Decodes JPEG frames on several threads at once. At 30 fps and 800x600 one
+ * thread can spend all of its time decoding, so frames are handed out to a
+ * few workers, each with its own {@link ScaledJpegDecoder}.
+ * <p>
+ * Frames are always published in order. When a worker finishes a frame, it is
+ * only published if it is newer than the last published frame; otherwise a
+ * newer frame finished first and this one is dropped as late. If the workers
+ * fall behind, the oldest frames that haven't been started are dropped, so
+ * there are never more than a few frames waiting.
+ *
+ * @author Ben Wolsieffer
+ */
+public class ParallelDecoder {
+
+    /**
+     * A compressed frame waiting to be decoded. These are reused so the data
+     * arrays don't need to be allocated for every frame.
+     */
+    private static class Job {
+
+        byte[] data = new byte[0];
+        int length;
+        long sequence;
+        long timestamp;
+    }
+
+    private final int width;
+    private final int height;
+    private final int maxQueueDepth;
+    private final Thread[] workers;
+    private volatile boolean running = true;
+
+    // Guarded by queue
+    private final ArrayDeque<Job> queue = new ArrayDeque<>();
+    private final ArrayDeque<Job> freeJobs = new ArrayDeque<>();
+    private long nextSequence = 0;
+
+    // Guarded by publishLock
+    private final Object publishLock = new Object();
+    private Mat published = new Mat();
+    private long publishedSequence = -1;
+    private long publishedTimestamp;
+    private long takenSequence = -1;
+    /**
+     * The number of workers that haven't exited yet. The last one to exit
+     * releases the published image.
+     */
+    private int liveWorkers;
+
+    // Metrics
+    private volatile long decodedCount = 0;
+    private volatile long lateDropCount = 0;
+    private volatile long queueDropCount = 0;
+    private volatile double throughput = 0;
+    private long throughputWindowStart = System.nanoTime();
+    private int throughputWindowCount = 0;
+
+    /**
+     * Creates a decoder and starts its workers.
+     *
+     * @param threads the number of worker threads
+     * @param width the width to decode frames to
+     * @param height the height to decode frames to
+     */
+    public ParallelDecoder(int threads, int width, int height) {
+        this.width = width;
+        this.height = height;
+        // One frame waiting per worker is enough to keep them all busy
+        this.maxQueueDepth = threads;
+        workers = new Thread[threads];
+        liveWorkers = threads;
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread("Target Tracker Decoder " + i) {
+
+                @Override
+                public void run() {
+                    decodeLoop();
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a frame to be decoded. The data is copied, so the array can be
+     * reused as soon as this returns.
+     *
+     * @param data the JPEG data
+     * @param length the length of the JPEG data
+     * @param timestamp the time the frame was received, in
+     * {@link System#nanoTime()} units
+     */
+    public void submit(byte[] data, int length, long timestamp) {
+        synchronized (queue) {
+            if (queue.size() >= maxQueueDepth) {
+                freeJobs.addLast(queue.pollFirst());
+                queueDropCount++;
+            }
+            Job job = freeJobs.pollFirst();
+            if (job == null) {
+                job = new Job();
+            }
+            if (job.data.length < length) {
+                job.data = new byte[length];
+            }
+            System.arraycopy(data, 0, job.data, 0, length);
+            job.length = length;
+            job.sequence = nextSequence++;
+            job.timestamp = timestamp;
+            queue.addLast(job);
+            queue.notify();
+        }
+    }
+
+    /**
+     * Waits for a frame newer than the last one that was taken and copies it
+     * into an image. If several frames were published since the last call,
+     * only the newest one is returned.
+     *
+     * @param image the image to copy the frame into
+     * @param timeout the longest time to wait in milliseconds
+     * @return the timestamp the frame was received at, or -1 if no new frame
+     * was published in time
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public long awaitFrame(Mat image, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (publishLock) {
+            while (true) {
+                // The published image is released once the workers stop
+                if (!running) {
+                    return -1;
+                }
+                if (publishedSequence > takenSequence) {
+                    break;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return -1;
+                }
+                publishLock.wait(remaining);
+            }
+            published.copyTo(image);
+            takenSequence = publishedSequence;
+            return publishedTimestamp;
+        }
+    }
+
+    private void decodeLoop() {
+        ScaledJpegDecoder decoder = new ScaledJpegDecoder(width, height);
+        Mat image = new Mat();
+        try {
+            while (running) {
+                Job job;
+                synchronized (queue) {
+                    while (queue.isEmpty()) {
+                        if (!running) {
+                            return;
+                        }
+                        try {
+                            queue.wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                    job = queue.pollFirst();
+                }
+
+                boolean decoded = decoder.decode(job.data, job.length, image);
+                long sequence = job.sequence;
+                long timestamp = job.timestamp;
+                synchronized (queue) {
+                    freeJobs.addLast(job);
+                }
+                if (!decoded) {
+                    continue;
+                }
+
+                synchronized (publishLock) {
+                    countDecoded();
+                    if (sequence > publishedSequence) {
+                        // Swap instead of copying, the old published image
+                        // becomes this worker's next decode target
+                        Mat old = published;
+                        published = image;
+                        image = old;
+                        publishedSequence = sequence;
+                        publishedTimestamp = timestamp;
+                        publishLock.notifyAll();
+                    } else {
+                        lateDropCount++;
+                    }
+                }
+            }
+        } finally {
+            decoder.close();
+            synchronized (publishLock) {
+                // Each worker owns its own image, and the published one
+                // belongs to whoever is left last
+                image.release();
+                if (--liveWorkers == 0) {
+                    published.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the throughput once a second. This must be called while
+     * synchronized on the publish lock.
+     */
+    private void countDecoded() {
+        decodedCount++;
+        throughputWindowCount++;
+        long now = System.nanoTime();
+        if (now - throughputWindowStart >= 1000000000L) {
+            throughput = throughputWindowCount * 1e9 / (now - throughputWindowStart);
+            throughputWindowStart = now;
+            throughputWindowCount = 0;
+        }
+    }
+
+    /**
+     * Gets the number of frames decoded per second, including ones that were
+     * dropped as late.
+     *
+     * @return the decode throughput in frames per second
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Gets the number of frames waiting for a worker.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public long getDecodedCount() {
+        return decodedCount;
+    }
+
+    /**
+     * Gets the number of frames that were decoded but not published because
+     * a newer frame finished first.
+     *
+     * @return the number of late frames
+     */
+    public long getLateDropCount() {
+        return lateDropCount;
+    }
+
+    /**
+     * Gets the number of frames that were dropped from the queue before being
+     * decoded because the workers were behind.
+     *
+     * @return the number of frames dropped from the queue
+     */
+    public long getQueueDropCount() {
+        return queueDropCount;
+    }
+
+    /**
+     * Stops the workers. Frames that are being decoded are finished, but not
+     * published to anyone waiting. The images are released as the workers
+     * exit.
+     */
+    public void shutdown() {
+        running = false;
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+        synchronized (publishLock) {
+            publishLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package org.usfirst.frc2084.vision.capture;
+
+import com.googlecode.javacpp.BytePointer;
+import com.googlecode.javacpp.IntPointer;
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacpp.PointerPointer;
+import com.googlecode.javacv.cpp.avcodec;
+import com.googlecode.javacv.cpp.avcodec.AVCodec;
+import com.googlecode.javacv.cpp.avcodec.AVCodecContext;
+import com.googlecode.javacv.cpp.avcodec.AVPacket;
+import com.googlecode.javacv.cpp.avutil.AVFrame;
+import com.googlecode.javacv.cpp.swscale;
+import com.googlecode.javacv.cpp.swscale.SwsContext;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+import static com.googlecode.javacv.cpp.avcodec.*;
+import static com.googlecode.javacv.cpp.avutil.*;
+import static com.googlecode.javacv.cpp.swscale.*;
+
+/**
+ * Decodes JPEG frames straight to the processing resolution. When the camera
+ * sends bigger frames than we process, decoding the whole thing and then
+ * shrinking it wastes most of the decode time. FFmpeg's JPEG decoder can
+ * decode at 1/2, 1/4 or 1/8 scale in the DCT domain (its {@code lowres}
+ * option), which skips most of the inverse DCT work, so this picks the
+ * smallest scale that is still at least the processing resolution. Whatever
+ * scaling is left is done in the same pass as the color conversion.
+ * <p>
+ * If the FFmpeg libraries can't be loaded, it falls back to decoding with
+ * OpenCV and resizing.
+ * <p>
+ * A decoder is not thread-safe, each thread that decodes needs its own.
+ *
+ * @author Ben Wolsieffer
+ */
+public class ScaledJpegDecoder {
+
+    private static final boolean FFMPEG_AVAILABLE;
+
+    static {
+        boolean available;
+        try {
+            Loader.load(avcodec.class);
+            Loader.load(swscale.class);
+            avcodec_register_all();
+            available = true;
+        } catch (LinkageError ex) {
+            System.err.println("FFmpeg not available, JPEGs will be decoded at full size: " + ex);
+            available = false;
+        }
+        FFMPEG_AVAILABLE = available;
+    }
+
+    private final int width;
+    private final int height;
+
+    // FFmpeg state, only allocated if it is available
+    private AVCodec codec;
+    private AVCodecContext context;
+    private AVFrame frame;
+    private AVPacket packet;
+    private BytePointer input;
+    private int inputCapacity = 0;
+    private SwsContext sws;
+    private PointerPointer srcData;
+    private PointerPointer dstData;
+    private IntPointer srcStride;
+    private IntPointer dstStride;
+    private final int[] gotFrame = new int[1];
+    /**
+     * The lowres setting the codec was opened with, or -1 if it isn't open.
+     */
+    private int scaleShift = -1;
+
+    // Fallback state
+    private final MatOfByte encoded = new MatOfByte();
+
+    /**
+     * Creates a decoder.
+     *
+     * @param width the width of the images to decode to
+     * @param height the height of the images to decode to
+     */
+    public ScaledJpegDecoder(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Gets the DCT scaling that was used for the last frame.
+     *
+     * @return the power of two the frame was divided by, or -1 if FFmpeg is
+     * not being used
+     */
+    public int getScaleShift() {
+        return scaleShift;
+    }
+
+    public static boolean isFFmpegAvailable() {
+        return FFMPEG_AVAILABLE;
+    }
+
+    /**
+     * Decodes a JPEG into an image at the output resolution.
+     *
+     * @param data the JPEG data
+     * @param length the length of the JPEG data
+     * @param image the image to decode into, which is reallocated as 8-bit BGR
+     * at the output resolution if it isn't already
+     * @return whether the JPEG could be decoded
+     */
+    public boolean decode(byte[] data, int length, Mat image) {
+        if (image.rows() != height || image.cols() != width || image.type() != CvType.CV_8UC3) {
+            image.create(height, width, CvType.CV_8UC3);
+        }
+        if (FFMPEG_AVAILABLE) {
+            return decodeScaled(data, length, image);
+        } else {
+            return decodeFull(data, length, image);
+        }
+    }
+
+    private boolean decodeFull(byte[] data, int length, Mat image) {
+        encoded.create(length, 1, CvType.CV_8UC1);
+        encoded.put(0, 0, data);
+        Mat decoded = Highgui.imdecode(encoded, Highgui.CV_LOAD_IMAGE_COLOR);
+        if (decoded == null || decoded.empty()) {
+            return false;
+        }
+        if (decoded.cols() == width && decoded.rows() == height) {
+            decoded.copyTo(image);
+        } else {
+            Imgproc.resize(decoded, image, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        }
+        decoded.release();
+        return true;
+    }
+
+    private boolean decodeScaled(byte[] data, int length, Mat image) {
+        int[] size = readSize(data, length);
+        if (size == null) {
+            return false;
+        }
+        if (codec == null) {
+            codec = avcodec_find_decoder(AV_CODEC_ID_MJPEG);
+            packet = new AVPacket();
+            srcData = new PointerPointer(4);
+            dstData = new PointerPointer(4);
+            srcStride = new IntPointer(4);
+            dstStride = new IntPointer(4);
+        }
+        int shift = pickScaleShift(size[0], size[1]);
+        if (shift != scaleShift) {
+            openCodec(shift);
+        }
+
+        if (inputCapacity < length + FF_INPUT_BUFFER_PADDING_SIZE) {
+            if (input != null) {
+                input.deallocate();
+            }
+            inputCapacity = length + FF_INPUT_BUFFER_PADDING_SIZE;
+            input = new BytePointer(inputCapacity);
+        }
+        input.position(0);
+        input.put(data, 0, length);
+        // FFmpeg reads a little past the end, which has to be zeros
+        for (int i = 0; i < FF_INPUT_BUFFER_PADDING_SIZE; i++) {
+            input.put(length + i, (byte) 0);
+        }
+        av_init_packet(packet);
+        packet.data(input);
+        packet.size(length);
+
+        if (avcodec_decode_video2(context, frame, gotFrame, packet) < 0 || gotFrame[0] == 0) {
+            return false;
+        }
+        convert(image);
+        return true;
+    }
+
+    /**
+     * Picks the largest DCT scaling that keeps the frame at least as big as
+     * the output.
+     */
+    private int pickScaleShift(int jpegWidth, int jpegHeight) {
+        int shift = 0;
+        while (shift < codec.max_lowres()
+                && (jpegWidth >> (shift + 1)) >= width && (jpegHeight >> (shift + 1)) >= height) {
+            shift++;
+        }
+        return shift;
+    }
+
+    private void openCodec(int shift) {
+        closeCodec();
+        context = avcodec_alloc_context3(codec);
+        context.lowres(shift);
+        if (avcodec_open2(context, codec, (PointerPointer) null) < 0) {
+            throw new IllegalStateException("Could not open the FFmpeg JPEG decoder");
+        }
+        frame = avcodec_alloc_frame();
+        scaleShift = shift;
+    }
+
+    /**
+     * Converts the decoded frame to BGR at the output resolution and writes
+     * it into the image.
+     */
+    private void convert(Mat image) {
+        int format = frame.format();
+        sws = sws_getCachedContext(sws, frame.width(), frame.height(), format, width, height, AV_PIX_FMT_BGR24,
+                SWS_FAST_BILINEAR, null, null, (double[]) null);
+
+        int planes = format == AV_PIX_FMT_GRAY8 ? 1 : 3;
+        for (int i = 0; i < planes; i++) {
+            srcData.put(i, frame.data(i));
+            srcStride.put(i, frame.linesize(i));
+        }
+
+        long step = image.step1();
+        dstData.put(0, new Address(image.dataAddr()));
+        dstStride.put(0, (int) step);
+
+        sws_scale(sws, srcData, srcStride, 0, frame.height(), dstData, dstStride);
+    }
+
+    /**
+     * Finds the size of a JPEG from its start of frame marker.
+     *
+     * @return the width and height, or null if it isn't a valid JPEG
+     */
+    private static int[] readSize(byte[] data, int length) {
+        if (length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        int i = 2;
+        while (i + 9 < length) {
+            if ((data[i] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = data[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                i++;
+                continue;
+            }
+            int segmentLength = ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+            // SOF0 to SOF15, except DHT, JPG and DAC which share the range
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                int h = ((data[i + 5] & 0xFF) << 8) | (data[i + 6] & 0xFF);
+                int w = ((data[i + 7] & 0xFF) << 8) | (data[i + 8] & 0xFF);
+                return new int[]{w, h};
+            }
+            i += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    private void closeCodec() {
+        if (context != null) {
+            avcodec_close(context);
+            av_free(context);
+            context = null;
+        }
+        if (frame != null) {
+            avcodec_free_frame(frame);
+            frame = null;
+        }
+        scaleShift = -1;
+    }
+
+    /**
+     * Frees the native resources used by the decoder. It can't be used after
+     * this.
+     */
+    public void close() {
+        if (FFMPEG_AVAILABLE) {
+            closeCodec();
+            if (sws != null) {
+                sws_freeContext(sws);
+                sws = null;
+            }
+            if (input != null) {
+                input.deallocate();
+                input = null;
+            }
+        }
+        encoded.release();
+    }
+}
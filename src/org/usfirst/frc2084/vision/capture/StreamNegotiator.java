@@ -0,0 +1,169 @@
+package org.usfirst.frc2084.vision.capture;
+
+/**
+ * Picks the {@link StreamParameters} to ask the camera for, so it doesn't
+ * send frames that are bigger than we process or faster than we can process
+ * them. Every frame the camera sends has to go over the robot's radio and be
+ * decoded, even if it ends up being skipped.
+ * <p>
+ * The resolution is the smallest one the camera supports that is at least the
+ * processing resolution. The frame rate is picked from a few steps based on
+ * how long processing takes, leaving some headroom. Changing the parameters
+ * means reconnecting to the camera, which drops frames for a moment, so a new
+ * frame rate has to hold for a while before it is used, and the stream is not
+ * renegotiated more often than every few seconds.
+ *
+ * @author Ben Wolsieffer
+ */
+public class StreamNegotiator {
+
+    /**
+     * Resolutions that Axis cameras support, from smallest to largest.
+     */
+    private static final int[][] RESOLUTIONS = {
+        {160, 120}, {320, 240}, {480, 360}, {640, 480}, {800, 600}, {1024, 768}, {1280, 960}
+    };
+    /**
+     * The frame rates that are requested. Only using a few steps keeps small
+     * changes in the processing time from causing a reconnect.
+     */
+    private static final int[] FPS_STEPS = {5, 10, 15, 20, 30};
+    /**
+     * The fraction of the processing capacity to ask for, so there is some
+     * room left when a frame takes longer than average.
+     */
+    private static final double HEADROOM = 0.8;
+    /**
+     * How long a different frame rate has to be wanted before switching to
+     * it, in milliseconds.
+     */
+    private static final long HOLD_TIME = 3000;
+    /**
+     * The minimum time between renegotiations in milliseconds.
+     */
+    private static final long MIN_RENEGOTIATE_INTERVAL = 10000;
+
+    public static final int DEFAULT_COMPRESSION = 30;
+
+    private final int processingWidth;
+    private final int processingHeight;
+    private int width;
+    private int height;
+    private final int compression;
+
+    /**
+     * The last parameters that were picked. This is changed on the processing
+     * thread, but can be read from anywhere.
+     */
+    private volatile StreamParameters parameters;
+    private long lastNegotiateTime;
+    private int wantedFps = -1;
+    private long wantedSince;
+
+    /**
+     * Creates a negotiator. The first parameters request the highest frame
+     * rate, since nothing has been processed yet.
+     *
+     * @param processingWidth the width of the processed images
+     * @param processingHeight the height of the processed images
+     * @param compression the Axis compression level to ask for
+     */
+    public StreamNegotiator(int processingWidth, int processingHeight, int compression) {
+        this.processingWidth = processingWidth;
+        this.processingHeight = processingHeight;
+        int[] resolution = pickResolution(processingWidth, processingHeight);
+        this.width = resolution[0];
+        this.height = resolution[1];
+        this.compression = compression;
+        parameters = new StreamParameters(width, height, FPS_STEPS[FPS_STEPS.length - 1], compression);
+        lastNegotiateTime = System.nanoTime();
+    }
+
+    public StreamParameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Updates the negotiator with the latest processing time.
+     *
+     * @param processingTime the average time it takes to process a frame in
+     * milliseconds, or a negative number if it isn't known yet
+     * @return the new parameters if the stream should be renegotiated, or null
+     * if it should be left alone
+     */
+    public StreamParameters update(double processingTime) {
+        if (processingTime <= 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        int fps = pickFps(1000 / processingTime * HEADROOM);
+        if (fps == parameters.fps) {
+            wantedFps = -1;
+            return null;
+        }
+        if (fps != wantedFps) {
+            wantedFps = fps;
+            wantedSince = now;
+            return null;
+        }
+        if ((now - wantedSince) / 1000000 < HOLD_TIME
+                || (now - lastNegotiateTime) / 1000000 < MIN_RENEGOTIATE_INTERVAL) {
+            return null;
+        }
+        parameters = new StreamParameters(width, height, fps, compression);
+        lastNegotiateTime = now;
+        wantedFps = -1;
+        return parameters;
+    }
+
+    /**
+     * Asks for a different resolution, keeping the current frame rate. This
+     * takes effect right away, since it is only done when the user asks.
+     *
+     * @param requestedWidth the width to ask for, or 0 to pick one based on
+     * the processing size
+     * @param requestedHeight the height to ask for, or 0 to pick one based on
+     * the processing size
+     * @return the new parameters, or null if the resolution didn't change
+     */
+    public StreamParameters setResolution(int requestedWidth, int requestedHeight) {
+        int[] resolution = requestedWidth > 0 && requestedHeight > 0
+                ? pickResolution(requestedWidth, requestedHeight)
+                : pickResolution(processingWidth, processingHeight);
+        if (resolution[0] == width && resolution[1] == height) {
+            return null;
+        }
+        width = resolution[0];
+        height = resolution[1];
+        parameters = new StreamParameters(width, height, parameters.fps, compression);
+        lastNegotiateTime = System.nanoTime();
+        return parameters;
+    }
+
+    /**
+     * Gets the smallest resolution the camera supports that is at least the
+     * specified size, or the largest one if none of them are.
+     */
+    private static int[] pickResolution(int minWidth, int minHeight) {
+        for (int[] r : RESOLUTIONS) {
+            if (r[0] >= minWidth && r[1] >= minHeight) {
+                return r;
+            }
+        }
+        return RESOLUTIONS[RESOLUTIONS.length - 1];
+    }
+
+    /**
+     * Gets the highest frame rate step that is not more than the capacity, or
+     * the lowest step if they all are.
+     */
+    private static int pickFps(double capacity) {
+        int fps = FPS_STEPS[0];
+        for (int step : FPS_STEPS) {
+            if (step <= capacity) {
+                fps = step;
+            }
+        }
+        return fps;
+    }
+}
@@ -0,0 +1,59 @@
+package org.usfirst.frc2084.vision.capture;
+
+import java.util.Locale;
+
+/**
+ * The resolution, frame rate and compression to request from an Axis camera.
+ * These are sent as VAPIX query parameters on the stream URL, and the camera
+ * encodes the stream to match, instead of whatever it is configured to send.
+ *
+ * @author Ben Wolsieffer
+ */
+public class StreamParameters {
+
+    public final int width;
+    public final int height;
+    public final int fps;
+    /**
+     * The Axis compression level from 0 (best quality) to 100 (smallest
+     * frames).
+     */
+    public final int compression;
+
+    public StreamParameters(int width, int height, int fps, int compression) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.compression = compression;
+    }
+
+    /**
+     * Gets the VAPIX query string for these parameters, without the leading
+     * {@code ?}.
+     *
+     * @return the query string
+     */
+    public String toQuery() {
+        return String.format(Locale.ROOT, "resolution=%dx%d&fps=%d&compression=%d", width, height, fps, compression);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof StreamParameters)) {
+            return false;
+        }
+        StreamParameters other = (StreamParameters) obj;
+        return width == other.width && height == other.height
+                && fps == other.fps && compression == other.compression;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((width * 31 + height) * 31 + fps) * 31 + compression;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " at " + fps + " fps, compression " + compression;
+    }
+}
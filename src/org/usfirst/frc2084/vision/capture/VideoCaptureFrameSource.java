@@ -0,0 +1,54 @@
+package org.usfirst.frc2084.vision.capture;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.VideoCapture;
+
+/**
+ * Reads frames with OpenCV's {@link VideoCapture}, which is what the extension
+ * has always used. It can open both camera streams and video files.
+ * <p>
+ * Be aware that {@link VideoCapture#read(Mat)} blocks forever if a camera
+ * disconnects, and there is no way to make it stop, so {@link #abort()} can't
+ * do anything.
+ *
+ * @author Ben Wolsieffer
+ */
+public class VideoCaptureFrameSource extends AbstractFrameSource {
+
+    private final VideoCapture vcap = new VideoCapture();
+    private final String url;
+
+    /**
+     * Creates a source for a URL or file.
+     *
+     * @param url the URL of the stream, or the path to a video file
+     */
+    public VideoCaptureFrameSource(String url) {
+        this.url = url;
+    }
+
+    @Override
+    public boolean open() {
+        return vcap.open(url);
+    }
+
+    @Override
+    protected boolean readFrame(Mat image) {
+        return vcap.read(image);
+    }
+
+    @Override
+    public void close() {
+        vcap.release();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return vcap.isOpened();
+    }
+
+    @Override
+    public String toString() {
+        return "OpenCV " + url;
+    }
+}
@@ -0,0 +1,74 @@
+package org.usfirst.frc2084.vision.capture;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.VideoCapture;
+
+/**
+ * Plays back a recorded video file as if it were a camera. Frames are
+ * returned at the frame rate of the file (or as fast as possible if it isn't
+ * paced), and when the file ends the read fails, so the capture thread reopens
+ * it and it loops.
+ *
+ * @author Ben Wolsieffer
+ */
+public class VideoFileFrameSource extends AbstractFrameSource {
+
+    /**
+     * The {@link VideoCapture} property for the frame rate.
+     */
+    private static final int CV_CAP_PROP_FPS = 5;
+
+    private final VideoCapture vcap = new VideoCapture();
+    private final String path;
+    private final boolean paced;
+    private long frameInterval;
+    private long nextFrameTime;
+
+    /**
+     * Creates a source for a video file.
+     *
+     * @param path the path to the file
+     * @param paced whether to play it back at its own frame rate instead of as
+     * fast as it can be read
+     */
+    public VideoFileFrameSource(String path, boolean paced) {
+        this.path = path;
+        this.paced = paced;
+    }
+
+    @Override
+    public boolean open() {
+        if (!vcap.open(path)) {
+            return false;
+        }
+        double fps = vcap.get(CV_CAP_PROP_FPS);
+        // Some files don't have a frame rate, so assume it is the camera's
+        frameInterval = (long) (1e9 / (fps > 0 ? fps : 30));
+        nextFrameTime = System.nanoTime();
+        return true;
+    }
+
+    @Override
+    protected boolean readFrame(Mat image) {
+        if (paced) {
+            sleepUntil(nextFrameTime);
+            nextFrameTime += frameInterval;
+        }
+        return vcap.read(image);
+    }
+
+    @Override
+    public void close() {
+        vcap.release();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return vcap.isOpened();
+    }
+
+    @Override
+    public String toString() {
+        return "file " + path;
+    }
+}
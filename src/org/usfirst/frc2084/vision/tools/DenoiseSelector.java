@@ -0,0 +1,181 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.CalibrationProfile;
+import org.usfirst.frc2084.vision.CalibrationProfile.DenoiseMode;
+import org.usfirst.frc2084.vision.TargetTrackingProcessor;
+
+/**
+ * Tries every way of cleaning up the threshold mask on a directory of labeled
+ * frames (the same {@link ThresholdOptimizer#LABELS_FILE_NAME} format the
+ * optimizer uses) and picks the cheapest one that is still accurate enough.
+ * <p>
+ * Each option is run over the frames in order with a new processor, so
+ * skipping clean frames works like it would on a live stream, and then timed
+ * over several more passes on one thread. Its cost is how much slower the
+ * whole detection is than with no denoising at all, which includes any extra
+ * contours that have to be found because of the noise. The accuracy target is
+ * the fraction of targets that have to be right, and it defaults to whatever
+ * the profile's current setting gets, so the pick is never worse than what we
+ * have now.
+ * <p>
+ * Usage:
+ * {@code DenoiseSelector [-profile file] [-target accuracy] [-repeats n] [-o profile file] <frame directory>}
+ *
+ * @author Ben Wolsieffer
+ */
+public class DenoiseSelector {
+
+    private static final int DEFAULT_REPEATS = 10;
+
+    private static final int[] MEDIAN_SIZES = {3, 5, 7, 9, 13};
+    private static final int[] BOX_SIZES = {3, 5, 7, 9, 13};
+    private static final int[] OPEN_CLOSE_SIZES = {2, 3, 5};
+
+    /**
+     * How one option did.
+     */
+    private static class Result {
+
+        final CalibrationProfile profile;
+        final double accuracy;
+        final double frameTime;
+        final double skipped;
+
+        Result(CalibrationProfile profile, double accuracy, double frameTime, double skipped) {
+            this.profile = profile;
+            this.accuracy = accuracy;
+            this.frameTime = frameTime;
+            this.skipped = skipped;
+        }
+
+        String describe() {
+            return profile.getDenoiseMode() + " " + profile.getBlurSize()
+                    + (profile.isSkipCleanFrames() ? " skip clean" : "");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File profileFile = null;
+        double target = -1;
+        int repeats = DEFAULT_REPEATS;
+        File output = null;
+        File dir = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-profile":
+                    profileFile = new File(args[++i]);
+                    break;
+                case "-target":
+                    target = Double.parseDouble(args[++i]);
+                    break;
+                case "-repeats":
+                    repeats = Integer.parseInt(args[++i]);
+                    break;
+                case "-o":
+                    output = new File(args[++i]);
+                    break;
+                default:
+                    dir = new File(args[i]);
+            }
+        }
+        File labelsFile = dir != null ? new File(dir, ThresholdOptimizer.LABELS_FILE_NAME) : null;
+        if (labelsFile == null || !labelsFile.isFile()) {
+            System.err.println("Usage: DenoiseSelector [-profile file] [-target accuracy] [-repeats n] [-o profile file] <frame directory>");
+            System.err.println("The directory must have a " + ThresholdOptimizer.LABELS_FILE_NAME + " file.");
+            System.exit(2);
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        CalibrationProfile profile = profileFile != null
+                ? CalibrationProfile.load(profileFile) : CalibrationProfile.DEFAULT;
+
+        FrameCorpus corpus = FrameCorpus.load(dir);
+        if (corpus.size() == 0) {
+            System.err.println("No labeled frames in " + labelsFile);
+            System.exit(1);
+        }
+        System.out.println("Loaded " + corpus.size() + " labeled frames");
+
+        // The options to try, starting with no denoising, which everything
+        // else is compared to
+        List<CalibrationProfile> options = new ArrayList<>();
+        options.add(profile.withDenoiseMode(DenoiseMode.NONE));
+        for (boolean skip : new boolean[]{false, true}) {
+            CalibrationProfile p = profile.withSkipCleanFrames(skip);
+            for (int size : MEDIAN_SIZES) {
+                options.add(p.withBlurSize(size).withDenoiseMode(DenoiseMode.MEDIAN));
+            }
+            for (int size : BOX_SIZES) {
+                options.add(p.withDenoiseMode(DenoiseMode.BOX).withBlurSize(size));
+            }
+            for (int size : OPEN_CLOSE_SIZES) {
+                options.add(p.withDenoiseMode(DenoiseMode.OPEN_CLOSE).withBlurSize(size));
+            }
+        }
+
+        Result current = run(profile, corpus, repeats);
+        if (target < 0) {
+            target = current.accuracy;
+        }
+        List<Result> results = new ArrayList<>();
+        for (CalibrationProfile p : options) {
+            results.add(run(p, corpus, repeats));
+        }
+        double baseTime = results.get(0).frameTime;
+
+        System.out.println("Option                  correct  ms/frame  denoise ms  skipped");
+        Result best = null;
+        for (Result r : results) {
+            System.out.println(String.format(Locale.ROOT, "%-22s %7.1f%% %9.3f %11.3f %7.0f%%",
+                    r.describe(), r.accuracy * 100, r.frameTime, r.frameTime - baseTime, r.skipped * 100));
+            // Allow for rounding, so the current setting always meets its own
+            // accuracy
+            if (r.accuracy >= target - 1e-9 && (best == null || r.frameTime < best.frameTime)) {
+                best = r;
+            }
+        }
+        System.out.println(String.format(Locale.ROOT, "Current: %s, %.1f%% correct, %.3f ms/frame",
+                current.describe(), current.accuracy * 100, current.frameTime));
+        if (best == null) {
+            System.out.println(String.format(Locale.ROOT, "Nothing reaches %.1f%% correct", target * 100));
+            System.exit(1);
+        }
+        System.out.println(String.format(Locale.ROOT, "Cheapest with at least %.1f%% correct: %s, %.1f%% correct, %.3f ms/frame",
+                target * 100, best.describe(), best.accuracy * 100, best.frameTime));
+        if (output != null) {
+            best.profile.save(output, "Denoise picked by DenoiseSelector on " + dir);
+            System.out.println("Saved " + output);
+        }
+    }
+
+    /**
+     * Runs one option over all of the frames.
+     */
+    private static Result run(CalibrationProfile profile, FrameCorpus corpus, int repeats) {
+        TargetTrackingProcessor processor = new TargetTrackingProcessor();
+        List<Mat> frames = corpus.frames;
+        int correct = 0;
+        int skipped = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            correct += corpus.countCorrect(i, processor.detect(frames.get(i), profile, i, 0));
+            if (!processor.isLastFrameDenoised()) {
+                skipped++;
+            }
+        }
+        long start = System.nanoTime();
+        for (int r = 0; r < repeats; r++) {
+            for (int i = 0; i < frames.size(); i++) {
+                processor.detect(frames.get(i), profile, i, 0);
+            }
+        }
+        double frameTime = (System.nanoTime() - start) / 1e6 / repeats / frames.size();
+        return new Result(profile, correct / (2.0 * frames.size()), frameTime, (double) skipped / frames.size());
+    }
+}
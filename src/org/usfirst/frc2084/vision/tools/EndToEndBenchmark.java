@@ -0,0 +1,124 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.awt.image.BufferedImage;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.Detection;
+import org.usfirst.frc2084.vision.ProcessingListener;
+import org.usfirst.frc2084.vision.ProcessingThread;
+import org.usfirst.frc2084.vision.ResultPublisher;
+import org.usfirst.frc2084.vision.SimulatedCommunication;
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+import org.usfirst.frc2084.vision.TargetTrackingProcessor;
+import org.usfirst.frc2084.vision.VideoCaptureThread;
+import static org.usfirst.frc2084.vision.TargetTrackingExtension.IMAGE_SIZE;
+
+/**
+ * Runs the whole extension pipeline without a robot or a camera: synthetic
+ * MJPEG frames from a {@link SyntheticMjpegServer} are captured by the
+ * {@link VideoCaptureThread}, processed by the {@link ProcessingThread} and the
+ * results published to a {@link SimulatedCommunication}. The goal alternates
+ * between hot and not hot in each simulated autonomous period.
+ * <p>
+ * It reports the percentiles of the latency from frame capture to the result
+ * being published, and from the capture of the frame that made the decision to
+ * the {@code goal_hot} write, along with how many decisions were correct.
+ * <p>
+ * Usage: {@code EndToEndBenchmark [seconds] [fps]}
+ *
+ * @author Ben Wolsieffer
+ */
+public class EndToEndBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        int fps = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        final SyntheticMjpegServer server = new SyntheticMjpegServer(0, (int) IMAGE_SIZE.width, (int) IMAGE_SIZE.height, fps);
+        final int[] correct = new int[1];
+        final int[] decisions = new int[1];
+        final SimulatedCommunication robot = new SimulatedCommunication(10000, 2000) {
+
+            @Override
+            protected void autonomousStarted(int period) {
+                server.setHot(period % 2 == 0);
+            }
+
+            @Override
+            protected void autonomousEnded(int period, State state) {
+                if (!state.equals(State.UNKNOWN)) {
+                    decisions[0]++;
+                    if (state.equals(period % 2 == 0 ? State.HOT : State.NOT_HOT)) {
+                        correct[0]++;
+                    }
+                }
+                System.out.println("Autonomous " + period + ": told robot " + state);
+            }
+        };
+
+        final LatencyStats captureToResult = new LatencyStats(1000000);
+        final LatencyStats captureToDecision = new LatencyStats(10000);
+
+        TargetTrackingProcessor processor = new TargetTrackingProcessor(robot);
+        processor.addListener(new ResultPublisher(robot));
+        processor.addListener(new ProcessingListener() {
+
+            private long lastCapture;
+
+            @Override
+            public void frameProcessed(Mat image, Detection detection, double hotFrameRatio) {
+                lastCapture = detection.getTimestamp();
+                captureToResult.add(System.nanoTime() - lastCapture);
+            }
+
+            @Override
+            public void stateReported(State state, double hotFrameRatio) {
+                if (!state.equals(State.UNKNOWN)) {
+                    int writes = robot.getStateWriteCount();
+                    captureToDecision.add(robot.getStateWriteTime(writes - 1) - lastCapture);
+                }
+            }
+        });
+
+        Mat image = new Mat(IMAGE_SIZE, CvType.CV_8UC3);
+        VideoCaptureThread captureThread = new VideoCaptureThread(image);
+        captureThread.setIP(server.getAddress());
+        ProcessingThread processingThread = new ProcessingThread(processor, captureThread, image, robot,
+                new ProcessingThread.FrameListener() {
+
+                    @Override
+                    public boolean isShowingFrames() {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean isShowingMask() {
+                        return false;
+                    }
+
+                    @Override
+                    public void frameReady(BufferedImage image, BufferedImage mask, Detection detection) {
+                    }
+                });
+
+        robot.start();
+        processingThread.start();
+        Thread.sleep(seconds * 1000L);
+
+        robot.stop();
+        processingThread.destroy();
+        processingThread.join();
+        captureThread.stop();
+        server.close();
+
+        System.out.println(decisions[0] + " decisions, " + correct[0] + " correct, "
+                + robot.getResultCount() + " results published");
+        System.out.println(server.getBytesSent() / 1024 + " KB of frames sent for " + server.getLastRequest());
+        captureToResult.print("Capture to processed");
+        captureToDecision.print("Capture to goal_hot write");
+        System.exit(0);
+    }
+}
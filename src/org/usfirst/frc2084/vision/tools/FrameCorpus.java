@@ -0,0 +1,122 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.highgui.Highgui;
+import org.usfirst.frc2084.vision.Detection;
+
+/**
+ * A directory of recorded frames, loaded into memory so the benchmarks only
+ * time the processing. If the directory has a
+ * {@link ThresholdOptimizer#LABELS_FILE_NAME} file, only the labeled frames
+ * are loaded, along with their labels.
+ *
+ * @author Ben Wolsieffer
+ */
+class FrameCorpus {
+
+    /**
+     * The frames, in BGR.
+     */
+    final List<Mat> frames = new ArrayList<>();
+    /**
+     * The static and hot labels of each frame, or null if the frames aren't
+     * labeled.
+     */
+    final List<Rect[]> labels;
+
+    private FrameCorpus(boolean labeled) {
+        labels = labeled ? new ArrayList<Rect[]>() : null;
+    }
+
+    /**
+     * Loads the frames in a directory.
+     *
+     * @param dir the directory
+     * @return the frames
+     * @throws IOException if a frame or the labels couldn't be read
+     */
+    static FrameCorpus load(File dir) throws IOException {
+        File labelsFile = new File(dir, ThresholdOptimizer.LABELS_FILE_NAME);
+        if (!labelsFile.isFile()) {
+            FrameCorpus corpus = new FrameCorpus(false);
+            File[] files = dir.listFiles(ReplayHarness.FRAME_FILTER);
+            Arrays.sort(files);
+            for (File f : files) {
+                corpus.frames.add(readFrame(f));
+            }
+            return corpus;
+        }
+        FrameCorpus corpus = new FrameCorpus(true);
+        try (BufferedReader in = new BufferedReader(new FileReader(labelsFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length != 3) {
+                    throw new IOException("Invalid label line: " + line);
+                }
+                corpus.frames.add(readFrame(new File(dir, parts[0])));
+                corpus.labels.add(new Rect[]{ThresholdOptimizer.parseBox(parts[1]), ThresholdOptimizer.parseBox(parts[2])});
+            }
+        }
+        return corpus;
+    }
+
+    boolean isLabeled() {
+        return labels != null;
+    }
+
+    int size() {
+        return frames.size();
+    }
+
+    /**
+     * Counts how many of the targets in a detection of a frame match its
+     * labels.
+     *
+     * @param frame the index of the frame
+     * @param detection the detection
+     * @return the number of targets that are right, from 0 to 2
+     */
+    int countCorrect(int frame, Detection detection) {
+        Rect[] l = labels.get(frame);
+        return (ThresholdOptimizer.matches(detection.getStaticTarget(), l[0]) ? 1 : 0)
+                + (ThresholdOptimizer.matches(detection.getHotTarget(), l[1]) ? 1 : 0);
+    }
+
+    /**
+     * Counts how many of the targets in one detection match the ones in
+     * another.
+     *
+     * @param a the first detection
+     * @param b the detection to compare against
+     * @return the number of targets that agree, from 0 to 2
+     */
+    static int countAgreeing(Detection a, Detection b) {
+        return (ThresholdOptimizer.matches(a.getStaticTarget(), toRect(b.getStaticTarget())) ? 1 : 0)
+                + (ThresholdOptimizer.matches(a.getHotTarget(), toRect(b.getHotTarget())) ? 1 : 0);
+    }
+
+    private static Rect toRect(Detection.Candidate c) {
+        return c != null ? new Rect(c.x, c.y, c.width, c.height) : null;
+    }
+
+    private static Mat readFrame(File file) throws IOException {
+        Mat image = Highgui.imread(file.getPath());
+        if (image.empty()) {
+            throw new IOException("Could not read frame: " + file);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,63 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.opencv.core.Core;
+import org.usfirst.frc2084.vision.CameraConfig;
+import org.usfirst.frc2084.vision.MultiCameraEngine;
+import org.usfirst.frc2084.vision.NetworkTableCommunication;
+import org.usfirst.frc2084.vision.ProfileLibrary;
+
+/**
+ * Runs the target tracking on several cameras without the dashboard, using a
+ * {@link MultiCameraEngine}. It prints how many frames from each camera were
+ * processed and skipped every few seconds.
+ * <p>
+ * Usage:
+ * {@code HeadlessMultiCamera [-threads n] [-profiles file] name,host[:port][,priority[,profile]]...}
+ * <p>
+ * The profiles file is needed for cameras that have their own profile.
+ *
+ * @author Ben Wolsieffer
+ */
+public class HeadlessMultiCamera {
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        File profiles = null;
+        List<CameraConfig> cameras = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-profiles")) {
+                profiles = new File(args[++i]);
+            } else {
+                cameras.add(CameraConfig.parse(args[i]));
+            }
+        }
+        if (cameras.isEmpty()) {
+            System.err.println("Usage: HeadlessMultiCamera [-threads n] [-profiles file] name,host[:port][,priority[,profile]]...");
+            System.exit(2);
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        MultiCameraEngine engine = new MultiCameraEngine(cameras, NetworkTableCommunication.getInstance(), threads);
+        if (profiles != null) {
+            engine.setProfileLibrary(ProfileLibrary.load(profiles));
+        }
+        engine.start();
+
+        while (true) {
+            Thread.sleep(5000);
+            for (int i = 0; i < engine.getCameraCount(); i++) {
+                System.out.println(engine.getCameraConfig(i).getName() + ": "
+                        + engine.getProcessedFrames(i) + " processed, "
+                        + engine.getSkippedFrames(i) + " skipped, state "
+                        + engine.getCameraState(i)
+                        + (engine.isCameraStale(i) ? " (stale)" : ""));
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples for the benchmarks and prints their percentiles.
+ * Samples are stored in a preallocated array so that recording them does not
+ * disturb what is being measured.
+ *
+ * @author Ben Wolsieffer
+ */
+public class LatencyStats {
+
+    private final long[] samples;
+    private int count = 0;
+
+    /**
+     * Creates a new set of statistics.
+     *
+     * @param capacity the maximum number of samples. Samples after this are
+     * ignored.
+     */
+    public LatencyStats(int capacity) {
+        samples = new long[capacity];
+    }
+
+    /**
+     * Records a sample.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void add(long nanos) {
+        if (count < samples.length) {
+            samples[count++] = nanos;
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets a percentile of the recorded samples.
+     *
+     * @param percentile the percentile (0-100)
+     * @return the latency in nanoseconds, or -1 if there are no samples
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * Prints the number of samples and the common percentiles in
+     * milliseconds.
+     *
+     * @param name the name of what was measured
+     */
+    public void print(String name) {
+        System.out.printf("%s: n=%d p50=%.3f ms p90=%.3f ms p99=%.3f ms max=%.3f ms%n", name, getCount(),
+                getPercentile(50) / 1e6, getPercentile(90) / 1e6, getPercentile(99) / 1e6, getPercentile(100) / 1e6);
+    }
+}
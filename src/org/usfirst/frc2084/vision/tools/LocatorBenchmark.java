@@ -0,0 +1,42 @@
+package org.usfirst.frc2084.vision.tools;
+
+import org.usfirst.frc2084.vision.CalibrationProfile;
+import org.usfirst.frc2084.vision.CalibrationProfile.LocatorMode;
+
+/**
+ * Compares the ways of finding blobs in the threshold mask (tracing contours,
+ * the row and column sums of a
+ * {@link org.usfirst.frc2084.vision.ProjectionLocator}, the sums followed by
+ * contours, and runs in a {@link org.usfirst.frc2084.vision.PackedMask}) on a
+ * directory of frames. With no denoising or an open/close, the run-length
+ * mode also thresholds in Java, so it compares the whole JVM path against the
+ * native one.
+ * <p>
+ * Each mode is timed by a {@link ModeBenchmark}. Everything except finding
+ * the blobs is the same for each mode, so the differences between them are
+ * the differences between the locators. The modes that don't trace outlines
+ * measure the blobs the way an outline would (see
+ * {@link org.usfirst.frc2084.vision.Target#Target(java.awt.Rectangle,
+ * double, org.usfirst.frc2084.vision.CalibrationProfile)}), so they only
+ * disagree with contours when a blob isn't a rectangle. It also prints how
+ * often each mode finds the same targets as tracing contours, and if the
+ * directory has a {@link ThresholdOptimizer#LABELS_FILE_NAME} file, how many
+ * targets each mode gets right.
+ * <p>
+ * Usage:
+ * {@code LocatorBenchmark [-profile file] [-repeats n] <frame directory>}
+ *
+ * @author Ben Wolsieffer
+ */
+public class LocatorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        new ModeBenchmark<LocatorMode>("LocatorBenchmark", "", LocatorMode.values(), "Locator", "contours") {
+
+            @Override
+            protected CalibrationProfile withMode(CalibrationProfile profile, LocatorMode mode) {
+                return profile.withLocatorMode(mode);
+            }
+        }.run(args);
+    }
+}
@@ -0,0 +1,169 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.CalibrationProfile;
+import org.usfirst.frc2084.vision.Detection;
+import org.usfirst.frc2084.vision.TargetTrackingProcessor;
+
+/**
+ * The part of the benchmarks that compare the modes of one setting that is
+ * the same for all of them. It loads a {@link FrameCorpus}, runs every mode
+ * over every frame several times on one thread, and prints the average time
+ * per frame, how often each mode finds the same targets as the first one, and
+ * how many targets each mode gets right if the frames are labeled.
+ * <p>
+ * Each benchmark only has to say how to switch a profile to a mode, and can
+ * add its own options.
+ *
+ * @param <M> the type of the modes
+ * @author Ben Wolsieffer
+ */
+abstract class ModeBenchmark<M> {
+
+    private static final int DEFAULT_REPEATS = 20;
+
+    private final String name;
+    private final String usage;
+    private final M[] modes;
+    private final String columnName;
+    private final String baselineName;
+
+    /**
+     * Creates a benchmark.
+     *
+     * @param name the name of the tool, for the usage message
+     * @param usage the tool's own options, for the usage message
+     * @param modes the modes to compare. The first one is what the others are
+     * compared to.
+     * @param columnName the name of the mode column
+     * @param baselineName what to call the first mode in the agreement column
+     */
+    ModeBenchmark(String name, String usage, M[] modes, String columnName, String baselineName) {
+        this.name = name;
+        this.usage = usage;
+        this.modes = modes;
+        this.columnName = columnName;
+        this.baselineName = baselineName;
+    }
+
+    /**
+     * Handles an option that only this benchmark has.
+     *
+     * @param args the arguments
+     * @param i the index of the option
+     * @return the index of the last argument that was used, or -1 if it isn't
+     * one of this benchmark's options
+     */
+    protected int parseOption(String[] args, int i) {
+        return -1;
+    }
+
+    /**
+     * Changes the profile before any modes are run, so options can change
+     * it.
+     *
+     * @param profile the profile from the command line, or the default
+     * @return the profile to use
+     */
+    protected CalibrationProfile setUp(CalibrationProfile profile) {
+        return profile;
+    }
+
+    /**
+     * Switches a profile to one of the modes.
+     *
+     * @param profile the profile
+     * @param mode the mode
+     * @return the profile with the mode
+     */
+    protected abstract CalibrationProfile withMode(CalibrationProfile profile, M mode);
+
+    /**
+     * Parses the arguments, runs the benchmark and prints the results.
+     *
+     * @param args the command line arguments
+     * @throws IOException if the frames or the profile can't be read
+     */
+    void run(String[] args) throws IOException {
+        File profileFile = null;
+        int repeats = DEFAULT_REPEATS;
+        File dir = null;
+        for (int i = 0; i < args.length; i++) {
+            int last = parseOption(args, i);
+            if (last >= 0) {
+                i = last;
+                continue;
+            }
+            switch (args[i]) {
+                case "-profile":
+                    profileFile = new File(args[++i]);
+                    break;
+                case "-repeats":
+                    repeats = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    dir = new File(args[i]);
+            }
+        }
+        if (dir == null || !dir.isDirectory()) {
+            System.err.println("Usage: " + name + " [-profile file]" + usage + " [-repeats n] <frame directory>");
+            System.exit(2);
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        CalibrationProfile profile = setUp(profileFile != null
+                ? CalibrationProfile.load(profileFile) : CalibrationProfile.DEFAULT);
+
+        FrameCorpus corpus = FrameCorpus.load(dir);
+        if (corpus.size() == 0) {
+            System.err.println("No frames in " + dir);
+            System.exit(1);
+        }
+        System.out.println("Loaded " + corpus.size() + " frames" + (corpus.isLabeled() ? " with labels" : ""));
+        List<Mat> frames = corpus.frames;
+
+        Detection[][] detections = new Detection[modes.length][frames.size()];
+        double[] frameTimes = new double[modes.length];
+        for (int m = 0; m < modes.length; m++) {
+            CalibrationProfile p = withMode(profile, modes[m]);
+            TargetTrackingProcessor processor = new TargetTrackingProcessor();
+            // The first pass warms up the JIT and gives the detections
+            for (int i = 0; i < frames.size(); i++) {
+                detections[m][i] = processor.detect(frames.get(i), p, i, 0);
+            }
+            long start = System.nanoTime();
+            for (int r = 0; r < repeats; r++) {
+                for (int i = 0; i < frames.size(); i++) {
+                    processor.detect(frames.get(i), p, i, 0);
+                }
+            }
+            frameTimes[m] = (System.nanoTime() - start) / 1e6 / repeats / frames.size();
+        }
+
+        String agreesColumn = "agrees with " + baselineName;
+        System.out.println(String.format(Locale.ROOT, "%-18s ms/frame  speedup  %s", columnName, agreesColumn)
+                + (corpus.isLabeled() ? "  correct" : ""));
+        for (int m = 0; m < modes.length; m++) {
+            int agree = 0;
+            int correct = 0;
+            for (int i = 0; i < frames.size(); i++) {
+                agree += FrameCorpus.countAgreeing(detections[m][i], detections[0][i]);
+                if (corpus.isLabeled()) {
+                    correct += corpus.countCorrect(i, detections[m][i]);
+                }
+            }
+            String line = String.format(Locale.ROOT, "%-18s %8.2f %7.2fx %" + agreesColumn.length() + ".1f%%",
+                    modes[m], frameTimes[m], frameTimes[0] / frameTimes[m], agree * 50.0 / frames.size());
+            if (corpus.isLabeled()) {
+                line += String.format(Locale.ROOT, " %7.1f%%", correct * 50.0 / frames.size());
+            }
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+import org.usfirst.frc2084.vision.CachedCommunication;
+import org.usfirst.frc2084.vision.Detection;
+import org.usfirst.frc2084.vision.TargetTrackingProcessor;
+
+/**
+ * Replays a corpus of recorded matches through the vision algorithm and
+ * compares the results to golden outputs, so that changes to {@link
+ * org.usfirst.frc2084.vision.Target}, {@link
+ * org.usfirst.frc2084.vision.TargetPair} or {@link
+ * org.usfirst.frc2084.vision.ScoreUtils} can't silently change which goals are
+ * called hot.
+ * <p>
+ * The corpus is a directory with one subdirectory per match. Each match
+ * directory contains:
+ * <ul>
+ * <li>the frames as .jpg or .png files, which are replayed in file name
+ * order</li>
+ * <li>an optional {@code auto_vision.txt} with lines of the form
+ * {@code <frame> <true|false>} giving the frames where the robot changed the
+ * {@code auto_vision} key. If it is missing, autonomous is assumed to start at
+ * the first frame.</li>
+ * <li>{@code golden.txt}, which is written when the harness is run with
+ * {@code -record}</li>
+ * </ul>
+ * <p>
+ * Each match is fed in order through
+ * {@link TargetTrackingProcessor#process(Mat, long, long)}, the same method
+ * the extension uses, with a stand-in for the robot's side of
+ * {@link org.usfirst.frc2084.vision.TargetTrackingCommunication} that records
+ * what it is told. That way the decisions come from the real
+ * decision and reporting code instead of a copy of it that could drift. The
+ * matches are replayed in parallel, each with its own processor.
+ * <p>
+ * Usage: {@code ReplayHarness [-record] [-threads n] <corpus directory>}
+ *
+ * @author Ben Wolsieffer
+ */
+public class ReplayHarness {
+
+    public static final String GOLDEN_FILE_NAME = "golden.txt";
+    public static final String TIMELINE_FILE_NAME = "auto_vision.txt";
+
+    /**
+     * The time between recorded frames, used to give each frame a timestamp.
+     */
+    private static final long FRAME_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1) / 30;
+
+    /**
+     * The maximum number of differing frames printed for each match.
+     */
+    private static final int MAX_PRINTED_DIFFS = 10;
+
+    static final FileFilter FRAME_FILTER = new FileFilter() {
+
+        @Override
+        public boolean accept(File f) {
+            String name = f.getName().toLowerCase();
+            return f.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png"));
+        }
+    };
+
+    /**
+     * A stand-in for the robot side of
+     * {@link org.usfirst.frc2084.vision.TargetTrackingCommunication}. The
+     * robot sets {@code auto_vision} according to the recorded timeline and
+     * the processor clears it once it tells the robot whether the goal is
+     * hot, just like on the field. Every state other than unknown that the
+     * processor sends is recorded as a decision.
+     */
+    static class ReplayRobot extends CachedCommunication {
+
+        private final List<int[]> timeline;
+        private int timelineIndex = 0;
+        private final List<String> decisions = new ArrayList<>();
+        private int frame;
+
+        ReplayRobot(List<int[]> timeline) {
+            this.timeline = timeline;
+        }
+
+        /**
+         * Applies any timeline events that happen before or at the specified
+         * frame.
+         *
+         * @param frame the frame that is about to be processed
+         */
+        void advanceTo(int frame) {
+            this.frame = frame;
+            while (timelineIndex < timeline.size() && timeline.get(timelineIndex)[0] <= frame) {
+                boolean running = timeline.get(timelineIndex)[1] != 0;
+                updateAutonomousVisionRunning(running);
+                if (running) {
+                    updateCameraEnabled(true);
+                }
+                timelineIndex++;
+            }
+        }
+
+        @Override
+        protected void writeState(int value) {
+            if (value != State.UNKNOWN_VALUE) {
+                decisions.add(frame + "\t" + new State(value));
+            }
+        }
+
+        @Override
+        protected void writeAutonomousVisionRunning(boolean running) {
+        }
+
+        @Override
+        protected void writeCameraEnabled(boolean enabled) {
+        }
+
+        @Override
+        public void setResult(double[] result) {
+        }
+
+        List<String> getDecisions() {
+            return decisions;
+        }
+    }
+
+    /**
+     * A recorded match.
+     */
+    private static class Match {
+
+        final File dir;
+        final File[] frames;
+        final List<int[]> timeline;
+        /**
+         * The golden output lines of the match, once it has been replayed.
+         */
+        List<String> output;
+
+        Match(File dir) throws IOException {
+            this.dir = dir;
+            File[] f = dir.listFiles(FRAME_FILTER);
+            Arrays.sort(f);
+            frames = f;
+            timeline = readTimeline(new File(dir, TIMELINE_FILE_NAME));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean record = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File corpus = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-record":
+                    record = true;
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    corpus = new File(args[i]);
+            }
+        }
+        if (corpus == null || !corpus.isDirectory()) {
+            System.err.println("Usage: ReplayHarness [-record] [-threads n] <corpus directory>");
+            System.exit(2);
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        List<Match> matches = new ArrayList<>();
+        File[] dirs = corpus.listFiles();
+        Arrays.sort(dirs);
+        for (File dir : dirs) {
+            if (dir.isDirectory()) {
+                matches.add(new Match(dir));
+            }
+        }
+
+        replayAll(matches, threads);
+
+        int driftingMatches = 0;
+        for (Match match : matches) {
+            List<String> output = match.output;
+            File golden = new File(match.dir, GOLDEN_FILE_NAME);
+            if (record) {
+                try (PrintWriter out = new PrintWriter(new FileWriter(golden))) {
+                    for (String line : output) {
+                        out.println(line);
+                    }
+                }
+                System.out.println("Recorded " + golden);
+            } else if (!compare(match, output, readLines(golden))) {
+                driftingMatches++;
+            }
+        }
+
+        if (!record) {
+            System.out.println(driftingMatches + " of " + matches.size() + " matches drifted from their golden outputs.");
+        }
+        System.exit(driftingMatches == 0 ? 0 : 1);
+    }
+
+    /**
+     * Replays every match, with the matches running in parallel.
+     *
+     * @param matches the matches to replay
+     * @param threads the number of worker threads
+     * @return the number of frames processed
+     */
+    private static long replayAll(List<Match> matches, int threads) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        long frameCount = 0;
+        for (final Match match : matches) {
+            futures.add(executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    match.output = replay(match);
+                }
+            }));
+            frameCount += match.frames.length;
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("Processed %d frames from %d matches in %.2f s on %d threads (%.1f frames/s)%n",
+                frameCount, matches.size(), seconds, threads, frameCount / seconds);
+        return frameCount;
+    }
+
+    /**
+     * Runs a match through a processor in frame order and produces the lines
+     * of its golden output.
+     *
+     * @param match the match to replay
+     * @return the per-frame candidates followed by the decisions
+     */
+    private static List<String> replay(Match match) {
+        ReplayRobot robot = new ReplayRobot(match.timeline);
+        TargetTrackingProcessor processor = new TargetTrackingProcessor(robot);
+        List<String> lines = new ArrayList<>();
+
+        for (int i = 0; i < match.frames.length; i++) {
+            Mat image = Highgui.imread(match.frames[i].getPath());
+            if (image.empty()) {
+                throw new IllegalStateException("Could not read frame: " + match.frames[i]);
+            }
+            robot.advanceTo(i);
+            // The processing thread only processes frames while the camera is
+            // enabled, but the candidates are still compared on every frame
+            Detection d = robot.isCameraEnabled()
+                    ? processor.process(image, i, i * FRAME_PERIOD_NANOS)
+                    : processor.detect(image, i, i * FRAME_PERIOD_NANOS);
+            image.release();
+            lines.add(formatDetection(i, d));
+        }
+        for (String decision : robot.getDecisions()) {
+            lines.add("decision\t" + decision);
+        }
+        return lines;
+    }
+
+    private static String formatDetection(int frame, Detection d) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(frame).append('\t');
+        sb.append(d.hasStaticTarget() ? d.getStaticTarget() : "-").append('\t');
+        sb.append(d.isHot() ? d.getHotTarget() : "-").append('\t');
+        boolean first = true;
+        for (Detection.Candidate c : d.getCandidates()) {
+            if (!first) {
+                sb.append(';');
+            }
+            sb.append(c);
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compares the output of a match with its golden output and prints the
+     * differences.
+     *
+     * @return true if the outputs match
+     */
+    private static boolean compare(Match match, List<String> actual, List<String> golden) {
+        if (golden == null) {
+            System.out.println(match.dir.getName() + ": no golden output, run with -record first");
+            return false;
+        }
+
+        List<String> actualDecisions = new ArrayList<>();
+        List<String> goldenDecisions = new ArrayList<>();
+        List<String> actualFrames = new ArrayList<>();
+        List<String> goldenFrames = new ArrayList<>();
+        split(actual, actualFrames, actualDecisions);
+        split(golden, goldenFrames, goldenDecisions);
+
+        int frameDiffs = 0;
+        int n = Math.max(actualFrames.size(), goldenFrames.size());
+        for (int i = 0; i < n; i++) {
+            String a = i < actualFrames.size() ? actualFrames.get(i) : "<missing>";
+            String g = i < goldenFrames.size() ? goldenFrames.get(i) : "<missing>";
+            if (!a.equals(g)) {
+                if (frameDiffs < MAX_PRINTED_DIFFS) {
+                    System.out.println(match.dir.getName() + ": frame " + i);
+                    System.out.println("  golden: " + g);
+                    System.out.println("  actual: " + a);
+                }
+                frameDiffs++;
+            }
+        }
+
+        boolean decisionsMatch = actualDecisions.equals(goldenDecisions);
+        if (!decisionsMatch) {
+            System.out.println(match.dir.getName() + ": DECISION DRIFT");
+            System.out.println("  golden: " + goldenDecisions);
+            System.out.println("  actual: " + actualDecisions);
+        }
+        System.out.println(match.dir.getName() + ": " + frameDiffs + " of " + n + " frames differ, decisions "
+                + (decisionsMatch ? "match" : "differ"));
+        return frameDiffs == 0 && decisionsMatch;
+    }
+
+    private static void split(List<String> lines, List<String> frames, List<String> decisions) {
+        for (String line : lines) {
+            if (line.startsWith("decision\t")) {
+                decisions.add(line);
+            } else if (!line.startsWith("#")) {
+                frames.add(line);
+            }
+        }
+    }
+
+    private static List<int[]> readTimeline(File file) throws IOException {
+        List<int[]> timeline = new ArrayList<>();
+        List<String> lines = readLines(file);
+        if (lines == null) {
+            timeline.add(new int[]{0, 1});
+            return timeline;
+        }
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            timeline.add(new int[]{Integer.parseInt(parts[0]), Boolean.parseBoolean(parts[1]) ? 1 : 0});
+        }
+        return timeline;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
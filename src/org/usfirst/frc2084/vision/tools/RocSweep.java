@@ -0,0 +1,620 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+import org.usfirst.frc2084.vision.CalibrationProfile;
+import org.usfirst.frc2084.vision.Detection;
+import org.usfirst.frc2084.vision.Target;
+import org.usfirst.frc2084.vision.TargetPair;
+import org.usfirst.frc2084.vision.TargetStateFilter;
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+import org.usfirst.frc2084.vision.TargetTrackingProcessor;
+
+/**
+ * Sweeps the limits in {@link Target} and {@link TargetPair} over a recorded
+ * corpus to show how each combination trades off finding hot goals against
+ * calling goals hot that aren't, and how many frames it takes to make a
+ * decision. Until now those limits were just picked by feel.
+ * <p>
+ * This works in two steps. {@code extract} runs the image part of the
+ * algorithm on every frame once and saves the features of every blob (its
+ * area, bounding rectangle and the scores that don't depend on any limits) to
+ * a small columnar file. {@code sweep} then reads that file and tries every
+ * combination of limits on all cores, without touching an image again, so it
+ * only takes a few seconds for thousands of combinations.
+ * <p>
+ * The corpus has the same layout as for the {@link ReplayHarness}: one
+ * directory per match with the frames in file name order. Each match also
+ * needs a {@code labels.txt} like the one used by the
+ * {@link ThresholdOptimizer}, where a frame with a hot box is a hot frame.
+ * Unlabeled frames are still fed to the decision filter, but don't count
+ * toward precision and recall. A match is hot if most of its labeled frames
+ * with a static target are hot. Autonomous is assumed to start at the first
+ * frame of each match.
+ * <p>
+ * Usage:
+ * <ul>
+ * <li>{@code RocSweep extract [-profile file] <corpus directory> <feature file>}</li>
+ * <li>{@code RocSweep sweep [-threads n] [-o report.csv] <feature file>}</li>
+ * </ul>
+ *
+ * @author Ben Wolsieffer
+ */
+public class RocSweep {
+
+    private static final int MAGIC = 0x54544631; // "TTF1"
+
+    // Frame labels
+    private static final byte UNLABELED = -1;
+    private static final byte LABEL_STATIC = 1;
+    private static final byte LABEL_HOT = 2;
+
+    // The values tried for each limit
+    private static final double[] MIN_AREAS = {25, 50, 100, 200, 400};
+    private static final double[] MIN_RECTANGULARITY_SCORES = {0, 10, 20, 30, 40, 50};
+    private static final double[] MIN_ASPECT_RATIO_SCORES = {0, 10, 20, 30, 40};
+    private static final double[] MIN_HORIZONTAL_DISTANCE_SCORES = {0, 10, 20, 30, 40};
+    private static final double[] MIN_TAPE_WIDTH_SCORES = {0, 10, 20, 30, 40};
+    private static final double[] MIN_VERTICAL_DISTANCE_SCORES = {0, 10, 20};
+
+    private static final int TOP_RESULTS = 10;
+
+    /**
+     * The features of every blob in the corpus, stored as one array per
+     * column. The blobs of frame {@code f} are the ones from
+     * {@code firstBlob[f]} to {@code firstBlob[f + 1] - 1}, and the frames of
+     * match {@code m} are the ones from {@code firstFrame[m]} to
+     * {@code firstFrame[m + 1] - 1}.
+     */
+    private static class FeatureTable {
+
+        String[] matchNames;
+        int[] firstFrame;
+        byte[] frameLabel;
+        int[] firstBlob;
+        float[] area;
+        short[] x;
+        short[] y;
+        short[] width;
+        short[] height;
+        float[] rectangularityScore;
+        float[] aspectRatioScore;
+
+        int frameCount() {
+            return frameLabel.length;
+        }
+
+        void write(File file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(matchNames.length);
+                for (String name : matchNames) {
+                    out.writeUTF(name);
+                }
+                writeInts(out, firstFrame);
+                out.writeInt(frameLabel.length);
+                out.write(frameLabel);
+                writeInts(out, firstBlob);
+                out.writeInt(area.length);
+                for (float v : area) {
+                    out.writeFloat(v);
+                }
+                writeShorts(out, x);
+                writeShorts(out, y);
+                writeShorts(out, width);
+                writeShorts(out, height);
+                for (float v : rectangularityScore) {
+                    out.writeFloat(v);
+                }
+                for (float v : aspectRatioScore) {
+                    out.writeFloat(v);
+                }
+            }
+        }
+
+        static FeatureTable read(File file) throws IOException {
+            FeatureTable t = new FeatureTable();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a feature file: " + file);
+                }
+                t.matchNames = new String[in.readInt()];
+                for (int i = 0; i < t.matchNames.length; i++) {
+                    t.matchNames[i] = in.readUTF();
+                }
+                t.firstFrame = readInts(in, t.matchNames.length + 1);
+                t.frameLabel = new byte[in.readInt()];
+                in.readFully(t.frameLabel);
+                t.firstBlob = readInts(in, t.frameLabel.length + 1);
+                int blobs = in.readInt();
+                t.area = readFloats(in, blobs);
+                t.x = readShorts(in, blobs);
+                t.y = readShorts(in, blobs);
+                t.width = readShorts(in, blobs);
+                t.height = readShorts(in, blobs);
+                t.rectangularityScore = readFloats(in, blobs);
+                t.aspectRatioScore = readFloats(in, blobs);
+            }
+            return t;
+        }
+
+        private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+            for (int v : values) {
+                out.writeInt(v);
+            }
+        }
+
+        private static void writeShorts(DataOutputStream out, short[] values) throws IOException {
+            for (short v : values) {
+                out.writeShort(v);
+            }
+        }
+
+        private static int[] readInts(DataInputStream in, int n) throws IOException {
+            int[] values = new int[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = in.readInt();
+            }
+            return values;
+        }
+
+        private static short[] readShorts(DataInputStream in, int n) throws IOException {
+            short[] values = new short[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = in.readShort();
+            }
+            return values;
+        }
+
+        private static float[] readFloats(DataInputStream in, int n) throws IOException {
+            float[] values = new float[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = in.readFloat();
+            }
+            return values;
+        }
+    }
+
+    /**
+     * One combination of limits and how it did.
+     */
+    private static class Result {
+
+        final double minArea;
+        final double minRectangularity;
+        final double minAspectRatio;
+        final double minHorizontalDistance;
+        final double minTapeWidth;
+        final double minVerticalDistance;
+
+        int truePositives;
+        int falsePositives;
+        int falseNegatives;
+        int correctDecisions;
+        int wrongDecisions;
+        int undecidedMatches;
+        long framesToDecision;
+
+        Result(double minArea, double minRectangularity, double minAspectRatio,
+                double minHorizontalDistance, double minTapeWidth, double minVerticalDistance) {
+            this.minArea = minArea;
+            this.minRectangularity = minRectangularity;
+            this.minAspectRatio = minAspectRatio;
+            this.minHorizontalDistance = minHorizontalDistance;
+            this.minTapeWidth = minTapeWidth;
+            this.minVerticalDistance = minVerticalDistance;
+        }
+
+        double precision() {
+            int detected = truePositives + falsePositives;
+            return detected == 0 ? 1 : (double) truePositives / detected;
+        }
+
+        double recall() {
+            int actual = truePositives + falseNegatives;
+            return actual == 0 ? 1 : (double) truePositives / actual;
+        }
+
+        double f1() {
+            double p = precision();
+            double r = recall();
+            return p + r == 0 ? 0 : 2 * p * r / (p + r);
+        }
+
+        double meanFramesToDecision() {
+            int decided = correctDecisions + wrongDecisions;
+            return decided == 0 ? Double.NaN : (double) framesToDecision / decided;
+        }
+
+        static String header() {
+            return "min_area,min_rectangularity,min_aspect_ratio,min_horizontal_distance,min_tape_width,min_vertical_distance,"
+                    + "precision,recall,f1,correct_decisions,wrong_decisions,undecided,mean_frames_to_decision";
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.0f,%.0f,%.0f,%.0f,%.0f,%.0f,%.4f,%.4f,%.4f,%d,%d,%d,%.2f",
+                    minArea, minRectangularity, minAspectRatio, minHorizontalDistance, minTapeWidth, minVerticalDistance,
+                    precision(), recall(), f1(), correctDecisions, wrongDecisions, undecidedMatches, meanFramesToDecision());
+        }
+    }
+
+    // The filter only looks at whether there is a static target and whether
+    // the goal is hot, so these stand in for every frame.
+    private static final Detection.Candidate PLACEHOLDER = new Detection.Candidate(0, 0, 0, 0, 0);
+    private static final List<Detection.Candidate> NO_CANDIDATES = Collections.emptyList();
+    private static final Detection NOTHING = new Detection(0, 0, NO_CANDIDATES, null, null);
+    private static final Detection STATIC_ONLY = new Detection(0, 0, NO_CANDIDATES, PLACEHOLDER, null);
+    private static final Detection HOT = new Detection(0, 0, NO_CANDIDATES, PLACEHOLDER, PLACEHOLDER);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 1 && args[0].equals("extract")) {
+            extract(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args.length >= 1 && args[0].equals("sweep")) {
+            sweep(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: RocSweep extract [-profile file] <corpus directory> <feature file>");
+        System.err.println("       RocSweep sweep [-threads n] [-o report.csv] <feature file>");
+        System.exit(2);
+    }
+
+    private static void extract(String[] args) throws IOException {
+        CalibrationProfile profile = CalibrationProfile.DEFAULT;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-profile")) {
+                profile = CalibrationProfile.load(new File(args[++i]));
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() != 2 || !new File(files.get(0)).isDirectory()) {
+            usage();
+        }
+        File corpus = new File(files.get(0));
+        File output = new File(files.get(1));
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        TargetTrackingProcessor processor = new TargetTrackingProcessor();
+        List<String> matchNames = new ArrayList<>();
+        List<Integer> firstFrame = new ArrayList<>();
+        List<Byte> frameLabels = new ArrayList<>();
+        List<Integer> firstBlob = new ArrayList<>();
+        List<Target> blobs = new ArrayList<>();
+        Mat hsv = new Mat();
+
+        File[] dirs = corpus.listFiles();
+        Arrays.sort(dirs);
+        long start = System.nanoTime();
+        for (File dir : dirs) {
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            Map<String, Byte> labels = readLabels(new File(dir, ThresholdOptimizer.LABELS_FILE_NAME));
+            File[] frames = dir.listFiles(ReplayHarness.FRAME_FILTER);
+            Arrays.sort(frames);
+            matchNames.add(dir.getName());
+            firstFrame.add(frameLabels.size());
+            for (File frame : frames) {
+                Mat image = Highgui.imread(frame.getPath());
+                if (image.empty()) {
+                    throw new IOException("Could not read frame: " + frame);
+                }
+                Imgproc.cvtColor(image, hsv, Imgproc.COLOR_BGR2HSV);
+                image.release();
+                firstBlob.add(blobs.size());
+                blobs.addAll(processor.findTargets(hsv, profile));
+                Byte label = labels.get(frame.getName());
+                frameLabels.add(label == null ? UNLABELED : label);
+            }
+        }
+        firstFrame.add(frameLabels.size());
+        firstBlob.add(blobs.size());
+
+        FeatureTable t = new FeatureTable();
+        t.matchNames = matchNames.toArray(new String[matchNames.size()]);
+        t.firstFrame = toArray(firstFrame);
+        t.frameLabel = new byte[frameLabels.size()];
+        for (int i = 0; i < t.frameLabel.length; i++) {
+            t.frameLabel[i] = frameLabels.get(i);
+        }
+        t.firstBlob = toArray(firstBlob);
+        int n = blobs.size();
+        t.area = new float[n];
+        t.x = new short[n];
+        t.y = new short[n];
+        t.width = new short[n];
+        t.height = new short[n];
+        t.rectangularityScore = new float[n];
+        t.aspectRatioScore = new float[n];
+        for (int i = 0; i < n; i++) {
+            Target b = blobs.get(i);
+            Rectangle r = b.getRect();
+            // Blobs from the projection and run length locators only have a
+            // box for a shape, so the area has to come from the blob itself
+            double area = b.getArea();
+            t.area[i] = (float) area;
+            t.x[i] = (short) r.x;
+            t.y[i] = (short) r.y;
+            t.width[i] = (short) r.width;
+            t.height[i] = (short) r.height;
+            t.rectangularityScore[i] = (float) Target.rectangularityScore(area, r.width, r.height);
+            t.aspectRatioScore[i] = (float) Target.aspectRatioScore(r.width, r.height);
+        }
+        t.write(output);
+        System.out.printf(Locale.ROOT, "Extracted %d blobs from %d frames in %d matches in %.1f s (%d KB)%n",
+                n, t.frameCount(), t.matchNames.length, (System.nanoTime() - start) / 1e9, output.length() / 1024);
+    }
+
+    private static void sweep(String[] args) throws IOException, InterruptedException, ExecutionException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        File output = null;
+        File input = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-o":
+                    output = new File(args[++i]);
+                    break;
+                default:
+                    input = new File(args[i]);
+            }
+        }
+        if (input == null || !input.isFile()) {
+            usage();
+        }
+        if (output == null) {
+            output = new File(input.getPath() + ".csv");
+        }
+
+        final FeatureTable table = FeatureTable.read(input);
+        final boolean[] matchHot = new boolean[table.matchNames.length];
+        final boolean[] matchLabeled = new boolean[table.matchNames.length];
+        labelMatches(table, matchHot, matchLabeled);
+
+        List<Result> results = new ArrayList<>();
+        for (double area : MIN_AREAS) {
+            for (double rect : MIN_RECTANGULARITY_SCORES) {
+                for (double aspect : MIN_ASPECT_RATIO_SCORES) {
+                    for (double horizontal : MIN_HORIZONTAL_DISTANCE_SCORES) {
+                        for (double tape : MIN_TAPE_WIDTH_SCORES) {
+                            for (double vertical : MIN_VERTICAL_DISTANCE_SCORES) {
+                                results.add(new Result(area, rect, aspect, horizontal, tape, vertical));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // Split the combinations evenly between the threads
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        int chunk = (results.size() + threads - 1) / threads;
+        for (int i = 0; i < results.size(); i += chunk) {
+            final List<Result> part = results.subList(i, Math.min(results.size(), i + chunk));
+            futures.add(executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (Result r : part) {
+                        evaluate(table, matchHot, matchLabeled, r);
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        executor.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(output))) {
+            out.println(Result.header());
+            for (Result r : results) {
+                out.println(r);
+            }
+        }
+        System.out.printf(Locale.ROOT, "Swept %d combinations over %d frames on %d threads in %.2f s%n",
+                results.size(), table.frameCount(), threads, seconds);
+        System.out.println("Wrote " + output);
+
+        // Best F1 first, then the fewest wrong decisions, then the fastest
+        // decisions
+        Collections.sort(results, new Comparator<Result>() {
+
+            @Override
+            public int compare(Result a, Result b) {
+                int c = Double.compare(b.f1(), a.f1());
+                if (c == 0) {
+                    c = Integer.compare(a.wrongDecisions, b.wrongDecisions);
+                }
+                if (c == 0) {
+                    c = Double.compare(a.meanFramesToDecision(), b.meanFramesToDecision());
+                }
+                return c;
+            }
+        });
+        System.out.println(Result.header());
+        for (int i = 0; i < Math.min(TOP_RESULTS, results.size()); i++) {
+            System.out.println(results.get(i));
+        }
+    }
+
+    /**
+     * Decides which matches are hot based on their frame labels.
+     */
+    private static void labelMatches(FeatureTable t, boolean[] matchHot, boolean[] matchLabeled) {
+        for (int m = 0; m < t.matchNames.length; m++) {
+            int hot = 0;
+            int total = 0;
+            for (int f = t.firstFrame[m]; f < t.firstFrame[m + 1]; f++) {
+                byte label = t.frameLabel[f];
+                if (label != UNLABELED && (label & LABEL_STATIC) != 0) {
+                    total++;
+                    if ((label & LABEL_HOT) != 0) {
+                        hot++;
+                    }
+                }
+            }
+            matchLabeled[m] = total > 0;
+            matchHot[m] = hot * 2 > total;
+        }
+    }
+
+    /**
+     * Runs one combination of limits over the whole table. This follows
+     * {@link TargetTrackingProcessor#detect(org.opencv.core.Mat, long, long)}
+     * exactly, except that it works on the saved features instead of
+     * {@link Target}s.
+     */
+    private static void evaluate(FeatureTable t, boolean[] matchHot, boolean[] matchLabeled, Result r) {
+        TargetStateFilter filter = new TargetStateFilter();
+        Rectangle staticRect = new Rectangle();
+        Rectangle hotRect = new Rectangle();
+        for (int m = 0; m < t.matchNames.length; m++) {
+            filter.reset();
+            State decision = null;
+            int decisionFrame = 0;
+            for (int f = t.firstFrame[m]; f < t.firstFrame[m + 1]; f++) {
+                int staticBlob = -1;
+                double maxStaticScore = 0;
+                int hotBlob = -1;
+                double maxHotScore = 0;
+                for (int b = t.firstBlob[f]; b < t.firstBlob[f + 1]; b++) {
+                    double rectScore = t.rectangularityScore[b];
+                    double aspectScore = t.aspectRatioScore[b];
+                    if (t.area[b] < r.minArea || rectScore < r.minRectangularity || aspectScore < r.minAspectRatio) {
+                        continue;
+                    }
+                    double score = (rectScore + aspectScore) / 2;
+                    if (t.width[b] < t.height[b]) {
+                        if (score > maxStaticScore) {
+                            maxStaticScore = score;
+                            staticBlob = b;
+                        }
+                    } else if (score > maxHotScore) {
+                        maxHotScore = score;
+                        hotBlob = b;
+                    }
+                }
+
+                boolean hasStatic = staticBlob >= 0;
+                boolean hot = false;
+                if (hasStatic && hotBlob >= 0) {
+                    staticRect.setBounds(t.x[staticBlob], t.y[staticBlob], t.width[staticBlob], t.height[staticBlob]);
+                    hotRect.setBounds(t.x[hotBlob], t.y[hotBlob], t.width[hotBlob], t.height[hotBlob]);
+                    hot = TargetPair.horizontalDistanceScore(hotRect, staticRect) >= r.minHorizontalDistance
+                            && TargetPair.verticalDistanceScore(hotRect, staticRect) >= r.minVerticalDistance
+                            && TargetPair.tapeWidthScore(hotRect, staticRect) >= r.minTapeWidth;
+                }
+
+                byte label = t.frameLabel[f];
+                if (label != UNLABELED) {
+                    boolean labeledHot = (label & LABEL_HOT) != 0;
+                    if (hot && labeledHot) {
+                        r.truePositives++;
+                    } else if (hot) {
+                        r.falsePositives++;
+                    } else if (labeledHot) {
+                        r.falseNegatives++;
+                    }
+                }
+
+                if (decision == null) {
+                    State s = filter.update(hot ? HOT : hasStatic ? STATIC_ONLY : NOTHING, true);
+                    if (s != null && !s.equals(State.UNKNOWN)) {
+                        decision = s;
+                        decisionFrame = f - t.firstFrame[m] + 1;
+                    }
+                }
+            }
+            if (!matchLabeled[m]) {
+                continue;
+            }
+            if (decision == null) {
+                r.undecidedMatches++;
+            } else {
+                if (decision.equals(State.HOT) == matchHot[m]) {
+                    r.correctDecisions++;
+                } else {
+                    r.wrongDecisions++;
+                }
+                r.framesToDecision += decisionFrame;
+            }
+        }
+    }
+
+    private static Map<String, Byte> readLabels(File file) throws IOException {
+        Map<String, Byte> labels = new HashMap<>();
+        if (!file.isFile()) {
+            return labels;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length != 3) {
+                    throw new IOException("Invalid label line: " + line);
+                }
+                byte label = 0;
+                if (!parts[1].equals("-")) {
+                    label |= LABEL_STATIC;
+                }
+                if (!parts[2].equals("-")) {
+                    label |= LABEL_HOT;
+                }
+                labels.put(parts[0], label);
+            }
+        }
+        return labels;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,300 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.highgui.Highgui;
+
+/**
+ * A tiny HTTP server that pretends to be an Axis camera. It serves an MJPEG
+ * stream of synthetic frames at {@code /mjpg/video.mjpg} (actually at any
+ * path) that show a static target, and a hot target when
+ * {@link #setHot(boolean)} is set. The frames are encoded ahead of time so
+ * that the server itself uses almost no CPU.
+ * <p>
+ * Like a real camera, it honors the VAPIX {@code resolution}, {@code fps} and
+ * {@code compression} query parameters, so stream negotiation can be tested
+ * without one. Frames for each combination of resolution and compression are
+ * encoded the first time a client asks for them.
+ *
+ * @author Ben Wolsieffer
+ */
+public class SyntheticMjpegServer {
+
+    private static final String BOUNDARY = "myboundary";
+
+    /**
+     * The number of slightly different frames that are encoded for each state,
+     * so the stream is not the same image over and over.
+     */
+    private static final int VARIANTS = 8;
+
+    private static final Scalar TAPE_COLOR = new Scalar(0, 180, 0);
+
+    /**
+     * The compression used if the client doesn't ask for one, which is what
+     * Axis cameras default to.
+     */
+    private static final int DEFAULT_COMPRESSION = 30;
+
+    /**
+     * The encoded frames for one resolution and compression.
+     */
+    private static class FrameSet {
+
+        final byte[][] hotFrames = new byte[VARIANTS][];
+        final byte[][] notHotFrames = new byte[VARIANTS][];
+    }
+
+    private final ServerSocket serverSocket;
+    private final int fps;
+    private final int width;
+    private final int height;
+
+    /**
+     * Encoded frames by "widthxheight/compression".
+     */
+    private final ConcurrentMap<String, FrameSet> frameSets = new ConcurrentHashMap<>();
+
+    private volatile boolean hot = false;
+    private volatile boolean running = true;
+
+    private volatile String lastRequest;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Creates a server and starts accepting connections.
+     *
+     * @param port the port to listen on, or 0 to pick one
+     * @param width the width of the frames if the client doesn't ask for a
+     * resolution
+     * @param height the height of the frames if the client doesn't ask for a
+     * resolution
+     * @param fps the frame rate to send at if the client doesn't ask for one
+     * @throws IOException if the server socket could not be opened
+     */
+    public SyntheticMjpegServer(int port, int width, int height, int fps) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        getFrameSet(width, height, DEFAULT_COMPRESSION);
+
+        serverSocket = new ServerSocket(port);
+        Thread acceptThread = new Thread("Synthetic MJPEG Server") {
+
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Gets the address to give the capture thread in place of a camera IP.
+     *
+     * @return the host and port of the server
+     */
+    public String getAddress() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public void setHot(boolean hot) {
+        this.hot = hot;
+    }
+
+    /**
+     * Gets the path and query of the last stream request.
+     *
+     * @return the last request, or null if there hasn't been one
+     */
+    public String getLastRequest() {
+        return lastRequest;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Gets the number of bytes of frames sent to all clients, which is what
+     * would have gone over the radio.
+     *
+     * @return the number of bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+
+    /**
+     * Draws a frame with the targets in the same arrangement as the real goal.
+     * The static target is a vertical strip and the hot target is a
+     * horizontal strip to its left at the top.
+     */
+    private byte[] encodeFrame(int width, int height, int compression, boolean hot, int variant) {
+        Mat frame = new Mat(height, width, CvType.CV_8UC3, new Scalar(0, 0, 0));
+        double scale = width / 800.0;
+        double offset = variant * 2 * scale;
+        Point staticTl = new Point(500 * scale + offset, 200 * scale);
+        Core.rectangle(frame, staticTl,
+                new Point(staticTl.x + 20 * scale, staticTl.y + 160 * scale), TAPE_COLOR, -1);
+        if (hot) {
+            Point hotTl = new Point(300 * scale + offset, 200 * scale);
+            Core.rectangle(frame, hotTl,
+                    new Point(hotTl.x + 118 * scale, hotTl.y + 20 * scale), TAPE_COLOR, -1);
+        }
+        MatOfByte encoded = new MatOfByte();
+        // Axis compression goes the opposite way from JPEG quality
+        Highgui.imencode(".jpg", frame, encoded, new MatOfInt(Highgui.IMWRITE_JPEG_QUALITY, 100 - compression));
+        frame.release();
+        return encoded.toArray();
+    }
+
+    private FrameSet getFrameSet(int width, int height, int compression) {
+        String key = width + "x" + height + "/" + compression;
+        FrameSet set = frameSets.get(key);
+        if (set == null) {
+            set = new FrameSet();
+            for (int i = 0; i < VARIANTS; i++) {
+                set.hotFrames[i] = encodeFrame(width, height, compression, true, i);
+                set.notHotFrames[i] = encodeFrame(width, height, compression, false, i);
+            }
+            FrameSet existing = frameSets.putIfAbsent(key, set);
+            if (existing != null) {
+                set = existing;
+            }
+        }
+        return set;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket client = serverSocket.accept();
+                Thread clientThread = new Thread("Synthetic MJPEG Client") {
+
+                    @Override
+                    public void run() {
+                        try {
+                            serve(client);
+                        } catch (IOException ex) {
+                            // The client disconnected
+                        } finally {
+                            try {
+                                client.close();
+                            } catch (IOException ex) {
+                            }
+                        }
+                    }
+                };
+                clientThread.setDaemon(true);
+                clientThread.start();
+            } catch (IOException ex) {
+                // The server was closed
+            }
+        }
+    }
+
+    /**
+     * Sends the stream to a client, using the parameters in the request's
+     * query string. Invalid parameters are ignored.
+     */
+    @SuppressWarnings("SleepWhileInLoop")
+    private void serve(Socket client) throws IOException {
+        client.setTcpNoDelay(true);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        // Skip the rest of the headers
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+        }
+        String[] parts = requestLine.split(" ");
+        String path = parts.length > 1 ? parts[1] : "/";
+        lastRequest = path;
+        requestCount.incrementAndGet();
+
+        int frameWidth = width;
+        int frameHeight = height;
+        int frameFps = fps;
+        int compression = DEFAULT_COMPRESSION;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            for (String param : path.substring(query + 1).split("&")) {
+                String[] kv = param.split("=", 2);
+                if (kv.length != 2) {
+                    continue;
+                }
+                try {
+                    switch (kv[0]) {
+                        case "resolution":
+                            String[] wh = kv[1].split("x");
+                            frameWidth = Integer.parseInt(wh[0]);
+                            frameHeight = Integer.parseInt(wh[1]);
+                            break;
+                        case "fps":
+                            frameFps = Math.max(1, Integer.parseInt(kv[1]));
+                            break;
+                        case "compression":
+                            compression = Math.max(0, Math.min(100, Integer.parseInt(kv[1])));
+                            break;
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                }
+            }
+        }
+        FrameSet frames = getFrameSet(frameWidth, frameHeight, compression);
+        long framePeriodNanos = 1000000000L / frameFps;
+
+        OutputStream out = new BufferedOutputStream(client.getOutputStream());
+        out.write(("HTTP/1.0 200 OK\r\n"
+                + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        long next = System.nanoTime();
+        int frame = 0;
+        while (running) {
+            byte[] jpeg = (hot ? frames.hotFrames : frames.notHotFrames)[frame++ % VARIANTS];
+            out.write(("--" + BOUNDARY + "\r\n"
+                    + "Content-Type: image/jpeg\r\n"
+                    + "Content-Length: " + jpeg.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(jpeg);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            bytesSent.addAndGet(jpeg.length);
+
+            next += framePeriodNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+}
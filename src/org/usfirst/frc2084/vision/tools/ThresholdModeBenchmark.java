@@ -0,0 +1,57 @@
+package org.usfirst.frc2084.vision.tools;
+
+import org.usfirst.frc2084.vision.CalibrationProfile;
+import org.usfirst.frc2084.vision.CalibrationProfile.ThresholdMode;
+import org.usfirst.frc2084.vision.properties.Range;
+
+/**
+ * Compares the HSV threshold with the green only thresholds on a directory of
+ * frames, so we can tell whether the green modes are good enough with our
+ * LED ring before using them at competition.
+ * <p>
+ * Each mode is timed by a {@link ModeBenchmark}, and the time includes the
+ * HSV conversion for the HSV mode. If the directory has a
+ * {@link ThresholdOptimizer#LABELS_FILE_NAME} file, only the labeled frames
+ * are used and the fraction of targets each mode gets right is printed too.
+ * Either way, it prints how often each mode finds the same targets as the HSV
+ * mode.
+ * <p>
+ * The HSV thresholds and blur size come from the profile if one is given,
+ * and the green threshold can be set separately since the profile probably
+ * wasn't tuned for it.
+ * <p>
+ * Usage:
+ * {@code ThresholdModeBenchmark [-profile file] [-green min,max] [-repeats n] <frame directory>}
+ *
+ * @author Ben Wolsieffer
+ */
+public class ThresholdModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        new ModeBenchmark<ThresholdMode>("ThresholdModeBenchmark", " [-green min,max]",
+                ThresholdMode.values(), "Mode", "HSV") {
+
+            private Range green;
+
+            @Override
+            protected int parseOption(String[] args, int i) {
+                if (!args[i].equals("-green")) {
+                    return -1;
+                }
+                String[] parts = args[i + 1].split(",");
+                green = new Range(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                return i + 1;
+            }
+
+            @Override
+            protected CalibrationProfile setUp(CalibrationProfile profile) {
+                return green != null ? profile.withGreenThreshold(green) : profile;
+            }
+
+            @Override
+            protected CalibrationProfile withMode(CalibrationProfile profile, ThresholdMode mode) {
+                return profile.withThresholdMode(mode);
+            }
+        }.run(args);
+    }
+}
@@ -0,0 +1,506 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+import org.usfirst.frc2084.vision.CalibrationProfile;
+import org.usfirst.frc2084.vision.Detection;
+import org.usfirst.frc2084.vision.HsvHistogram;
+import org.usfirst.frc2084.vision.ProfileLibrary;
+import org.usfirst.frc2084.vision.TargetTrackingProcessor;
+import org.usfirst.frc2084.vision.properties.Range;
+
+/**
+ * Searches for the HSV thresholds and blur size that find the targets best in
+ * a set of labeled frames, and saves them as a {@link CalibrationProfile} that
+ * the extension can load. This takes the place of a lot of slider dragging at
+ * each venue.
+ * <p>
+ * The frame directory contains the frames as .jpg or .png files and a
+ * {@code labels.txt} with one line per labeled frame:
+ * {@code <file name> <static box> <hot box>}, where each box is
+ * {@code x,y,width,height} or {@code -} if that target isn't in the frame.
+ * Boxes that go past the edge of the frame are cut down to fit. Frames
+ * without a line are ignored.
+ * <p>
+ * Every frame is converted to HSV once and kept in memory, so each profile
+ * only has to run the threshold, blur, contours and scoring. A profile is
+ * scored by the fraction of static and hot targets it gets right (a target
+ * counts if it overlaps the label by at least half), minus a small penalty
+ * for the time it takes per frame, so a bigger blur has to actually help to
+ * be picked. The accuracy is measured on all cores at once, but the time
+ * isn't, because the threads slow each other down and the dashboard only
+ * processes on one. Instead the most accurate few profiles of each round are
+ * timed again one at a time on a single thread while nothing else is running.
+ * The search starts from the better of the default profile and one
+ * suggested from a histogram of the labeled boxes. Then it moves one value at
+ * a time, trying several steps at once on all cores, and narrows the steps
+ * once nothing helps.
+ * <p>
+ * With {@code -library}, the profile is added to a {@link ProfileLibrary}
+ * file (like the one the dashboard uses) under the given name instead of
+ * being saved on its own.
+ * <p>
+ * Usage:
+ * {@code ThresholdOptimizer [-threads n] [-cost-weight w] [-o profile file | -library profiles file -name name] <frame directory>}
+ *
+ * @author Ben Wolsieffer
+ */
+public class ThresholdOptimizer {
+
+    public static final String LABELS_FILE_NAME = "labels.txt";
+
+    /**
+     * The default accuracy given up for each millisecond per frame.
+     */
+    public static final double DEFAULT_COST_WEIGHT = 0.002;
+
+    /**
+     * The minimum overlap (intersection over union) for a detected target to
+     * match its label.
+     */
+    private static final double MIN_OVERLAP = 0.5;
+
+    private static final int[] STEPS = {32, 16, 8, 4, 2, 1};
+    private static final int STEP_COUNT = 3;
+    private static final int MAX_BLUR_SIZE = 31;
+    private static final int MAX_PASSES = 3;
+    /**
+     * How many of the most accurate profiles of each round are timed.
+     */
+    private static final int SHORTLIST_SIZE = 3;
+    /**
+     * The most frames that are used to time a profile. They are spread out
+     * over the whole set.
+     */
+    private static final int MAX_TIMING_FRAMES = 50;
+
+    /**
+     * A frame with its labels, already converted to HSV.
+     */
+    private static class LabeledFrame {
+
+        final Mat hsv;
+        final Rect staticLabel;
+        final Rect hotLabel;
+
+        LabeledFrame(Mat hsv, Rect staticLabel, Rect hotLabel) {
+            this.hsv = hsv;
+            this.staticLabel = staticLabel;
+            this.hotLabel = hotLabel;
+        }
+    }
+
+    /**
+     * How well a profile did over all of the frames.
+     */
+    private static class Score {
+
+        final CalibrationProfile profile;
+        final double accuracy;
+        final double frameTime;
+        final double value;
+
+        Score(CalibrationProfile profile, double accuracy, double frameTime, double costWeight) {
+            this.profile = profile;
+            this.accuracy = accuracy;
+            this.frameTime = frameTime;
+            this.value = accuracy - costWeight * frameTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %.1f%% correct, %.2f ms/frame", profile, accuracy * 100, frameTime);
+        }
+    }
+
+    /**
+     * Each worker thread gets its own processor because the processor reuses
+     * its intermediate images.
+     */
+    private static final ThreadLocal<TargetTrackingProcessor> PROCESSORS = new ThreadLocal<TargetTrackingProcessor>() {
+
+        @Override
+        protected TargetTrackingProcessor initialValue() {
+            return new TargetTrackingProcessor();
+        }
+    };
+
+    /**
+     * Used to time the shortlisted profiles, on the main thread.
+     */
+    private final TargetTrackingProcessor timingProcessor = new TargetTrackingProcessor();
+
+    private final List<LabeledFrame> frames;
+    private final ExecutorService executor;
+    private final double costWeight;
+    private int evaluations = 0;
+
+    private ThresholdOptimizer(List<LabeledFrame> frames, ExecutorService executor, double costWeight) {
+        this.frames = frames;
+        this.executor = executor;
+        this.costWeight = costWeight;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        double costWeight = DEFAULT_COST_WEIGHT;
+        File output = null;
+        File libraryFile = null;
+        String name = null;
+        File dir = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-cost-weight":
+                    costWeight = Double.parseDouble(args[++i]);
+                    break;
+                case "-o":
+                    output = new File(args[++i]);
+                    break;
+                case "-library":
+                    libraryFile = new File(args[++i]);
+                    break;
+                case "-name":
+                    name = args[++i];
+                    break;
+                default:
+                    dir = new File(args[i]);
+            }
+        }
+        if (dir == null || !dir.isDirectory() || (libraryFile != null && name == null)) {
+            System.err.println("Usage: ThresholdOptimizer [-threads n] [-cost-weight w] [-o profile file | -library profiles file -name name] <frame directory>");
+            System.exit(2);
+        }
+        if (output == null) {
+            output = new File(dir, "profile.properties");
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<LabeledFrame> frames = loadFrames(dir, executor);
+            if (frames.isEmpty()) {
+                System.err.println("No labeled frames in " + new File(dir, LABELS_FILE_NAME));
+                System.exit(1);
+            }
+            System.out.println("Loaded " + frames.size() + " labeled frames");
+
+            ThresholdOptimizer optimizer = new ThresholdOptimizer(frames, executor, costWeight);
+            long start = System.nanoTime();
+            Score best = optimizer.search();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ROOT, "Tried %d profiles in %.1f s on %d threads%n", optimizer.evaluations, seconds, threads);
+            System.out.println("Best: " + best);
+
+            if (libraryFile != null) {
+                ProfileLibrary.load(libraryFile).with(best.profile.withName(name)).save(libraryFile);
+                System.out.println("Saved " + name + " to " + libraryFile);
+            } else {
+                best.profile.save(output, String.format(Locale.ROOT,
+                        "Found by ThresholdOptimizer on %d frames from %s: %.1f%% correct, %.2f ms/frame",
+                        frames.size(), dir, best.accuracy * 100, best.frameTime));
+                System.out.println("Saved " + output);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs the whole search.
+     *
+     * @return the best profile that was found
+     */
+    private Score search() throws InterruptedException, ExecutionException {
+        List<CalibrationProfile> starts = new ArrayList<>();
+        starts.add(CalibrationProfile.DEFAULT);
+        starts.add(suggestFromLabels());
+        Score best = evaluate(starts);
+        System.out.println("Starting from " + best);
+
+        for (int step : STEPS) {
+            for (int pass = 0; pass < MAX_PASSES; pass++) {
+                boolean improved = false;
+                // 0-5 are the thresholds (min then max of each channel) and 6
+                // is the blur size
+                for (int param = 0; param <= 6; param++) {
+                    List<CalibrationProfile> candidates = neighbors(best.profile, param, step);
+                    if (candidates.isEmpty()) {
+                        continue;
+                    }
+                    Score s = evaluate(candidates);
+                    if (s.value > best.value) {
+                        best = s;
+                        improved = true;
+                    }
+                }
+                System.out.println("Step " + step + ", pass " + (pass + 1) + ": " + best);
+                if (!improved) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Makes a profile from a histogram of all of the labeled boxes.
+     */
+    private CalibrationProfile suggestFromLabels() {
+        HsvHistogram histogram = new HsvHistogram();
+        for (LabeledFrame f : frames) {
+            for (Rect label : new Rect[]{f.staticLabel, f.hotLabel}) {
+                if (label != null) {
+                    Mat roi = f.hsv.submat(label);
+                    histogram.add(roi);
+                    roi.release();
+                }
+            }
+        }
+        if (histogram.getCount() == 0) {
+            return CalibrationProfile.DEFAULT;
+        }
+        return new CalibrationProfile(histogram.suggestH(), histogram.suggestS(), histogram.suggestV(),
+                CalibrationProfile.DEFAULT_BLUR_SIZE);
+    }
+
+    /**
+     * Creates the profiles that differ from a profile by a few steps of one
+     * value.
+     */
+    private static List<CalibrationProfile> neighbors(CalibrationProfile profile, int param, int step) {
+        List<CalibrationProfile> result = new ArrayList<>();
+        for (int k = -STEP_COUNT; k <= STEP_COUNT; k++) {
+            if (k == 0) {
+                continue;
+            }
+            if (param == 6) {
+                // Blur sizes have to stay odd
+                int size = profile.getBlurSize() + 2 * k * Math.max(1, step / 8);
+                if (size >= 1 && size <= MAX_BLUR_SIZE) {
+                    result.add(profile.withBlurSize(size));
+                }
+            } else {
+                int channel = param / 2;
+                Range r = profile.getThreshold(channel);
+                if (param % 2 == 0) {
+                    r.setMin(r.getMin() + k * step);
+                } else {
+                    r.setMax(r.getMax() + k * step);
+                }
+                int maxValue = channel == 0 ? TargetTrackingProcessor.MAX_HUE : 255;
+                if (r.getMin() >= 0 && r.getMax() <= maxValue && r.getMin() <= r.getMax()) {
+                    result.add(profile.withThreshold(channel, r));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Scores several profiles and returns the best one. The accuracy of every
+     * profile is measured in parallel, and then the most accurate ones are
+     * timed on this thread.
+     */
+    private Score evaluate(List<CalibrationProfile> profiles) throws InterruptedException, ExecutionException {
+        double[] accuracy = measureAccuracy(profiles);
+        evaluations += profiles.size();
+
+        // Pick out the most accurate ones
+        List<Integer> shortlist = new ArrayList<>();
+        for (int p = 0; p < profiles.size(); p++) {
+            int i = shortlist.size();
+            while (i > 0 && accuracy[shortlist.get(i - 1)] < accuracy[p]) {
+                i--;
+            }
+            if (i < SHORTLIST_SIZE) {
+                shortlist.add(i, p);
+                if (shortlist.size() > SHORTLIST_SIZE) {
+                    shortlist.remove(SHORTLIST_SIZE);
+                }
+            }
+        }
+
+        Score best = null;
+        for (int p : shortlist) {
+            Score s = new Score(profiles.get(p), accuracy[p], measureFrameTime(profiles.get(p)), costWeight);
+            if (best == null || s.value > best.value) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Measures the accuracy of several profiles at once. Every frame of every
+     * profile is a separate task, so all of the cores are used even with only
+     * a few profiles.
+     *
+     * @return the fraction of targets each profile got right
+     */
+    private double[] measureAccuracy(List<CalibrationProfile> profiles) throws InterruptedException, ExecutionException {
+        int n = frames.size();
+        final int[][] correct = new int[profiles.size()][n];
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < profiles.size(); p++) {
+            final CalibrationProfile profile = profiles.get(p);
+            final int pi = p;
+            for (int i = 0; i < n; i++) {
+                final int fi = i;
+                futures.add(executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        LabeledFrame f = frames.get(fi);
+                        Detection d = PROCESSORS.get().detectHsv(f.hsv, profile, fi, 0);
+                        correct[pi][fi] = (matches(d.getStaticTarget(), f.staticLabel) ? 1 : 0)
+                                + (matches(d.getHotTarget(), f.hotLabel) ? 1 : 0);
+                    }
+                }));
+            }
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        double[] accuracy = new double[profiles.size()];
+        for (int p = 0; p < profiles.size(); p++) {
+            long totalCorrect = 0;
+            for (int i = 0; i < n; i++) {
+                totalCorrect += correct[p][i];
+            }
+            accuracy[p] = totalCorrect / (2.0 * n);
+        }
+        return accuracy;
+    }
+
+    /**
+     * Times a profile on this thread. This is only called while the workers
+     * are idle, so nothing else is competing for the CPU.
+     *
+     * @return the average time per frame in milliseconds
+     */
+    private double measureFrameTime(CalibrationProfile profile) {
+        int n = frames.size();
+        int stride = Math.max(1, n / MAX_TIMING_FRAMES);
+        // The first frame allocates the intermediate images, so don't count it
+        timingProcessor.detectHsv(frames.get(0).hsv, profile, 0, 0);
+        long totalNanos = 0;
+        int count = 0;
+        for (int i = 0; i < n; i += stride) {
+            long start = System.nanoTime();
+            timingProcessor.detectHsv(frames.get(i).hsv, profile, i, 0);
+            totalNanos += System.nanoTime() - start;
+            count++;
+        }
+        return totalNanos / 1e6 / count;
+    }
+
+    /**
+     * Checks whether a detected target agrees with its label. If there is no
+     * label, the target must not have been found.
+     */
+    static boolean matches(Detection.Candidate c, Rect label) {
+        if (label == null || c == null) {
+            return label == null && c == null;
+        }
+        int ix = Math.max(0, Math.min(c.x + c.width, label.x + label.width) - Math.max(c.x, label.x));
+        int iy = Math.max(0, Math.min(c.y + c.height, label.y + label.height) - Math.max(c.y, label.y));
+        double intersection = (double) ix * iy;
+        double union = (double) c.width * c.height + (double) label.width * label.height - intersection;
+        return union > 0 && intersection / union >= MIN_OVERLAP;
+    }
+
+    /**
+     * Reads the labels and converts the labeled frames to HSV in parallel.
+     */
+    private static List<LabeledFrame> loadFrames(final File dir, ExecutorService executor)
+            throws IOException, InterruptedException, ExecutionException {
+        List<Future<LabeledFrame>> futures = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(new File(dir, LABELS_FILE_NAME)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] parts = line.split("\\s+");
+                if (parts.length != 3) {
+                    throw new IOException("Invalid label line: " + line);
+                }
+                final Rect staticLabel = parseBox(parts[1]);
+                final Rect hotLabel = parseBox(parts[2]);
+                futures.add(executor.submit(new Callable<LabeledFrame>() {
+
+                    @Override
+                    public LabeledFrame call() throws IOException {
+                        Mat image = Highgui.imread(new File(dir, parts[0]).getPath());
+                        if (image.empty()) {
+                            throw new IOException("Could not read frame: " + parts[0]);
+                        }
+                        Mat hsv = new Mat();
+                        Imgproc.cvtColor(image, hsv, Imgproc.COLOR_BGR2HSV);
+                        image.release();
+                        return new LabeledFrame(hsv, clip(staticLabel, hsv, parts[0]), clip(hotLabel, hsv, parts[0]));
+                    }
+                }));
+            }
+        }
+        List<LabeledFrame> frames = new ArrayList<>();
+        for (Future<LabeledFrame> f : futures) {
+            frames.add(f.get());
+        }
+        return frames;
+    }
+
+    /**
+     * Cuts a label down to the part that is inside the frame, so it can be
+     * used with {@link Mat#submat(Rect)}.
+     *
+     * @return the label that fits, or null if there is no label
+     * @throws IOException if none of the label is inside the frame
+     */
+    static Rect clip(Rect label, Mat frame, String fileName) throws IOException {
+        if (label == null) {
+            return null;
+        }
+        int x1 = Math.max(0, label.x);
+        int y1 = Math.max(0, label.y);
+        int x2 = Math.min(frame.cols(), label.x + label.width);
+        int y2 = Math.min(frame.rows(), label.y + label.height);
+        if (x2 <= x1 || y2 <= y1) {
+            throw new IOException("Label " + label + " is outside of frame: " + fileName);
+        }
+        return new Rect(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    static Rect parseBox(String box) throws IOException {
+        if (box.equals("-")) {
+            return null;
+        }
+        String[] parts = box.split(",");
+        if (parts.length != 4) {
+            throw new IOException("Invalid box: " + box);
+        }
+        return new Rect(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+    }
+}
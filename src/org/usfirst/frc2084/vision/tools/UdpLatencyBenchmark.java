@@ -0,0 +1,71 @@
+package org.usfirst.frc2084.vision.tools;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+import org.usfirst.frc2084.vision.udp.ResultPacket;
+import org.usfirst.frc2084.vision.udp.UdpResultReceiver;
+import org.usfirst.frc2084.vision.udp.UdpResultSender;
+
+/**
+ * Measures the latency of the UDP result channel over the loopback interface.
+ * The sender and receiver run in the same JVM, so the send timestamp in each
+ * packet can be compared directly to the time it was received.
+ * <p>
+ * Usage: {@code UdpLatencyBenchmark [packets] [period in microseconds] [port]}
+ *
+ * @author Ben Wolsieffer
+ */
+public class UdpLatencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int packets = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long periodMicros = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : UdpResultSender.DEFAULT_PORT;
+
+        final UdpResultReceiver receiver = new UdpResultReceiver(port);
+        UdpResultSender sender = new UdpResultSender(new InetSocketAddress("127.0.0.1", port));
+        final LatencyStats stats = new LatencyStats(packets);
+
+        Thread receiveThread = new Thread("UDP Benchmark Receiver") {
+
+            @Override
+            public void run() {
+                ResultPacket packet = new ResultPacket();
+                while (receiver.receive(packet)) {
+                    stats.add(System.nanoTime() - packet.sendTimestamp);
+                }
+            }
+        };
+        receiveThread.start();
+
+        // Give the receiver time to start, then warm up the JIT
+        Thread.sleep(200);
+        ResultPacket packet = new ResultPacket();
+        packet.state = State.UNKNOWN_VALUE;
+        packet.imageWidth = 800;
+        packet.imageHeight = 600;
+        packet.flags = ResultPacket.FLAG_STATIC_FOUND | ResultPacket.FLAG_HOT_FOUND;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            packet.sequence = i;
+            packet.captureTimestamp = System.nanoTime();
+            sender.send(packet);
+            long next = start + TimeUnit.MICROSECONDS.toNanos(periodMicros) * (i + 1);
+            while (System.nanoTime() < next) {
+                Thread.yield();
+            }
+        }
+
+        // Wait for the last packets to arrive
+        Thread.sleep(200);
+        receiver.close();
+        sender.close();
+        receiveThread.join();
+
+        System.out.println("Sent " + sender.getSentPackets() + " packets (" + sender.getFailedPackets() + " failed), received "
+                + receiver.getReceivedPackets() + " (" + receiver.getDroppedPackets() + " dropped)");
+        stats.print("Loopback send-to-receive latency");
+    }
+}
@@ -0,0 +1,115 @@
+package org.usfirst.frc2084.vision.udp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The fixed layout binary packet that is sent over UDP after every processed
+ * frame. It is a mutable object so that the sender and receiver can reuse one
+ * instance instead of allocating a new one for every packet. All values are
+ * big-endian:
+ *
+ * <pre>
+ * offset  type    value
+ *  0      int     magic number (MAGIC)
+ *  4      short   layout version (VERSION)
+ *  6      short   flags (FLAG_STATIC_FOUND, FLAG_HOT_FOUND)
+ *  8      long    frame sequence number
+ * 16      long    capture timestamp (System.nanoTime() on the sender)
+ * 24      long    send timestamp (System.nanoTime() on the sender)
+ * 32      int     state (TargetTrackingCommunication.State value)
+ * 36      float   hot frame ratio (-1 if not available)
+ * 40      float[5] static target center x, center y, width, height, score
+ * 60      float[5] hot target center x, center y, width, height, score
+ * 80      short   image width
+ * 82      short   image height
+ * </pre>
+ *
+ * @author Ben Wolsieffer
+ */
+public class ResultPacket {
+
+    public static final int MAGIC = 0x32303834; // "2084"
+    public static final short VERSION = 1;
+    public static final int SIZE = 84;
+
+    public static final int FLAG_STATIC_FOUND = 1;
+    public static final int FLAG_HOT_FOUND = 1 << 1;
+
+    public int flags;
+    public long sequence;
+    public long captureTimestamp;
+    public long sendTimestamp;
+    public int state;
+    public float hotFrameRatio;
+    public final float[] staticTarget = new float[5];
+    public final float[] hotTarget = new float[5];
+    public int imageWidth;
+    public int imageHeight;
+
+    public boolean isStaticFound() {
+        return (flags & FLAG_STATIC_FOUND) != 0;
+    }
+
+    public boolean isHotFound() {
+        return (flags & FLAG_HOT_FOUND) != 0;
+    }
+
+    /**
+     * Writes this packet into a buffer, starting at the buffer's position.
+     *
+     * @param buffer the buffer to write to, which must have at least
+     * {@link #SIZE} bytes remaining
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) flags);
+        buffer.putLong(sequence);
+        buffer.putLong(captureTimestamp);
+        buffer.putLong(sendTimestamp);
+        buffer.putInt(state);
+        buffer.putFloat(hotFrameRatio);
+        for (float f : staticTarget) {
+            buffer.putFloat(f);
+        }
+        for (float f : hotTarget) {
+            buffer.putFloat(f);
+        }
+        buffer.putShort((short) imageWidth);
+        buffer.putShort((short) imageHeight);
+    }
+
+    /**
+     * Reads a packet from a buffer into this object.
+     *
+     * @param buffer the buffer to read from
+     * @return false if the buffer does not contain a valid packet, in which
+     * case this object is left partly filled in
+     */
+    public boolean read(ByteBuffer buffer) {
+        if (buffer.remaining() < SIZE) {
+            return false;
+        }
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+            return false;
+        }
+        flags = buffer.getShort();
+        sequence = buffer.getLong();
+        captureTimestamp = buffer.getLong();
+        sendTimestamp = buffer.getLong();
+        state = buffer.getInt();
+        hotFrameRatio = buffer.getFloat();
+        for (int i = 0; i < staticTarget.length; i++) {
+            staticTarget[i] = buffer.getFloat();
+        }
+        for (int i = 0; i < hotTarget.length; i++) {
+            hotTarget[i] = buffer.getFloat();
+        }
+        imageWidth = buffer.getShort() & 0xFFFF;
+        imageHeight = buffer.getShort() & 0xFFFF;
+        return true;
+    }
+}
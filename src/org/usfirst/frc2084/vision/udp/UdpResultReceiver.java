@@ -0,0 +1,121 @@
+package org.usfirst.frc2084.vision.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Receives the packets sent by {@link UdpResultSender}. Packets that arrive
+ * out of order are dropped, so the caller only ever sees newer results. If
+ * the sender restarts, its sequence numbers start over, so a packet that is
+ * a long way behind, or that arrives after nothing has been accepted for a
+ * while, starts the count over instead of being dropped.
+ * <p>
+ * This uses NIO, which the robot's Java ME doesn't have, so it is only for
+ * testing on a desktop (like {@link org.usfirst.frc2084.vision.tools.UdpLatencyBenchmark}).
+ * The robot code has to open a {@code javax.microedition.io.DatagramConnection}
+ * on {@code "datagram://:1180"} instead, read the fields in the order
+ * documented in {@link ResultPacket}, and drop old packets the same way
+ * {@link #receive(ResultPacket)} does.
+ * <p>
+ * Example:
+ * <pre>
+ * UdpResultReceiver receiver = new UdpResultReceiver(UdpResultSender.DEFAULT_PORT);
+ * ResultPacket packet = new ResultPacket();
+ * while (receiver.receive(packet)) {
+ *     if (packet.state == TargetTrackingCommunication.State.HOT_VALUE) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Ben Wolsieffer
+ */
+public class UdpResultReceiver {
+
+    /**
+     * How far back a sequence number can be and still be treated as a
+     * packet that arrived out of order, instead of a restarted sender.
+     */
+    private static final long MAX_REORDER = 100;
+    /**
+     * How long nothing can be accepted before any sequence number is taken
+     * as the start of a new count, in milliseconds.
+     */
+    private static final long RESTART_TIMEOUT = 1000;
+
+    private final DatagramChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(ResultPacket.SIZE);
+
+    private long lastSequence = Long.MIN_VALUE;
+    private long lastReceiveTime = 0;
+    private long receivedPackets = 0;
+    private long droppedPackets = 0;
+
+    /**
+     * Creates a receiver that listens on the specified port.
+     *
+     * @param port the UDP port to listen on
+     * @throws IOException if the port could not be bound
+     */
+    public UdpResultReceiver(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Blocks until a valid packet that is newer than the last one is received.
+     *
+     * @param packet the packet to read into
+     * @return false if the receiver was closed
+     */
+    public boolean receive(ResultPacket packet) {
+        while (channel.isOpen()) {
+            buffer.clear();
+            try {
+                channel.receive(buffer);
+            } catch (IOException ex) {
+                return false;
+            }
+            buffer.flip();
+            if (!packet.read(buffer)) {
+                droppedPackets++;
+                continue;
+            }
+            // A packet with the same sequence number as the last one is a
+            // state update for the same frame, so it is still delivered.
+            long now = System.currentTimeMillis();
+            if (packet.sequence < lastSequence
+                    && lastSequence - packet.sequence <= MAX_REORDER
+                    && now - lastReceiveTime < RESTART_TIMEOUT) {
+                droppedPackets++;
+                continue;
+            }
+            lastSequence = packet.sequence;
+            lastReceiveTime = now;
+            receivedPackets++;
+            return true;
+        }
+        return false;
+    }
+
+    public long getReceivedPackets() {
+        return receivedPackets;
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Closes the receiver, which causes any thread blocked in
+     * {@link #receive(ResultPacket)} to return false.
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+        }
+    }
+}
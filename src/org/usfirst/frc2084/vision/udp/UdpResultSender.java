@@ -0,0 +1,199 @@
+package org.usfirst.frc2084.vision.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.Arrays;
+import org.opencv.core.Mat;
+import org.usfirst.frc2084.vision.Detection;
+import org.usfirst.frc2084.vision.ProcessingListener;
+import org.usfirst.frc2084.vision.TargetTrackingCommunication.State;
+
+/**
+ * Sends a {@link ResultPacket} to the robot over UDP after every processed
+ * frame. This skips the NetworkTables update cadence, which matters when the
+ * processor runs on a coprocessor and the robot needs to know about a change
+ * right away. Everything is preallocated, so sending a packet does not create
+ * any garbage.
+ * <p>
+ * If the address is given as a host name, it is looked up on a background
+ * thread, and packets sent before the lookup works are counted as failed. The
+ * robot's name often can't be found until it has booted, so the lookup keeps
+ * being retried.
+ *
+ * @author Ben Wolsieffer
+ */
+public class UdpResultSender implements ProcessingListener {
+
+    /**
+     * The default port to send to. FRC allows 1180-1190 for camera data.
+     */
+    public static final int DEFAULT_PORT = 1180;
+    /**
+     * How long to wait before trying to look up the host name again, in
+     * milliseconds.
+     */
+    private static final long RESOLVE_RETRY_DELAY = 5000;
+
+    private final DatagramChannel channel;
+    /**
+     * The resolved address of the receiver, or null if it hasn't been found
+     * yet.
+     */
+    private volatile InetSocketAddress address;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(ResultPacket.SIZE);
+    private final ResultPacket packet = new ResultPacket();
+
+    private long sentPackets = 0;
+    private long failedPackets = 0;
+
+    /**
+     * Creates a sender that sends to the specified host. This doesn't block
+     * on the host name lookup, so it is safe to call from the event thread.
+     *
+     * @param host the host name or IP address of the receiver
+     * @param port the port of the receiver
+     * @throws IOException if the channel could not be opened
+     */
+    public UdpResultSender(String host, int port) throws IOException {
+        this(InetSocketAddress.createUnresolved(host, port));
+    }
+
+    /**
+     * Creates a sender that sends to the specified address. If the address is
+     * unresolved, it is looked up on a background thread.
+     *
+     * @param address the address of the receiver
+     * @throws IOException if the channel could not be opened
+     */
+    public UdpResultSender(InetSocketAddress address) throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        packet.state = State.UNKNOWN_VALUE;
+        packet.hotFrameRatio = -1;
+        if (address.isUnresolved()) {
+            startResolving(address.getHostString(), address.getPort());
+        } else {
+            this.address = address;
+        }
+    }
+
+    /**
+     * Looks up the host on a background thread until it is found or the
+     * sender is closed.
+     */
+    private void startResolving(final String host, final int port) {
+        Thread t = new Thread("Target Tracker UDP Resolver") {
+
+            @Override
+            @SuppressWarnings("SleepWhileInLoop")
+            public void run() {
+                while (channel.isOpen()) {
+                    InetSocketAddress a = new InetSocketAddress(host, port);
+                    if (!a.isUnresolved()) {
+                        address = a;
+                        return;
+                    }
+                    System.out.println("Could not find UDP result receiver " + host + ", retrying.");
+                    try {
+                        Thread.sleep(RESOLVE_RETRY_DELAY);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void frameProcessed(Mat image, Detection detection, double hotFrameRatio) {
+        packet.sequence = detection.getSequence();
+        packet.captureTimestamp = detection.getTimestamp();
+        packet.hotFrameRatio = Double.isNaN(hotFrameRatio) ? -1 : (float) hotFrameRatio;
+        packet.imageWidth = image.width();
+        packet.imageHeight = image.height();
+        packet.flags = 0;
+        if (putCandidate(packet.staticTarget, detection.getStaticTarget())) {
+            packet.flags |= ResultPacket.FLAG_STATIC_FOUND;
+        }
+        if (putCandidate(packet.hotTarget, detection.getHotTarget())) {
+            packet.flags |= ResultPacket.FLAG_HOT_FOUND;
+        }
+        send();
+    }
+
+    @Override
+    public void stateReported(State state, double hotFrameRatio) {
+        packet.state = state.value;
+        send();
+    }
+
+    /**
+     * Sends a packet. This is used by {@link #frameProcessed} and
+     * {@link #stateReported}, but can also be called directly with an
+     * arbitrary packet.
+     *
+     * @param p the packet to send. Its send timestamp is filled in.
+     */
+    public void send(ResultPacket p) {
+        buffer.clear();
+        p.sendTimestamp = System.nanoTime();
+        p.write(buffer);
+        buffer.flip();
+        InetSocketAddress a = address;
+        if (a == null) {
+            failedPackets++;
+            return;
+        }
+        try {
+            // A non-blocking send either sends the whole datagram or nothing
+            if (channel.send(buffer, a) > 0) {
+                sentPackets++;
+            } else {
+                failedPackets++;
+            }
+        } catch (IOException | UnresolvedAddressException | UnsupportedAddressTypeException ex) {
+            // These are runtime exceptions, but they just mean this packet
+            // couldn't be sent, so they can't be allowed to kill the
+            // processing thread
+            failedPackets++;
+        }
+    }
+
+    private void send() {
+        send(packet);
+    }
+
+    private static boolean putCandidate(float[] values, Detection.Candidate c) {
+        if (c == null) {
+            Arrays.fill(values, -1);
+            return false;
+        }
+        values[0] = (float) c.getCenterX();
+        values[1] = (float) c.getCenterY();
+        values[2] = c.width;
+        values[3] = c.height;
+        values[4] = (float) c.score;
+        return true;
+    }
+
+    public long getSentPackets() {
+        return sentPackets;
+    }
+
+    public long getFailedPackets() {
+        return failedPackets;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+        }
+    }
+}